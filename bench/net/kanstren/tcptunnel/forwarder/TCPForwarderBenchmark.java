@@ -0,0 +1,143 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures TCP forwarding throughput over loopback, for different buffer sizes.
+ * Each invocation sends one block through the tunnel to a sink server, which acknowledges the block with a single byte.
+ * The score is in blocks per second, with one operation per kilobyte, so it reads as kilobytes per millisecond (about MB/s).
+ *
+ * @author Teemu Kanstren.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TCPForwarderBenchmark {
+  /** Size of the block sent per invocation. */
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  /** Buffer size for the forwarders. */
+  @Param({"1024", "8192", "65536"})
+  public int bufferSize;
+  /** Forwarding engine, "threads" for the blocking forwarders, "nio" for the selector based engine. */
+  @Param({"threads", "nio"})
+  public String engine;
+  /** The tunnel under test. */
+  private Main main;
+  /** Server consuming the data forwarded by the tunnel. */
+  private ServerSocket sinkServer;
+  /** Client connection to the tunnel. */
+  private Socket client;
+  private OutputStream out;
+  private InputStream in;
+  /** The data sent for each invocation. */
+  private final byte[] block = new byte[BLOCK_SIZE];
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    sinkServer = new ServerSocket(0);
+    Thread sink = new Thread(this::sink, "benchmark-sink");
+    sink.setDaemon(true);
+    sink.start();
+    int proxyPort = freePort();
+    Params params = new Params(proxyPort, "localhost", sinkServer.getLocalPort());
+    params.setBufferSize(bufferSize);
+    params.setNIO(engine.equals("nio"));
+    params.setPrint(false);
+    main = new Main(params);
+    main.start();
+    client = connect(proxyPort);
+    out = client.getOutputStream();
+    in = client.getInputStream();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    client.close();
+    main.stop();
+    sinkServer.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BLOCK_SIZE / 1024)
+  public int forward() throws IOException {
+    out.write(block);
+    out.flush();
+    return in.read();
+  }
+
+  /**
+   * Reads the forwarded data, acknowledging every complete block with one byte.
+   */
+  private void sink() {
+    try (Socket socket = sinkServer.accept()) {
+      InputStream sinkIn = socket.getInputStream();
+      OutputStream sinkOut = socket.getOutputStream();
+      byte[] buffer = new byte[65536];
+      long received = 0;
+      int read;
+      while ((read = sinkIn.read(buffer)) > 0) {
+        received += read;
+        while (received >= BLOCK_SIZE) {
+          received -= BLOCK_SIZE;
+          sinkOut.write(1);
+          sinkOut.flush();
+        }
+      }
+    } catch (IOException e) {
+      //closed at teardown
+    }
+  }
+
+  /**
+   * @return A port that was free when checked.
+   * @throws IOException If no port could be opened.
+   */
+  static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Connects to the tunnel, retrying until it has started listening.
+   *
+   * @param port The tunnel port.
+   * @return The connected socket.
+   * @throws Exception If connecting keeps failing.
+   */
+  private static Socket connect(int port) throws Exception {
+    for (int i = 0 ; ; i++) {
+      try {
+        return new Socket("localhost", port);
+      } catch (IOException e) {
+        if (i == 100) throw e;
+        Thread.sleep(10);
+      }
+    }
+  }
+}
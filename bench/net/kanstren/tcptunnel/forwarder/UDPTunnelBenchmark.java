@@ -0,0 +1,106 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the UDP packet rate through the tunnel over loopback.
+ * Each invocation sends one packet to an echo server through the tunnel and waits for the echo.
+ * The score is in round trips per second, i.e., packets per second in each direction.
+ * A lost packet times out and fails the benchmark, as it would make the score meaningless.
+ *
+ * @author Teemu Kanstren.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDPTunnelBenchmark {
+  /** Size of the packet payload. */
+  @Param({"64", "512", "1400"})
+  public int packetSize;
+  /** The tunnel under test. */
+  private Main main;
+  /** The echo server. */
+  private DatagramSocket echoSocket;
+  /** Client socket sending to the tunnel. */
+  private DatagramSocket client;
+  private DatagramPacket request;
+  private DatagramPacket response;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    echoSocket = new DatagramSocket(0);
+    Thread echo = new Thread(this::echo, "benchmark-echo");
+    echo.setDaemon(true);
+    echo.start();
+    int proxyPort = TCPForwarderBenchmark.freePort();
+    Params params = new Params(proxyPort, "localhost", echoSocket.getLocalPort());
+    params.setUDP(true);
+    params.setPrint(false);
+    main = new Main(params);
+    main.start();
+    Thread.sleep(100);
+    client = new DatagramSocket();
+    client.setSoTimeout(1000);
+    request = new DatagramPacket(new byte[packetSize], packetSize, InetAddress.getLoopbackAddress(), proxyPort);
+    response = new DatagramPacket(new byte[65536], 65536);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    client.close();
+    main.stop();
+    echoSocket.close();
+  }
+
+  @Benchmark
+  public int roundTrip() throws IOException {
+    client.send(request);
+    try {
+      client.receive(response);
+    } catch (SocketTimeoutException e) {
+      throw new IOException("Packet lost, round trip timed out", e);
+    }
+    return response.getLength();
+  }
+
+  /**
+   * Sends every received packet back to its sender.
+   */
+  private void echo() {
+    byte[] buffer = new byte[65536];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    try {
+      while (true) {
+        packet.setLength(buffer.length);
+        echoSocket.receive(packet);
+        echoSocket.send(packet);
+      }
+    } catch (IOException e) {
+      //closed at teardown
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package net.kanstren.tcptunnel.observers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures the cost of the observers for a single chunk of data, as paid by the forwarding thread on every read.
+ * The chunk is an HTTP response with a gzipped body, so the GZip logger has something to find and unzip.
+ *
+ * @author Teemu Kanstren.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserverBenchmark {
+  /** Size of the uncompressed body in the chunk. */
+  @Param({"64", "1460", "16384"})
+  public int size;
+  /** The chunk passed to observers. */
+  private byte[] chunk;
+  /** The gzipped body alone. */
+  private byte[] gzip;
+  private ByteConsoleLogger byteLogger;
+  private StringFileLogger fileLogger;
+  private InMemoryLogger memoryLogger;
+  /** Path of the file logger output, without the postfix added by the logger. */
+  private Path filePath;
+  /** Number of bytes given to the file logger since the file was truncated. */
+  private long fileBytes = 0;
+  /** Number of bytes given to the in-memory logger since it was reset. */
+  private long memoryBytes = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Random random = new Random(1);
+    byte[] body = new byte[size];
+    for (int i = 0 ; i < size ; i++) {
+      //printable ascii, compressing like text does
+      body[i] = (byte) ('a' + random.nextInt(16));
+    }
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (GZIPOutputStream gout = new GZIPOutputStream(bout)) {
+      gout.write(body);
+    }
+    gzip = bout.toByteArray();
+    byte[] header = ("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + gzip.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    chunk = new byte[header.length + gzip.length];
+    System.arraycopy(header, 0, chunk, 0, header.length);
+    System.arraycopy(gzip, 0, chunk, header.length, gzip.length);
+
+    PrintStream nullStream = new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    });
+    byteLogger = new ByteConsoleLogger(true, nullStream, "");
+    filePath = Files.createTempFile("tcptunnel-bench", "");
+    fileLogger = new StringFileLogger(filePath.toString());
+    memoryLogger = new InMemoryLogger(1024 * 1024);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws IOException {
+    fileLogger.flush();
+    Files.deleteIfExists(filePath);
+    Files.deleteIfExists(Paths.get(filePath + ".txt"));
+  }
+
+  @Benchmark
+  public String bytesToHex() {
+    return byteLogger.bytesToHex(chunk, 0, chunk.length);
+  }
+
+  @Benchmark
+  public int gzipIndexOf() {
+    return GZipStringConsoleLogger.indexOf(chunk, new byte[] {0x1f, (byte) 0x8b, 0x08}, 0, chunk.length);
+  }
+
+  @Benchmark
+  public byte[] gzipUnzip() throws IOException {
+    return GZipStringConsoleLogger.unzip(gzip);
+  }
+
+  @Benchmark
+  public void stringFileLogger() throws IOException {
+    fileLogger.observe(chunk, 0, chunk.length);
+    //keep the disk use bounded, truncating the file every 64MB, amortized over the calls
+    fileBytes += chunk.length;
+    if (fileBytes > 64 * 1024 * 1024) {
+      fileLogger.flush();
+      fileLogger = new StringFileLogger(filePath.toString());
+      fileBytes = 0;
+    }
+  }
+
+  @Benchmark
+  public void inMemoryLogger() {
+    memoryLogger.observe(chunk, 0, chunk.length);
+    //keep the memory use bounded, resetting once the initial capacity is used, amortized over the calls
+    memoryBytes += chunk.length;
+    if (memoryBytes > 1024 * 1024) {
+      memoryLogger.reset();
+      memoryBytes = 0;
+    }
+  }
+}
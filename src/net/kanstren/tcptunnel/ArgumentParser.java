@@ -1,5 +1,9 @@
 package net.kanstren.tcptunnel;
 
+import net.kanstren.tcptunnel.async.OverflowPolicy;
+import net.kanstren.tcptunnel.backend.BalanceStrategy;
+import net.kanstren.tcptunnel.forwarder.FlushMode;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
@@ -60,6 +64,38 @@ public class ArgumentParser {
           options.add(new Option("--gzip", "true"));
           continue;
         }
+        if (arg.equals("--nio")) {
+          options.add(new Option("--nio", "true"));
+          continue;
+        }
+        if (arg.equals("--virtual-threads")) {
+          options.add(new Option("--virtual-threads", "true"));
+          continue;
+        }
+        if (arg.equals("--debug-buffers")) {
+          options.add(new Option("--debug-buffers", "true"));
+          continue;
+        }
+        if (arg.equals("--async-observers")) {
+          options.add(new Option("--async-observers", "true"));
+          continue;
+        }
+        if (arg.equals("--reuse-port")) {
+          options.add(new Option("--reuse-port", "true"));
+          continue;
+        }
+        if (arg.equals("--dns-coalesce")) {
+          options.add(new Option("--dns-coalesce", "true"));
+          continue;
+        }
+        if (arg.equals("--dns-tcp")) {
+          options.add(new Option("--dns-tcp", "true"));
+          continue;
+        }
+        if (arg.equals("--jmx")) {
+          options.add(new Option("--jmx", "true"));
+          continue;
+        }
         if (args.length <= i + 1) {
           //all options coming this far should have a value. otherwise it is an error.
           errors += "No value given for option " + arg + ". Please provide one." + ln;
@@ -193,6 +229,241 @@ public class ArgumentParser {
           //try to decompress gzip encoding in HTTP requests for string logs
           params.setGzip(true);
           break;
+        case "--nio":
+          //forward tcp using selector event loops instead of threads per connection
+          params.setNIO(true);
+          break;
+        case "--virtual-threads":
+          //run the tunnel threads as virtual threads (java 21+)
+          params.setVirtualThreads(true);
+          break;
+        case "--debug-buffers":
+          //track pooled buffers and report any not released
+          params.setDebugBuffers(true);
+          break;
+        case "--nio-loops":
+          try {
+            int loops = Integer.parseInt(option.value);
+            params.setNIOLoops(loops);
+            if (loops <= 0) errors += "Number of NIO loops has to be > 0, was: " + loops + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'nio-loops':" + option.value + "." + ln;
+          }
+          break;
+        case "--udp-batch":
+          try {
+            int batch = Integer.parseInt(option.value);
+            params.setUDPBatch(batch);
+            if (batch < 1 || batch > Params.MAX_UDP_BATCH) errors += "UDP batch size has to be in range 1-" + Params.MAX_UDP_BATCH + ", was: " + batch + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'udp-batch':" + option.value + "." + ln;
+          }
+          break;
+        case "--udp-shards":
+          try {
+            int shards = Integer.parseInt(option.value);
+            params.setUDPShards(shards);
+            if (shards <= 0) errors += "Number of UDP shards has to be > 0, was: " + shards + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'udp-shards':" + option.value + "." + ln;
+          }
+          break;
+        case "--acceptors":
+          try {
+            int acceptors = Integer.parseInt(option.value);
+            params.setAcceptors(acceptors);
+            if (acceptors <= 0) errors += "Number of acceptors has to be > 0, was: " + acceptors + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'acceptors':" + option.value + "." + ln;
+          }
+          break;
+        case "--reuse-port":
+          //give each tcp acceptor its own listening socket, with the os spreading the connections over them
+          params.setReusePort(true);
+          break;
+        case "--backlog":
+          try {
+            int backlog = Integer.parseInt(option.value);
+            params.setBacklog(backlog);
+            if (backlog <= 0) errors += "Backlog has to be > 0, was: " + backlog + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'backlog':" + option.value + "." + ln;
+          }
+          break;
+        case "--dns-sockets":
+          try {
+            int sockets = Integer.parseInt(option.value);
+            params.setDNSSockets(sockets);
+            if (sockets < 0) errors += "Number of DNS sockets has to be >= 0, was: " + sockets + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'dns-sockets':" + option.value + "." + ln;
+          }
+          break;
+        case "--dns-cache":
+          try {
+            int entries = Integer.parseInt(option.value);
+            params.setDNSCacheSize(entries);
+            if (entries < 0) errors += "DNS cache size has to be >= 0, was: " + entries + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'dns-cache':" + option.value + "." + ln;
+          }
+          break;
+        case "--dns-prefetch":
+          try {
+            int hits = Integer.parseInt(option.value);
+            params.setDNSPrefetch(hits);
+            if (hits < 0) errors += "DNS prefetch hits has to be >= 0, was: " + hits + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'dns-prefetch':" + option.value + "." + ln;
+          }
+          break;
+        case "--dns-coalesce":
+          //forward only the first of identical dns queries in flight, answering the rest with its response
+          params.setDNSCoalesce(true);
+          break;
+        case "--dns-tcp":
+          //accept dns over tcp as well, and get the full responses over tcp when udp ones are truncated
+          params.setDNSTCP(true);
+          break;
+        case "--flush":
+          //when to flush data read by tcp forwarders, coalescing multiple reads into one write
+          FlushMode mode = FlushMode.forId(option.value);
+          if (mode == null) errors += "Unknown flush mode: '" + option.value + "'." + ln;
+          else params.setFlushMode(mode);
+          break;
+        case "--flush-bytes":
+          try {
+            int flushBytes = Integer.parseInt(option.value);
+            params.setFlushBytes(flushBytes);
+            if (flushBytes <= 0) errors += "Flush threshold has to be > 0, was: " + flushBytes + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'flush-bytes':" + option.value + "." + ln;
+          }
+          break;
+        case "--flush-micros":
+          try {
+            int flushMicros = Integer.parseInt(option.value);
+            params.setFlushMicros(flushMicros);
+            if (flushMicros <= 0) errors += "Flush deadline has to be > 0, was: " + flushMicros + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'flush-micros':" + option.value + "." + ln;
+          }
+          break;
+        case "--async-observers":
+          //run observers in separate consumer threads, decoupled from forwarding
+          params.setAsyncObservers(true);
+          break;
+        case "--async-queue":
+          try {
+            int queueSize = Integer.parseInt(option.value);
+            params.setAsyncQueueSize(queueSize);
+            if (queueSize <= 0) errors += "Async queue size has to be > 0, was: " + queueSize + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'async-queue':" + option.value + "." + ln;
+          }
+          break;
+        case "--async-threads":
+          try {
+            int threads = Integer.parseInt(option.value);
+            params.setAsyncThreads(threads);
+            if (threads <= 0) errors += "Number of async threads has to be > 0, was: " + threads + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'async-threads':" + option.value + "." + ln;
+          }
+          break;
+        case "--async-overflow":
+          OverflowPolicy policy = OverflowPolicy.forId(option.value);
+          if (policy == null) errors += "Unknown overflow policy: '" + option.value + "'." + ln;
+          else params.setOverflowPolicy(policy);
+          break;
+        case "--prewarm":
+          try {
+            int prewarm = Integer.parseInt(option.value);
+            params.setPrewarmSize(prewarm);
+            if (prewarm <= 0) errors += "Number of pre-connected backend connections has to be > 0, was: " + prewarm + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'prewarm':" + option.value + "." + ln;
+          }
+          break;
+        case "--prewarm-max-idle":
+          try {
+            int maxIdle = Integer.parseInt(option.value);
+            params.setPrewarmMaxIdle(maxIdle);
+            if (maxIdle <= 0) errors += "Pre-connected backend connection max idle time has to be > 0, was: " + maxIdle + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'prewarm-max-idle':" + option.value + "." + ln;
+          }
+          break;
+        case "--health-interval":
+          try {
+            int interval = Integer.parseInt(option.value);
+            params.setHealthInterval(interval);
+            if (interval <= 0) errors += "Health check interval has to be > 0, was: " + interval + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'health-interval':" + option.value + "." + ln;
+          }
+          break;
+        case "--health-timeout":
+          try {
+            int timeout = Integer.parseInt(option.value);
+            params.setHealthTimeout(timeout);
+            if (timeout <= 0) errors += "Health check timeout has to be > 0, was: " + timeout + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'health-timeout':" + option.value + "." + ln;
+          }
+          break;
+        case "--health-payload":
+          params.setHealthPayload(option.value);
+          break;
+        case "--eject-after":
+          try {
+            int ejectAfter = Integer.parseInt(option.value);
+            params.setEjectAfter(ejectAfter);
+            if (ejectAfter < 0) errors += "Number of failures to eject backend after has to be >= 0, was: " + ejectAfter + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'eject-after':" + option.value + "." + ln;
+          }
+          break;
+        case "--eject-time":
+          try {
+            int ejectTime = Integer.parseInt(option.value);
+            params.setEjectTime(ejectTime);
+            if (ejectTime <= 0) errors += "Backend eject time has to be > 0, was: " + ejectTime + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'eject-time':" + option.value + "." + ln;
+          }
+          break;
+        case "--metrics-interval":
+          try {
+            int interval = Integer.parseInt(option.value);
+            params.setMetricsInterval(interval);
+            if (interval <= 0) errors += "Metrics interval has to be > 0, was: " + interval + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'metrics-interval':" + option.value + "." + ln;
+          }
+          break;
+        case "--prometheus":
+          try {
+            int port = Integer.parseInt(option.value);
+            params.setPrometheusPort(port);
+            if (port < 1 || port > 65535) errors += "Prometheus port has to be in range 1-65535, was: " + port + "." + ln;
+          } catch (NumberFormatException e) {
+            errors += "Invalid number for 'prometheus':" + option.value + "." + ln;
+          }
+          break;
+        case "--jmx":
+          //register the tunnel as an MBean for monitoring and control
+          params.setJMX(true);
+          break;
+        case "--backend":
+          //additional backend to balance load over, as host:port
+          errors = parseBackend(option.value, params, errors);
+          break;
+        case "--balance":
+          BalanceStrategy strategy = BalanceStrategy.forId(option.value);
+          if (strategy == null) errors += "Unknown balancing strategy: '" + option.value + "'." + ln;
+          else params.setBalanceStrategy(strategy);
+          break;
         default:
           //anything not processed above is invalid..
           errors += "Invalid option '" + name + "'." + ln;
@@ -213,6 +484,27 @@ public class ArgumentParser {
     return errors;
   }
 
+  /**
+   * Parses an additional backend definition.
+   *
+   * @param value The backend definition, as host:port.
+   * @param params For storing the parsed backend.
+   * @param errors Errors so far.
+   * @return Previous and new errors.
+   */
+  private static String parseBackend(String value, Params params, String errors) {
+    int index = value.lastIndexOf(':');
+    if (index <= 0) return errors + "Invalid backend '" + value + "', should be host:port." + ln;
+    try {
+      int port = Integer.parseInt(value.substring(index + 1));
+      if (port < 1 || port > 65535) return errors + "Invalid backend port value. Should be between 1-65535, was: " + port + "." + ln;
+      params.addBackend(value.substring(0, index), port);
+    } catch (NumberFormatException e) {
+      errors += "Invalid backend '" + value + "', should be host:port." + ln;
+    }
+    return errors;
+  }
+
   /**
    * Adds a given type of logger to parser results.
    * 
@@ -297,7 +589,9 @@ public class ArgumentParser {
   public static String help() {
     InputStream is = ArgumentParser.class.getResourceAsStream("helptext.txt");
     String template = Utils.getResource(is);
-    return String.format(template, Params.DEFAULT_BUFFER_SIZE, Params.DEFAULT_ENCONDING, Params.DEFAULT_DOWN_PATH, Params.DEFAULT_UP_PATH);
+    return String.format(template, Params.DEFAULT_BUFFER_SIZE, Params.DEFAULT_ENCONDING, Params.DEFAULT_DOWN_PATH, Params.DEFAULT_UP_PATH, Params.DEFAULT_BACKLOG,
+            Params.DEFAULT_FLUSH_BYTES, Params.DEFAULT_FLUSH_MICROS, Params.DEFAULT_ASYNC_QUEUE_SIZE, Params.DEFAULT_ASYNC_THREADS,
+            Params.DEFAULT_PREWARM_MAX_IDLE, Params.DEFAULT_HEALTH_TIMEOUT, Params.DEFAULT_EJECT_AFTER, Params.DEFAULT_EJECT_TIME);
   }
 
   /**
@@ -1,13 +1,33 @@
 package net.kanstren.tcptunnel;
 
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.backend.ConnectionPool;
+import net.kanstren.tcptunnel.backend.HealthChecker;
+import net.kanstren.tcptunnel.dns.DNSTCPConnection;
+import net.kanstren.tcptunnel.forwarder.DNSMultiplexer;
+import net.kanstren.tcptunnel.forwarder.DNSTCPForwarder;
+import net.kanstren.tcptunnel.forwarder.NIOTCPEngine;
+import net.kanstren.tcptunnel.forwarder.NIOUDPTunnel;
 import net.kanstren.tcptunnel.forwarder.TCPTunnel;
 import net.kanstren.tcptunnel.forwarder.DNSTunnel;
+import net.kanstren.tcptunnel.forwarder.TunnelConnection;
 import net.kanstren.tcptunnel.forwarder.UDPTunnel;
+import net.kanstren.tcptunnel.jmx.TunnelManager;
+import net.kanstren.tcptunnel.metrics.MetricsReporter;
+import net.kanstren.tcptunnel.metrics.PrometheusExporter;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main starting point for the tunnel application. Either directly from command line or programmatically.
@@ -17,13 +37,29 @@ public class Main implements Runnable {
   /** The configuration for the tunnel. */
   private final Params params;
   /** As long as this is true, we wait for new connections for the tunnel. */
-  private boolean shouldRun = true;
+  private volatile boolean shouldRun = true;
   /** The main thread running this tunnel. */
   private Thread thread = null;
-  /** List of active tunnels. */
-  private final List<TCPTunnel> tunnels = new CopyOnWriteArrayList<>();
-  private ServerSocket serverSocket;
-  private DatagramSocket udpServerSocket;
+  /** Active tunnels. A concurrent set, as several acceptors may add to it while tunnels remove themselves. */
+  private final Set<TCPTunnel> tunnels = ConcurrentHashMap.newKeySet();
+  /** The TCP listening sockets. More than one if each acceptor has its own with SO_REUSEPORT. */
+  private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
+  /** The UDP sockets bound on the source port. More than one if sharded with SO_REUSEPORT. */
+  private final List<DatagramSocket> udpServerSockets = new CopyOnWriteArrayList<>();
+  /** Active DNS over TCP client connections. */
+  private final Set<DNSTCPForwarder> dnsTCPForwarders = ConcurrentHashMap.newKeySet();
+  /** Selector based forwarding engine, if NIO forwarding is enabled. */
+  private NIOTCPEngine nioEngine;
+  /** Selector based UDP tunnels, if NIO forwarding is enabled for UDP. One per UDP socket. */
+  private final List<NIOUDPTunnel> nioUDPTunnels = new CopyOnWriteArrayList<>();
+  /** Active health checks of the backends, if enabled. */
+  private HealthChecker healthChecker;
+  /** Periodic printing of the tunnel metrics, if enabled. */
+  private MetricsReporter metricsReporter;
+  /** JMX management of this tunnel, if enabled. */
+  private TunnelManager tunnelManager;
+  /** Serving of the tunnel metrics in Prometheus format, if enabled. */
+  private PrometheusExporter prometheusExporter;
 
   public Main(Params params) {
     this.params = params;
@@ -46,43 +82,278 @@ public class Main implements Runnable {
    * Use this to start the actual tunneling.
    */
   public void start() {
-    thread = new Thread(this);
-    thread.start();
+    thread = Utils.startThread(this, "tcptunnel-main", params.isVirtualThreads());
   }
 
   @Override
   public void run() {
+    if (params.isVirtualThreads() && !Utils.isVirtualThreadSupported() && params.isPrint()) {
+      System.err.println("Virtual threads are not supported on this JVM (requires Java 21+). Using platform threads.");
+    }
+    if (params.isJMX()) registerMBean();
+    if (params.getMetricsInterval() > 0) {
+      metricsReporter = new MetricsReporter(params.getMetrics(), params.getMetricsInterval(), System.out);
+      metricsReporter.start();
+    }
+    if (params.getPrometheusPort() > 0) startPrometheusExporter();
     if (params.isDNS()) {
       try {
-        udpServerSocket = new DatagramSocket(params.getSourcePort());
+        DatagramSocket udpServerSocket = new DatagramSocket(params.getSourcePort());
+        udpServerSockets.add(udpServerSocket);
+        if (params.isDNSTCP()) startDNSTCP();
         DNSTunnel tunnel = new DNSTunnel(params, udpServerSocket);
         tunnel.start();
-      } catch (SocketException e) {
+      } catch (IOException e) {
+        stop();
         throw new RuntimeException("Error while trying to forward DNS with params:" + params, e);
       }
     } else if(params.isUDP()){
       try {
-        udpServerSocket = new DatagramSocket(params.getSourcePort());
-        UDPTunnel tunnel = new UDPTunnel(params, udpServerSocket);
-        tunnel.start();
-      } catch (SocketException e) {
+        startUDPTunnels();
+      } catch (IOException e) {
+        stop();
         throw new RuntimeException("Error while trying to forward UDP with params:" + params, e);
       }
     } else {
+      startHealthChecker();
+      startConnectionPools();
+      List<ServerSocket> listeners = new ArrayList<>();
       try {
-        serverSocket = new ServerSocket(params.getSourcePort());
-        while (shouldRun) {
+        if (params.isNIO()) {
+          nioEngine = new NIOTCPEngine(params);
+          nioEngine.start();
+        }
+        //with SO_REUSEPORT each acceptor gets its own socket, otherwise they all accept from the same one
+        int count = params.isReusePort() ? params.getAcceptors() : 1;
+        for (int i = 0 ; i < count ; i++) {
+          listeners.add(openServerSocket());
+        }
+      } catch (IOException e) {
+        stop();
+        throw new RuntimeException("Error while trying to forward TCP with params:" + params, e);
+      }
+      //this thread is the first acceptor, the others get their own threads
+      for (int i = 1 ; i < params.getAcceptors() ; i++) {
+        ServerSocket listener = listeners.get(i % listeners.size());
+        Utils.startThread(() -> accept(listener), "tcptunnel-acceptor-" + i, params.isVirtualThreads());
+      }
+      accept(listeners.get(0));
+    }
+  }
+
+  /**
+   * Opens and binds a TCP listening socket on the source port, with the configured backlog.
+   * Accepting over a channel gives the sockets channels as well, allowing NIO forwarding or direct forwarding of unobserved streams.
+   *
+   * @return The bound socket.
+   * @throws IOException If binding fails, or SO_REUSEPORT is requested but not supported.
+   */
+  private ServerSocket openServerSocket() throws IOException {
+    ServerSocket serverSocket;
+    if (params.isNIO() || params.hasUnobservedStream() || params.isReusePort()) {
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverSocket = serverChannel.socket();
+      serverSockets.add(serverSocket);
+      if (params.isReusePort()) Utils.setReusePort(serverChannel);
+    } else {
+      serverSocket = new ServerSocket();
+      serverSockets.add(serverSocket);
+    }
+    serverSocket.bind(new InetSocketAddress(params.getSourcePort()), params.getBacklog());
+    return serverSocket;
+  }
+
+  /**
+   * Accepts new TCP connections from the given socket and starts forwarding them, until stopped.
+   * Several acceptors can run this at the same time, on the same or different sockets.
+   *
+   * @param serverSocket The listening socket to accept from.
+   */
+  private void accept(ServerSocket serverSocket) {
+    try {
+      while (shouldRun) {
+        if (nioEngine != null) {
+          SocketChannel clientChannel = serverSocket.getChannel().accept();
+          nioEngine.handle(clientChannel);
+        } else {
           Socket clientSocket = serverSocket.accept();
           TCPTunnel tunnel = new TCPTunnel(params, clientSocket, this);
-          tunnel.start();
+          //added before starting, so a quickly failing tunnel cannot remove itself before being added
           tunnels.add(tunnel);
+          tunnel.start();
         }
+      }
+    } catch (IOException e) {
+      if (!shouldRun) return;
+      throw new RuntimeException("Error while trying to forward TCP with params:" + params, e);
+    }
+  }
+
+  /**
+   * Binds the UDP socket on the source port and starts the tunnel for it.
+   * With more than one shard, binds that many sockets with SO_REUSEPORT, each with its own tunnel and sessions.
+   * The operating system then spreads the clients over the sockets by flow, so the packets of a client keep going to the same shard.
+   *
+   * @throws IOException If binding fails, or SO_REUSEPORT is not supported when sharding.
+   */
+  private void startUDPTunnels() throws IOException {
+    int shards = params.getUDPShards();
+    //batching needs non-blocking reads to drain the socket, so it is only done by the selector based tunnel
+    boolean nio = params.isNIO() || params.getUDPBatch() > 1;
+    if (shards == 1 && !nio) {
+      DatagramSocket udpServerSocket = new DatagramSocket(params.getSourcePort());
+      udpServerSockets.add(udpServerSocket);
+      UDPTunnel tunnel = new UDPTunnel(params, udpServerSocket);
+      tunnel.start();
+      return;
+    }
+    //split the event loops over the shards, instead of each shard having as many as there are cores
+    int loops = (params.getNIOLoops() + shards - 1) / shards;
+    for (int i = 0 ; i < shards ; i++) {
+      DatagramChannel channel = DatagramChannel.open();
+      udpServerSockets.add(channel.socket());
+      if (shards > 1) Utils.setReusePort(channel);
+      channel.bind(new InetSocketAddress(params.getSourcePort()));
+      if (nio) {
+        String name = shards > 1 ? "tcptunnel-nio-udp-s" + i : "tcptunnel-nio-udp";
+        NIOUDPTunnel tunnel = new NIOUDPTunnel(params, channel, loops, name);
+        nioUDPTunnels.add(tunnel);
+        tunnel.start();
+      } else {
+        //a blocking channel socket works as a plain datagram socket for the thread based tunnel
+        UDPTunnel tunnel = new UDPTunnel(params, channel.socket());
+        tunnel.start();
+      }
+    }
+  }
+
+  /**
+   * Creates the persistent TCP connections to the DNS backends, and starts accepting DNS over TCP on the source port.
+   * The connections to the backends are opened on first use.
+   *
+   * @throws IOException If binding the listening socket fails.
+   */
+  private void startDNSTCP() throws IOException {
+    for (Backend backend : params.getLoadBalancer().getBackends()) {
+      DNSTCPConnection connection = new DNSTCPConnection(backend, TimeUnit.MILLISECONDS.toNanos(DNSMultiplexer.TIMEOUT_MILLIS));
+      backend.setDNSConnection(connection);
+      connection.start();
+    }
+    ServerSocket serverSocket = new ServerSocket();
+    serverSockets.add(serverSocket);
+    serverSocket.bind(new InetSocketAddress(params.getSourcePort()), params.getBacklog());
+    Utils.startThread(() -> acceptDNS(serverSocket), "tcptunnel-dns-tcp-acceptor", params.isVirtualThreads());
+  }
+
+  /**
+   * Accepts DNS over TCP connections from clients and starts forwarding their queries, until stopped.
+   *
+   * @param serverSocket The listening socket to accept from.
+   */
+  private void acceptDNS(ServerSocket serverSocket) {
+    while (shouldRun) {
+      try {
+        Socket clientSocket = serverSocket.accept();
+        DNSTCPForwarder forwarder = new DNSTCPForwarder(params, clientSocket);
+        dnsTCPForwarders.add(forwarder);
+        Utils.startThread(() -> {
+          forwarder.run();
+          dnsTCPForwarders.remove(forwarder);
+        }, "tcptunnel-dns-tcp-client", params.isVirtualThreads());
       } catch (IOException e) {
-        throw new RuntimeException("Error while trying to forward TCP with params:" + params, e);
+        if (!shouldRun || serverSocket.isClosed()) return;
+        params.getMetrics().recordError();
+        if (params.isPrint()) {
+          System.err.println("Error accepting DNS over TCP connection");
+          e.printStackTrace();
+        }
       }
     }
   }
 
+  /**
+   * Registers the JMX management bean for this tunnel. Failure is reported but does not stop the tunnel.
+   */
+  private void registerMBean() {
+    tunnelManager = new TunnelManager(this, params);
+    try {
+      tunnelManager.register();
+    } catch (Exception e) {
+      if (params.isPrint()) {
+        System.err.println("Failed to register JMX MBean for tunnel");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Starts serving the metrics in Prometheus format. Failure is reported but does not stop the tunnel.
+   */
+  private void startPrometheusExporter() {
+    prometheusExporter = new PrometheusExporter(params, params.getPrometheusPort());
+    try {
+      prometheusExporter.start();
+    } catch (IOException e) {
+      if (params.isPrint()) {
+        System.err.println("Failed to start Prometheus metrics endpoint on port " + params.getPrometheusPort());
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Starts active health checks of the backends, if enabled.
+   */
+  private void startHealthChecker() {
+    if (params.getHealthInterval() <= 0) return;
+    healthChecker = new HealthChecker(params, params.getLoadBalancer().getBackends());
+    healthChecker.start();
+  }
+
+  /**
+   * Starts filling the pools of pre-connected connections for each backend, if enabled.
+   */
+  private void startConnectionPools() {
+    if (params.getPrewarmSize() <= 0) return;
+    for (Backend backend : params.getLoadBalancer().getBackends()) {
+      ConnectionPool pool = new ConnectionPool(params, backend);
+      backend.setConnectionPool(pool);
+      pool.start();
+    }
+  }
+
+  /**
+   * @return Throughput and latency metrics for this tunnel.
+   */
+  public TunnelMetrics getMetrics() {
+    return params.getMetrics();
+  }
+
+  /**
+   * @return The currently open TCP connections.
+   */
+  public List<TunnelConnection> getConnections() {
+    List<TunnelConnection> connections = new ArrayList<>(tunnels);
+    if (nioEngine != null) connections.addAll(nioEngine.getTunnels());
+    return connections;
+  }
+
+  /**
+   * Closes the given TCP connection.
+   *
+   * @param id Identifier of the connection.
+   * @return True if the connection was found and closed.
+   */
+  public boolean closeConnection(long id) {
+    for (TunnelConnection connection : getConnections()) {
+      if (connection.getId() == id) {
+        connection.close();
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Called when a tunnel is closed to remove it from active list.
    *
@@ -97,17 +368,40 @@ public class Main implements Runnable {
    */
   public void stop() {
     shouldRun = false;
-    try {
-      if (serverSocket != null) serverSocket.close();
-    } catch (IOException e) {
-      if (params.isPrint()) {
-        System.err.println("Error closing server socket");
-        e.printStackTrace();
+    for (ServerSocket serverSocket : serverSockets) {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        if (params.isPrint()) {
+          System.err.println("Error closing server socket");
+          e.printStackTrace();
+        }
       }
     }
+    for (DatagramSocket udpServerSocket : udpServerSockets) {
+      udpServerSocket.close();
+    }
     for (TCPTunnel tunnel : tunnels) {
       tunnel.close();
     }
+    for (DNSTCPForwarder forwarder : dnsTCPForwarders) {
+      forwarder.close();
+    }
+    if (nioEngine != null) nioEngine.stop();
+    for (NIOUDPTunnel nioUDPTunnel : nioUDPTunnels) {
+      nioUDPTunnel.close();
+    }
+    if (healthChecker != null) healthChecker.stop();
+    if (metricsReporter != null) metricsReporter.stop();
+    if (tunnelManager != null) tunnelManager.unregister();
+    if (prometheusExporter != null) prometheusExporter.stop();
+    for (Backend backend : params.getLoadBalancer().getBackends()) {
+      ConnectionPool pool = backend.getConnectionPool();
+      if (pool != null) pool.stop();
+      DNSTCPConnection connection = backend.getDNSConnection();
+      if (connection != null) connection.close();
+    }
+    params.stopObserverPipeline();
   }
 }
 
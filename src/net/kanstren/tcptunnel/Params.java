@@ -1,10 +1,23 @@
 package net.kanstren.tcptunnel;
 
+import net.kanstren.tcptunnel.async.ObserverPipeline;
+import net.kanstren.tcptunnel.async.OverflowPolicy;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.backend.BalanceStrategy;
+import net.kanstren.tcptunnel.backend.LoadBalancer;
+import net.kanstren.tcptunnel.buffers.BufferPool;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSCoalescer;
+import net.kanstren.tcptunnel.forwarder.DNSMultiplexer;
+import net.kanstren.tcptunnel.forwarder.FlushMode;
+import net.kanstren.tcptunnel.forwarder.WriteStats;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
 import net.kanstren.tcptunnel.observers.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The tunnel configuration parameters. Either parsed from command line or configured programmatically.
@@ -20,6 +33,28 @@ public class Params {
   public static final String DEFAULT_UP_PATH = "tcp_up";
   /** Default string encoding when decoding streams for string logging. */
   public static final String DEFAULT_ENCONDING = "UTF8";
+  /** Default number of selector event loops for NIO forwarding. */
+  public static final int DEFAULT_NIO_LOOPS = Runtime.getRuntime().availableProcessors();
+  /** Default pending bytes to flush at in "size" flush mode. */
+  public static final int DEFAULT_FLUSH_BYTES = 16384;
+  /** Default length of the queue of incoming TCP connections waiting to be accepted. Same as the JDK default. */
+  public static final int DEFAULT_BACKLOG = 50;
+  /** Maximum number of UDP packets read and observed as one batch. */
+  public static final int MAX_UDP_BATCH = 1024;
+  /** Default maximum age of pending data in "deadline" flush mode, in microseconds. */
+  public static final int DEFAULT_FLUSH_MICROS = 1000;
+  /** Default capacity of the async observer queue per consumer thread, in chunks. */
+  public static final int DEFAULT_ASYNC_QUEUE_SIZE = 4096;
+  /** Default number of async observer consumer threads. */
+  public static final int DEFAULT_ASYNC_THREADS = 1;
+  /** Default maximum time a pre-connected backend connection is kept idle, in milliseconds. */
+  public static final int DEFAULT_PREWARM_MAX_IDLE = 30000;
+  /** Default timeout for backend health check probes, in milliseconds. */
+  public static final int DEFAULT_HEALTH_TIMEOUT = 1000;
+  /** Default number of consecutive connection failures to eject a backend after. */
+  public static final int DEFAULT_EJECT_AFTER = 5;
+  /** Default time to keep a backend ejected, in milliseconds. */
+  public static final int DEFAULT_EJECT_TIME = 10000;
 
   /** Port to bind on localhost to wait for initial tunnel connections. */
   private int sourcePort = -1;
@@ -35,8 +70,8 @@ public class Params {
   private String mirrorDownHost = null;
   /** Port on the downstream mirror host where to forward to. */
   private int mirrorDownPort = -1;
-  /** Actual buffer size used to read/write sockets. */
-  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  /** Actual buffer size used to read/write sockets. Can be changed at runtime, affecting new connections. */
+  private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
   /** If receiving HTTP content, unzip any gzip responses before logging. */
   private boolean gzip;
   /** Path to the base filename where downstream logs are to be written. */
@@ -55,8 +90,90 @@ public class Params {
   private boolean mirrorDownEnabled = false;
   /** Enables DNS forwarding tunnel. */
   private boolean dns = false;
+  /** Number of shared upstream sockets to forward DNS queries over. 0 for a socket and thread per query. */
+  private int dnsSockets = 0;
+  /** Maximum number of DNS responses to cache. 0 to disable caching. */
+  private int dnsCacheSize = 0;
+  /** Number of times a cached DNS response has to be asked during its TTL to be refreshed before it expires. 0 to disable prefetching. */
+  private int dnsPrefetch = 0;
+  /** Cache for the DNS responses. Created on first use. */
+  private DNSCache dnsCache = null;
+  /** If true, identical DNS queries in flight are forwarded only once, with the response sent to all clients asking. */
+  private boolean dnsCoalesce = false;
+  /** Tracks the DNS queries in flight, to coalesce identical ones. Created on first use. */
+  private DNSCoalescer dnsCoalescer = null;
+  /** If true, DNS is also accepted over TCP, forwarded over persistent TCP connections, and truncated UDP responses are retried over TCP. */
+  private boolean dnsTCP = false;
   /** Enables UDP forwarding tunnel. */
   private boolean udp = false;
+  /** Enables selector based (NIO) forwarding instead of threads per connection. */
+  private boolean nio = false;
+  /** Number of selector event loops to use for NIO forwarding. */
+  private int nioLoops = DEFAULT_NIO_LOOPS;
+  /** Number of UDP packets to read, forward, and observe as one batch. 1 for no batching. */
+  private int udpBatch = 1;
+  /** Number of UDP sockets to bind on the source port with SO_REUSEPORT, each with its own tunnel. 1 for a single socket. */
+  private int udpShards = 1;
+  /** Number of threads accepting new TCP connections. */
+  private int acceptors = 1;
+  /** If true, each TCP acceptor has its own listening socket bound with SO_REUSEPORT, instead of all sharing one. */
+  private boolean reusePort = false;
+  /** Length of the queue of incoming TCP connections waiting to be accepted, per listening socket. */
+  private int backlog = DEFAULT_BACKLOG;
+  /** Run the thread based TCP tunnels and forwarders on virtual threads instead of platform threads. */
+  private boolean virtualThreads = false;
+  /** If true, the buffer pool tracks all acquired buffers and reports any that are not released. */
+  private boolean debugBuffers = false;
+  /** The pool of buffers shared by all forwarders of this tunnel. Created on first use. */
+  private BufferPool bufferPool = null;
+  /** When TCP forwarders flush data read to the target socket. */
+  private FlushMode flushMode = FlushMode.ALWAYS;
+  /** Pending bytes to flush at in "size" flush mode. */
+  private int flushBytes = DEFAULT_FLUSH_BYTES;
+  /** Maximum age of pending data in "deadline" flush mode, in microseconds. */
+  private int flushMicros = DEFAULT_FLUSH_MICROS;
+  /** Read/write counts over all TCP forwarders, showing the effect of write coalescing. */
+  private final WriteStats writeStats = new WriteStats();
+  /** If true, observers are run in separate consumer threads instead of the forwarding threads. */
+  private boolean asyncObservers = false;
+  /** Capacity of the async observer queue per consumer thread, in chunks. */
+  private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+  /** Number of async observer consumer threads. */
+  private int asyncThreads = DEFAULT_ASYNC_THREADS;
+  /** What to do when the async observer queue is full. */
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  /** The pipeline running the observers, if async observers are enabled. Created on first use. */
+  private ObserverPipeline observerPipeline = null;
+  /** Number of pre-connected backend connections to keep ready for new TCP tunnels. 0 to disable. */
+  private int prewarmSize = 0;
+  /** Maximum time a pre-connected backend connection is kept idle, in milliseconds. */
+  private int prewarmMaxIdle = DEFAULT_PREWARM_MAX_IDLE;
+  /** Backends to balance load over in addition to the remote host. */
+  private final List<Backend> extraBackends = new ArrayList<>();
+  /** How to choose the backend for new connections. */
+  private BalanceStrategy balanceStrategy = BalanceStrategy.ROUND_ROBIN;
+  /** Chooses the backend for new connections. Created on first use. */
+  private LoadBalancer loadBalancer = null;
+  /** Time between active backend health checks, in milliseconds. 0 to disable. */
+  private int healthInterval = 0;
+  /** Timeout for backend health check probes, in milliseconds. */
+  private int healthTimeout = DEFAULT_HEALTH_TIMEOUT;
+  /** Data to send in backend health check probes, expecting a response. Null to only check connecting. */
+  private String healthPayload = null;
+  /** Number of consecutive connection failures to eject a backend after. 0 to disable. */
+  private int ejectAfter = DEFAULT_EJECT_AFTER;
+  /** Time to keep a backend ejected, in milliseconds. */
+  private int ejectTime = DEFAULT_EJECT_TIME;
+  /** Time between printing the tunnel metrics, in milliseconds. 0 to disable. */
+  private int metricsInterval = 0;
+  /** Throughput and latency metrics for this tunnel. Created on first use. */
+  private TunnelMetrics metrics = null;
+  /** If false, data is forwarded without passing it to the observers. Can be toggled at runtime. */
+  private volatile boolean observersEnabled = true;
+  /** If true, the tunnel is registered as a JMX MBean for monitoring and control. */
+  private boolean jmx = false;
+  /** Port to serve the metrics on in Prometheus format. 0 to disable. */
+  private int prometheusPort = 0;
   /** Observers (typically loggers) for downstream data. */
   private List<TCPObserver> observersDown = new ArrayList<>();
   /** Observers (typically loggers) for upstream data. */
@@ -100,6 +217,92 @@ public class Params {
     this.dns = dns;
   }
 
+  /**
+   * @return Number of shared upstream sockets to forward DNS queries over. 0 for a socket and thread per query.
+   */
+  public int getDNSSockets() {
+    return dnsSockets;
+  }
+
+  /**
+   * @param dnsSockets Number of shared upstream sockets to forward DNS queries over. 0 for a socket and thread per query.
+   */
+  public void setDNSSockets(int dnsSockets) {
+    this.dnsSockets = dnsSockets;
+  }
+
+  /**
+   * @return Maximum number of DNS responses to cache. 0 if caching is disabled.
+   */
+  public int getDNSCacheSize() {
+    return dnsCacheSize;
+  }
+
+  /**
+   * @param dnsCacheSize Maximum number of DNS responses to cache. 0 to disable caching.
+   */
+  public void setDNSCacheSize(int dnsCacheSize) {
+    this.dnsCacheSize = dnsCacheSize;
+  }
+
+  /**
+   * @return The cache for DNS responses, shared by all DNS forwarders of this tunnel. Null if caching is disabled.
+   */
+  public synchronized DNSCache getDNSCache() {
+    if (dnsCache == null && dnsCacheSize > 0) dnsCache = new DNSCache(dnsCacheSize, dnsPrefetch);
+    return dnsCache;
+  }
+
+  /**
+   * @return Number of times a cached DNS response has to be asked during its TTL to be refreshed before it expires. 0 if prefetching is disabled.
+   */
+  public int getDNSPrefetch() {
+    return dnsPrefetch;
+  }
+
+  /**
+   * @param dnsPrefetch Number of times a cached DNS response has to be asked during its TTL to be refreshed before it expires. 0 to disable prefetching.
+   */
+  public void setDNSPrefetch(int dnsPrefetch) {
+    this.dnsPrefetch = dnsPrefetch;
+  }
+
+  /**
+   * @return True if identical DNS queries in flight are forwarded only once, with the response sent to all clients asking.
+   */
+  public boolean isDNSCoalesce() {
+    return dnsCoalesce;
+  }
+
+  /**
+   * @param dnsCoalesce True to forward identical DNS queries in flight only once, with the response sent to all clients asking.
+   */
+  public void setDNSCoalesce(boolean dnsCoalesce) {
+    this.dnsCoalesce = dnsCoalesce;
+  }
+
+  /**
+   * @return True if DNS is also accepted over TCP, forwarded over persistent TCP connections, and truncated UDP responses are retried over TCP.
+   */
+  public boolean isDNSTCP() {
+    return dnsTCP;
+  }
+
+  /**
+   * @param dnsTCP True to also accept DNS over TCP, forward it over persistent TCP connections, and retry truncated UDP responses over TCP.
+   */
+  public void setDNSTCP(boolean dnsTCP) {
+    this.dnsTCP = dnsTCP;
+  }
+
+  /**
+   * @return Tracker for the DNS queries in flight, shared by all DNS forwarders of this tunnel. Null if coalescing is disabled.
+   */
+  public synchronized DNSCoalescer getDNSCoalescer() {
+    if (dnsCoalescer == null && dnsCoalesce) dnsCoalescer = new DNSCoalescer(TimeUnit.MILLISECONDS.toNanos(DNSMultiplexer.TIMEOUT_MILLIS));
+    return dnsCoalescer;
+  }
+
 
   public boolean isUDP() {
     return udp;
@@ -109,6 +312,470 @@ public class Params {
     this.udp = udp;
   }
 
+  /**
+   * @return True if TCP tunnels (and UDP sessions) should be forwarded by a set of selector event loops instead of threads per connection.
+   */
+  public boolean isNIO() {
+    return nio;
+  }
+
+  /**
+   * @param nio True if TCP tunnels (and UDP sessions) should be forwarded by a set of selector event loops instead of threads per connection.
+   */
+  public void setNIO(boolean nio) {
+    this.nio = nio;
+  }
+
+  /**
+   * @return Number of selector event loops (threads) used for NIO forwarding.
+   */
+  public int getNIOLoops() {
+    return nioLoops;
+  }
+
+  /**
+   * @param nioLoops Number of selector event loops (threads) used for NIO forwarding.
+   */
+  public void setNIOLoops(int nioLoops) {
+    this.nioLoops = nioLoops;
+  }
+
+  /**
+   * @return Number of UDP packets to read, forward, and observe as one batch. 1 for no batching.
+   */
+  public int getUDPBatch() {
+    return udpBatch;
+  }
+
+  /**
+   * @param udpBatch Number of UDP packets to read, forward, and observe as one batch. 1 for no batching.
+   */
+  public void setUDPBatch(int udpBatch) {
+    this.udpBatch = udpBatch;
+  }
+
+  /**
+   * @return Number of UDP sockets to bind on the source port with SO_REUSEPORT, each with its own tunnel. 1 for a single socket.
+   */
+  public int getUDPShards() {
+    return udpShards;
+  }
+
+  /**
+   * @param udpShards Number of UDP sockets to bind on the source port with SO_REUSEPORT, each with its own tunnel. 1 for a single socket.
+   */
+  public void setUDPShards(int udpShards) {
+    this.udpShards = udpShards;
+  }
+
+  /**
+   * @return Number of threads accepting new TCP connections.
+   */
+  public int getAcceptors() {
+    return acceptors;
+  }
+
+  /**
+   * @param acceptors Number of threads accepting new TCP connections.
+   */
+  public void setAcceptors(int acceptors) {
+    this.acceptors = acceptors;
+  }
+
+  /**
+   * @return True if each TCP acceptor has its own listening socket bound with SO_REUSEPORT, instead of all sharing one.
+   */
+  public boolean isReusePort() {
+    return reusePort;
+  }
+
+  /**
+   * @param reusePort True if each TCP acceptor should have its own listening socket bound with SO_REUSEPORT, instead of all sharing one.
+   */
+  public void setReusePort(boolean reusePort) {
+    this.reusePort = reusePort;
+  }
+
+  /**
+   * @return Length of the queue of incoming TCP connections waiting to be accepted, per listening socket.
+   */
+  public int getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * @param backlog Length of the queue of incoming TCP connections waiting to be accepted, per listening socket.
+   */
+  public void setBacklog(int backlog) {
+    this.backlog = backlog;
+  }
+
+  /**
+   * @return True if thread based TCP tunnels and forwarders should run on virtual threads (if supported by JVM).
+   */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * @param virtualThreads True if thread based TCP tunnels and forwarders should run on virtual threads (if supported by JVM).
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * @return True if buffer leak detection is enabled.
+   */
+  public boolean isDebugBuffers() {
+    return debugBuffers;
+  }
+
+  /**
+   * @param debugBuffers True to enable buffer leak detection. Must be set before the tunnel is started.
+   */
+  public void setDebugBuffers(boolean debugBuffers) {
+    this.debugBuffers = debugBuffers;
+  }
+
+  /**
+   * @return When TCP forwarders flush data read to the target socket.
+   */
+  public FlushMode getFlushMode() {
+    return flushMode;
+  }
+
+  /**
+   * @param flushMode When TCP forwarders flush data read to the target socket.
+   */
+  public void setFlushMode(FlushMode flushMode) {
+    this.flushMode = flushMode;
+  }
+
+  /**
+   * @return Pending bytes to flush at in "size" flush mode.
+   */
+  public int getFlushBytes() {
+    return flushBytes;
+  }
+
+  /**
+   * @param flushBytes Pending bytes to flush at in "size" flush mode.
+   */
+  public void setFlushBytes(int flushBytes) {
+    this.flushBytes = flushBytes;
+  }
+
+  /**
+   * @return Maximum age of pending data in "deadline" flush mode, in microseconds.
+   */
+  public int getFlushMicros() {
+    return flushMicros;
+  }
+
+  /**
+   * @param flushMicros Maximum age of pending data in "deadline" flush mode, in microseconds.
+   */
+  public void setFlushMicros(int flushMicros) {
+    this.flushMicros = flushMicros;
+  }
+
+  /**
+   * @return Read/write counts over all TCP forwarders, showing the effect of write coalescing.
+   */
+  public WriteStats getWriteStats() {
+    return writeStats;
+  }
+
+  /**
+   * @return True if observers are run in separate consumer threads instead of the forwarding threads.
+   */
+  public boolean isAsyncObservers() {
+    return asyncObservers;
+  }
+
+  /**
+   * @param asyncObservers True to run observers in separate consumer threads instead of the forwarding threads.
+   */
+  public void setAsyncObservers(boolean asyncObservers) {
+    this.asyncObservers = asyncObservers;
+  }
+
+  /**
+   * @return Capacity of the async observer queue per consumer thread, in chunks.
+   */
+  public int getAsyncQueueSize() {
+    return asyncQueueSize;
+  }
+
+  /**
+   * @param asyncQueueSize Capacity of the async observer queue per consumer thread, in chunks. Rounded up to a power of two.
+   */
+  public void setAsyncQueueSize(int asyncQueueSize) {
+    this.asyncQueueSize = asyncQueueSize;
+  }
+
+  /**
+   * @return Number of async observer consumer threads.
+   */
+  public int getAsyncThreads() {
+    return asyncThreads;
+  }
+
+  /**
+   * @param asyncThreads Number of async observer consumer threads.
+   */
+  public void setAsyncThreads(int asyncThreads) {
+    this.asyncThreads = asyncThreads;
+  }
+
+  /**
+   * @return What to do when the async observer queue is full.
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * @param overflowPolicy What to do when the async observer queue is full.
+   */
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * @return The pipeline running the observers in consumer threads. Started on first call.
+   */
+  public synchronized ObserverPipeline getObserverPipeline() {
+    if (observerPipeline == null) observerPipeline = new ObserverPipeline(this);
+    return observerPipeline;
+  }
+
+  /**
+   * Stops the async observer pipeline, if started. Queued data is still passed to the observers before the consumers stop.
+   */
+  public synchronized void stopObserverPipeline() {
+    if (observerPipeline == null) return;
+    observerPipeline.stop();
+    observerPipeline = null;
+  }
+
+  /**
+   * @return Number of pre-connected backend connections to keep ready for new TCP tunnels. 0 if disabled.
+   */
+  public int getPrewarmSize() {
+    return prewarmSize;
+  }
+
+  /**
+   * @param prewarmSize Number of pre-connected backend connections to keep ready for new TCP tunnels. 0 to disable.
+   */
+  public void setPrewarmSize(int prewarmSize) {
+    this.prewarmSize = prewarmSize;
+  }
+
+  /**
+   * @return Maximum time a pre-connected backend connection is kept idle, in milliseconds.
+   */
+  public int getPrewarmMaxIdle() {
+    return prewarmMaxIdle;
+  }
+
+  /**
+   * @param prewarmMaxIdle Maximum time a pre-connected backend connection is kept idle, in milliseconds.
+   */
+  public void setPrewarmMaxIdle(int prewarmMaxIdle) {
+    this.prewarmMaxIdle = prewarmMaxIdle;
+  }
+
+  /**
+   * Adds a backend to balance load over, in addition to the remote host. Must be done before the tunnel is started.
+   *
+   * @param host Host name or IP address of the backend.
+   * @param port Port on the backend host.
+   */
+  public void addBackend(String host, int port) {
+    extraBackends.add(new Backend(host, port));
+  }
+
+  /**
+   * @return Backends to balance load over in addition to the remote host.
+   */
+  public List<Backend> getExtraBackends() {
+    return extraBackends;
+  }
+
+  /**
+   * @return How to choose the backend for new connections.
+   */
+  public BalanceStrategy getBalanceStrategy() {
+    return balanceStrategy;
+  }
+
+  /**
+   * @param balanceStrategy How to choose the backend for new connections. Must be set before the tunnel is started.
+   */
+  public void setBalanceStrategy(BalanceStrategy balanceStrategy) {
+    this.balanceStrategy = balanceStrategy;
+  }
+
+  /**
+   * @return Chooses the backend for new connections, over the remote host and any extra backends.
+   */
+  public synchronized LoadBalancer getLoadBalancer() {
+    if (loadBalancer == null) {
+      List<Backend> backends = new ArrayList<>();
+      backends.add(new Backend(remoteHost, remotePort));
+      backends.addAll(extraBackends);
+      loadBalancer = balanceStrategy.create(backends);
+    }
+    return loadBalancer;
+  }
+
+  /**
+   * @return Time between active backend health checks, in milliseconds. 0 if disabled.
+   */
+  public int getHealthInterval() {
+    return healthInterval;
+  }
+
+  /**
+   * @param healthInterval Time between active backend health checks, in milliseconds. 0 to disable.
+   */
+  public void setHealthInterval(int healthInterval) {
+    this.healthInterval = healthInterval;
+  }
+
+  /**
+   * @return Timeout for backend health check probes, in milliseconds.
+   */
+  public int getHealthTimeout() {
+    return healthTimeout;
+  }
+
+  /**
+   * @param healthTimeout Timeout for backend health check probes, in milliseconds.
+   */
+  public void setHealthTimeout(int healthTimeout) {
+    this.healthTimeout = healthTimeout;
+  }
+
+  /**
+   * @return Data to send in backend health check probes, expecting a response. Null if only connecting is checked.
+   */
+  public String getHealthPayload() {
+    return healthPayload;
+  }
+
+  /**
+   * @param healthPayload Data to send in backend health check probes, expecting a response. Null to only check connecting.
+   */
+  public void setHealthPayload(String healthPayload) {
+    this.healthPayload = healthPayload;
+  }
+
+  /**
+   * @return Number of consecutive connection failures to eject a backend after. 0 if disabled.
+   */
+  public int getEjectAfter() {
+    return ejectAfter;
+  }
+
+  /**
+   * @param ejectAfter Number of consecutive connection failures to eject a backend after. 0 to disable.
+   */
+  public void setEjectAfter(int ejectAfter) {
+    this.ejectAfter = ejectAfter;
+  }
+
+  /**
+   * @return Time to keep a backend ejected, in milliseconds.
+   */
+  public int getEjectTime() {
+    return ejectTime;
+  }
+
+  /**
+   * @param ejectTime Time to keep a backend ejected, in milliseconds.
+   */
+  public void setEjectTime(int ejectTime) {
+    this.ejectTime = ejectTime;
+  }
+
+  /**
+   * @return Time between printing the tunnel metrics, in milliseconds. 0 if disabled.
+   */
+  public int getMetricsInterval() {
+    return metricsInterval;
+  }
+
+  /**
+   * @param metricsInterval Time between printing the tunnel metrics, in milliseconds. 0 to disable.
+   */
+  public void setMetricsInterval(int metricsInterval) {
+    this.metricsInterval = metricsInterval;
+  }
+
+  /**
+   * @return Throughput and latency metrics for this tunnel. Always collected, printing them is optional.
+   */
+  public synchronized TunnelMetrics getMetrics() {
+    if (metrics == null) {
+      metrics = new TunnelMetrics(sourcePort + " -> " + remoteHost + ":" + remotePort);
+    }
+    return metrics;
+  }
+
+  /**
+   * @return If false, data is forwarded without passing it to the observers.
+   */
+  public boolean isObserversEnabled() {
+    return observersEnabled;
+  }
+
+  /**
+   * @param observersEnabled If false, data is forwarded without passing it to the observers. Takes effect immediately for all connections.
+   */
+  public void setObserversEnabled(boolean observersEnabled) {
+    this.observersEnabled = observersEnabled;
+  }
+
+  /**
+   * @return If true, the tunnel is registered as a JMX MBean for monitoring and control.
+   */
+  public boolean isJMX() {
+    return jmx;
+  }
+
+  /**
+   * @param jmx If true, the tunnel is registered as a JMX MBean for monitoring and control.
+   */
+  public void setJMX(boolean jmx) {
+    this.jmx = jmx;
+  }
+
+  /**
+   * @return Port to serve the metrics on in Prometheus format. 0 if disabled.
+   */
+  public int getPrometheusPort() {
+    return prometheusPort;
+  }
+
+  /**
+   * @param prometheusPort Port to serve the metrics on in Prometheus format. 0 to disable.
+   */
+  public void setPrometheusPort(int prometheusPort) {
+    this.prometheusPort = prometheusPort;
+  }
+
+  /**
+   * @return The pool of buffers shared by all forwarders of this tunnel.
+   */
+  public synchronized BufferPool getBufferPool() {
+    if (bufferPool == null) bufferPool = new BufferPool(debugBuffers);
+    return bufferPool;
+  }
+
   public boolean isAddLF() {
     return addLF;
   }
@@ -194,7 +861,7 @@ public class Params {
   }
 
   /**
-   * @param bufferSize Size of byte buffer used to store network data.
+   * @param bufferSize Size of byte buffer used to store network data. If changed while running, affects new connections.
    */
   public void setBufferSize(int bufferSize) {
     this.bufferSize = bufferSize;
@@ -419,7 +1086,15 @@ public class Params {
     List<TCPObserver> result = new ArrayList<>();
     result.addAll(observersDown);
     if (mirrorDownEnabled) result.add(new SocketForwardingObserver(this, mirrorDownHost, mirrorDownPort, sourceAddr));
-    return result;
+    return async(result);
+  }
+
+  /**
+   * Removes all configured loggers, for example to forward without the default console logger.
+   */
+  public void clearObservers() {
+    observersDown.clear();
+    observersUp.clear();
   }
 
   /**
@@ -431,9 +1106,27 @@ public class Params {
     List<TCPObserver> result = new ArrayList<>();
     result.addAll(observersUp);
     if (mirrorUpEnabled) result.add(new SocketForwardingObserver(this, mirrorUpHost, mirrorUpPort, sourceAddr));
+    return async(result);
+  }
+
+  /**
+   * @param observers The observers for a stream.
+   * @return The given observers as is, or wrapped to run in the async observer pipeline if enabled.
+   */
+  private List<TCPObserver> async(List<TCPObserver> observers) {
+    if (!asyncObservers || observers.isEmpty()) return observers;
+    List<TCPObserver> result = new ArrayList<>();
+    result.add(getObserverPipeline().wrap(observers));
     return result;
   }
 
+  /**
+   * @return True if upstream or downstream has no observers configured, so data can be forwarded directly between socket channels.
+   */
+  public boolean hasUnobservedStream() {
+    return (observersUp.isEmpty() && !mirrorUpEnabled) || (observersDown.isEmpty() && !mirrorDownEnabled);
+  }
+
   /**
    * @return The configured logger used to store in-memory data for downstream (if configured).
    */
@@ -3,6 +3,12 @@ package net.kanstren.tcptunnel;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
 import java.util.Properties;
 import java.util.Scanner;
 
@@ -13,6 +19,10 @@ public class Utils {
   /** System specific line separator. */
   public static String ln = System.getProperty("line.separator");
   private static final Properties addrNameProps = new Properties();
+  /** Handle to Thread.startVirtualThread(Runnable) if running on a JVM that has it (Java 21+). Null otherwise. */
+  private static final MethodHandle startVirtualThread = findVirtualThreadStarter();
+  /** The SO_REUSEPORT socket option if running on a JVM that has it (Java 9+). Null otherwise. */
+  private static final SocketOption<Boolean> reusePort = findReusePort();
 
   static {
     try {
@@ -55,4 +65,76 @@ public class Utils {
     return name;
   }
 
+  /**
+   * Looks up the virtual thread starter by reflection, since we still compile for Java 8.
+   *
+   * @return Handle to Thread.startVirtualThread(Runnable), or null if not available on this JVM.
+   */
+  private static MethodHandle findVirtualThreadStarter() {
+    try {
+      Method method = Thread.class.getMethod("startVirtualThread", Runnable.class);
+      MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+      //on Java 19-20 this exists as a preview feature and fails unless preview is enabled, so try it once
+      handle.invoke((Runnable) () -> {});
+      return handle;
+    } catch (Throwable e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return True if this JVM supports virtual threads.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return startVirtualThread != null;
+  }
+
+  /**
+   * Looks up the SO_REUSEPORT option by reflection, since we still compile for Java 8.
+   *
+   * @return The option, or null if not available on this JVM.
+   */
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findReusePort() {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sets SO_REUSEPORT on the given channel before it is bound, so several channels can bind the same port.
+   * The operating system then spreads the incoming packets (by flow) or connections over the channels.
+   *
+   * @param channel The channel to set the option on.
+   * @throws IOException If the JVM (Java 9+ required) or the operating system does not support the option.
+   */
+  public static void setReusePort(NetworkChannel channel) throws IOException {
+    if (reusePort == null) throw new IOException("SO_REUSEPORT is not supported on this JVM (requires Java 9+).");
+    if (!channel.supportedOptions().contains(reusePort)) throw new IOException("SO_REUSEPORT is not supported on this operating system.");
+    channel.setOption(reusePort, true);
+  }
+
+  /**
+   * Starts a new thread to run the given task.
+   * If virtual threads are requested but not supported by the JVM, a platform thread is used instead.
+   *
+   * @param task The task to run.
+   * @param name Name for the thread. Only used for platform threads.
+   * @param virtual If true, start a virtual thread instead of a platform thread.
+   * @return The started thread.
+   */
+  public static Thread startThread(Runnable task, String name, boolean virtual) {
+    if (virtual && startVirtualThread != null) {
+      try {
+        return (Thread) startVirtualThread.invoke(task);
+      } catch (Throwable e) {
+        throw new RuntimeException("Failed to start virtual thread for " + name, e);
+      }
+    }
+    Thread thread = new Thread(task, name);
+    thread.start();
+    return thread;
+  }
 }
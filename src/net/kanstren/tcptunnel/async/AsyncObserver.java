@@ -0,0 +1,50 @@
+package net.kanstren.tcptunnel.async;
+
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.util.List;
+
+/**
+ * Stands in for the observers of a stream, passing the observed data to them through an {@link ObserverPipeline}.
+ * The data is copied to a pooled buffer and queued, so the forwarder can continue right away.
+ * The actual observers are called from the pipeline consumer thread, which also flushes them whenever its queue is empty.
+ *
+ * @author Teemu Kanstren.
+ */
+public class AsyncObserver implements TCPObserver {
+  /** The pipeline to queue the data in. */
+  private final ObserverPipeline pipeline;
+  /** The pipeline shard all data of this stream goes through, keeping it in order. */
+  final ObserverPipeline.Shard shard;
+  /** The actual observers. */
+  final List<TCPObserver> observers;
+  /** True if data has been passed to the observers since last flush. Only accessed from the consumer thread. */
+  boolean dirty = false;
+
+  /**
+   * @param pipeline The pipeline to queue the data in.
+   * @param shard The pipeline shard for this stream.
+   * @param observers The actual observers.
+   */
+  AsyncObserver(ObserverPipeline pipeline, ObserverPipeline.Shard shard, List<TCPObserver> observers) {
+    this.pipeline = pipeline;
+    this.shard = shard;
+    this.observers = observers;
+  }
+
+  @Override
+  public void observe(byte[] buffer, int start, int count) {
+    if (count <= 0) return;
+    PooledBuffer copy = pipeline.getPool().acquire(count, false);
+    System.arraycopy(buffer, start, copy.array(), 0, count);
+    pipeline.publish(new Chunk(this, copy, count));
+  }
+
+  /**
+   * @return The actual observers.
+   */
+  public List<TCPObserver> getObservers() {
+    return observers;
+  }
+}
@@ -0,0 +1,28 @@
+package net.kanstren.tcptunnel.async;
+
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+
+/**
+ * A copy of observed data, queued to be passed to the observers of the stream it was observed on.
+ *
+ * @author Teemu Kanstren.
+ */
+class Chunk {
+  /** The stream observer this data is for. */
+  final AsyncObserver target;
+  /** The copied data, starting at index 0. Released once delivered (or dropped). */
+  final PooledBuffer data;
+  /** Number of bytes of data. */
+  final int length;
+
+  /**
+   * @param target The stream observer this data is for.
+   * @param data The copied data, starting at index 0.
+   * @param length Number of bytes of data.
+   */
+  Chunk(AsyncObserver target, PooledBuffer data, int length) {
+    this.target = target;
+    this.data = data;
+    this.length = length;
+  }
+}
@@ -0,0 +1,351 @@
+package net.kanstren.tcptunnel.async;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.buffers.BufferPool;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the observers of all streams in dedicated consumer threads, so slow observers do not stall the forwarding.
+ * Forwarders publish copies of the observed data into bounded lock-free ring buffers, one per consumer thread.
+ * Each stream is assigned to one consumer (shard), so the data of a stream is always observed in order.
+ * When a ring is full, the configured {@link OverflowPolicy} decides whether to wait, drop the data, or spill it to disk.
+ * Consumers flush the observers they have passed data to whenever their queue runs empty.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ObserverPipeline {
+  /** How many times an idle consumer yields before starting to park. */
+  private static final int IDLE_SPINS = 100;
+  /** How long an idle consumer parks before checking for new data, in case a wake-up from a producer is missed. */
+  private static final long IDLE_PARK_NANOS = 50_000_000;
+  /** How long a blocked producer parks before retrying. */
+  private static final long BLOCK_PARK_NANOS = 50_000;
+  /** Configuration parameters. */
+  private final Params params;
+  /** What to do when a ring is full. */
+  private final OverflowPolicy policy;
+  /** The consumer shards. */
+  private final Shard[] shards;
+  /** For assigning streams to shards round-robin. */
+  private final AtomicInteger nextShard = new AtomicInteger();
+  /** Number of chunks published. */
+  private final LongAdder published = new LongAdder();
+  /** Number of chunks passed to observers. */
+  private final LongAdder delivered = new LongAdder();
+  /** Number of chunks dropped, due to full queue or failure to spill. */
+  private final LongAdder dropped = new LongAdder();
+  /** Number of chunks spilled to disk. */
+  private final LongAdder spilled = new LongAdder();
+  /** Number of errors from observers. */
+  private final LongAdder errors = new LongAdder();
+  /** Consumers keep running as long as this is true, after that they drain their queues and stop. */
+  private volatile boolean running = true;
+
+  /**
+   * Creates the pipeline and starts the consumer threads.
+   *
+   * @param params Configuration parameters, defining queue size, number of consumers, and overflow policy.
+   */
+  public ObserverPipeline(Params params) {
+    this.params = params;
+    this.policy = params.getOverflowPolicy();
+    shards = new Shard[params.getAsyncThreads()];
+    for (int i = 0 ; i < shards.length ; i++) {
+      shards[i] = new Shard(params.getAsyncQueueSize());
+      Thread thread = new Thread(shards[i], "tcptunnel-observer-" + i);
+      thread.setDaemon(true);
+      shards[i].thread = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * @param observers The observers of a single stream.
+   * @return An observer passing all data to the given observers through this pipeline.
+   */
+  public AsyncObserver wrap(List<TCPObserver> observers) {
+    Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+    return new AsyncObserver(this, shard, observers);
+  }
+
+  /**
+   * @return Pool for the buffers holding the queued data.
+   */
+  BufferPool getPool() {
+    return params.getBufferPool();
+  }
+
+  /**
+   * Queues the chunk for the consumer of its stream. If the queue is full, applies the overflow policy.
+   *
+   * @param chunk The chunk to queue.
+   */
+  void publish(Chunk chunk) {
+    Shard shard = chunk.target.shard;
+    if (!running) {
+      drop(chunk);
+      return;
+    }
+    published.increment();
+    try {
+      if (shard.spill != null && shard.spill.appendIfActive(chunk)) {
+        spilled.increment();
+        shard.wake();
+        return;
+      }
+      if (shard.ring.offer(chunk)) {
+        shard.wake();
+        return;
+      }
+      switch (policy) {
+        case BLOCK:
+          while (!shard.ring.offer(chunk)) {
+            if (!running) {
+              drop(chunk);
+              return;
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+          }
+          shard.wake();
+          break;
+        case DROP:
+          drop(chunk);
+          break;
+        case SPILL:
+          shard.spill.append(chunk);
+          spilled.increment();
+          shard.wake();
+          break;
+      }
+    } catch (IOException e) {
+      //spill buffers are released even if writing fails
+      dropped.increment();
+      if (params.isPrint()) {
+        System.err.println("Failed to spill observed data to disk, dropped.");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @param chunk The chunk to discard.
+   */
+  private void drop(Chunk chunk) {
+    chunk.data.release();
+    dropped.increment();
+  }
+
+  /**
+   * Stops the consumers once they have passed all queued data to the observers. Data published after this is dropped.
+   */
+  public void stop() {
+    running = false;
+    for (Shard shard : shards) {
+      LockSupport.unpark(shard.thread);
+    }
+  }
+
+  /**
+   * Waits for the consumers to stop.
+   *
+   * @param millis Maximum time to wait per consumer.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void join(long millis) throws InterruptedException {
+    for (Shard shard : shards) {
+      shard.thread.join(millis);
+    }
+  }
+
+  /**
+   * @return Number of chunks published.
+   */
+  public long getPublished() {
+    return published.sum();
+  }
+
+  /**
+   * @return Number of chunks passed to observers.
+   */
+  public long getDelivered() {
+    return delivered.sum();
+  }
+
+  /**
+   * @return Number of chunks dropped, due to full queue or failure to spill.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return Number of chunks spilled to disk.
+   */
+  public long getSpilled() {
+    return spilled.sum();
+  }
+
+  /**
+   * @return Number of errors thrown by observers.
+   */
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * @return Approximate number of chunks waiting to be observed, over all shards, including spilled ones.
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Shard shard : shards) {
+      depth += shard.ring.size();
+      if (shard.spill != null) depth += shard.spill.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return Total capacity of the ring buffers over all shards.
+   */
+  public int getQueueCapacity() {
+    int capacity = 0;
+    for (Shard shard : shards) {
+      capacity += shard.ring.capacity();
+    }
+    return capacity;
+  }
+
+  /**
+   * A ring buffer and the consumer thread passing its data to the observers.
+   */
+  class Shard implements Runnable {
+    /** The queued chunks. */
+    final RingBuffer<Chunk> ring;
+    /** Overflow to disk, if the policy is to spill. Null otherwise. */
+    final SpillQueue spill;
+    /** The stream observers passed data since last flush. Only accessed from the consumer thread. */
+    private final List<AsyncObserver> dirty = new ArrayList<>();
+    /** The consumer thread. */
+    Thread thread;
+    /** True while the consumer is parked, or about to park, waiting for data. */
+    private volatile boolean parked = false;
+
+    /**
+     * @param capacity Ring buffer capacity.
+     */
+    Shard(int capacity) {
+      ring = new RingBuffer<>(capacity);
+      spill = policy == OverflowPolicy.SPILL ? new SpillQueue(params.getBufferPool()) : null;
+    }
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (true) {
+        Chunk chunk = ring.poll();
+        if (chunk == null && spill != null) chunk = pollSpill();
+        if (chunk == null) {
+          flushDirty();
+          if (!running && ring.size() == 0) break;
+          if (idle++ < IDLE_SPINS) Thread.yield();
+          else park();
+          continue;
+        }
+        idle = 0;
+        deliver(chunk);
+      }
+      if (spill != null) spill.close();
+    }
+
+    /**
+     * Parks the consumer until a producer wakes it up. The queues are checked again after announcing the park,
+     * so data published before the producer could see it is not left waiting.
+     */
+    private void park() {
+      parked = true;
+      if (running && ring.size() == 0 && (spill == null || spill.size() == 0)) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      parked = false;
+    }
+
+    /**
+     * Wakes up the consumer if it is parked waiting for data.
+     */
+    void wake() {
+      if (parked) LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return The oldest spilled chunk, or null if there is none.
+     */
+    private Chunk pollSpill() {
+      try {
+        return spill.poll();
+      } catch (IOException e) {
+        dropped.add(spill.clear());
+        if (params.isPrint()) {
+          System.err.println("Failed to read spilled observer data from disk, dropped.");
+          e.printStackTrace();
+        }
+        return null;
+      }
+    }
+
+    /**
+     * Passes the chunk to the observers of its stream, and releases its buffer.
+     *
+     * @param chunk The chunk to deliver.
+     */
+    private void deliver(Chunk chunk) {
+      AsyncObserver target = chunk.target;
+      try {
+        for (TCPObserver observer : target.observers) {
+          try {
+            observer.observe(chunk.data.array(), 0, chunk.length);
+          } catch (Exception e) {
+            errors.increment();
+            if (params.isPrint()) {
+              System.err.println("Error in observer " + observer.getClass().getSimpleName());
+              e.printStackTrace();
+            }
+          }
+        }
+      } finally {
+        chunk.data.release();
+      }
+      delivered.increment();
+      if (!target.dirty) {
+        target.dirty = true;
+        dirty.add(target);
+      }
+    }
+
+    /**
+     * Flushes the observers passed data since last flush.
+     */
+    private void flushDirty() {
+      if (dirty.isEmpty()) return;
+      for (AsyncObserver target : dirty) {
+        target.dirty = false;
+        for (TCPObserver observer : target.observers) {
+          try {
+            observer.flush();
+          } catch (Exception e) {
+            errors.increment();
+            if (params.isPrint()) {
+              System.err.println("Error flushing observer " + observer.getClass().getSimpleName());
+              e.printStackTrace();
+            }
+          }
+        }
+      }
+      dirty.clear();
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package net.kanstren.tcptunnel.async;
+
+/**
+ * Defines what the forwarder does when the observer pipeline queue is full.
+ *
+ * @author Teemu Kanstren.
+ */
+public enum OverflowPolicy {
+  /** Wait for room in the queue. Captures are complete, but slow observers eventually slow down the forwarding. */
+  BLOCK("block"),
+  /** Discard the data and count it. Forwarding is never slowed down, but captures may have gaps. */
+  DROP("drop"),
+  /** Write the data to a temporary file, to be passed to the observers once the queue has room. */
+  SPILL("spill");
+
+  /** Identifier for the policy, as given on the command line. */
+  private final String id;
+
+  OverflowPolicy(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return Identifier for the policy, as given on the command line.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param id The policy identifier, as given on the command line.
+   * @return The matching policy, or null if there is none.
+   */
+  public static OverflowPolicy forId(String id) {
+    for (OverflowPolicy policy : values()) {
+      if (policy.id.equals(id)) return policy;
+    }
+    return null;
+  }
+}
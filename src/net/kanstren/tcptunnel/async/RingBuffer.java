@@ -0,0 +1,100 @@
+package net.kanstren.tcptunnel.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue for any number of producers and a single consumer.
+ * Each slot has a sequence number telling whether it is free for the producer of a given position, or holds an item for the consumer.
+ * Producers claim a position with a CAS on the head, the consumer only ever moves the tail.
+ * Capacity is rounded up to a power of two.
+ *
+ * @author Teemu Kanstren.
+ */
+public class RingBuffer<T> {
+  /** For mapping positions to slot indices. */
+  private final int mask;
+  /** The items in the slots. */
+  private final Object[] items;
+  /** Sequence number per slot. Equal to position when free for producer, position + 1 when holding an item for consumer. */
+  private final AtomicLongArray sequences;
+  /** Next position for producers to claim. */
+  private final AtomicLong head = new AtomicLong();
+  /** Next position for the consumer to take. Only written by the consumer. */
+  private volatile long tail = 0;
+
+  /**
+   * @param capacity The minimum number of items the buffer should hold. Rounded up to a power of two.
+   */
+  public RingBuffer(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Ring buffer capacity has to be > 0, was: " + capacity + ".");
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    mask = size - 1;
+    items = new Object[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0 ; i < size ; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds an item to the buffer. Can be called from any thread.
+   *
+   * @param item The item to add.
+   * @return False if the buffer is full.
+   */
+  public boolean offer(T item) {
+    long pos = head.get();
+    while (true) {
+      int index = (int) (pos & mask);
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          items[index] = item;
+          sequences.lazySet(index, pos + 1);
+          return true;
+        }
+        pos = head.get();
+      } else if (diff < 0) {
+        //slot still holds the item from one round earlier --> full
+        return false;
+      } else {
+        //another producer claimed this position
+        pos = head.get();
+      }
+    }
+  }
+
+  /**
+   * Takes the next item from the buffer. Only to be called from the single consumer thread.
+   *
+   * @return The next item, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long pos = tail;
+    int index = (int) (pos & mask);
+    if (sequences.get(index) != pos + 1) return null;
+    T item = (T) items[index];
+    items[index] = null;
+    sequences.lazySet(index, pos + mask + 1);
+    tail = pos + 1;
+    return item;
+  }
+
+  /**
+   * @return Approximate number of items in the buffer, including ones being added.
+   */
+  public int size() {
+    long size = head.get() - tail;
+    return (int) Math.max(0, Math.min(size, items.length));
+  }
+
+  /**
+   * @return Number of items the buffer can hold.
+   */
+  public int capacity() {
+    return items.length;
+  }
+}
@@ -0,0 +1,152 @@
+package net.kanstren.tcptunnel.async;
+
+import net.kanstren.tcptunnel.buffers.BufferPool;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Overflow queue for a pipeline shard, keeping the data in a temporary file instead of memory.
+ * Only the target and length of each chunk is kept in memory, the bytes are appended to the file and read back in the same order.
+ * Once something has been spilled, the queue stays active until it has been fully drained,
+ * so that later data for the same streams does not overtake the spilled data through the ring buffer.
+ * The file is truncated every time the queue is drained.
+ *
+ * @author Teemu Kanstren.
+ */
+class SpillQueue {
+  /** For buffers to read the spilled data back into. */
+  private final BufferPool pool;
+  /** Target and length of the spilled chunks, in order. */
+  private final Queue<Chunk> pending = new ArrayDeque<>();
+  /** The file holding the spilled data. Created on first spill. */
+  private File path = null;
+  /** For accessing the spill file. */
+  private RandomAccessFile file = null;
+  /** Where to write the next chunk in the file. */
+  private long writePos = 0;
+  /** Where to read the next chunk in the file. */
+  private long readPos = 0;
+  /** True from the first spill until the queue is drained. */
+  private boolean active = false;
+
+  /**
+   * @param pool For buffers to read the spilled data back into.
+   */
+  SpillQueue(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Spills the chunk if the queue is active, so the chunk does not overtake data spilled before it.
+   * If spilled, the chunk buffer is released, even if writing fails.
+   *
+   * @param chunk The chunk to spill.
+   * @return True if the chunk was spilled.
+   * @throws IOException If writing the file fails.
+   */
+  synchronized boolean appendIfActive(Chunk chunk) throws IOException {
+    if (!active) return false;
+    write(chunk);
+    return true;
+  }
+
+  /**
+   * Spills the chunk, activating the queue. The chunk buffer is released, even if writing fails.
+   *
+   * @param chunk The chunk to spill.
+   * @throws IOException If writing the file fails.
+   */
+  synchronized void append(Chunk chunk) throws IOException {
+    active = true;
+    write(chunk);
+  }
+
+  /**
+   * @param chunk The chunk to write to the end of the file.
+   * @throws IOException If writing the file fails.
+   */
+  private void write(Chunk chunk) throws IOException {
+    try {
+      if (file == null) {
+        path = File.createTempFile("tcptunnel-spill", ".bin");
+        path.deleteOnExit();
+        file = new RandomAccessFile(path, "rw");
+      }
+      file.seek(writePos);
+      file.write(chunk.data.array(), 0, chunk.length);
+      writePos += chunk.length;
+      pending.add(new Chunk(chunk.target, null, chunk.length));
+    } finally {
+      chunk.data.release();
+    }
+  }
+
+  /**
+   * Reads the oldest spilled chunk back. If there is none, the queue is deactivated and the file truncated.
+   *
+   * @return The oldest spilled chunk, or null if there is none.
+   * @throws IOException If reading the file fails.
+   */
+  synchronized Chunk poll() throws IOException {
+    Chunk spilled = pending.poll();
+    if (spilled == null) {
+      if (active) {
+        active = false;
+        writePos = 0;
+        readPos = 0;
+        if (file != null) file.setLength(0);
+      }
+      return null;
+    }
+    PooledBuffer data = pool.acquire(spilled.length, false);
+    try {
+      file.seek(readPos);
+      file.readFully(data.array(), 0, spilled.length);
+    } catch (IOException e) {
+      data.release();
+      throw e;
+    }
+    readPos += spilled.length;
+    return new Chunk(spilled.target, data, spilled.length);
+  }
+
+  /**
+   * Discards all spilled data, for example after a failure to read the file.
+   *
+   * @return Number of chunks discarded.
+   */
+  synchronized int clear() {
+    int count = pending.size();
+    pending.clear();
+    active = false;
+    writePos = 0;
+    readPos = 0;
+    return count;
+  }
+
+  /**
+   * @return Number of chunks currently spilled.
+   */
+  synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+   * Closes and deletes the spill file.
+   */
+  synchronized void close() {
+    clear();
+    if (file == null) return;
+    try {
+      file.close();
+    } catch (IOException e) {
+    }
+    path.delete();
+    file = null;
+  }
+}
@@ -0,0 +1,219 @@
+package net.kanstren.tcptunnel.backend;
+
+import net.kanstren.tcptunnel.dns.DNSTCPConnection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A remote host the tunnel forwards traffic to, along with the runtime state used to balance load over several of them.
+ * Active connections count TCP tunnels, UDP sessions, or DNS queries in progress, depending on the tunnel type.
+ * Latency is a moving average of TCP connect times or DNS response times.
+ * A backend is healthy if the last active health check (if any) succeeded, and it is not currently ejected for consecutive connection failures.
+ *
+ * @author Teemu Kanstren.
+ */
+public class Backend {
+  /** Weight of a new sample in the latency moving average. */
+  private static final double LATENCY_WEIGHT = 0.2;
+  /** Host name or IP address. */
+  private final String host;
+  /** Port on the host. */
+  private final int port;
+  /** Number of connections (tunnels, sessions, queries) currently active on this backend. */
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  /** Moving average of latency in nanoseconds. 0 until first measured. */
+  private volatile long latencyNanos = 0;
+  /** Pre-connected connections to this backend, if enabled. */
+  private volatile ConnectionPool connectionPool = null;
+  /** Persistent TCP connection for DNS queries to this backend, if enabled. */
+  private volatile DNSTCPConnection dnsConnection = null;
+  /** Result of the last active health check. True if not checked. */
+  private volatile boolean up = true;
+  /** Time (System.currentTimeMillis()) until which this backend is ejected due to consecutive failures. */
+  private volatile long ejectedUntil = 0;
+  /** Number of connection failures since the last success. */
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  /** Number of times this backend has been ejected. */
+  private final AtomicInteger ejections = new AtomicInteger();
+
+  /**
+   * @param host Host name or IP address.
+   * @param port Port on the host.
+   */
+  public Backend(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * @return Host name or IP address.
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return Port on the host.
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return The address of the host, resolved now.
+   * @throws UnknownHostException If the host cannot be resolved.
+   */
+  public InetAddress resolve() throws UnknownHostException {
+    return InetAddress.getByName(host);
+  }
+
+  /**
+   * @return The socket address (host + port) of this backend. Unresolved if the host could not be resolved.
+   */
+  public InetSocketAddress getSocketAddress() {
+    return new InetSocketAddress(host, port);
+  }
+
+  /**
+   * Called when a connection (tunnel, session, query) to this backend is started.
+   */
+  public void connectionOpened() {
+    activeConnections.incrementAndGet();
+  }
+
+  /**
+   * Called when a connection (tunnel, session, query) to this backend is finished.
+   */
+  public void connectionClosed() {
+    activeConnections.decrementAndGet();
+  }
+
+  /**
+   * @return Number of connections (tunnels, sessions, queries) currently active on this backend.
+   */
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  /**
+   * @param nanos Latency measured for this backend.
+   */
+  public synchronized void recordLatency(long nanos) {
+    long old = latencyNanos;
+    if (old == 0) latencyNanos = Math.max(1, nanos);
+    else latencyNanos = Math.max(1, (long) (old * (1 - LATENCY_WEIGHT) + nanos * LATENCY_WEIGHT));
+  }
+
+  /**
+   * @return Moving average of latency in nanoseconds. 0 if not measured yet.
+   */
+  public long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  /**
+   * @return Pre-connected connections to this backend, or null if not enabled.
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /**
+   * @param connectionPool Pre-connected connections to this backend.
+   */
+  public void setConnectionPool(ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+  }
+
+  /**
+   * @return Persistent TCP connection for DNS queries to this backend, or null if not enabled.
+   */
+  public DNSTCPConnection getDNSConnection() {
+    return dnsConnection;
+  }
+
+  /**
+   * @param dnsConnection Persistent TCP connection for DNS queries to this backend.
+   */
+  public void setDNSConnection(DNSTCPConnection dnsConnection) {
+    this.dnsConnection = dnsConnection;
+  }
+
+  /**
+   * @return True if connections should be routed to this backend.
+   */
+  public boolean isHealthy() {
+    return up && ejectedUntil <= System.currentTimeMillis();
+  }
+
+  /**
+   * @return Result of the last active health check. True if not checked.
+   */
+  public boolean isUp() {
+    return up;
+  }
+
+  /**
+   * @param up Result of an active health check.
+   * @return True if this changed the state of the backend.
+   */
+  public boolean setUp(boolean up) {
+    boolean changed = this.up != up;
+    this.up = up;
+    if (up) consecutiveFailures.set(0);
+    return changed;
+  }
+
+  /**
+   * @return True if this backend is currently ejected due to consecutive connection failures.
+   */
+  public boolean isEjected() {
+    return ejectedUntil > System.currentTimeMillis();
+  }
+
+  /**
+   * Called when a connection to this backend succeeds. Resets the failure count.
+   */
+  public void connectSucceeded() {
+    consecutiveFailures.set(0);
+  }
+
+  /**
+   * Called when a connection to this backend fails. Ejects the backend if the failure count reaches the given limit.
+   *
+   * @param ejectAfter Number of consecutive failures to eject after. 0 to never eject.
+   * @param ejectMillis How long to keep the backend ejected.
+   * @return True if this failure caused the backend to be ejected.
+   */
+  public boolean connectFailed(int ejectAfter, long ejectMillis) {
+    int failures = consecutiveFailures.incrementAndGet();
+    if (ejectAfter <= 0 || failures < ejectAfter) return false;
+    //only the thread reaching the limit ejects, others see the count reset
+    if (!consecutiveFailures.compareAndSet(failures, 0)) return false;
+    ejectedUntil = System.currentTimeMillis() + ejectMillis;
+    ejections.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return Number of connection failures since the last success.
+   */
+  public int getConsecutiveFailures() {
+    return consecutiveFailures.get();
+  }
+
+  /**
+   * @return Number of times this backend has been ejected.
+   */
+  public int getEjections() {
+    return ejections.get();
+  }
+
+  @Override
+  public String toString() {
+    return host + ":" + port;
+  }
+}
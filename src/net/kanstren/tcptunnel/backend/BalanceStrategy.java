@@ -0,0 +1,61 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.util.List;
+
+/**
+ * The available strategies for choosing the backend for a new connection.
+ *
+ * @author Teemu Kanstren.
+ */
+public enum BalanceStrategy {
+  /** Each backend in turn. */
+  ROUND_ROBIN("round-robin"),
+  /** The backend with fewest active connections. */
+  LEAST_CONNECTIONS("least-connections"),
+  /** Consistent hash of the client address, so the same client always goes to the same backend. */
+  HASH("hash"),
+  /** Random, weighted by inverse of measured latency. */
+  LATENCY("latency");
+
+  /** Identifier for the strategy, as given on the command line. */
+  private final String id;
+
+  BalanceStrategy(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return Identifier for the strategy, as given on the command line.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param backends The backends to balance over.
+   * @return A load balancer using this strategy.
+   */
+  public LoadBalancer create(List<Backend> backends) {
+    switch (this) {
+      case LEAST_CONNECTIONS:
+        return new LeastConnectionsBalancer(backends);
+      case HASH:
+        return new ConsistentHashBalancer(backends);
+      case LATENCY:
+        return new LatencyWeightedBalancer(backends);
+      default:
+        return new RoundRobinBalancer(backends);
+    }
+  }
+
+  /**
+   * @param id The strategy identifier, as given on the command line.
+   * @return The matching strategy, or null if there is none.
+   */
+  public static BalanceStrategy forId(String id) {
+    for (BalanceStrategy strategy : values()) {
+      if (strategy.id.equals(id)) return strategy;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,240 @@
+package net.kanstren.tcptunnel.backend;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps a number of connections to a backend open and ready, so new tunnels do not have to wait for connection setup.
+ * A background thread keeps the pool filled to the target size, and closes connections that have been idle longer than the max idle age.
+ * The max idle age should be shorter than the idle timeout of the backend, as closed connections are not otherwise detected.
+ * The connections are blocking socket channels, which work both for thread based tunnels (via socket()) and NIO tunnels.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ConnectionPool implements Runnable {
+  /** How long to wait before trying again after failing to connect. */
+  private static final long RETRY_MILLIS = 1000;
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** The backend to connect to. */
+  private final Backend backend;
+  /** Number of connections to keep ready. */
+  private final int targetSize;
+  /** Maximum time a connection is kept idle before closing it. */
+  private final long maxIdleNanos;
+  /** The idle connections, newest first. */
+  private final Deque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+  /** Number of idle connections. Separate from the deque, as size() of the deque is not constant time. */
+  private final AtomicInteger idleCount = new AtomicInteger();
+  /** Number of connections created. */
+  private final LongAdder created = new LongAdder();
+  /** Number of connections given out from the pool. */
+  private final LongAdder hits = new LongAdder();
+  /** Number of times the pool was empty when asked for a connection. */
+  private final LongAdder misses = new LongAdder();
+  /** Number of connections closed due to max idle age. */
+  private final LongAdder expired = new LongAdder();
+  /** As long as this is true, we keep refilling the pool. */
+  private volatile boolean running = true;
+  /** The thread refilling the pool. */
+  private Thread thread = null;
+  /** True if last attempt to connect failed. To avoid repeating the error message. */
+  private boolean failing = false;
+
+  /**
+   * @param params Configuration parameters, defining pool target size and max idle age.
+   * @param backend The backend to connect to.
+   */
+  public ConnectionPool(Params params, Backend backend) {
+    this.params = params;
+    this.backend = backend;
+    this.targetSize = params.getPrewarmSize();
+    this.maxIdleNanos = params.getPrewarmMaxIdle() * 1_000_000L;
+  }
+
+  /**
+   * Starts the thread filling the pool.
+   */
+  public void start() {
+    thread = new Thread(this, "tcptunnel-prewarm-" + backend);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Takes a connection from the pool. Triggers refill in the background.
+   *
+   * @return A connected channel in blocking mode, or null if none is available.
+   */
+  public SocketChannel take() {
+    IdleConnection connection;
+    long now = System.nanoTime();
+    while ((connection = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      if (now - connection.since > maxIdleNanos || !connection.channel.isOpen()) {
+        close(connection);
+        expired.increment();
+        continue;
+      }
+      hits.increment();
+      LockSupport.unpark(thread);
+      return connection.channel;
+    }
+    misses.increment();
+    LockSupport.unpark(thread);
+    return null;
+  }
+
+  @Override
+  public void run() {
+    long checkNanos = Math.max(10_000_000L, Math.min(maxIdleNanos / 4, 1_000_000_000L));
+    while (running) {
+      expire();
+      long waitNanos = checkNanos;
+      //no point connecting to a backend known to be down, the health checks tell when it is back
+      while (running && backend.isHealthy() && idleCount.get() < targetSize) {
+        try {
+          SocketChannel channel = connect();
+          idle.offerFirst(new IdleConnection(channel, System.nanoTime()));
+          idleCount.incrementAndGet();
+          created.increment();
+          failing = false;
+        } catch (IOException e) {
+          connectFailed();
+          waitNanos = RETRY_MILLIS * 1_000_000L;
+          break;
+        }
+      }
+      LockSupport.parkNanos(this, waitNanos);
+    }
+    IdleConnection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      idleCount.decrementAndGet();
+      close(connection);
+    }
+  }
+
+  /**
+   * Closes connections idle longer than the max idle age. The oldest are at the end of the deque.
+   */
+  private void expire() {
+    long now = System.nanoTime();
+    IdleConnection connection;
+    while ((connection = idle.peekLast()) != null && now - connection.since > maxIdleNanos) {
+      if (!idle.removeLastOccurrence(connection)) continue;
+      idleCount.decrementAndGet();
+      close(connection);
+      expired.increment();
+    }
+  }
+
+  /**
+   * @return A new connection to the backend.
+   * @throws IOException If connecting fails.
+   */
+  private SocketChannel connect() throws IOException {
+    InetSocketAddress remoteAddr = backend.getSocketAddress();
+    if (remoteAddr.isUnresolved()) throw new UnknownHostException(backend.getHost());
+    long start = System.nanoTime();
+    SocketChannel channel = SocketChannel.open(remoteAddr);
+    backend.recordLatency(System.nanoTime() - start);
+    channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+    return channel;
+  }
+
+  /**
+   * Reports failure to connect, once until connecting succeeds again.
+   */
+  private void connectFailed() {
+    if (failing) return;
+    failing = true;
+    if (params.isPrint()) {
+      String dateStr = sdf.format(new Date());
+      String remoteAddr = backend.toString();
+      String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
+      System.err.println(dateStr + ": Failed to pre-connect to remote host (" + remoteAddr + " (" + humanRemoteAddr + "))");
+    }
+  }
+
+  /**
+   * @param connection The connection to close.
+   */
+  private void close(IdleConnection connection) {
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Stops refilling and closes all idle connections.
+   */
+  public void stop() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * @return Number of connections ready in the pool.
+   */
+  public int getIdle() {
+    return idleCount.get();
+  }
+
+  /**
+   * @return Number of connections created.
+   */
+  public long getCreated() {
+    return created.sum();
+  }
+
+  /**
+   * @return Number of connections given out from the pool.
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return Number of times the pool was empty when asked for a connection.
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return Number of connections closed due to max idle age.
+   */
+  public long getExpired() {
+    return expired.sum();
+  }
+
+  /**
+   * A connection waiting in the pool.
+   */
+  private static class IdleConnection {
+    /** The connected channel. */
+    private final SocketChannel channel;
+    /** When the connection was added to the pool (nanos). */
+    private final long since;
+
+    private IdleConnection(SocketChannel channel, long since) {
+      this.channel = channel;
+      this.since = since;
+    }
+  }
+}
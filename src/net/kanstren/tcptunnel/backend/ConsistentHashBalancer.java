@@ -0,0 +1,63 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps the client address to a backend with consistent hashing, so a client keeps going to the same backend.
+ * Each backend is placed on a hash ring at a number of virtual points, and a client goes to the first point following its own hash.
+ * Adding or removing a backend only moves the clients of the affected ring segments.
+ * Clients of an unhealthy backend go to the next healthy backend on the ring, and return when it is healthy again.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ConsistentHashBalancer extends LoadBalancer {
+  /** Number of points on the ring per backend. More points give a more even spread. */
+  private static final int VIRTUAL_NODES = 160;
+  /** The hash ring. */
+  private final TreeMap<Integer, Backend> ring = new TreeMap<>();
+
+  /**
+   * @param backends The backends to balance over.
+   */
+  public ConsistentHashBalancer(List<Backend> backends) {
+    super(backends);
+    for (Backend backend : this.backends) {
+      for (int i = 0 ; i < VIRTUAL_NODES ; i++) {
+        ring.put(hash(backend + "#" + i), backend);
+      }
+    }
+  }
+
+  @Override
+  public Backend select(String clientKey) {
+    Map.Entry<Integer, Backend> entry = ring.ceilingEntry(hash(clientKey));
+    for (int i = 0 ; i < ring.size() ; i++) {
+      if (entry == null) entry = ring.firstEntry();
+      Backend backend = entry.getValue();
+      if (backend.isHealthy()) return backend;
+      entry = ring.higherEntry(entry.getKey());
+    }
+    return null;
+  }
+
+  /**
+   * 32-bit FNV-1a hash with a final avalanche step, as String.hashCode() spreads similar strings poorly.
+   *
+   * @param key The string to hash.
+   * @return The hash value.
+   */
+  static int hash(String key) {
+    int h = 0x811c9dc5;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b;
+      h *= 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+}
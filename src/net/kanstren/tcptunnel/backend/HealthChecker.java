@@ -0,0 +1,129 @@
+package net.kanstren.tcptunnel.backend;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodically probes all backends with a TCP connect, and marks them up or down based on the result.
+ * If a probe payload is given, it is sent after connecting and the backend must respond with at least one byte within the timeout.
+ * Probes are run one backend at a time, so the interval should be larger than the timeout times the number of backends.
+ *
+ * @author Teemu Kanstren.
+ */
+public class HealthChecker implements Runnable {
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** The backends to check. */
+  private final List<Backend> backends;
+  /** Time between probe rounds, in milliseconds. */
+  private final long intervalMillis;
+  /** Timeout for connecting and for the payload response, in milliseconds. */
+  private final int timeoutMillis;
+  /** Data to send after connecting, or null to only check connecting. */
+  private final byte[] payload;
+  /** As long as this is true, we keep checking. */
+  private volatile boolean running = true;
+  /** The thread running the checks. */
+  private Thread thread = null;
+
+  /**
+   * @param params Configuration parameters, defining interval, timeout, and payload.
+   * @param backends The backends to check.
+   */
+  public HealthChecker(Params params, List<Backend> backends) {
+    this.params = params;
+    this.backends = backends;
+    this.intervalMillis = params.getHealthInterval();
+    this.timeoutMillis = params.getHealthTimeout();
+    String payload = params.getHealthPayload();
+    this.payload = payload != null ? payload.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Starts the thread running the checks.
+   */
+  public void start() {
+    thread = new Thread(this, "tcptunnel-health");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      checkAll();
+      LockSupport.parkNanos(this, intervalMillis * 1_000_000L);
+    }
+  }
+
+  /**
+   * Probes all backends once and updates their state.
+   */
+  public void checkAll() {
+    for (Backend backend : backends) {
+      if (!running) return;
+      String error = probe(backend);
+      boolean up = error == null;
+      if (backend.setUp(up)) stateChanged(backend, error);
+    }
+  }
+
+  /**
+   * @param backend The backend to probe.
+   * @return Null if the backend is healthy, otherwise description of the failure.
+   */
+  private String probe(Backend backend) {
+    InetSocketAddress addr = backend.getSocketAddress();
+    if (addr.isUnresolved()) return new UnknownHostException(backend.getHost()).toString();
+    try (Socket socket = new Socket()) {
+      long start = System.nanoTime();
+      socket.connect(addr, timeoutMillis);
+      backend.recordLatency(System.nanoTime() - start);
+      if (payload == null) return null;
+      socket.setSoTimeout(timeoutMillis);
+      OutputStream out = socket.getOutputStream();
+      out.write(payload);
+      out.flush();
+      InputStream in = socket.getInputStream();
+      if (in.read() < 0) return "Connection closed without response to probe";
+      return null;
+    } catch (IOException e) {
+      return e.toString();
+    }
+  }
+
+  /**
+   * Reports a change in backend state.
+   *
+   * @param backend The backend that changed.
+   * @param error Description of the failure if it went down, null if it came up.
+   */
+  private void stateChanged(Backend backend, String error) {
+    if (!params.isPrint()) return;
+    String dateStr = sdf.format(new Date());
+    String addr = backend + " (" + Utils.mapAddrToHumanReadable(backend.toString()) + ")";
+    if (error == null) System.out.println(dateStr + ": Backend " + addr + " is up.");
+    else System.err.println(dateStr + ": Backend " + addr + " is down: " + error);
+  }
+
+  /**
+   * Stops the checks.
+   */
+  public void stop() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+}
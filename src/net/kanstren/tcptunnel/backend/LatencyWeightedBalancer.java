@@ -0,0 +1,51 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks a random backend, weighted by the inverse of its measured latency, so faster backends get more connections.
+ * Backends with no latency measured yet are picked first (in turn), to get them measured.
+ * For tunnels where latency is never measured (UDP), this works as round-robin.
+ *
+ * @author Teemu Kanstren.
+ */
+public class LatencyWeightedBalancer extends LoadBalancer {
+  /** Rotating index for picking unmeasured backends. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param backends The backends to balance over.
+   */
+  public LatencyWeightedBalancer(List<Backend> backends) {
+    super(backends);
+  }
+
+  @Override
+  public Backend select(String clientKey) {
+    int size = backends.size();
+    int first = Math.floorMod(next.getAndIncrement(), size);
+    double total = 0;
+    double[] weights = new double[size];
+    for (int i = 0 ; i < size ; i++) {
+      Backend backend = backends.get((first + i) % size);
+      if (!backend.isHealthy()) continue;
+      long latency = backend.getLatencyNanos();
+      if (latency <= 0) return backend;
+      weights[i] = 1d / latency;
+      total += weights[i];
+    }
+    if (total == 0) return null;
+    double r = ThreadLocalRandom.current().nextDouble() * total;
+    Backend last = null;
+    for (int i = 0 ; i < size ; i++) {
+      if (weights[i] == 0) continue;
+      last = backends.get((first + i) % size);
+      r -= weights[i];
+      if (r < 0) return last;
+    }
+    //rounding may leave a tiny remainder
+    return last;
+  }
+}
@@ -0,0 +1,40 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives the connection to the backend with fewest active connections.
+ * Ties are broken by rotating the starting point, so equally loaded backends share the load.
+ *
+ * @author Teemu Kanstren.
+ */
+public class LeastConnectionsBalancer extends LoadBalancer {
+  /** Rotating starting point for the search. */
+  private final AtomicInteger start = new AtomicInteger();
+
+  /**
+   * @param backends The backends to balance over.
+   */
+  public LeastConnectionsBalancer(List<Backend> backends) {
+    super(backends);
+  }
+
+  @Override
+  public Backend select(String clientKey) {
+    int size = backends.size();
+    int first = Math.floorMod(start.getAndIncrement(), size);
+    Backend best = null;
+    int bestCount = Integer.MAX_VALUE;
+    for (int i = 0 ; i < size ; i++) {
+      Backend backend = backends.get((first + i) % size);
+      if (!backend.isHealthy()) continue;
+      int count = backend.getActiveConnections();
+      if (count < bestCount) {
+        best = backend;
+        bestCount = count;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,47 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses the backend for each new connection (TCP tunnel, UDP session, DNS query).
+ * Only healthy backends are chosen. If none is healthy, no backend is chosen so the connection can fail fast.
+ *
+ * @author Teemu Kanstren.
+ */
+public abstract class LoadBalancer {
+  /** The backends to balance over. */
+  protected final List<Backend> backends;
+
+  /**
+   * @param backends The backends to balance over. At least one.
+   */
+  protected LoadBalancer(List<Backend> backends) {
+    if (backends.isEmpty()) throw new IllegalArgumentException("At least one backend is needed.");
+    this.backends = Collections.unmodifiableList(new ArrayList<>(backends));
+  }
+
+  /**
+   * @param clientKey Identifies the client (its IP address), for strategies keeping clients on the same backend.
+   * @return The backend to use for a new connection from the client, or null if no backend is healthy.
+   */
+  public abstract Backend select(String clientKey);
+
+  /**
+   * @return True if at least one backend is healthy.
+   */
+  public boolean hasHealthy() {
+    for (Backend backend : backends) {
+      if (backend.isHealthy()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return The backends balanced over.
+   */
+  public List<Backend> getBackends() {
+    return backends;
+  }
+}
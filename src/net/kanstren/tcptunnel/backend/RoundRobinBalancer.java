@@ -0,0 +1,31 @@
+package net.kanstren.tcptunnel.backend;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each backend a connection in turn.
+ *
+ * @author Teemu Kanstren.
+ */
+public class RoundRobinBalancer extends LoadBalancer {
+  /** Index of the backend to give the next connection to. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param backends The backends to balance over.
+   */
+  public RoundRobinBalancer(List<Backend> backends) {
+    super(backends);
+  }
+
+  @Override
+  public Backend select(String clientKey) {
+    int size = backends.size();
+    for (int i = 0 ; i < size ; i++) {
+      Backend backend = backends.get(Math.floorMod(next.getAndIncrement(), size));
+      if (backend.isHealthy()) return backend;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,220 @@
+package net.kanstren.tcptunnel.buffers;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of byte buffers shared by all forwarders and observers of a tunnel.
+ * Buffers are grouped in power of two size classes, from {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes.
+ * Both direct (off-heap) and heap buffers are pooled, heap buffers being needed where the data is passed to observers as byte arrays.
+ * Each size class retains at most a fixed number of bytes worth of free buffers, anything beyond that is left to the garbage collector.
+ * Requests bigger than the largest size class are allocated without pooling.
+ *
+ * If leak detection is enabled, every acquired buffer is tracked with the stack trace of where it was acquired.
+ * If a buffer is garbage collected without having been released, the leak is reported to System.err with that trace.
+ * This has a cost for every acquire, so is meant for debugging.
+ *
+ * @author Teemu Kanstren.
+ */
+public class BufferPool {
+  /** Smallest size class. */
+  public static final int MIN_SIZE = 512;
+  /** Largest size class. */
+  public static final int MAX_SIZE = 65536;
+  /** Default maximum bytes of free buffers to keep per size class and buffer type. */
+  public static final int DEFAULT_RETAINED_BYTES = 4 * 1024 * 1024;
+  /** Number of size classes. */
+  private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+  /** Free direct buffers per size class. */
+  private final Queue<ByteBuffer>[] directFree;
+  /** Free heap buffers per size class. */
+  private final Queue<ByteBuffer>[] heapFree;
+  /** Number of free direct buffers per size class. Separate from the queue, as size() of the queue is not constant time. */
+  private final AtomicInteger[] directCount;
+  /** Number of free heap buffers per size class. */
+  private final AtomicInteger[] heapCount;
+  /** Maximum bytes of free buffers to keep per size class and buffer type. */
+  private final int retainedBytes;
+  /** If true, track acquired buffers for leaks. */
+  private final boolean leakDetection;
+  /** Garbage collected buffers are enqueued here if leak detection is enabled. */
+  private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+  /** Trackers for currently acquired buffers, keeping the trackers themselves reachable until release. */
+  private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+  /** Number of buffers newly allocated. */
+  private final LongAdder allocated = new LongAdder();
+  /** Number of acquires served from free buffers. */
+  private final LongAdder reused = new LongAdder();
+  /** Number of buffers currently acquired and not released. */
+  private final LongAdder outstanding = new LongAdder();
+  /** Number of leaks detected. */
+  private final LongAdder leaks = new LongAdder();
+
+  /**
+   * @param leakDetection If true, track acquired buffers and report any that are garbage collected without release.
+   */
+  public BufferPool(boolean leakDetection) {
+    this(DEFAULT_RETAINED_BYTES, leakDetection);
+  }
+
+  /**
+   * @param retainedBytes Maximum bytes of free buffers to keep per size class and buffer type.
+   * @param leakDetection If true, track acquired buffers and report any that are garbage collected without release.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(int retainedBytes, boolean leakDetection) {
+    this.retainedBytes = retainedBytes;
+    this.leakDetection = leakDetection;
+    directFree = new Queue[CLASSES];
+    heapFree = new Queue[CLASSES];
+    directCount = new AtomicInteger[CLASSES];
+    heapCount = new AtomicInteger[CLASSES];
+    for (int i = 0 ; i < CLASSES ; i++) {
+      directFree[i] = new ConcurrentLinkedQueue<>();
+      heapFree[i] = new ConcurrentLinkedQueue<>();
+      directCount[i] = new AtomicInteger();
+      heapCount[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * @param size Requested buffer size.
+   * @return Index of the smallest size class that fits the size, or -1 if bigger than the largest class.
+   */
+  static int sizeClass(int size) {
+    if (size > MAX_SIZE) return -1;
+    if (size <= MIN_SIZE) return 0;
+    int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+    return bits - Integer.numberOfTrailingZeros(MIN_SIZE);
+  }
+
+  /**
+   * Borrow a buffer from the pool. Remember to release it.
+   *
+   * @param size The size of buffer needed. The returned buffer limit is set to this.
+   * @param direct If true, an off-heap buffer is returned. Otherwise a heap buffer with accessible backing array.
+   * @return The buffer.
+   */
+  public PooledBuffer acquire(int size, boolean direct) {
+    if (leakDetection) reportLeaks();
+    int sizeClass = sizeClass(size);
+    ByteBuffer buffer = null;
+    if (sizeClass >= 0) {
+      buffer = direct ? directFree[sizeClass].poll() : heapFree[sizeClass].poll();
+    }
+    if (buffer != null) {
+      if (direct) directCount[sizeClass].decrementAndGet();
+      else heapCount[sizeClass].decrementAndGet();
+      reused.increment();
+    } else {
+      int capacity = sizeClass >= 0 ? MIN_SIZE << sizeClass : size;
+      buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+      allocated.increment();
+    }
+    //through Buffer, as the ByteBuffer overrides added in Java 9 do not exist on Java 8
+    ((Buffer) buffer).clear();
+    ((Buffer) buffer).limit(size);
+    PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass);
+    if (leakDetection) {
+      pooled.tracker = new LeakTracker(pooled, collected);
+      trackers.add(pooled.tracker);
+    }
+    outstanding.increment();
+    return pooled;
+  }
+
+  /**
+   * Returns the buffer to the pool, if there is still room for it in its size class.
+   *
+   * @param pooled The buffer to return.
+   */
+  void release(PooledBuffer pooled) {
+    outstanding.decrement();
+    if (pooled.tracker != null) {
+      trackers.remove(pooled.tracker);
+      pooled.tracker.clear();
+    }
+    int sizeClass = pooled.sizeClass;
+    if (sizeClass < 0) return;
+    ByteBuffer buffer = pooled.buffer();
+    int max = Math.max(1, retainedBytes / (MIN_SIZE << sizeClass));
+    AtomicInteger count = buffer.isDirect() ? directCount[sizeClass] : heapCount[sizeClass];
+    if (count.incrementAndGet() > max) {
+      count.decrementAndGet();
+      return;
+    }
+    if (buffer.isDirect()) directFree[sizeClass].add(buffer);
+    else heapFree[sizeClass].add(buffer);
+  }
+
+  /**
+   * Reports any buffers garbage collected without release since last check.
+   */
+  private void reportLeaks() {
+    LeakTracker tracker;
+    while ((tracker = (LeakTracker) collected.poll()) != null) {
+      //released buffers are removed from the set before their tracker is cleared, so anything still there is a leak
+      if (!trackers.remove(tracker)) continue;
+      leaks.increment();
+      outstanding.decrement();
+      System.err.println("Buffer leak detected: buffer was garbage collected without being released. Acquired at:");
+      tracker.acquiredAt.printStackTrace();
+    }
+  }
+
+  /**
+   * @return Number of buffers allocated since the pool was created.
+   */
+  public long getAllocated() {
+    return allocated.sum();
+  }
+
+  /**
+   * @return Number of acquires served by reusing a free buffer.
+   */
+  public long getReused() {
+    return reused.sum();
+  }
+
+  /**
+   * @return Number of buffers currently acquired and not yet released (or detected as leaked).
+   */
+  public long getOutstanding() {
+    return outstanding.sum();
+  }
+
+  /**
+   * @return Number of leaked buffers detected. Only tracked if leak detection is enabled.
+   */
+  public long getLeaks() {
+    if (leakDetection) reportLeaks();
+    return leaks.sum();
+  }
+
+  /**
+   * @return True if leak detection is enabled.
+   */
+  public boolean isLeakDetection() {
+    return leakDetection;
+  }
+
+  /**
+   * Phantom reference to an acquired buffer, enqueued if the buffer is garbage collected.
+   */
+  static class LeakTracker extends PhantomReference<PooledBuffer> {
+    /** Stack trace of where the buffer was acquired. */
+    private final Throwable acquiredAt = new Throwable("Buffer acquired");
+
+    LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+      super(referent, queue);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package net.kanstren.tcptunnel.buffers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer borrowed from a {@link BufferPool}.
+ * Give it back with release() when done, after which it must not be used anymore.
+ *
+ * @author Teemu Kanstren.
+ */
+public class PooledBuffer {
+  /** The pool this buffer belongs to. */
+  private final BufferPool pool;
+  /** The actual buffer. Capacity is that of the size class, limit is the requested size. */
+  private final ByteBuffer buffer;
+  /** Index of the size class in the pool. -1 if too big to be pooled. */
+  final int sizeClass;
+  /** Tracks this buffer for leaks if leak detection is enabled. Null otherwise. */
+  BufferPool.LeakTracker tracker = null;
+  /** True once released. */
+  private boolean released = false;
+
+  /**
+   * @param pool The pool this buffer belongs to.
+   * @param buffer The actual buffer.
+   * @param sizeClass Index of the size class in the pool. -1 if not pooled.
+   */
+  PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+    this.pool = pool;
+    this.buffer = buffer;
+    this.sizeClass = sizeClass;
+  }
+
+  /**
+   * @return The buffer to use. Position is 0 and limit the requested size when acquired.
+   */
+  public ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /**
+   * @return The backing array of a heap buffer, starting at index 0.
+   * @throws UnsupportedOperationException For direct buffers.
+   */
+  public byte[] array() {
+    return buffer.array();
+  }
+
+  /**
+   * @return True if this is an off-heap buffer.
+   */
+  public boolean isDirect() {
+    return buffer.isDirect();
+  }
+
+  /**
+   * Gives the buffer back to the pool.
+   *
+   * @throws IllegalStateException If already released.
+   */
+  public void release() {
+    synchronized (this) {
+      if (released) throw new IllegalStateException("Buffer already released.");
+      released = true;
+    }
+    pool.release(this);
+  }
+}
@@ -0,0 +1,273 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.kanstren.tcptunnel.dns.DNSMessage.*;
+
+/**
+ * Caches DNS responses by their question, to answer repeated queries without asking the backend.
+ * A response is kept for the smallest TTL of its records, and the TTLs in the responses served from the cache count down with its age.
+ * Names that do not exist, or have no records of the type asked, are cached for the negative caching TTL of the zone, from the SOA record in the response (RFC 2308).
+ * Responses with no SOA record to tell that TTL are not cached, nor are truncated responses or ones with errors.
+ * <p>
+ * The cache holds up to a given number of responses, dropping the least recently used ones when full.
+ * Responses are stored as the wire format bytes, patched for each client on the way out, so an entry takes about the size of the response.
+ * <p>
+ * If prefetching is enabled, responses asked often enough during their TTL are refreshed from the backend in the last tenth of it,
+ * so the popular names keep being answered from the cache instead of expiring and being asked from the backend by the clients.
+ * The cache only tells when to refresh, with {@link #prefetch(DNSQuestion, long)}, and the caller forwards the query and caches the new response as usual.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSCache {
+  /** Longest time a response is cached, in seconds, whatever its TTL. */
+  public static final long MAX_TTL = TimeUnit.DAYS.toSeconds(1);
+  /** Longest time a negative response is cached, in seconds, as recommended in RFC 2308. */
+  public static final long MAX_NEGATIVE_TTL = TimeUnit.HOURS.toSeconds(3);
+  /** Largest response cached, in bytes. Larger ones are rare and take the space of many common ones. */
+  public static final int MAX_RESPONSE_SIZE = 4096;
+  /** Responses are prefetched when less than 1/PREFETCH_WINDOW of their TTL is left. */
+  private static final int PREFETCH_WINDOW = 10;
+  /** Maximum number of responses cached. */
+  private final int maxEntries;
+  /** Number of times a response has to be served from the cache during its TTL to be prefetched. 0 to disable prefetching. */
+  private final int prefetchHits;
+  /** The cached responses, least recently used first. Guarded by this. */
+  private final LinkedHashMap<DNSQuestion, Cached> entries;
+  /** Number of queries answered from the cache. Guarded by this. */
+  private long hits = 0;
+  /** Number of queries not found in the cache. Guarded by this. */
+  private long misses = 0;
+  /** Number of responses given to refresh before they expired. Guarded by this. */
+  private long prefetches = 0;
+
+  /**
+   * A cached response.
+   */
+  private static class Cached {
+    /** The response in wire format. */
+    private final byte[] response;
+    /** Offsets of the TTLs in the response, to count them down on the way out. */
+    private final int[] ttlOffsets;
+    /** The TTLs at those offsets when cached, in seconds. */
+    private final long[] ttls;
+    /** Time the response was cached, from System.nanoTime(). */
+    private final long storedAt;
+    /** Time the response expires, from System.nanoTime(). */
+    private final long expiresAt;
+    /** Number of times the response has been served. Guarded by the cache. */
+    private int hits = 0;
+    /** True once the response has been given to refresh, so it is refreshed only once. Guarded by the cache. */
+    private boolean prefetching = false;
+
+    private Cached(byte[] response, int[] ttlOffsets, long[] ttls, long storedAt, long expiresAt) {
+      this.response = response;
+      this.ttlOffsets = ttlOffsets;
+      this.ttls = ttls;
+      this.storedAt = storedAt;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * @param maxEntries Maximum number of responses to cache.
+   */
+  public DNSCache(int maxEntries) {
+    this(maxEntries, 0);
+  }
+
+  /**
+   * @param maxEntries Maximum number of responses to cache.
+   * @param prefetchHits Number of times a response has to be served from the cache during its TTL to be prefetched. 0 to disable prefetching.
+   */
+  public DNSCache(int maxEntries, int prefetchHits) {
+    this.maxEntries = maxEntries;
+    this.prefetchHits = prefetchHits;
+    this.entries = new LinkedHashMap<DNSQuestion, Cached>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<DNSQuestion, Cached> eldest) {
+        return size() > DNSCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up the response to a query.
+   *
+   * @param query The query, starting at index 0.
+   * @param length Length of the query.
+   * @param now Current time, from System.nanoTime().
+   * @return The response to send to the client, or null if there is none cached.
+   */
+  public byte[] get(byte[] query, int length, long now) {
+    DNSQuestion question = DNSQuestion.parse(query, length);
+    if (question == null || (flags(query) & FLAG_QR) != 0) return null;
+    return get(question, query, now);
+  }
+
+  /**
+   * Looks up the response to a query, and patches it for the client: the client's transaction ID and case of the name,
+   * with the TTLs reduced by the time the response has been cached.
+   *
+   * @param question The question of the query.
+   * @param query The query, starting at index 0.
+   * @param now Current time, from System.nanoTime().
+   * @return The response to send to the client, or null if there is none cached.
+   */
+  public byte[] get(DNSQuestion question, byte[] query, long now) {
+    return get(question, query, question.getUdpSize(), now);
+  }
+
+  /**
+   * Looks up the response to a query, and patches it for the client: the client's transaction ID and case of the name,
+   * with the TTLs reduced by the time the response has been cached.
+   *
+   * @param question The question of the query.
+   * @param query The query, starting at index 0.
+   * @param maxSize Largest response the client accepts. Larger ones are not served from the cache.
+   * @param now Current time, from System.nanoTime().
+   * @return The response to send to the client, or null if there is none cached.
+   */
+  public byte[] get(DNSQuestion question, byte[] query, int maxSize, long now) {
+    Cached entry;
+    synchronized (this) {
+      entry = entries.get(question);
+      if (entry != null && now - entry.expiresAt >= 0) {
+        entries.remove(question);
+        entry = null;
+      }
+      //a response too large for the client is left for the backend to truncate
+      if (entry == null || entry.response.length > maxSize) {
+        misses++;
+        return null;
+      }
+      hits++;
+      entry.hits++;
+    }
+    byte[] response = entry.response.clone();
+    writeId(response, readId(query));
+    //same name as the key matched, so only the case can differ
+    System.arraycopy(query, HEADER_SIZE, response, HEADER_SIZE, question.end() - 4 - HEADER_SIZE);
+    long age = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt);
+    for (int i = 0 ; i < entry.ttlOffsets.length ; i++) {
+      writeInt(response, entry.ttlOffsets[i], Math.max(0, entry.ttls[i] - age));
+    }
+    return response;
+  }
+
+  /**
+   * Caches a response from the backend, if it can be cached.
+   * It is cached under the question of the query it was received for, and only if it has the same question,
+   * so a response to something else is never served for the query.
+   *
+   * @param asked The question of the query the response was received for. Null if the query could not be parsed.
+   * @param response The response, starting at index 0.
+   * @param length Length of the response.
+   * @param now Current time, from System.nanoTime().
+   * @return True if the response was cached.
+   */
+  public boolean put(DNSQuestion asked, byte[] response, int length, long now) {
+    if (asked == null) return false;
+    if (length > MAX_RESPONSE_SIZE || length < HEADER_SIZE) return false;
+    int flags = flags(response);
+    if ((flags & FLAG_QR) == 0 || (flags & FLAG_TC) != 0) return false;
+    int rcode = flags & 0xF;
+    if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) return false;
+    DNSQuestion question = DNSQuestion.parse(response, length);
+    if (question == null || !asked.sameQuestion(question)) return false;
+
+    int answers = answers(response);
+    int authorities = answersAndAuthorities(response);
+    int records = records(response);
+    int[] ttlOffsets = new int[records];
+    long[] ttls = new long[records];
+    int count = 0;
+    long ttl = MAX_TTL;
+    long negativeTtl = -1;
+    int offset = question.end();
+    for (int i = 0 ; i < records ; i++) {
+      //already checked to be in bounds when parsing the question
+      offset = skipName(response, offset, length);
+      int type = readShort(response, offset);
+      int rdLength = readShort(response, offset + 8);
+      int rdata = offset + 10;
+      //the ttl of the edns record holds flags instead
+      if (type != TYPE_OPT) {
+        long recordTtl = readInt(response, offset + 4);
+        //ttls with the highest bit set are treated as zero (RFC 2181)
+        if (recordTtl > Integer.MAX_VALUE) recordTtl = 0;
+        ttlOffsets[count] = offset + 4;
+        ttls[count++] = recordTtl;
+        ttl = Math.min(ttl, recordTtl);
+        if (type == TYPE_SOA && i >= answers && i < authorities && rdLength >= 22) {
+          //the soa minimum field is the last in the record, and the negative ttl is the smaller of it and the soa ttl
+          negativeTtl = Math.min(recordTtl, readInt(response, rdata + rdLength - 4));
+        }
+      }
+      offset = rdata + rdLength;
+    }
+    if (rcode == RCODE_NXDOMAIN || answers == 0) {
+      if (negativeTtl < 0) return false;
+      ttl = Math.min(ttl, Math.min(negativeTtl, MAX_NEGATIVE_TTL));
+    }
+    if (ttl <= 0) return false;
+    Cached entry = new Cached(Arrays.copyOf(response, length), Arrays.copyOf(ttlOffsets, count), Arrays.copyOf(ttls, count), now, now + TimeUnit.SECONDS.toNanos(ttl));
+    synchronized (this) {
+      entries.put(asked, entry);
+    }
+    return true;
+  }
+
+  /**
+   * Tells if the response to a question just served from the cache should be refreshed from the backend now.
+   * That is when it has been served often enough during its TTL, and is in the last tenth of it.
+   * Each cached response is given to refresh only once, so the caller should forward the query when this returns true.
+   * The new response replaces the old one when cached, starting its count of hits from zero.
+   * If the refresh fails, the old response is served until it expires.
+   *
+   * @param question The question of the query.
+   * @param now Current time, from System.nanoTime().
+   * @return True if the query should be forwarded to refresh the response.
+   */
+  public synchronized boolean prefetch(DNSQuestion question, long now) {
+    if (prefetchHits <= 0) return false;
+    Cached entry = entries.get(question);
+    if (entry == null || entry.prefetching || entry.hits < prefetchHits) return false;
+    long left = entry.expiresAt - now;
+    if (left <= 0 || left > (entry.expiresAt - entry.storedAt) / PREFETCH_WINDOW) return false;
+    entry.prefetching = true;
+    prefetches++;
+    return true;
+  }
+
+  /**
+   * @return Number of responses cached, including expired ones not yet removed.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return Number of queries answered from the cache.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of queries not found in the cache.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of responses given to refresh before they expired.
+   */
+  public synchronized long getPrefetches() {
+    return prefetches;
+  }
+}
@@ -0,0 +1,163 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static net.kanstren.tcptunnel.dns.DNSMessage.*;
+
+/**
+ * Coalesces identical DNS queries in flight, so only the first one is forwarded to the backend.
+ * Clients asking the same question while it is in flight wait for that response, and get a copy of it with their own transaction ID.
+ * This keeps a burst of clients asking for a name, such as when its TTL runs out, from turning into a burst of queries to the backend.
+ * <p>
+ * The forwarder of the first query completes the question when it gets the response, or gives up on it.
+ * A question not completed within the timeout is forwarded again by the next client asking it, in case the completion was lost.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSCoalescer {
+  /** Questions in flight are not waited for longer than this, in nanoseconds. */
+  private final long timeoutNanos;
+  /** The questions in flight, with their clients. Guarded by this. */
+  private final HashMap<DNSQuestion, InFlight> inFlight = new HashMap<>();
+  /** Number of queries that waited for another in flight, instead of being forwarded. Guarded by this. */
+  private long coalesced = 0;
+
+  /**
+   * A client waiting for the response to its query.
+   */
+  public static class Client {
+    /** Address of the client. */
+    private final InetAddress address;
+    /** Port of the client. */
+    private final int port;
+    /** Transaction ID from the client. */
+    private final int id;
+    /** The name in the question as the client sent it, which may differ in case from the one forwarded. */
+    private final byte[] name;
+
+    private Client(InetAddress address, int port, int id, byte[] name) {
+      this.address = address;
+      this.port = port;
+      this.id = id;
+      this.name = name;
+    }
+
+    public InetAddress getAddress() {
+      return address;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    /**
+     * @param response The response to the question forwarded, starting at index 0.
+     * @param length Length of the response.
+     * @return A copy of the response for this client, with its transaction ID and name.
+     */
+    public byte[] respond(byte[] response, int length) {
+      byte[] copy = Arrays.copyOf(response, length);
+      writeId(copy, id);
+      //a response with a question of a different length, or none, is passed as is
+      if (skipPlainName(copy, HEADER_SIZE, length) == HEADER_SIZE + name.length) {
+        System.arraycopy(name, 0, copy, HEADER_SIZE, name.length);
+      }
+      return copy;
+    }
+
+    /**
+     * @return True if the client is the same, with the same transaction ID, as for a retransmitted query.
+     */
+    private boolean same(InetAddress address, int port, int id) {
+      return this.id == id && this.port == port && this.address.equals(address);
+    }
+  }
+
+  /**
+   * A question forwarded to the backend, and the clients waiting for its response.
+   */
+  private static class InFlight {
+    /** Time the question was forwarded, from System.nanoTime(). */
+    private final long startedAt;
+    /** The clients asking the question. The first one is the one whose query was forwarded. */
+    private final List<Client> clients = new ArrayList<>();
+
+    private InFlight(long startedAt) {
+      this.startedAt = startedAt;
+    }
+  }
+
+  /**
+   * @param timeoutNanos Questions in flight are not waited for longer than this, in nanoseconds.
+   */
+  public DNSCoalescer(long timeoutNanos) {
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Adds a query to the question in flight, or starts a new one for it.
+   * A retransmit of a query already waiting is dropped, as the response to the first one answers it.
+   *
+   * @param question The question of the query.
+   * @param query The query, starting at index 0.
+   * @param address Address of the client.
+   * @param port Port of the client.
+   * @param now Current time, from System.nanoTime().
+   * @return True if the query should be forwarded, and {@link #complete(DNSQuestion)} called once it is done.
+   * False if it waits for the response to another query.
+   */
+  public synchronized boolean join(DNSQuestion question, byte[] query, InetAddress address, int port, long now) {
+    int id = readId(query);
+    InFlight flight = inFlight.get(question);
+    if (flight != null && now - flight.startedAt < timeoutNanos) {
+      for (Client client : flight.clients) {
+        if (client.same(address, port, id)) return false;
+      }
+      flight.clients.add(new Client(address, port, id, name(query, question)));
+      coalesced++;
+      return false;
+    }
+    flight = new InFlight(now);
+    flight.clients.add(new Client(address, port, id, name(query, question)));
+    inFlight.put(question, flight);
+    return true;
+  }
+
+  /**
+   * @return The name in the question of the query, in wire format.
+   */
+  private static byte[] name(byte[] query, DNSQuestion question) {
+    return Arrays.copyOfRange(query, HEADER_SIZE, question.end() - 4);
+  }
+
+  /**
+   * Ends the wait for a question, when the forwarded query gets its response or fails.
+   *
+   * @param question The question forwarded.
+   * @return The clients that waited for the response, not including the one whose query was forwarded.
+   */
+  public synchronized List<Client> complete(DNSQuestion question) {
+    InFlight flight = inFlight.remove(question);
+    if (flight == null) return Collections.emptyList();
+    return flight.clients.subList(1, flight.clients.size());
+  }
+
+  /**
+   * @return Number of questions in flight.
+   */
+  public synchronized int size() {
+    return inFlight.size();
+  }
+
+  /**
+   * @return Number of queries that waited for another in flight, instead of being forwarded.
+   */
+  public synchronized long getCoalesced() {
+    return coalesced;
+  }
+}
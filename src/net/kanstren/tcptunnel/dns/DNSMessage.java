@@ -0,0 +1,232 @@
+package net.kanstren.tcptunnel.dns;
+
+/**
+ * Helpers for reading and patching DNS messages in their wire format (RFC 1035), without parsing them into objects.
+ * All offsets are from the start of the message, which is expected to be at index 0 of the given array.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSMessage {
+  /** Size of the DNS header. Anything shorter is not DNS. */
+  public static final int HEADER_SIZE = 12;
+  /** Response flag in the header flags. */
+  public static final int FLAG_QR = 0x8000;
+  /** Truncated flag in the header flags. The full response needs to be asked over TCP. */
+  public static final int FLAG_TC = 0x0200;
+  /** Recursion desired flag in the header flags. */
+  public static final int FLAG_RD = 0x0100;
+  /** Checking disabled flag in the header flags. */
+  public static final int FLAG_CD = 0x0010;
+  /** Response code for no error. */
+  public static final int RCODE_NOERROR = 0;
+  /** Response code for a name that does not exist. */
+  public static final int RCODE_NXDOMAIN = 3;
+  /** Record type of the start of authority, holding the negative caching TTL. */
+  public static final int TYPE_SOA = 6;
+  /** Record type of the EDNS pseudo record. Its TTL field holds flags, not a TTL. */
+  public static final int TYPE_OPT = 41;
+  /** Record type of transaction signatures, which are specific to a single message. */
+  public static final int TYPE_TSIG = 250;
+
+  private DNSMessage() {
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return The transaction ID of the message.
+   */
+  public static int readId(byte[] message) {
+    return readShort(message, 0);
+  }
+
+  /**
+   * @param message A DNS message.
+   * @param id The transaction ID to set in the message.
+   */
+  public static void writeId(byte[] message, int id) {
+    message[0] = (byte) (id >>> 8);
+    message[1] = (byte) id;
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return The header flags of the message, including opcode and response code.
+   */
+  public static int flags(byte[] message) {
+    return readShort(message, 2);
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return The opcode of the message. 0 for a standard query.
+   */
+  public static int opcode(byte[] message) {
+    return (flags(message) >>> 11) & 0xF;
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return The response code of the message.
+   */
+  public static int rcode(byte[] message) {
+    return flags(message) & 0xF;
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return Number of questions in the message.
+   */
+  public static int questions(byte[] message) {
+    return readShort(message, 4);
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return Number of records in the answer, authority, and additional sections together.
+   */
+  public static int records(byte[] message) {
+    return readShort(message, 6) + readShort(message, 8) + readShort(message, 10);
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return Number of records in the answer section.
+   */
+  public static int answers(byte[] message) {
+    return readShort(message, 6);
+  }
+
+  /**
+   * @param message A DNS message.
+   * @return Number of records in the answer and authority sections. The rest are additional records.
+   */
+  public static int answersAndAuthorities(byte[] message) {
+    return readShort(message, 6) + readShort(message, 8);
+  }
+
+  /**
+   * @param message The message.
+   * @param offset Offset of the value.
+   * @return The unsigned 16-bit value at the offset.
+   */
+  public static int readShort(byte[] message, int offset) {
+    return (message[offset] & 0xFF) << 8 | (message[offset + 1] & 0xFF);
+  }
+
+  /**
+   * @param message The message.
+   * @param offset Offset of the value.
+   * @return The unsigned 32-bit value at the offset.
+   */
+  public static long readInt(byte[] message, int offset) {
+    return (long) readShort(message, offset) << 16 | readShort(message, offset + 2);
+  }
+
+  /**
+   * @param message The message.
+   * @param offset Offset of the value.
+   * @param value The 32-bit value to write at the offset.
+   */
+  public static void writeInt(byte[] message, int offset, long value) {
+    message[offset] = (byte) (value >>> 24);
+    message[offset + 1] = (byte) (value >>> 16);
+    message[offset + 2] = (byte) (value >>> 8);
+    message[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Skips a domain name, which may end in a compression pointer.
+   *
+   * @param message The message.
+   * @param offset Offset of the name.
+   * @param length Length of the message.
+   * @return Offset right after the name, or -1 if the name runs past the message or is malformed.
+   */
+  public static int skipName(byte[] message, int offset, int length) {
+    while (offset < length) {
+      int label = message[offset] & 0xFF;
+      if (label == 0) return offset + 1;
+      //a pointer to a name elsewhere ends this one
+      if ((label & 0xC0) == 0xC0) return offset + 2 <= length ? offset + 2 : -1;
+      if ((label & 0xC0) != 0) return -1;
+      offset += label + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Skips an uncompressed domain name, as in the question section of a query.
+   *
+   * @param message The message.
+   * @param offset Offset of the name.
+   * @param length Length of the message.
+   * @return Offset right after the name, or -1 if the name is compressed, runs past the message, or is malformed.
+   */
+  public static int skipPlainName(byte[] message, int offset, int length) {
+    while (offset < length) {
+      int label = message[offset] & 0xFF;
+      if (label == 0) return offset + 1;
+      if ((label & 0xC0) != 0) return -1;
+      offset += label + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Checks that a response has the same questions as the query, so it is to that query and not just one with the same transaction ID.
+   * Names are compared case insensitively, as servers do not always keep the case of the query.
+   *
+   * @param query The query.
+   * @param queryLength Length of the query.
+   * @param response The response.
+   * @param responseLength Length of the response.
+   * @return True if the question sections match.
+   */
+  public static boolean sameQuestions(byte[] query, int queryLength, byte[] response, int responseLength) {
+    if (queryLength < HEADER_SIZE || responseLength < HEADER_SIZE) return false;
+    int count = questions(query);
+    if (questions(response) != count) return false;
+    int q = HEADER_SIZE;
+    int r = HEADER_SIZE;
+    for (int i = 0 ; i < count ; i++) {
+      while (true) {
+        if (q >= queryLength || r >= responseLength) return false;
+        int label = query[q] & 0xFF;
+        if ((response[r] & 0xFF) != label) return false;
+        if ((label & 0xC0) == 0xC0) {
+          //a pointer to the same offset, as everything before it matched
+          if (q + 2 > queryLength || r + 2 > responseLength || query[q + 1] != response[r + 1]) return false;
+          q += 2;
+          r += 2;
+          break;
+        }
+        if ((label & 0xC0) != 0) return false;
+        q++;
+        r++;
+        if (label == 0) break;
+        if (q + label > queryLength || r + label > responseLength) return false;
+        for (int c = 0 ; c < label ; c++) {
+          if (lowercase(query[q + c]) != lowercase(response[r + c])) return false;
+        }
+        q += label;
+        r += label;
+      }
+      //type and class
+      if (q + 4 > queryLength || r + 4 > responseLength) return false;
+      for (int c = 0 ; c < 4 ; c++) {
+        if (query[q + c] != response[r + c]) return false;
+      }
+      q += 4;
+      r += 4;
+    }
+    return true;
+  }
+
+  /**
+   * @param b A character of a name.
+   * @return The character in lowercase, if it is an ASCII letter.
+   */
+  private static byte lowercase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+}
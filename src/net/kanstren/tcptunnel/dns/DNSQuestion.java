@@ -0,0 +1,144 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.util.Arrays;
+
+import static net.kanstren.tcptunnel.dns.DNSMessage.*;
+
+/**
+ * The question of a DNS message, usable as a key for the responses: name, type, and class, with the query flags that change the response.
+ * Names are compared case insensitively, so the key has the name in lowercase.
+ * Only standard queries with a single question are supported, and messages with transaction signatures are not, as their responses are specific to the one message.
+ *
+ * @author Teemu Kanstren.
+ */
+public final class DNSQuestion {
+  /** Largest response a client with no EDNS accepts over UDP. */
+  public static final int DEFAULT_UDP_SIZE = 512;
+  /** Set in the key flags if the message has an EDNS record. Takes a response code bit, which the key does not otherwise use. */
+  private static final int KEY_EDNS = 0x0001;
+  /** Set in the key flags if the EDNS record asks for the DNSSEC records. */
+  private static final int KEY_DO = 0x0002;
+  /** Lowercased name, type, class, and flags, in wire format. */
+  private final byte[] key;
+  /** Hash code of the key. */
+  private final int hash;
+  /** Offset right after the question in the message. */
+  private final int end;
+  /** Largest UDP response the sender accepts, from its EDNS record. */
+  private final int udpSize;
+
+  private DNSQuestion(byte[] key, int end, int udpSize) {
+    this.key = key;
+    this.hash = Arrays.hashCode(key);
+    this.end = end;
+    this.udpSize = udpSize;
+  }
+
+  /**
+   * @param message A DNS query or response, starting at index 0.
+   * @param length Length of the message.
+   * @return The question of the message, or null if the message is malformed or not supported.
+   */
+  public static DNSQuestion parse(byte[] message, int length) {
+    if (length < HEADER_SIZE || questions(message) != 1 || opcode(message) != 0) return null;
+    int nameEnd = skipPlainName(message, HEADER_SIZE, length);
+    if (nameEnd < 0 || nameEnd + 4 > length) return null;
+    int end = nameEnd + 4;
+    int flags = flags(message) & (FLAG_RD | FLAG_CD);
+    int udpSize = DEFAULT_UDP_SIZE;
+    int offset = end;
+    int records = records(message);
+    for (int i = 0 ; i < records ; i++) {
+      offset = skipName(message, offset, length);
+      if (offset < 0 || offset + 10 > length) return null;
+      int type = readShort(message, offset);
+      if (type == TYPE_TSIG) return null;
+      if (type == TYPE_OPT) {
+        //the class of the edns record holds the udp size, and the ttl holds the extended flags
+        udpSize = Math.max(DEFAULT_UDP_SIZE, readShort(message, offset + 2));
+        flags |= KEY_EDNS;
+        if ((readShort(message, offset + 6) & 0x8000) != 0) flags |= KEY_DO;
+      }
+      offset += 10 + readShort(message, offset + 8);
+      if (offset > length) return null;
+    }
+    byte[] key = new byte[end - HEADER_SIZE + 2];
+    for (int i = HEADER_SIZE ; i < nameEnd ; i++) {
+      //label lengths are at most 63, so only the name characters fall in the range
+      byte b = message[i];
+      key[i - HEADER_SIZE] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+    System.arraycopy(message, nameEnd, key, nameEnd - HEADER_SIZE, 4);
+    key[key.length - 2] = (byte) (flags >>> 8);
+    key[key.length - 1] = (byte) flags;
+    return new DNSQuestion(key, end, udpSize);
+  }
+
+  /**
+   * @return Offset right after the question in the message it was parsed from.
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * @return Largest UDP response the sender of the message accepts.
+   */
+  public int getUdpSize() {
+    return udpSize;
+  }
+
+  /**
+   * @return The record type asked for.
+   */
+  public int getType() {
+    return readShort(key, key.length - 6);
+  }
+
+  /**
+   * Tells if the other question has the same name, type, and class, whatever the flags.
+   * A response often has other flags than its query, for example without the EDNS record.
+   *
+   * @param other The question to compare to.
+   * @return True if the name, type, and class are the same.
+   */
+  public boolean sameQuestion(DNSQuestion other) {
+    if (key.length != other.key.length) return false;
+    for (int i = 0 ; i < key.length - 2 ; i++) {
+      if (key[i] != other.key[i]) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof DNSQuestion)) return false;
+    DNSQuestion that = (DNSQuestion) o;
+    return hash == that.hash && Arrays.equals(key, that.key);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  /**
+   * @return The name in dotted form, with the record type, for logging.
+   */
+  @Override
+  public String toString() {
+    StringBuilder name = new StringBuilder();
+    int i = 0;
+    while (key[i] != 0) {
+      int label = key[i];
+      for (int c = i + 1 ; c <= i + label ; c++) {
+        name.append((char) (key[c] & 0xFF));
+      }
+      name.append('.');
+      i += label + 1;
+    }
+    if (name.length() == 0) name.append('.');
+    return name + " type " + getType();
+  }
+}
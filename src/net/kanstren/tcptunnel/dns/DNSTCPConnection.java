@@ -0,0 +1,390 @@
+package net.kanstren.tcptunnel.dns;
+
+import net.kanstren.tcptunnel.backend.Backend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.kanstren.tcptunnel.dns.DNSMessage.*;
+
+/**
+ * A persistent TCP connection to a DNS backend, with queries pipelined over it (RFC 7766).
+ * Queries are sent as soon as they come, without waiting for the earlier ones to be answered, and the responses may come in any order.
+ * Each query gets a new transaction ID, unique among the pending queries of the connection, and the responses are matched to the queries by it.
+ * <p>
+ * The connection is opened on the first query, and again on the next query after the backend closes it or it fails.
+ * Queries pending when the connection is lost fail, as do the ones with no response within the timeout.
+ * <p>
+ * Connecting and writing are done by a writer thread, never holding the lock, so sending a query never blocks the caller,
+ * and a backend not reading its queries does not block reading the responses.
+ * If a write stays blocked for the timeout, the connection is closed.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSTCPConnection {
+  /** Largest DNS message over TCP, as the length prefix is 16 bits. */
+  public static final int MAX_MESSAGE_SIZE = 65535;
+  /** Number of possible transaction IDs. */
+  private static final int IDS = 65536;
+  /** The backend to connect to. */
+  private final Backend backend;
+  /** Queries with no response for this long fail, in nanoseconds. Also used as the connect timeout. */
+  private final long timeoutNanos;
+  /** The current connection. Null if not connected. Guarded by this. */
+  private Socket socket = null;
+  /** Output stream of the current connection. Guarded by this. */
+  private OutputStream out = null;
+  /** Pending queries by their transaction ID. Guarded by this. */
+  private final Pending[] pending = new Pending[IDS];
+  /** Pending queries in the order sent, which is also the order they expire in. Includes ones already responded to. Guarded by this. */
+  private final ArrayDeque<Pending> order = new ArrayDeque<>();
+  /** Number of pending queries. Guarded by this. */
+  private int size = 0;
+  /** Queries waiting for the writer thread to send them. Guarded by this. */
+  private final ArrayDeque<Pending> outbox = new ArrayDeque<>();
+  /** Time the writer thread started its current write, from System.nanoTime(). Zero if not writing. */
+  private volatile long writingSince = 0;
+  /** As long as this is true, the timer keeps checking for expired queries, and new queries can be sent. */
+  private volatile boolean running = true;
+  /** Thread expiring the queries with no response. */
+  private Thread timer = null;
+  /** Thread connecting and sending the queries. */
+  private Thread writer = null;
+
+  /**
+   * A query waiting for its response.
+   */
+  private static class Pending {
+    /** Transaction ID used on the connection. */
+    private final int id;
+    /** Transaction ID of the query as given, put back in the response. */
+    private final int queryId;
+    /** Completed with the response. */
+    private final CompletableFuture<byte[]> future;
+    /** Time the query was sent, from System.nanoTime(). */
+    private final long sentAt;
+    /** The query with its length prefix and the new ID, as written to the connection. */
+    private final byte[] frame;
+    /** True once responded to, failed, or expired. Guarded by the connection. */
+    private boolean done = false;
+
+    private Pending(int id, int queryId, CompletableFuture<byte[]> future, long sentAt, byte[] frame) {
+      this.id = id;
+      this.queryId = queryId;
+      this.future = future;
+      this.sentAt = sentAt;
+      this.frame = frame;
+    }
+  }
+
+  /**
+   * Call {@link #start()} to start the timer for the queries.
+   *
+   * @param backend The backend to connect to.
+   * @param timeoutNanos Queries with no response for this long fail, in nanoseconds. Also used as the connect timeout.
+   */
+  public DNSTCPConnection(Backend backend, long timeoutNanos) {
+    this.backend = backend;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Starts the timer for the queries with no response, and the writer for the queries.
+   */
+  public void start() {
+    timer = new Thread(this::expire, "tcptunnel-dns-tcp-timeout-" + backend);
+    timer.setDaemon(true);
+    timer.start();
+    writer = new Thread(this::write, "tcptunnel-dns-tcp-writer-" + backend);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Sends a query to the backend, connecting first if not connected.
+   * The query is queued for the writer thread, so this does not block.
+   *
+   * @param query The query, starting at index 0.
+   * @param length Length of the query.
+   * @return Completed with the response, with the transaction ID of the query.
+   * Completed exceptionally if sending fails, the connection is lost, or there is no response within the timeout.
+   */
+  public CompletableFuture<byte[]> send(byte[] query, int length) {
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    if (length < HEADER_SIZE || length > MAX_MESSAGE_SIZE) {
+      future.completeExceptionally(new IOException("Invalid DNS message length: " + length));
+      return future;
+    }
+    //length prefix, then the message, in one write
+    byte[] frame = new byte[length + 2];
+    frame[0] = (byte) (length >>> 8);
+    frame[1] = (byte) length;
+    System.arraycopy(query, 0, frame, 2, length);
+    IOException error = null;
+    synchronized (this) {
+      if (!running) error = new IOException("DNS connection to " + backend + " closed");
+      else if (size >= IDS) error = new IOException("Too many pending DNS queries to " + backend);
+      else {
+        int id = ThreadLocalRandom.current().nextInt(IDS);
+        while (pending[id] != null) {
+          id = (id + 1) & (IDS - 1);
+        }
+        frame[2] = (byte) (id >>> 8);
+        frame[3] = (byte) id;
+        Pending sent = new Pending(id, readId(query), future, System.nanoTime(), frame);
+        pending[id] = sent;
+        order.add(sent);
+        outbox.add(sent);
+        size++;
+      }
+    }
+    //completed outside the lock, as the callbacks run in this thread
+    if (error != null) future.completeExceptionally(error);
+    else LockSupport.unpark(writer);
+    return future;
+  }
+
+  /**
+   * Connects when there are queries to send, and writes them to the connection. Runs in its own thread until closed.
+   * The lock is only held to take the queries to write, so a blocked connect or write does not block the other threads.
+   */
+  private void write() {
+    List<Pending> queries = new ArrayList<>();
+    while (running) {
+      Socket socket;
+      OutputStream out;
+      boolean queued;
+      synchronized (this) {
+        socket = this.socket;
+        out = this.out;
+        queued = !outbox.isEmpty();
+        if (socket != null) {
+          for (Pending query : outbox) {
+            //failed or expired while waiting
+            if (!query.done) queries.add(query);
+          }
+          outbox.clear();
+        }
+      }
+      if (!queued) {
+        LockSupport.park(this);
+        continue;
+      }
+      if (socket == null) {
+        connect();
+        continue;
+      }
+      if (queries.isEmpty()) continue;
+      try {
+        writingSince = System.nanoTime();
+        for (Pending query : queries) {
+          out.write(query.frame);
+        }
+        out.flush();
+      } catch (IOException e) {
+        List<Pending> failed = null;
+        synchronized (this) {
+          //a connection already replaced has had its queries failed
+          if (this.socket == socket) failed = disconnect();
+        }
+        if (failed != null) fail(failed, e);
+      } finally {
+        writingSince = 0;
+        queries.clear();
+      }
+    }
+  }
+
+  /**
+   * Opens the connection, and starts a thread to read the responses from it.
+   * Called from the writer thread, without the lock. If connecting fails, the pending queries fail.
+   */
+  private void connect() {
+    Socket socket = new Socket();
+    OutputStream out;
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(backend.resolve(), backend.getPort()), (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+      out = socket.getOutputStream();
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException ce) {
+        //closing anyway
+      }
+      List<Pending> failed;
+      synchronized (this) {
+        failed = disconnect();
+      }
+      fail(failed, e);
+      return;
+    }
+    synchronized (this) {
+      if (!running) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          //closed anyway
+        }
+        return;
+      }
+      this.socket = socket;
+      this.out = out;
+    }
+    Thread reader = new Thread(() -> read(socket), "tcptunnel-dns-tcp-" + backend);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Reads the responses from a connection, and completes their queries. Runs until the connection is closed.
+   *
+   * @param socket The connection.
+   */
+  private void read(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      while (true) {
+        int length = in.readUnsignedShort();
+        byte[] response = new byte[length];
+        in.readFully(response);
+        if (length < HEADER_SIZE) continue;
+        Pending query;
+        synchronized (this) {
+          query = pending[readId(response)];
+          //late responses to expired queries are dropped
+          if (query == null || query.done) continue;
+          release(query);
+        }
+        writeId(response, query.queryId);
+        query.future.complete(response);
+      }
+    } catch (IOException e) {
+      List<Pending> failed = null;
+      synchronized (this) {
+        //a connection already replaced has had its queries failed
+        if (this.socket == socket) failed = disconnect();
+      }
+      if (failed != null) fail(failed, new IOException("DNS connection to " + backend + " lost", e));
+    }
+  }
+
+  /**
+   * Closes the current connection, if any.
+   *
+   * @return The queries pending on the connection, to be failed outside the lock.
+   */
+  private List<Pending> disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        //closing anyway
+      }
+    }
+    socket = null;
+    out = null;
+    outbox.clear();
+    List<Pending> failed = new ArrayList<>();
+    for (Pending query : order) {
+      if (query.done) continue;
+      release(query);
+      failed.add(query);
+    }
+    order.clear();
+    return failed;
+  }
+
+  /**
+   * Marks the query done and frees its ID.
+   *
+   * @param query The query, with the lock held.
+   */
+  private void release(Pending query) {
+    query.done = true;
+    pending[query.id] = null;
+    size--;
+  }
+
+  /**
+   * @param failed The queries to fail.
+   * @param error The error to fail them with.
+   */
+  private static void fail(List<Pending> failed, IOException error) {
+    for (Pending query : failed) {
+      query.future.completeExceptionally(error);
+    }
+  }
+
+  /**
+   * Fails the queries that have waited for their response too long. Runs in its own thread until closed.
+   */
+  private void expire() {
+    long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), timeoutNanos / 20);
+    List<Pending> expired = new ArrayList<>();
+    while (running) {
+      LockSupport.parkNanos(this, interval);
+      long now = System.nanoTime();
+      synchronized (this) {
+        Pending oldest;
+        while ((oldest = order.peek()) != null && now - oldest.sentAt >= timeoutNanos) {
+          order.poll();
+          if (oldest.done) continue;
+          release(oldest);
+          expired.add(oldest);
+        }
+      }
+      if (!expired.isEmpty()) fail(expired, new SocketTimeoutException("No response over TCP from " + backend));
+      expired.clear();
+      //a backend not reading its queries, closed to unblock the writer
+      long since = writingSince;
+      if (since != 0 && now - since >= timeoutNanos) {
+        List<Pending> failed;
+        synchronized (this) {
+          failed = disconnect();
+        }
+        fail(failed, new SocketTimeoutException("Writing over TCP to " + backend + " timed out"));
+      }
+    }
+  }
+
+  /**
+   * @return Number of queries waiting for their response.
+   */
+  public synchronized int getPendingCount() {
+    return size;
+  }
+
+  /**
+   * @return True if the connection to the backend is open.
+   */
+  public synchronized boolean isConnected() {
+    return socket != null;
+  }
+
+  /**
+   * Closes the connection and stops the timer. Pending queries fail.
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(timer);
+    LockSupport.unpark(writer);
+    List<Pending> failed;
+    synchronized (this) {
+      failed = disconnect();
+    }
+    fail(failed, new IOException("DNS connection to " + backend + " closed"));
+  }
+}
@@ -1,6 +1,14 @@
 package net.kanstren.tcptunnel.forwarder;
 
 import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSCoalescer;
+import net.kanstren.tcptunnel.dns.DNSMessage;
+import net.kanstren.tcptunnel.dns.DNSQuestion;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
 import net.kanstren.tcptunnel.observers.TCPObserver;
 
 import java.io.IOException;
@@ -9,11 +17,16 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by AlexZhuo on 2017/11/9.
  */
 public class DNSForwarder extends Thread {
+  /** Largest UDP payload, the size of the buffer to receive the responses in. */
+  private static final int MAX_UDP_SIZE = 65507;
   /** Address to forward packets to. */
   private InetAddress fwdAddr;
   /** Port to forward packets to. */
@@ -25,15 +38,27 @@ public class DNSForwarder extends Thread {
   private DatagramPacket sendData;
   private List<TCPObserver> upObservers;
   private List<TCPObserver> downObservers;
+  /** Configuration parameters. */
+  private final Params params;
+  /** The backend to send the query to. */
+  private final Backend backend;
+  /** Metrics for the tunnel, with this query counted as a connection. */
+  private final TunnelMetrics metrics;
+  /** The question to complete in the coalescer once answered, with the response sent to the clients waiting for it. Null if not coalesced. */
+  private final DNSQuestion question;
 
-  public DNSForwarder(DatagramPacket packet, DatagramSocket responseSocket, InetAddress fwdAddr, int fwdPort, Params params) throws Exception {
+  public DNSForwarder(DatagramPacket packet, DatagramSocket responseSocket, InetAddress fwdAddr, int fwdPort, Backend backend, DNSQuestion question, Params params) throws Exception {
+    this.params = params;
+    this.backend = backend;
+    this.question = question;
+    this.metrics = params.getMetrics();
     this.fwdAddr = InetAddress.getByAddress(fwdAddr.getAddress());
     this.fwdPort = fwdPort;
     this.responseSocket = responseSocket;
     byte[] sendmsg = Arrays.copyOf(packet.getData(), packet.getLength());
-    sendData = new DatagramPacket(sendmsg, packet.getLength(), InetAddress.getByName(params.getRemoteHost()), params.getRemotePort());
+    sendData = new DatagramPacket(sendmsg, packet.getLength(), packet.getAddress(), packet.getPort());
     this.upObservers = params.createUpObservers(fwdAddr.getHostAddress() + ":" + fwdPort);
-    this.downObservers = params.createDownObservers(params.getRemoteHost());
+    this.downObservers = params.createDownObservers(backend.getHost());
   }
 
   public InetAddress getFwdAddr() {
@@ -47,29 +72,122 @@ public class DNSForwarder extends Thread {
   @Override
   public void run() {
     //receiving the data from remote server
-    DatagramPacket packet = new DatagramPacket(new byte[12800], 12800);
+    PooledBuffer pooled = params.getBufferPool().acquire(MAX_UDP_SIZE, false);
+    DatagramPacket packet = new DatagramPacket(pooled.array(), MAX_UDP_SIZE);
+    backend.connectionOpened();
+    metrics.connectionOpened();
+    //true once the question is completed in the coalescer with the response, so it is not completed again
+    boolean completed = false;
     try {
       fwdSocket = new DatagramSocket();
       fwdSocket.setSoTimeout(2000);
+      long start = System.nanoTime();
       fwdSocket.send(sendData);
       if (fwdSocket.isClosed()) return;
       fwdSocket.receive(packet);
+      long latency = System.nanoTime() - start;
+      backend.recordLatency(latency);
+      metrics.recordBackendLatency(latency);
+      boolean truncated = packet.getLength() >= DNSMessage.HEADER_SIZE && (DNSMessage.flags(packet.getData()) & DNSMessage.FLAG_TC) != 0;
+      if (truncated && backend.getDNSConnection() != null) retryOverTCP(packet);
       //send the packet to forward target
       packet.setAddress(fwdAddr);
       packet.setPort(fwdPort);
       //send received packet back to the source that did the query
-      responseSocket.send(packet);
-      for (TCPObserver observer : upObservers) {
-        observer.observe(sendData.getData(), 0, sendData.getLength());
-      }
-      for (TCPObserver observer : downObservers) {
-        observer.observe(packet.getData(), 0, packet.getLength());
+      IOException error = null;
+      try {
+        responseSocket.send(packet);
+      } catch (IOException e) {
+        error = e;
       }
+      //the clients waiting for the same question are answered even if sending to this one failed
+      completed = true;
+      if (question != null) answerWaiting(packet);
+      if (error != null) throw error;
+      DNSCache cache = params.getDNSCache();
+      if (cache != null) cache.put(asked(), packet.getData(), packet.getLength(), System.nanoTime());
+      observe(upObservers, metrics.getUp(), sendData);
+      observe(downObservers, metrics.getDown(), packet);
       close();
     } catch (IOException e) {
+      metrics.recordError();
       e.printStackTrace();
       close();
+    } finally {
+      //with no response, the clients waiting for it will retry, as this one will
+      if (question != null && !completed) params.getDNSCoalescer().complete(question);
+      pooled.release();
+      backend.connectionClosed();
+      metrics.connectionClosed();
+    }
+  }
+
+  /**
+   * Gets the full response over TCP for a truncated one, and puts it in the packet if it fits the client's UDP size.
+   * Otherwise, or if the retry fails, the truncated response is left in the packet, so the client can retry over TCP itself.
+   *
+   * @param packet The truncated response.
+   */
+  private void retryOverTCP(DatagramPacket packet) {
+    DNSQuestion parsed = DNSQuestion.parse(sendData.getData(), sendData.getLength());
+    int udpSize = parsed != null ? parsed.getUdpSize() : DNSQuestion.DEFAULT_UDP_SIZE;
+    try {
+      byte[] full = backend.getDNSConnection().send(sendData.getData(), sendData.getLength()).get(DNSMultiplexer.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      if (full.length <= udpSize) packet.setData(full);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      metrics.recordError();
+      if (params.isPrint()) System.err.println("Failed to retry truncated DNS response over TCP from " + backend + ": " + e);
+    }
+  }
+
+  /**
+   * @return The question of the query, to cache the response under. Null if it cannot be cached.
+   */
+  private DNSQuestion asked() {
+    return question != null ? question : DNSQuestion.parse(sendData.getData(), sendData.getLength());
+  }
+
+  /**
+   * Sends the response to the clients that asked the same question while it was in flight.
+   * A failure with one client does not keep the response from the others.
+   *
+   * @param response The response from the backend.
+   * @throws IOException The first failure sending or observing, after trying all the clients.
+   */
+  private void answerWaiting(DatagramPacket response) throws IOException {
+    IOException error = null;
+    for (DNSCoalescer.Client client : params.getDNSCoalescer().complete(question)) {
+      try {
+        byte[] copy = client.respond(response.getData(), response.getLength());
+        DatagramPacket packet = new DatagramPacket(copy, copy.length, client.getAddress(), client.getPort());
+        responseSocket.send(packet);
+        observe(downObservers, metrics.getDown(), packet);
+      } catch (IOException e) {
+        if (error == null) error = e;
+      }
+    }
+    if (error != null) throw error;
+  }
+
+  /**
+   * Records the packet in the metrics and passes it to the observers.
+   *
+   * @param observers The observers for the direction of the packet.
+   * @param direction Metrics for the direction of the packet.
+   * @param packet The packet to observe.
+   * @throws IOException If an observer fails.
+   */
+  private void observe(List<TCPObserver> observers, DirectionMetrics direction, DatagramPacket packet) throws IOException {
+    direction.recordChunk(packet.getLength());
+    if (observers.isEmpty() || !params.isObserversEnabled()) return;
+    long start = System.nanoTime();
+    for (TCPObserver observer : observers) {
+      observer.observe(packet.getData(), 0, packet.getLength());
+      observer.flush();
     }
+    direction.recordObserve(System.nanoTime() - start);
   }
 
   public void close() {
@@ -0,0 +1,553 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSCoalescer;
+import net.kanstren.tcptunnel.dns.DNSQuestion;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.kanstren.tcptunnel.dns.DNSMessage.FLAG_TC;
+import static net.kanstren.tcptunnel.dns.DNSMessage.HEADER_SIZE;
+import static net.kanstren.tcptunnel.dns.DNSMessage.flags;
+import static net.kanstren.tcptunnel.dns.DNSMessage.readId;
+import static net.kanstren.tcptunnel.dns.DNSMessage.sameQuestions;
+import static net.kanstren.tcptunnel.dns.DNSMessage.writeId;
+
+/**
+ * Forwards DNS queries over a small set of shared upstream sockets, instead of a socket and a thread per query.
+ * Each query gets a new transaction ID, unique among the pending queries of its upstream socket, so the responses can be routed back to the right client.
+ * The client's own ID is put back in the response before sending it to the client.
+ * As the upstream sockets keep their ports, new IDs are picked with a secure random generator, and a response is only accepted
+ * if it also has the question of the query, to make spoofed responses harder to get accepted.
+ * <p>
+ * Each upstream socket has a thread receiving its responses, and a single timer thread expires the queries with no response.
+ * As all queries have the same timeout, they expire in the order they were sent, so the timer only needs to check the oldest ones.
+ * <p>
+ * Queries to refresh cached responses before they expire are forwarded the same way, with their responses only cached.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSMultiplexer {
+  /** Queries with no response for this long are dropped. Same as the thread per query forwarding. */
+  public static final long TIMEOUT_MILLIS = 2000;
+  /** Number of possible transaction IDs. */
+  private static final int IDS = 65536;
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** Socket the clients send their queries to, and get their responses from. */
+  private final DatagramSocket sourceSocket;
+  /** The shared upstream sockets. */
+  private final Upstream[] upstreams;
+  /** Picks the transaction IDs. */
+  private final SecureRandom random = new SecureRandom();
+  /** Index of the upstream socket for the next query. Only used from the tunnel thread. */
+  private int next = 0;
+  /** The observers for the queries. */
+  private final List<TCPObserver> upObservers;
+  /** The observers for the responses. */
+  private final List<TCPObserver> downObservers;
+  /** Metrics for the tunnel, with each query counted as a connection. */
+  private final TunnelMetrics metrics;
+  /** Cache for the responses. Null if caching is disabled. */
+  private final DNSCache cache;
+  /** Coalesces identical queries in flight. Null if coalescing is disabled. */
+  private final DNSCoalescer coalescer;
+  /** Queries with no response for this long are dropped, in nanoseconds. */
+  private final long timeoutNanos;
+  /** As long as this is true, the timer keeps checking for expired queries. */
+  private volatile boolean running = true;
+  /** Thread expiring the queries with no response. */
+  private Thread timer = null;
+
+  /**
+   * A query waiting for its response.
+   */
+  private static class Pending {
+    /** Transaction ID used towards the backend. */
+    private final int id;
+    /** Transaction ID from the client. */
+    private final int clientId;
+    /** Address of the client. Null for a query refreshing the cache, with no client to respond to. */
+    private final InetAddress clientAddr;
+    /** Port of the client. */
+    private final int clientPort;
+    /** The backend the query was sent to. */
+    private final Backend backend;
+    /** Resolved address of the backend, which the response has to come from. */
+    private final InetAddress backendAddr;
+    /** Time the query was sent, from System.nanoTime(). */
+    private final long sentAt;
+    /** The question to complete in the coalescer once answered or expired. Null if not coalesced. */
+    private final DNSQuestion question;
+    /** The query as sent, to check the response is to it, and to retry over TCP if the response is truncated. */
+    private final byte[] query;
+    /** Largest UDP response the client accepts. */
+    private final int udpSize;
+    /** True once responded to or expired. Guarded by the upstream. */
+    private boolean done = false;
+
+    private Pending(int id, int clientId, InetAddress clientAddr, int clientPort, Backend backend, InetAddress backendAddr, long sentAt, DNSQuestion question, byte[] query, int udpSize) {
+      this.id = id;
+      this.clientId = clientId;
+      this.clientAddr = clientAddr;
+      this.clientPort = clientPort;
+      this.backend = backend;
+      this.backendAddr = backendAddr;
+      this.sentAt = sentAt;
+      this.question = question;
+      this.query = query;
+      this.udpSize = udpSize;
+    }
+  }
+
+  /**
+   * An upstream socket with its pending queries. Pending query state is guarded by the upstream object.
+   */
+  private static class Upstream {
+    /** The socket the queries are sent from and responses received on. */
+    private final DatagramSocket socket;
+    /** Pending queries by their transaction ID. */
+    private final Pending[] pending = new Pending[IDS];
+    /** Pending queries in the order sent, which is also the order they expire in. Includes ones already responded to. */
+    private final ArrayDeque<Pending> order = new ArrayDeque<>();
+    /** Number of pending queries. */
+    private int size = 0;
+
+    private Upstream(DatagramSocket socket) {
+      this.socket = socket;
+    }
+  }
+
+  /**
+   * Opens the upstream sockets. Call {@link #start()} to start receiving responses.
+   *
+   * @param params Configuration parameters. Number of upstream sockets is taken from here.
+   * @param sourceSocket Socket the clients send their queries to, and get their responses from.
+   * @throws SocketException If opening the sockets fails.
+   */
+  public DNSMultiplexer(Params params, DatagramSocket sourceSocket) throws SocketException {
+    this(params, sourceSocket, params.getDNSSockets(), TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS));
+  }
+
+  /**
+   * @param params Configuration parameters. Number of upstream sockets is taken from here.
+   * @param sourceSocket Socket the clients send their queries to, and get their responses from.
+   * @param timeoutNanos Queries with no response for this long are dropped, in nanoseconds.
+   * @throws SocketException If opening the sockets fails.
+   */
+  DNSMultiplexer(Params params, DatagramSocket sourceSocket, long timeoutNanos) throws SocketException {
+    this(params, sourceSocket, params.getDNSSockets(), timeoutNanos);
+  }
+
+  /**
+   * @param params Configuration parameters.
+   * @param sourceSocket Socket the clients send their queries to, and get their responses from.
+   * @param sockets Number of upstream sockets.
+   * @param timeoutNanos Queries with no response for this long are dropped, in nanoseconds.
+   * @throws SocketException If opening the sockets fails.
+   */
+  DNSMultiplexer(Params params, DatagramSocket sourceSocket, int sockets, long timeoutNanos) throws SocketException {
+    this.params = params;
+    this.sourceSocket = sourceSocket;
+    this.timeoutNanos = timeoutNanos;
+    this.metrics = params.getMetrics();
+    this.cache = params.getDNSCache();
+    this.coalescer = params.getDNSCoalescer();
+    this.upstreams = new Upstream[sockets];
+    try {
+      for (int i = 0 ; i < upstreams.length ; i++) {
+        upstreams[i] = new Upstream(new DatagramSocket());
+      }
+    } catch (SocketException e) {
+      close();
+      throw e;
+    }
+    this.upObservers = params.createUpObservers("DNS clients");
+    this.downObservers = params.createDownObservers(params.getRemoteHost());
+  }
+
+  /**
+   * Starts the threads receiving the responses, and the timer for the queries with no response.
+   */
+  public void start() {
+    for (int i = 0 ; i < upstreams.length ; i++) {
+      Upstream upstream = upstreams[i];
+      Thread thread = new Thread(() -> receive(upstream), "tcptunnel-dns-upstream-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    timer = new Thread(this::expire, "tcptunnel-dns-timeout");
+    timer.setDaemon(true);
+    timer.start();
+  }
+
+  /**
+   * Forwards a query from a client to the given backend, over the next upstream socket.
+   *
+   * @param packet The query, with the client address.
+   * @param backend The backend to send the query to.
+   * @throws IOException If the backend does not resolve, sending fails, or an observer fails.
+   */
+  public void forward(DatagramPacket packet, Backend backend) throws IOException {
+    forward(packet, backend, null);
+  }
+
+  /**
+   * Forwards a query from a client to the given backend, over the next upstream socket.
+   * Called from the tunnel thread, with the packet buffer free to reuse once this returns.
+   * If sending fails, the query is left pending and expires as if it was lost on the way.
+   *
+   * @param packet The query, with the client address.
+   * @param backend The backend to send the query to.
+   * @param question The question to complete in the coalescer once answered or expired, or null if not coalesced.
+   * @throws IOException If the backend does not resolve, sending fails, or an observer fails.
+   */
+  public void forward(DatagramPacket packet, Backend backend, DNSQuestion question) throws IOException {
+    int length = packet.getLength();
+    if (length < HEADER_SIZE) {
+      //not a DNS query, nothing to route the response with
+      metrics.recordError();
+      return;
+    }
+    byte[] query = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + length);
+    int udpSize = DNSQuestion.DEFAULT_UDP_SIZE;
+    if (params.isDNSTCP()) {
+      DNSQuestion parsed = question != null ? question : DNSQuestion.parse(query, length);
+      if (parsed != null) udpSize = parsed.getUdpSize();
+    }
+    if (!send(query, packet.getAddress(), packet.getPort(), backend, question, udpSize)) return;
+    //observers see the query as the client sent it
+    observe(upObservers, metrics.getUp(), packet.getData(), packet.getOffset(), length);
+  }
+
+  /**
+   * Forwards a query to refresh its cached response before it expires. The response is only cached, with no client to send it to.
+   * Called from the tunnel thread, with the packet buffer free to reuse once this returns.
+   * The query is not passed to the observers, as it is not from a client.
+   *
+   * @param packet The query from the client that asked it last.
+   * @param backend The backend to send the query to.
+   * @throws IOException If the backend does not resolve, or sending fails.
+   */
+  public void prefetch(DatagramPacket packet, Backend backend) throws IOException {
+    if (packet.getLength() < HEADER_SIZE) return;
+    byte[] query = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+    //the full response over tcp is only limited by what the cache takes
+    send(query, null, 0, backend, null, DNSCache.MAX_RESPONSE_SIZE);
+  }
+
+  /**
+   * Sends a query to the given backend over the next upstream socket, with a new transaction ID.
+   * If sending fails, the query is left pending and expires as if it was lost on the way.
+   *
+   * @param query Copy of the query to send, with the ID replaced.
+   * @param clientAddr Address of the client to respond to, or null if refreshing the cache.
+   * @param clientPort Port of the client to respond to.
+   * @param backend The backend to send the query to.
+   * @param question The question to complete in the coalescer once answered or expired, or null if not coalesced.
+   * @param udpSize Largest UDP response the client accepts, if the response is truncated and retried over TCP.
+   * @return True if the query was sent, false if dropped as all IDs are in use.
+   * @throws IOException If the backend does not resolve, or sending fails.
+   */
+  private boolean send(byte[] query, InetAddress clientAddr, int clientPort, Backend backend, DNSQuestion question, int udpSize) throws IOException {
+    InetAddress backendAddr = backend.resolve();
+    int clientId = readId(query);
+    Upstream upstream = upstreams[next];
+    next = (next + 1) % upstreams.length;
+    //counted before the response can arrive and release the count
+    backend.connectionOpened();
+    metrics.connectionOpened();
+    Pending pending;
+    synchronized (upstream) {
+      int id = allocateId(upstream);
+      if (id < 0) pending = null;
+      else {
+        pending = new Pending(id, clientId, clientAddr, clientPort, backend, backendAddr, System.nanoTime(), question, query, udpSize);
+        upstream.pending[id] = pending;
+        upstream.order.add(pending);
+        upstream.size++;
+      }
+    }
+    if (pending == null) {
+      //all IDs of this socket in use, the query is lost as if the network dropped it
+      backend.connectionClosed();
+      metrics.connectionClosed();
+      metrics.recordError();
+      if (question != null) coalescer.complete(question);
+      if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Too many pending DNS queries, dropping query from " + toStr(clientAddr, clientPort));
+      return false;
+    }
+    writeId(query, pending.id);
+    upstream.socket.send(new DatagramPacket(query, query.length, backendAddr, backend.getPort()));
+    return true;
+  }
+
+  /**
+   * Picks a random free transaction ID for the given upstream socket.
+   *
+   * @param upstream The upstream socket, with its lock held.
+   * @return The ID, or -1 if all IDs are in use.
+   */
+  private int allocateId(Upstream upstream) {
+    if (upstream.size >= IDS) return -1;
+    int id = random.nextInt(IDS);
+    while (upstream.pending[id] != null) {
+      id = (id + 1) & (IDS - 1);
+    }
+    return id;
+  }
+
+  /**
+   * Receives the responses on an upstream socket, and sends them to the clients that made the queries. Runs until the socket is closed.
+   *
+   * @param upstream The upstream socket.
+   */
+  private void receive(Upstream upstream) {
+    byte[] buffer = new byte[65536];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (!upstream.socket.isClosed()) {
+      try {
+        packet.setLength(buffer.length);
+        upstream.socket.receive(packet);
+        int length = packet.getLength();
+        if (length < HEADER_SIZE) continue;
+        Pending pending;
+        synchronized (upstream) {
+          pending = upstream.pending[readId(buffer)];
+          //late responses to expired queries, and anything not from the backend queried, are dropped
+          if (pending == null || pending.done || packet.getPort() != pending.backend.getPort() || !packet.getAddress().equals(pending.backendAddr)) continue;
+          //as is a response to another question, leaving the query waiting for its own
+          if (!sameQuestions(pending.query, pending.query.length, buffer, length)) {
+            metrics.recordError();
+            continue;
+          }
+          release(upstream, pending);
+        }
+        long latency = System.nanoTime() - pending.sentAt;
+        pending.backend.recordLatency(latency);
+        metrics.recordBackendLatency(latency);
+        if ((flags(buffer) & FLAG_TC) != 0 && pending.backend.getDNSConnection() != null) {
+          retryOverTCP(pending, Arrays.copyOf(buffer, length));
+          continue;
+        }
+        respond(pending, buffer, length);
+      } catch (IOException e) {
+        if (upstream.socket.isClosed() || sourceSocket.isClosed()) return;
+        metrics.recordError();
+        if (params.isPrint()) {
+          System.err.println(sdf.format(new Date()) + ": Failed to forward DNS response");
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the response to the client that made the query, and any clients waiting for the same question, and caches it.
+   * The response to a query refreshing the cache is only cached.
+   *
+   * @param pending The query.
+   * @param response The response from the backend, starting at index 0.
+   * @param length Length of the response.
+   * @throws IOException If sending fails, or an observer fails.
+   */
+  private void respond(Pending pending, byte[] response, int length) throws IOException {
+    writeId(response, pending.clientId);
+    try {
+      if (pending.clientAddr == null) {
+        cache(pending, response, length);
+        return;
+      }
+      IOException error = null;
+      try {
+        sourceSocket.send(new DatagramPacket(response, length, pending.clientAddr, pending.clientPort));
+      } catch (IOException e) {
+        error = e;
+      }
+      //the clients waiting for the same question are answered even if sending to this one failed
+      if (pending.question != null) answerWaiting(pending.question, response, length);
+      cache(pending, response, length);
+      if (error != null) throw error;
+      observe(downObservers, metrics.getDown(), response, 0, length);
+    } finally {
+      pending.backend.connectionClosed();
+      metrics.connectionClosed();
+    }
+  }
+
+  /**
+   * Caches the response under the question of the query it is for, if caching is enabled.
+   *
+   * @param pending The query.
+   * @param response The response from the backend, starting at index 0.
+   * @param length Length of the response.
+   */
+  private void cache(Pending pending, byte[] response, int length) {
+    if (cache == null) return;
+    DNSQuestion asked = pending.question != null ? pending.question : DNSQuestion.parse(pending.query, pending.query.length);
+    cache.put(asked, response, length, System.nanoTime());
+  }
+
+  /**
+   * Gets the full response over TCP for a truncated one, without blocking the upstream socket.
+   * The full response is sent to the client if it fits the client's UDP size.
+   * Otherwise, or if the retry fails, the truncated response is sent, so the client can retry over TCP itself.
+   *
+   * @param pending The query.
+   * @param truncated The truncated response.
+   */
+  private void retryOverTCP(Pending pending, byte[] truncated) {
+    pending.backend.getDNSConnection().send(pending.query, pending.query.length).whenComplete((full, error) -> {
+      byte[] response = truncated;
+      if (error != null) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to retry truncated DNS response over TCP from " + pending.backend + ": " + error);
+      } else if (full.length <= pending.udpSize) {
+        response = full;
+      }
+      try {
+        respond(pending, response, response.length);
+      } catch (IOException e) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to forward DNS response: " + e);
+      }
+    });
+  }
+
+  /**
+   * Sends the response to the clients that asked the same question while it was in flight.
+   * A failure with one client does not keep the response from the others.
+   *
+   * @param question The question answered.
+   * @param response The response from the backend.
+   * @param length Length of the response.
+   * @throws IOException The first failure sending or observing, after trying all the clients.
+   */
+  private void answerWaiting(DNSQuestion question, byte[] response, int length) throws IOException {
+    IOException error = null;
+    for (DNSCoalescer.Client client : coalescer.complete(question)) {
+      try {
+        byte[] copy = client.respond(response, length);
+        sourceSocket.send(new DatagramPacket(copy, copy.length, client.getAddress(), client.getPort()));
+        observe(downObservers, metrics.getDown(), copy, 0, copy.length);
+      } catch (IOException e) {
+        if (error == null) error = e;
+      }
+    }
+    if (error != null) throw error;
+  }
+
+  /**
+   * Marks the query done and frees its ID.
+   *
+   * @param upstream The upstream socket of the query, with its lock held.
+   * @param pending The query.
+   */
+  private void release(Upstream upstream, Pending pending) {
+    pending.done = true;
+    upstream.pending[pending.id] = null;
+    upstream.size--;
+  }
+
+  /**
+   * Drops the queries that have waited for their response too long. Runs in its own thread until closed.
+   */
+  private void expire() {
+    long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), timeoutNanos / 20);
+    List<Pending> expired = new ArrayList<>();
+    while (running) {
+      LockSupport.parkNanos(this, interval);
+      long now = System.nanoTime();
+      for (Upstream upstream : upstreams) {
+        synchronized (upstream) {
+          Pending oldest;
+          while ((oldest = upstream.order.peek()) != null && now - oldest.sentAt >= timeoutNanos) {
+            upstream.order.poll();
+            if (oldest.done) continue;
+            release(upstream, oldest);
+            expired.add(oldest);
+          }
+        }
+      }
+      for (Pending pending : expired) {
+        //the clients waiting for the response will retry, as this one will
+        if (pending.question != null) coalescer.complete(pending.question);
+        pending.backend.connectionClosed();
+        metrics.connectionClosed();
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": No response from " + pending.backend + " for DNS query from " + toStr(pending.clientAddr, pending.clientPort));
+      }
+      expired.clear();
+    }
+  }
+
+  /**
+   * Records the packet in the metrics and passes it to the observers.
+   *
+   * @param observers The observers for the direction of the packet.
+   * @param direction Metrics for the direction of the packet.
+   * @param data Buffer holding the packet.
+   * @param start Start of the packet in the buffer.
+   * @param length Length of the packet.
+   * @throws IOException If an observer fails.
+   */
+  private void observe(List<TCPObserver> observers, DirectionMetrics direction, byte[] data, int start, int length) throws IOException {
+    direction.recordChunk(length);
+    if (observers.isEmpty() || !params.isObserversEnabled()) return;
+    long begin = System.nanoTime();
+    for (TCPObserver observer : observers) {
+      observer.observe(data, start, length);
+      observer.flush();
+    }
+    direction.recordObserve(System.nanoTime() - begin);
+  }
+
+  /**
+   * @return Number of queries waiting for their response.
+   */
+  public int getPendingCount() {
+    int count = 0;
+    for (Upstream upstream : upstreams) {
+      if (upstream == null) continue;
+      synchronized (upstream) {
+        count += upstream.size;
+      }
+    }
+    return count;
+  }
+
+  private String toStr(InetAddress address, int port) {
+    if (address == null) return "prefetch";
+    return address.getHostAddress() + ":" + port;
+  }
+
+  /**
+   * Closes the upstream sockets and stops the timer. Pending queries are left unanswered.
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(timer);
+    for (Upstream upstream : upstreams) {
+      if (upstream != null) upstream.socket.close();
+    }
+  }
+}
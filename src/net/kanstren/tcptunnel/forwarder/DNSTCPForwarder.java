@@ -0,0 +1,276 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSMessage;
+import net.kanstren.tcptunnel.dns.DNSQuestion;
+import net.kanstren.tcptunnel.dns.DNSTCPConnection;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards DNS over TCP from a client connection, over the persistent TCP connection of the backend.
+ * Queries are forwarded as they are read, without waiting for the earlier ones to be answered, so a client pipelining its queries gets them answered in parallel.
+ * Responses are written back in the order they arrive, with the queries answered from the cache written back right away.
+ * The responses are queued for a writer thread of the client, so a client not reading its responses never blocks the threads reading them from the backends.
+ * A client with too many responses queued is disconnected.
+ * Each query is counted as a connection, as with DNS over UDP.
+ * Popular responses served from the cache are refreshed over the same connections before they expire, if prefetching is enabled.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSTCPForwarder implements Runnable {
+  /** Largest number of responses queued for a client, before it is taken as not reading them and disconnected. */
+  public static final int MAX_QUEUED_RESPONSES = 1024;
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** Connection from the client. */
+  private final Socket socket;
+  /** Address and port of the client, for logging. */
+  private final String clientAddr;
+  /** Output stream to the client. Only written by the writer thread. */
+  private final OutputStream out;
+  /** Responses waiting for the writer thread to write them to the client. */
+  private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>(MAX_QUEUED_RESPONSES);
+  /** Thread writing the responses to the client. */
+  private volatile Thread writer = null;
+  /** Metrics for the tunnel, with each query counted as a connection. */
+  private final TunnelMetrics metrics;
+  /** Cache to answer repeated queries from. Null if caching is disabled. */
+  private final DNSCache cache;
+  /** The observers for the queries. */
+  private final List<TCPObserver> upObservers;
+  /** The observers for the responses. */
+  private final List<TCPObserver> downObservers;
+  /** Number of queries not yet answered to the client, or failed. */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  /** True once the client has sent all its queries, to close the connection after the last response. */
+  private volatile boolean readDone = false;
+
+  /**
+   * @param params Configuration parameters.
+   * @param socket Connection from the client.
+   * @throws IOException If getting the output stream of the connection fails.
+   */
+  public DNSTCPForwarder(Params params, Socket socket) throws IOException {
+    this.params = params;
+    this.socket = socket;
+    this.clientAddr = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    this.out = socket.getOutputStream();
+    this.metrics = params.getMetrics();
+    this.cache = params.getDNSCache();
+    this.upObservers = params.createUpObservers(clientAddr);
+    this.downObservers = params.createDownObservers(params.getRemoteHost());
+  }
+
+  /**
+   * Reads the queries from the client until it closes the connection.
+   */
+  @Override
+  public void run() {
+    writer = new Thread(this::write, "tcptunnel-dns-tcp-writer-" + clientAddr);
+    writer.setDaemon(true);
+    writer.start();
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      while (true) {
+        int length;
+        try {
+          length = in.readUnsignedShort();
+        } catch (EOFException e) {
+          //client done sending, but may still wait for the responses
+          readDone = true;
+          if (inFlight.get() == 0) close();
+          return;
+        }
+        byte[] query = new byte[length];
+        in.readFully(query);
+        observe(upObservers, metrics.getUp(), query);
+        forward(query);
+      }
+    } catch (IOException e) {
+      if (!socket.isClosed()) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": DNS over TCP from " + clientAddr + " failed: " + e);
+      }
+    }
+    close();
+  }
+
+  /**
+   * Answers a query from the cache, or forwards it to a backend.
+   *
+   * @param query The query.
+   */
+  private void forward(byte[] query) {
+    int length = query.length;
+    if (length < DNSMessage.HEADER_SIZE) {
+      metrics.recordError();
+      return;
+    }
+    //the question also keys the response in the cache, null if not cacheable
+    DNSQuestion question = cache != null && (DNSMessage.flags(query) & DNSMessage.FLAG_QR) == 0 ? DNSQuestion.parse(query, length) : null;
+    if (question != null) {
+      byte[] cached = cache.get(question, query, DNSTCPConnection.MAX_MESSAGE_SIZE, System.nanoTime());
+      if (cached != null) {
+        if (params.isPrint()) System.out.println(sdf.format(new Date()) + ": DNS Answering " + length + " bytes over TCP " + clientAddr + " from cache");
+        inFlight.incrementAndGet();
+        respond(cached);
+        if (cache.prefetch(question, System.nanoTime())) prefetch(query, question);
+        return;
+      }
+    }
+    Backend backend = params.getLoadBalancer().select(socket.getInetAddress().getHostAddress());
+    if (backend == null) {
+      if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": No healthy backend available, dropping query over TCP from " + clientAddr);
+      return;
+    }
+    if (params.isPrint()) System.out.println(sdf.format(new Date()) + ": DNS Forwarding " + length + " bytes over TCP " + clientAddr + " --> " + backend);
+    backend.connectionOpened();
+    metrics.connectionOpened();
+    inFlight.incrementAndGet();
+    long start = System.nanoTime();
+    //completed in the reader thread of the backend connection, so only queues the response
+    backend.getDNSConnection().send(query, length).whenComplete((response, error) -> {
+      backend.connectionClosed();
+      metrics.connectionClosed();
+      if (error != null) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to forward DNS query over TCP from " + clientAddr + ": " + error);
+        answered();
+        return;
+      }
+      long latency = System.nanoTime() - start;
+      backend.recordLatency(latency);
+      metrics.recordBackendLatency(latency);
+      respond(response);
+      if (question != null) cache.put(question, response, response.length, System.nanoTime());
+    });
+  }
+
+  /**
+   * Forwards a query to refresh its cached response before it expires, with the response only cached.
+   *
+   * @param query The query from the client.
+   * @param question The question of the query.
+   */
+  private void prefetch(byte[] query, DNSQuestion question) {
+    Backend backend = params.getLoadBalancer().select(socket.getInetAddress().getHostAddress());
+    if (backend == null) return;
+    if (params.isPrint()) System.out.println(sdf.format(new Date()) + ": DNS Prefetching " + question + " over TCP --> " + backend);
+    backend.connectionOpened();
+    metrics.connectionOpened();
+    long start = System.nanoTime();
+    backend.getDNSConnection().send(query, query.length).whenComplete((response, error) -> {
+      if (error != null) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to prefetch DNS response over TCP from " + backend + ": " + error);
+      } else {
+        long latency = System.nanoTime() - start;
+        backend.recordLatency(latency);
+        metrics.recordBackendLatency(latency);
+        cache.put(question, response, response.length, System.nanoTime());
+      }
+      backend.connectionClosed();
+      metrics.connectionClosed();
+    });
+  }
+
+  /**
+   * Queues a response for the writer thread, with the query counted in flight until it is written.
+   * If the client already has too many responses queued, it is disconnected.
+   *
+   * @param response The response.
+   */
+  private void respond(byte[] response) {
+    if (responses.offer(response)) return;
+    metrics.recordError();
+    if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": DNS over TCP client " + clientAddr + " not reading its responses, closing");
+    close();
+    answered();
+  }
+
+  /**
+   * Counts a query answered or failed, and closes the connection if it was the last one after the client has sent all its queries.
+   */
+  private void answered() {
+    if (inFlight.decrementAndGet() == 0 && readDone) close();
+  }
+
+  /**
+   * Writes the queued responses to the client, with their length prefixes, and passes them to the observers.
+   * Runs in its own thread until the connection is closed.
+   */
+  private void write() {
+    try {
+      while (!socket.isClosed()) {
+        byte[] response = responses.take();
+        byte[] frame = new byte[response.length + 2];
+        frame[0] = (byte) (response.length >>> 8);
+        frame[1] = (byte) response.length;
+        System.arraycopy(response, 0, frame, 2, response.length);
+        out.write(frame);
+        out.flush();
+        observe(downObservers, metrics.getDown(), response);
+        answered();
+      }
+    } catch (InterruptedException e) {
+      //closed
+    } catch (IOException e) {
+      if (!socket.isClosed()) {
+        metrics.recordError();
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to send DNS response over TCP to " + clientAddr + ": " + e);
+      }
+      close();
+    }
+  }
+
+  /**
+   * Records the message in the metrics and passes it to the observers.
+   *
+   * @param observers The observers for the direction of the message.
+   * @param direction Metrics for the direction of the message.
+   * @param message The message, without the length prefix.
+   * @throws IOException If an observer fails.
+   */
+  private void observe(List<TCPObserver> observers, DirectionMetrics direction, byte[] message) throws IOException {
+    direction.recordChunk(message.length);
+    if (observers.isEmpty() || !params.isObserversEnabled()) return;
+    long start = System.nanoTime();
+    //queries are only observed from the reader thread, and responses from the writer thread, so each list has a single thread
+    for (TCPObserver observer : observers) {
+      observer.observe(message, 0, message.length);
+      observer.flush();
+    }
+    direction.recordObserve(System.nanoTime() - start);
+  }
+
+  /**
+   * Closes the connection from the client, and stops the writer. Responses still coming for it are dropped.
+   */
+  public void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //closing anyway
+    }
+    Thread writer = this.writer;
+    if (writer != null) writer.interrupt();
+  }
+}
@@ -2,12 +2,23 @@ package net.kanstren.tcptunnel.forwarder;
 
 import net.kanstren.tcptunnel.Params;
 import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSCoalescer;
+import net.kanstren.tcptunnel.dns.DNSMessage;
+import net.kanstren.tcptunnel.dns.DNSQuestion;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles some basic DNS query tunneling..
@@ -21,6 +32,18 @@ public class DNSTunnel extends Thread {
   private boolean active = false;
   /** Socket to receive packets from source. */
   private DatagramSocket sourceSocket;
+  /** Forwards the queries over shared upstream sockets, if enabled. Null for a socket and thread per query. */
+  private DNSMultiplexer multiplexer = null;
+  /** Cache to answer repeated queries from. Null if caching is disabled. */
+  private DNSCache cache = null;
+  /** Coalesces identical queries in flight. Null if coalescing is disabled. */
+  private DNSCoalescer coalescer = null;
+  /** Forwards the queries refreshing popular cached responses before they expire. Null if prefetching is disabled. */
+  private DNSMultiplexer prefetcher = null;
+  /** The observers for the queries answered from the cache or coalesced. */
+  private List<TCPObserver> upObservers = null;
+  /** The observers for the responses from the cache. */
+  private List<TCPObserver> downObservers = null;
 
   public DNSTunnel(Params params, DatagramSocket sourceSocket) {
     this.params = params;
@@ -29,9 +52,45 @@ public class DNSTunnel extends Thread {
 
   public void run() {
     String dateStr = sdf.format(new Date());
+    if (params.getDNSSockets() > 0) {
+      try {
+        multiplexer = new DNSMultiplexer(params, sourceSocket);
+        multiplexer.start();
+      } catch (SocketException e) {
+        if (params.isPrint()) {
+          System.err.println(dateStr + ": Failed to open DNS upstream sockets");
+          e.printStackTrace();
+        }
+        connectionBroken();
+        return;
+      }
+    }
+    cache = params.getDNSCache();
+    coalescer = params.getDNSCoalescer();
+    if (cache != null && params.getDNSPrefetch() > 0 && multiplexer != null) prefetcher = multiplexer;
+    if (cache != null && params.getDNSPrefetch() > 0 && multiplexer == null) {
+      try {
+        //with a socket per query, the refreshes get a shared upstream socket of their own
+        prefetcher = new DNSMultiplexer(params, sourceSocket, 1, TimeUnit.MILLISECONDS.toNanos(DNSMultiplexer.TIMEOUT_MILLIS));
+        prefetcher.start();
+      } catch (SocketException e) {
+        if (params.isPrint()) {
+          System.err.println(dateStr + ": Failed to open DNS prefetch socket");
+          e.printStackTrace();
+        }
+        connectionBroken();
+        return;
+      }
+    }
+    if (cache != null || coalescer != null) {
+      upObservers = params.createUpObservers("DNS clients");
+      downObservers = params.createDownObservers("DNS cache");
+    }
     byte[] buffer = new byte[65536];
     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-    while (true) {
+    //any error closes the socket, as does stopping the tunnel
+    while (!sourceSocket.isClosed()) {
+      Backend backend = null;
       try {
         packet.setData(buffer);
         packet.setLength(buffer.length);
@@ -39,20 +98,37 @@ public class DNSTunnel extends Thread {
         active = true;
         InetAddress sourceAddress = packet.getAddress();
         int srcPort = packet.getPort();
-        InetAddress address = InetAddress.getByName(params.getRemoteHost());
+        DNSQuestion question = null;
+        if (cache != null || coalescer != null) question = parseQuery(packet);
+        if (question != null && cache != null && answerFromCache(packet, question)) continue;
+        if (question != null && coalescer != null && joinInFlight(packet, question)) continue;
+        //the forwarder only needs the question to complete it in the coalescer
+        if (coalescer == null) question = null;
+        backend = params.getLoadBalancer().select(sourceAddress.getHostAddress());
+        if (backend == null) {
+          if (params.isPrint()) System.err.println(dateStr + ": No healthy backend available, dropping query from " + toStr(packet));
+          if (question != null) coalescer.complete(question);
+          continue;
+        }
+        if (multiplexer != null) {
+          forward(packet, backend, question);
+          continue;
+        }
+        InetAddress address = backend.resolve();
         String strAddr = toStr(packet);
         if (params.isPrint()) {
-          System.out.println(dateStr + ": DNS Forwarding " +packet.getLength()+ " bytes " + strAddr + " --> " + address.getHostAddress() + ":" + params.getRemotePort());
+          System.out.println(dateStr + ": DNS Forwarding " +packet.getLength()+ " bytes " + strAddr + " --> " + address.getHostAddress() + ":" + backend.getPort());
         }
         //send client request to server
-        packet.setPort(params.getRemotePort());
+        packet.setPort(backend.getPort());
         packet.setAddress(address);
-        Thread tunnel = new DNSForwarder(packet, sourceSocket, sourceAddress, srcPort, params);
+        Thread tunnel = new DNSForwarder(packet, sourceSocket, sourceAddress, srcPort, backend, question, params);
         tunnel.start();
 
       } catch (Throwable e) {
+        params.getMetrics().recordError();
         if (params.isPrint()) {
-          String remoteAddr = params.getRemoteHost() + ":" + params.getRemotePort();
+          String remoteAddr = String.valueOf(backend);
           String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
           remoteAddr = remoteAddr + " (" + humanRemoteAddr + ")";
           System.err.println(dateStr + ": Failed to connect to remote host (" + remoteAddr + ")");
@@ -63,6 +139,124 @@ public class DNSTunnel extends Thread {
     }
   }
 
+  /**
+   * Forwards a query through the multiplexer. A query failing to forward is dropped, without stopping the tunnel.
+   *
+   * @param packet The query.
+   * @param backend The backend to forward it to.
+   * @param question The question to complete in the coalescer once answered, or null if not coalesced.
+   */
+  private void forward(DatagramPacket packet, Backend backend, DNSQuestion question) {
+    String dateStr = sdf.format(new Date());
+    if (params.isPrint()) {
+      System.out.println(dateStr + ": DNS Forwarding " + packet.getLength() + " bytes " + toStr(packet) + " --> " + backend);
+    }
+    try {
+      multiplexer.forward(packet, backend, question);
+    } catch (IOException e) {
+      if (question != null) coalescer.complete(question);
+      params.getMetrics().recordError();
+      if (params.isPrint()) {
+        String remoteAddr = String.valueOf(backend);
+        System.err.println(dateStr + ": Failed to forward DNS query to " + remoteAddr + " (" + Utils.mapAddrToHumanReadable(remoteAddr) + "): " + e);
+      }
+    }
+  }
+
+  /**
+   * @param packet A packet from a client.
+   * @return The question of the query in the packet, or null if it is not a query that can be cached or coalesced.
+   */
+  private DNSQuestion parseQuery(DatagramPacket packet) {
+    if (packet.getLength() < DNSMessage.HEADER_SIZE || (DNSMessage.flags(packet.getData()) & DNSMessage.FLAG_QR) != 0) return null;
+    return DNSQuestion.parse(packet.getData(), packet.getLength());
+  }
+
+  /**
+   * Answers a query from the cache, if a response for it is cached. A response failing to send is dropped, without stopping the tunnel.
+   *
+   * @param packet The query.
+   * @param question The question of the query.
+   * @return True if the query was answered from the cache.
+   */
+  private boolean answerFromCache(DatagramPacket packet, DNSQuestion question) {
+    byte[] response = cache.get(question, packet.getData(), System.nanoTime());
+    if (response == null) return false;
+    if (params.isPrint()) {
+      System.out.println(sdf.format(new Date()) + ": DNS Answering " + packet.getLength() + " bytes " + toStr(packet) + " from cache");
+    }
+    try {
+      sourceSocket.send(new DatagramPacket(response, response.length, packet.getAddress(), packet.getPort()));
+      observe(upObservers, params.getMetrics().getUp(), packet.getData(), packet.getLength());
+      observe(downObservers, params.getMetrics().getDown(), response, response.length);
+    } catch (IOException e) {
+      params.getMetrics().recordError();
+      if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to send cached DNS response to " + toStr(packet) + ": " + e);
+    }
+    if (prefetcher != null && cache.prefetch(question, System.nanoTime())) prefetch(packet, question);
+    return true;
+  }
+
+  /**
+   * Forwards a query to refresh its cached response before it expires. A query failing to forward is dropped, without stopping the tunnel.
+   *
+   * @param packet The query.
+   * @param question The question of the query.
+   */
+  private void prefetch(DatagramPacket packet, DNSQuestion question) {
+    String dateStr = sdf.format(new Date());
+    Backend backend = params.getLoadBalancer().select(packet.getAddress().getHostAddress());
+    if (backend == null) return;
+    if (params.isPrint()) System.out.println(dateStr + ": DNS Prefetching " + question + " --> " + backend);
+    try {
+      prefetcher.prefetch(packet, backend);
+    } catch (IOException e) {
+      params.getMetrics().recordError();
+      if (params.isPrint()) System.err.println(dateStr + ": Failed to prefetch DNS response from " + backend + ": " + e);
+    }
+  }
+
+  /**
+   * Adds a query to an identical one in flight, to answer it with the same response. An observer failing is reported, without stopping the tunnel.
+   *
+   * @param packet The query.
+   * @param question The question of the query.
+   * @return True if the query waits for the response to another in flight, false if it should be forwarded.
+   */
+  private boolean joinInFlight(DatagramPacket packet, DNSQuestion question) {
+    if (coalescer.join(question, packet.getData(), packet.getAddress(), packet.getPort(), System.nanoTime())) return false;
+    if (params.isPrint()) {
+      System.out.println(sdf.format(new Date()) + ": DNS Coalescing " + packet.getLength() + " bytes " + toStr(packet) + " with query in flight");
+    }
+    try {
+      observe(upObservers, params.getMetrics().getUp(), packet.getData(), packet.getLength());
+    } catch (IOException e) {
+      params.getMetrics().recordError();
+      if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": Failed to observe DNS query from " + toStr(packet) + ": " + e);
+    }
+    return true;
+  }
+
+  /**
+   * Records the packet in the metrics and passes it to the observers.
+   *
+   * @param observers The observers for the direction of the packet.
+   * @param direction Metrics for the direction of the packet.
+   * @param data Buffer holding the packet, starting at index 0.
+   * @param length Length of the packet.
+   * @throws IOException If an observer fails.
+   */
+  private void observe(List<TCPObserver> observers, DirectionMetrics direction, byte[] data, int length) throws IOException {
+    direction.recordChunk(length);
+    if (observers.isEmpty() || !params.isObserversEnabled()) return;
+    long start = System.nanoTime();
+    for (TCPObserver observer : observers) {
+      observer.observe(data, 0, length);
+      observer.flush();
+    }
+    direction.recordObserve(System.nanoTime() - start);
+  }
+
   private String toStr(DatagramPacket packet) {
     String host = packet.getAddress().getHostAddress();
     int port = packet.getPort();
@@ -90,6 +284,8 @@ public class DNSTunnel extends Thread {
       sourceSocket.close();
     } catch (Exception e) {
     }
+    if (multiplexer != null) multiplexer.close();
+    if (prefetcher != null && prefetcher != multiplexer) prefetcher.close();
 
     if (active) {
       String dateStr = sdf.format(new Date());
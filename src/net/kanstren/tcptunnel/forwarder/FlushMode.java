@@ -0,0 +1,45 @@
+package net.kanstren.tcptunnel.forwarder;
+
+/**
+ * Defines when a TCP forwarder flushes the data it has read to the target socket (and observers).
+ * Anything but ALWAYS coalesces several reads into a single write when data comes in faster than it is forwarded.
+ * All the coalescing modes flush at the latest when the input has no more data available, so data is never held waiting for more input.
+ * Before Java 13, the input stream of a socket with a channel always reports no data available, so for those sockets every mode flushes after each read.
+ *
+ * @author Teemu Kanstren.
+ */
+public enum FlushMode {
+  /** Write and flush after every read. */
+  ALWAYS("always"),
+  /** Flush when the input has no more data available. */
+  IDLE("idle"),
+  /** Flush when the configured number of bytes is pending, or when idle. */
+  SIZE("size"),
+  /** Flush when the oldest pending data is older than the configured deadline, or when idle. */
+  DEADLINE("deadline");
+
+  /** Identifier for the mode, as given on the command line. */
+  private final String id;
+
+  FlushMode(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return Identifier for the mode, as given on the command line.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param id The mode identifier, as given on the command line.
+   * @return The matching mode, or null if there is none.
+   */
+  public static FlushMode forId(String id) {
+    for (FlushMode mode : values()) {
+      if (mode.id.equals(id)) return mode;
+    }
+    return null;
+  }
+}
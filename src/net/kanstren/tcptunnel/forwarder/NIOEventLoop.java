@@ -0,0 +1,154 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread multiplexing any number of channels.
+ * Channels are registered with a {@link NIOHandler} attachment, which is invoked when the channel is ready.
+ * Registrations and other changes to the selector must be done from the loop thread, so use execute() for that.
+ */
+public class NIOEventLoop implements Runnable {
+  /** Configuration parameters. */
+  private final Params params;
+  /** The selector all channels of this loop are registered on. */
+  private final Selector selector;
+  /** Tasks submitted from other threads, to be run on the loop thread. */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  /** Name for the loop thread. */
+  private final String name;
+  /** As long as this is true, we keep on selecting. */
+  private volatile boolean shouldRun = true;
+  /** The thread running this loop. */
+  private Thread thread = null;
+
+  /**
+   * @param params Configuration parameters.
+   * @param name Name for the loop thread.
+   * @throws IOException If the selector cannot be opened.
+   */
+  public NIOEventLoop(Params params, String name) throws IOException {
+    this.params = params;
+    this.name = name;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Starts the loop thread.
+   */
+  public void start() {
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return The selector to register channels with. Only use from the loop thread (e.g., inside execute()).
+   */
+  public Selector getSelector() {
+    return selector;
+  }
+
+  /**
+   * @return True if called from the loop thread.
+   */
+  public boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs the given task on the loop thread.
+   *
+   * @param task The task to run.
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    while (shouldRun) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        if (params.isPrint()) {
+          System.err.println("Error in selector for " + name);
+          e.printStackTrace();
+        }
+        break;
+      }
+      runTasks();
+      Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+      while (i.hasNext()) {
+        SelectionKey key = i.next();
+        i.remove();
+        NIOHandler handler = (NIOHandler) key.attachment();
+        try {
+          handler.handle(key);
+        } catch (IOException | CancelledKeyException e) {
+          //read/write failed --> connection is broken
+          handler.close();
+        } catch (RuntimeException e) {
+          //a failing handler or observer only breaks its own connection, the others on the loop keep running
+          params.getMetrics().recordError();
+          if (params.isPrint()) {
+            System.err.println("Error handling connection in " + name);
+            e.printStackTrace();
+          }
+          handler.close();
+        }
+      }
+    }
+    runTasks();
+    closeAll();
+  }
+
+  /**
+   * Run all tasks submitted from other threads since last round.
+   * A failing task is reported, and does not stop the loop.
+   */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        params.getMetrics().recordError();
+        if (params.isPrint()) {
+          System.err.println("Error running task in " + name);
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes all handlers still registered and the selector itself.
+   */
+  private void closeAll() {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment != null) ((NIOHandler) attachment).close();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Stops the loop, closing all channels registered on it.
+   */
+  public void stop() {
+    shouldRun = false;
+    selector.wakeup();
+  }
+}
@@ -0,0 +1,23 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment for channels registered on a {@link NIOEventLoop}.
+ * The event loop calls this whenever a channel registered with this handler is ready for some operation.
+ */
+public interface NIOHandler {
+  /**
+   * Called from the event loop thread when the channel for the given key is ready.
+   *
+   * @param key The selection key that has become ready.
+   * @throws IOException If the handling fails. The event loop will close the handler in that case.
+   */
+  void handle(SelectionKey key) throws IOException;
+
+  /**
+   * Closes all channels related to this handler. Called also by the event loop on errors and shutdown.
+   */
+  void close();
+}
@@ -0,0 +1,85 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards TCP connections using a small pool of selector based event loops instead of a thread per connection direction.
+ * Each accepted connection is assigned to one of the loops in round-robin order, which then handles both directions of it.
+ */
+public class NIOTCPEngine {
+  /** Configuration parameters. */
+  private final Params params;
+  /** The event loops to spread the tunnels over. */
+  private final NIOEventLoop[] loops;
+  /** Index of the loop to give the next tunnel to. */
+  private final AtomicInteger next = new AtomicInteger();
+  /** Set of active tunnels. Large numbers of short lived tunnels come and go here, so no copy-on-write list. */
+  private final Set<NIOTCPTunnel> tunnels = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param params Configuration parameters. Number of loops is taken from here.
+   * @throws IOException If creating the selectors fails.
+   */
+  public NIOTCPEngine(Params params) throws IOException {
+    this.params = params;
+    this.loops = new NIOEventLoop[params.getNIOLoops()];
+    for (int i = 0 ; i < loops.length ; i++) {
+      loops[i] = new NIOEventLoop(params, "tcptunnel-nio-" + i);
+    }
+  }
+
+  /**
+   * Starts the event loop threads.
+   */
+  public void start() {
+    for (NIOEventLoop loop : loops) {
+      loop.start();
+    }
+  }
+
+  /**
+   * Creates a tunnel for a newly accepted connection. Connecting to the remote host continues in the event loop.
+   *
+   * @param localChannel The accepted connection.
+   */
+  public void handle(SocketChannel localChannel) {
+    NIOEventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    NIOTCPTunnel tunnel = new NIOTCPTunnel(params, this, loop, localChannel);
+    tunnels.add(tunnel);
+    tunnel.open();
+  }
+
+  /**
+   * Called when a tunnel is closed to remove it from active list.
+   *
+   * @param tunnel The closed tunnel.
+   */
+  public void closed(NIOTCPTunnel tunnel) {
+    tunnels.remove(tunnel);
+  }
+
+  /**
+   * @return The currently active tunnels.
+   */
+  public Set<NIOTCPTunnel> getTunnels() {
+    return tunnels;
+  }
+
+  /**
+   * Closes all tunnels and stops the event loops.
+   */
+  public void stop() {
+    for (NIOTCPTunnel tunnel : tunnels) {
+      tunnel.close();
+    }
+    for (NIOEventLoop loop : loops) {
+      loop.stop();
+    }
+  }
+}
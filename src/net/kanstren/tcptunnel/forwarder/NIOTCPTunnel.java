@@ -0,0 +1,380 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.backend.ConnectionPool;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+import net.kanstren.tcptunnel.jfr.TunnelEvents;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A TCP tunnel between two endpoints, forwarded by a {@link NIOEventLoop} instead of dedicated threads.
+ * Both directions are handled in the same loop, reading whatever is available and writing it to the other end.
+ * If the other end cannot take all the data, reading from the source is paused until the data has been written.
+ * Any error on either socket causes the whole tunnel (both sockets) to be closed.
+ */
+public class NIOTCPTunnel implements NIOHandler, TunnelConnection {
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** The engine this tunnel belongs to. Notified when the tunnel is closed. */
+  private final NIOTCPEngine parent;
+  /** The event loop handling this tunnel. */
+  private final NIOEventLoop loop;
+  /** Local endpoint for the tunnel. */
+  private final SocketChannel localChannel;
+  /** Remote endpoint for the tunnel. */
+  private SocketChannel serverChannel;
+  /** Selection key for the local endpoint. */
+  private SelectionKey localKey;
+  /** Selection key for the remote endpoint. */
+  private SelectionKey serverKey;
+  /** Pooled buffer for upstream data, released when the tunnel is closed. */
+  private PooledBuffer upPooled;
+  /** Pooled buffer for downstream data, released when the tunnel is closed. */
+  private PooledBuffer downPooled;
+  /** Data read from local endpoint, waiting to be written to remote endpoint. */
+  private ByteBuffer upBuffer;
+  /** Data read from remote endpoint, waiting to be written to local endpoint. */
+  private ByteBuffer downBuffer;
+  /** The observers to pass all upstream data through. */
+  private List<TCPObserver> upObservers;
+  /** The observers to pass all downstream data through. */
+  private List<TCPObserver> downObservers;
+  /** Metrics for the whole tunnel. */
+  private final TunnelMetrics metrics;
+  /** Metrics for upstream data. */
+  private final DirectionMetrics upMetrics;
+  /** Metrics for downstream data. */
+  private final DirectionMetrics downMetrics;
+  /** Identifier of this tunnel. */
+  private final long id = IDS.incrementAndGet();
+  /** Size of the buffers, taken when connected so runtime changes only affect new tunnels. */
+  private int bufferSize;
+  /** Number of bytes forwarded from client to backend. Only written by the loop thread. */
+  private volatile long upBytes = 0;
+  /** Number of bytes forwarded from backend to client. Only written by the loop thread. */
+  private volatile long downBytes = 0;
+  /** Address of local endpoint, for logging. */
+  private volatile String clientAddr;
+  /** Address of remote endpoint, for logging. */
+  private volatile String serverAddr;
+  /** True if this tunnel is actively forwarding. False if stopped or not yet started. */
+  private boolean active = false;
+  /** True once the tunnel has been closed. */
+  private boolean closed = false;
+  /** The backend chosen for this tunnel. */
+  private Backend backend;
+  /** When connecting to the backend was started (System.nanoTime()), for measuring connect latency. */
+  private long connectStart;
+
+  /**
+   * @param params Configuration parameters.
+   * @param parent The engine this tunnel belongs to.
+   * @param loop The event loop to handle this tunnel.
+   * @param localChannel Channel for the local port (endpoint 1 for tunnel).
+   */
+  public NIOTCPTunnel(Params params, NIOTCPEngine parent, NIOEventLoop loop, SocketChannel localChannel) {
+    this.params = params;
+    this.parent = parent;
+    this.loop = loop;
+    this.localChannel = localChannel;
+    this.metrics = params.getMetrics();
+    this.upMetrics = metrics.getUp();
+    this.downMetrics = metrics.getDown();
+  }
+
+  /**
+   * Chooses the backend and starts connecting to it, or takes a pre-connected connection if available. Once connected, forwarding starts in the event loop.
+   * Called from the accepting thread, as resolving the remote host name may block.
+   */
+  public void open() {
+    try {
+      InetSocketAddress clientAddr = (InetSocketAddress) localChannel.getRemoteAddress();
+      backend = params.getLoadBalancer().select(clientAddr.getAddress().getHostAddress());
+      if (backend == null) {
+        //fail fast instead of waiting for connect timeouts to a known dead backend
+        if (params.isPrint()) System.err.println(sdf.format(new Date()) + ": No healthy backend available for " + toStr(localChannel));
+        close();
+        return;
+      }
+      backend.connectionOpened();
+      localChannel.configureBlocking(false);
+      ConnectionPool pool = backend.getConnectionPool();
+      SocketChannel pooled = pool != null ? pool.take() : null;
+      if (pooled != null) {
+        serverChannel = pooled;
+        serverChannel.configureBlocking(false);
+        loop.execute(() -> register(true));
+        return;
+      }
+      serverChannel = SocketChannel.open();
+      serverChannel.configureBlocking(false);
+      InetSocketAddress remoteAddr = backend.getSocketAddress();
+      if (remoteAddr.isUnresolved()) throw new UnknownHostException(backend.getHost());
+      connectStart = System.nanoTime();
+      boolean connected = serverChannel.connect(remoteAddr);
+      if (connected) connectSucceeded();
+      loop.execute(() -> register(connected));
+    } catch (IOException e) {
+      //a failure once the server channel is there means the backend could not be connected
+      connectFailed(serverChannel != null);
+    }
+  }
+
+  /**
+   * Registers this tunnel in the event loop. Executed on the loop thread.
+   *
+   * @param connected True if the remote connection was already established.
+   */
+  private void register(boolean connected) {
+    try {
+      localKey = localChannel.register(loop.getSelector(), 0, this);
+      serverKey = serverChannel.register(loop.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+      if (connected) connected();
+    } catch (IOException e) {
+      connectFailed(false);
+    }
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    if (key.isConnectable()) {
+      try {
+        serverChannel.finishConnect();
+        connectSucceeded();
+      } catch (IOException e) {
+        connectFailed(true);
+        return;
+      }
+      connected();
+      return;
+    }
+    boolean local = key == localKey;
+    if (key.isWritable()) {
+      if (local) flush(downBuffer, localChannel, localKey, serverKey);
+      else flush(upBuffer, serverChannel, serverKey, localKey);
+    }
+    if (key.isValid() && key.isReadable()) {
+      if (local) upBytes += pump(localChannel, serverChannel, upBuffer, upObservers, upMetrics, localKey, serverKey);
+      else downBytes += pump(serverChannel, localChannel, downBuffer, downObservers, downMetrics, serverKey, localKey);
+    }
+  }
+
+  /**
+   * Called once the connection to the backend is established. Starts forwarding in both directions.
+   *
+   * @throws IOException If setting up the sockets fails.
+   */
+  private void connected() throws IOException {
+    // Turn on keep-alive for both the sockets
+    serverChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+    localChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+    clientAddr = toStr(localChannel);
+    serverAddr = toStr(serverChannel);
+    String hummanClientAddr = Utils.mapAddrToHumanReadable(clientAddr);
+    String hummanServerAddr = Utils.mapAddrToHumanReadable(serverAddr);
+    bufferSize = params.getBufferSize();
+    upObservers = params.createUpObservers(clientAddr + " (" + hummanClientAddr + ")");
+    downObservers = params.createDownObservers(serverAddr + " (" + hummanServerAddr + ")");
+    upPooled = acquireBuffer(upObservers);
+    downPooled = acquireBuffer(downObservers);
+    upBuffer = upPooled.buffer();
+    downBuffer = downPooled.buffer();
+
+    active = true;
+    metrics.connectionOpened();
+    localKey.interestOps(SelectionKey.OP_READ);
+    serverKey.interestOps(SelectionKey.OP_READ);
+    if (params.isPrint()) {
+      String dateStr = sdf.format(new Date());
+      System.out.println(dateStr + ": TCP Forwarding " + clientAddr + " (" + hummanClientAddr + ") <--> " + serverAddr + " (" + hummanServerAddr + ")");
+    }
+  }
+
+  /**
+   * Unobserved data never needs to be on the Java heap, so it gets a direct buffer to avoid copying to/from the heap.
+   *
+   * @param observers The observers for the direction the buffer is for.
+   * @return A heap buffer if there are observers to pass the data to, direct buffer otherwise.
+   */
+  private PooledBuffer acquireBuffer(List<TCPObserver> observers) {
+    return params.getBufferPool().acquire(bufferSize, observers.isEmpty());
+  }
+
+  /**
+   * Reads whatever is available from source, passes it to the observers, and writes as much as possible to target.
+   * If target cannot take it all, stop reading the source until the rest has been written.
+   *
+   * @param from The channel to read.
+   * @param to The channel to write.
+   * @param buffer The buffer for this direction.
+   * @param observers The observers for this direction.
+   * @param metrics Metrics for this direction.
+   * @param fromKey Selection key for source.
+   * @param toKey Selection key for target.
+   * @return Number of bytes read and forwarded (or pending to be written).
+   * @throws IOException If reading, writing, or observing fails.
+   */
+  private int pump(SocketChannel from, SocketChannel to, ByteBuffer buffer, List<TCPObserver> observers,
+                    DirectionMetrics metrics, SelectionKey fromKey, SelectionKey toKey) throws IOException {
+    int bytesRead = from.read(buffer);
+    if (bytesRead == -1) {
+      // End of stream is reached --> close
+      close();
+      return 0;
+    }
+    if (bytesRead == 0) return 0;
+    metrics.recordChunk(bytesRead);
+    ((Buffer) buffer).flip();
+    if (!observers.isEmpty() && params.isObserversEnabled()) {
+      long start = System.nanoTime();
+      for (TCPObserver observer : observers) {
+        TunnelEvents.observe(observer, buffer.array(), buffer.arrayOffset() + buffer.position(), bytesRead, id, from == localChannel);
+      }
+      for (TCPObserver observer : observers) {
+        observer.flush();
+      }
+      metrics.recordObserve(System.nanoTime() - start);
+    }
+    to.write(buffer);
+    if (buffer.hasRemaining()) {
+      fromKey.interestOps(fromKey.interestOps() & ~SelectionKey.OP_READ);
+      toKey.interestOps(toKey.interestOps() | SelectionKey.OP_WRITE);
+    } else {
+      ((Buffer) buffer).clear().limit(bufferSize);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Writes data left over from previous read. If all is written, re-enable reading from source.
+   *
+   * @param buffer The buffer with data to write.
+   * @param to The channel to write.
+   * @param toKey Selection key for target.
+   * @param fromKey Selection key for source.
+   * @throws IOException If writing fails.
+   */
+  private void flush(ByteBuffer buffer, SocketChannel to, SelectionKey toKey, SelectionKey fromKey) throws IOException {
+    to.write(buffer);
+    if (buffer.hasRemaining()) return;
+    ((Buffer) buffer).clear().limit(bufferSize);
+    toKey.interestOps(toKey.interestOps() & ~SelectionKey.OP_WRITE);
+    fromKey.interestOps(fromKey.interestOps() | SelectionKey.OP_READ);
+  }
+
+  /**
+   * @param channel The channel to describe.
+   * @return A string representation of the remote address of a channel (ip+port).
+   * @throws IOException If the channel is closed.
+   */
+  private String toStr(SocketChannel channel) throws IOException {
+    InetSocketAddress addr = (InetSocketAddress) channel.getRemoteAddress();
+    return addr.getAddress().getHostAddress() + ":" + addr.getPort();
+  }
+
+  /**
+   * Called when a new connection to the backend is established. Records connect latency and resets the backend failure count.
+   */
+  private void connectSucceeded() {
+    long latency = System.nanoTime() - connectStart;
+    backend.recordLatency(latency);
+    backend.connectSucceeded();
+    metrics.recordBackendLatency(latency);
+  }
+
+  /**
+   * Called when connecting to the backend fails.
+   *
+   * @param backendFailed True if the backend could not be connected, counting towards ejecting it.
+   */
+  private void connectFailed(boolean backendFailed) {
+    boolean ejected = false;
+    if (backendFailed) {
+      metrics.connectFailed();
+      ejected = backend.connectFailed(params.getEjectAfter(), params.getEjectTime());
+    }
+    if (params.isPrint()) {
+      String dateStr = sdf.format(new Date());
+      String remoteAddr = String.valueOf(backend);
+      String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
+      remoteAddr = remoteAddr + " (" + humanRemoteAddr + ")";
+      System.err.println(dateStr + ": Failed to connect to remote host (" + remoteAddr + ")");
+      if (ejected) System.err.println(dateStr + ": Ejecting " + remoteAddr + " for " + params.getEjectTime() + " ms after " + params.getEjectAfter() + " consecutive failures");
+    }
+    close();
+  }
+
+  @Override
+  public long getId() {
+    return id;
+  }
+
+  @Override
+  public String getClientAddress() {
+    return clientAddr;
+  }
+
+  @Override
+  public String getServerAddress() {
+    return serverAddr;
+  }
+
+  @Override
+  public long getUpBytes() {
+    return upBytes;
+  }
+
+  @Override
+  public long getDownBytes() {
+    return downBytes;
+  }
+
+  /**
+   * Closes the tunnel (both channels). Called on errors on either channel, end of stream, or engine shutdown.
+   * The buffers may only be released once the loop is done with them, so if called from another thread, the close is passed to the loop.
+   */
+  @Override
+  public void close() {
+    if (!loop.inLoop()) {
+      loop.execute(this::close);
+      return;
+    }
+    if (closed) return;
+    closed = true;
+    if (upPooled != null) upPooled.release();
+    if (downPooled != null) downPooled.release();
+    try {
+      if (serverChannel != null) serverChannel.close();
+    } catch (Exception e) {}
+    try {
+      localChannel.close();
+    } catch (Exception e) {}
+
+    if (active) {
+      String dateStr = sdf.format(new Date());
+      if (params.isPrint()) System.out.println(dateStr + ": TCP Forwarding " + clientAddr + " <--> " + serverAddr + " stopped.");
+      active = false;
+      metrics.connectionClosed();
+    }
+    if (backend != null) backend.connectionClosed();
+    parent.closed(this);
+  }
+}
@@ -0,0 +1,164 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+/**
+ * A single client session of a {@link NIOUDPTunnel}.
+ * Has its own channel connected to the backend, so the backend sees each client as a separate source,
+ * and its replies can be routed back to the right client.
+ * Replies are read on the event loop the session is registered with, and sent back to the client from the tunnel port.
+ */
+public class NIOUDPSession implements NIOHandler, UDPSessionTable.Session {
+  /** Configuration parameters. */
+  private final Params params;
+  /** The tunnel this session is part of. */
+  private final NIOUDPTunnel parent;
+  /** The event loop reading the replies for this session. */
+  private final NIOEventLoop loop;
+  /** Address of the client, where replies are sent to. */
+  private final InetSocketAddress clientAddr;
+  /** The backend the packets from the client are forwarded to in this session. */
+  private final Backend backend;
+  /** Channel connected to the backend. */
+  private final DatagramChannel channel;
+  /** Batch for reading the replies. Shared by all sessions of the same loop, as they are all read on the loop thread. */
+  private final UDPBatch batch;
+  /** The observers to pass the replies through. */
+  private final List<TCPObserver> observers;
+  /** Metrics for the tunnel, with this session counted as a connection. */
+  private final TunnelMetrics metrics;
+  /** Metrics for the replies. */
+  private final DirectionMetrics downMetrics;
+  /** Time of last packet in either direction, from System.nanoTime(). */
+  private volatile long lastActive = System.nanoTime();
+  /** True once closed, to release the backend and metrics counts only once. */
+  private boolean closed = false;
+
+  /**
+   * Opens the channel to the backend. Call {@link #register()} to start receiving replies.
+   *
+   * @param params Configuration parameters.
+   * @param parent The tunnel this session is part of.
+   * @param loop The event loop to read the replies on.
+   * @param batch Batch for reading the replies, shared by the sessions of the loop.
+   * @param clientAddr Address of the client.
+   * @param backend The backend to forward to.
+   * @throws IOException If the backend does not resolve or the channel cannot be opened.
+   */
+  public NIOUDPSession(Params params, NIOUDPTunnel parent, NIOEventLoop loop, UDPBatch batch, InetSocketAddress clientAddr, Backend backend) throws IOException {
+    this.params = params;
+    this.parent = parent;
+    this.loop = loop;
+    this.batch = batch;
+    this.clientAddr = clientAddr;
+    this.backend = backend;
+    this.channel = DatagramChannel.open();
+    try {
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress(backend.resolve(), backend.getPort()));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    //same as the thread based UDP tunnel, replies go to the upstream observers
+    this.observers = params.createUpObservers(backend.getHost());
+    this.metrics = params.getMetrics();
+    this.downMetrics = metrics.getDown();
+    backend.connectionOpened();
+    metrics.connectionOpened();
+  }
+
+  /**
+   * Registers the channel on the event loop, to start receiving replies.
+   */
+  public void register() {
+    loop.execute(() -> {
+      try {
+        channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        close();
+      }
+    });
+  }
+
+  /**
+   * Forwards a packet from the client to the backend. Called from the event loop of the tunnel port.
+   * A packet that does not fit the socket send buffer is dropped, as it would be in the network.
+   *
+   * @param packet The packet data.
+   * @return True if the packet was sent.
+   * @throws IOException If sending fails.
+   */
+  public boolean send(ByteBuffer packet) throws IOException {
+    lastActive = System.nanoTime();
+    return channel.write(packet) > 0;
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    while (true) {
+      int count = batch.read(channel);
+      if (count == 0) return;
+      lastActive = System.nanoTime();
+      for (int i = 0 ; i < count ; i++) {
+        if (!parent.reply(batch.packet(i), clientAddr)) metrics.recordError();
+        downMetrics.recordChunk(batch.length(i));
+        //replies are observed even if they did not fit the send buffer
+        batch.keep(i);
+      }
+      batch.observe(params, observers, downMetrics);
+    }
+  }
+
+  @Override
+  public long getLastActive() {
+    return lastActive;
+  }
+
+  /**
+   * @return Address of the client.
+   */
+  public InetSocketAddress getClientAddr() {
+    return clientAddr;
+  }
+
+  /**
+   * @return The backend the packets from the client are forwarded to in this session.
+   */
+  public Backend getBackend() {
+    return backend;
+  }
+
+  /**
+   * @return The event loop reading the replies for this session.
+   */
+  public NIOEventLoop getLoop() {
+    return loop;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    parent.closed(this);
+    backend.connectionClosed();
+    metrics.connectionClosed();
+  }
+}
@@ -0,0 +1,258 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards UDP packets using a small set of selector event loops, instead of a thread per client session.
+ * The tunnel port is read by the first loop, and each client session (a new source ip:port) gets its own channel to the backend,
+ * registered on one of the loops in round-robin order to read the replies.
+ * Replies are sent back to the client that started the session, from the tunnel port.
+ * Sessions with no traffic for the idle timeout are closed.
+ * Packets are read in batches of the configured size, forwarded one by one, and then passed to the observers as a batch.
+ */
+public class NIOUDPTunnel implements NIOHandler {
+  /** Maximum number of packets read from the tunnel port in one go, so the other channels of the loop get their turn. */
+  private static final int MAX_READS = 64;
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** Configuration parameters. */
+  private final Params params;
+  /** The tunnel port. */
+  private final DatagramChannel channel;
+  /** The event loops, first one also reading the tunnel port. */
+  private final NIOEventLoop[] loops;
+  /** Reply batches, one per loop. */
+  private final UDPBatch[] batches;
+  /** Batch for reading the tunnel port, only used by the first loop. */
+  private final UDPBatch batch;
+  /** Index of the loop to give the next session to. */
+  private final AtomicInteger next = new AtomicInteger();
+  /** Active sessions, by client address. */
+  private final UDPSessionTable<NIOUDPSession> sessions;
+  /** The observers for packets from the clients. */
+  private final List<TCPObserver> upObservers;
+  /** Metrics for packets from the clients. */
+  private final DirectionMetrics upMetrics;
+  /** Name prefix for the threads of this tunnel. */
+  private final String name;
+
+  /**
+   * @param params Configuration parameters. Number of loops is taken from here.
+   * @param channel The tunnel port, bound but not yet registered.
+   * @throws IOException If creating the selectors fails.
+   */
+  public NIOUDPTunnel(Params params, DatagramChannel channel) throws IOException {
+    this(params, channel, params.getNIOLoops(), "tcptunnel-nio-udp");
+  }
+
+  /**
+   * @param params Configuration parameters.
+   * @param channel The tunnel port, bound but not yet registered.
+   * @param loopCount Number of event loops to use.
+   * @param name Name prefix for the threads of this tunnel.
+   * @throws IOException If creating the selectors fails.
+   */
+  public NIOUDPTunnel(Params params, DatagramChannel channel, int loopCount, String name) throws IOException {
+    this(params, channel, loopCount, name, TimeUnit.MILLISECONDS.toNanos(UDPSessionTable.IDLE_TIMEOUT_MILLIS));
+  }
+
+  /**
+   * @param params Configuration parameters. Number of loops is taken from here.
+   * @param channel The tunnel port, bound but not yet registered.
+   * @param idleNanos Idle time after which sessions are closed, in nanoseconds.
+   * @throws IOException If creating the selectors fails.
+   */
+  NIOUDPTunnel(Params params, DatagramChannel channel, long idleNanos) throws IOException {
+    this(params, channel, params.getNIOLoops(), "tcptunnel-nio-udp", idleNanos);
+  }
+
+  /**
+   * @param params Configuration parameters.
+   * @param channel The tunnel port, bound but not yet registered.
+   * @param loopCount Number of event loops to use.
+   * @param name Name prefix for the threads of this tunnel.
+   * @param idleNanos Idle time after which sessions are closed, in nanoseconds.
+   * @throws IOException If creating the selectors fails.
+   */
+  private NIOUDPTunnel(Params params, DatagramChannel channel, int loopCount, String name, long idleNanos) throws IOException {
+    this.params = params;
+    this.channel = channel;
+    this.name = name;
+    this.sessions = new UDPSessionTable<>(idleNanos, session -> session.getLoop().execute(session::close));
+    this.loops = new NIOEventLoop[loopCount];
+    this.batches = new UDPBatch[loops.length];
+    for (int i = 0 ; i < loops.length ; i++) {
+      loops[i] = new NIOEventLoop(params, name + "-" + i);
+      batches[i] = new UDPBatch(params.getUDPBatch());
+    }
+    this.batch = new UDPBatch(params.getUDPBatch());
+    this.upObservers = params.createUpObservers("Unknown");
+    this.upMetrics = params.getMetrics().getUp();
+  }
+
+  /**
+   * Starts the event loops and the idle session checks.
+   *
+   * @throws IOException If the tunnel port cannot be set to non-blocking mode.
+   */
+  public void start() throws IOException {
+    channel.configureBlocking(false);
+    for (NIOEventLoop loop : loops) {
+      loop.start();
+    }
+    NIOEventLoop first = loops[0];
+    first.execute(() -> {
+      try {
+        channel.register(first.getSelector(), SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        close();
+      }
+    });
+    sessions.start(name + "-expiry");
+  }
+
+  @Override
+  public void handle(SelectionKey key) throws IOException {
+    int reads = 0;
+    while (reads < MAX_READS) {
+      int count = batch.receive(channel);
+      if (count == 0) return;
+      for (int i = 0 ; i < count ; i++) {
+        if (forward(batch.sender(i), batch.packet(i))) batch.keep(i);
+      }
+      batch.observe(params, upObservers, upMetrics);
+      reads += count;
+    }
+  }
+
+  /**
+   * Forwards a packet from a client to the backend of its session, creating the session if needed.
+   * Failures only drop the packet, as with any lost UDP packet.
+   *
+   * @param from Address of the client.
+   * @param buffer The packet data.
+   * @return True if the packet was forwarded, false if it was dropped.
+   */
+  private boolean forward(InetSocketAddress from, ByteBuffer buffer) {
+    int length = buffer.remaining();
+    NIOUDPSession session = sessions.get(from.getAddress(), from.getPort());
+    try {
+      if (session == null) {
+        session = open(from);
+        if (session == null) return false;
+      }
+      if (params.isPrint()) {
+        String dateStr = sdf.format(new Date());
+        System.out.println(dateStr + ": UDP Forwarding " + length + " bytes " + toStr(from) + " --> " + session.getBackend());
+      }
+      if (!session.send(buffer)) {
+        params.getMetrics().recordError();
+        return false;
+      }
+    } catch (IOException e) {
+      params.getMetrics().recordError();
+      if (params.isPrint()) {
+        String dateStr = sdf.format(new Date());
+        String remoteAddr = session != null ? session.getBackend().toString() : "backend";
+        System.err.println(dateStr + ": Failed to forward UDP packet from " + toStr(from) + " to " + remoteAddr + " (" + Utils.mapAddrToHumanReadable(remoteAddr) + "): " + e);
+      }
+      if (session != null) session.close();
+      return false;
+    }
+    upMetrics.recordChunk(length);
+    return true;
+  }
+
+  /**
+   * Opens a new session for a client, with a backend chosen by the load balancer.
+   *
+   * @param from Address of the client.
+   * @return The new session, or null if no backend is available.
+   * @throws IOException If the channel to the backend cannot be opened.
+   */
+  private NIOUDPSession open(InetSocketAddress from) throws IOException {
+    String dateStr = sdf.format(new Date());
+    Backend backend = params.getLoadBalancer().select(from.getAddress().getHostAddress());
+    if (backend == null) {
+      if (params.isPrint()) System.err.println(dateStr + ": No healthy backend available, dropping packet from " + toStr(from));
+      return null;
+    }
+    int index = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+    NIOUDPSession session = new NIOUDPSession(params, this, loops[index], batches[index], from, backend);
+    sessions.put(from.getAddress(), from.getPort(), session);
+    session.register();
+    if (params.isPrint()) System.out.println(dateStr + ": New UDP session " + toStr(from) + " --> " + backend);
+    return session;
+  }
+
+  /**
+   * Sends a reply from the backend back to the client, from the tunnel port.
+   *
+   * @param reply The reply data.
+   * @param client Address of the client.
+   * @return True if the reply was sent, false if it did not fit the socket send buffer.
+   * @throws IOException If sending fails.
+   */
+  boolean reply(ByteBuffer reply, InetSocketAddress client) throws IOException {
+    //send consumes the buffer, but the observers still need it
+    int position = reply.position();
+    boolean sent = channel.send(reply, client) > 0;
+    ((Buffer) reply).position(position);
+    return sent;
+  }
+
+  /**
+   * Called when a session is closed to remove it from the active sessions.
+   *
+   * @param session The closed session.
+   */
+  void closed(NIOUDPSession session) {
+    InetSocketAddress client = session.getClientAddr();
+    sessions.remove(client.getAddress(), client.getPort(), session);
+  }
+
+  /**
+   * @return Number of active sessions.
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  /**
+   * @param addr The address to describe.
+   * @return The address as ip:port.
+   */
+  private String toStr(InetSocketAddress addr) {
+    return addr.getAddress().getHostAddress() + ":" + addr.getPort();
+  }
+
+  /**
+   * Closes the tunnel port, all sessions, and stops the event loops.
+   */
+  @Override
+  public void close() {
+    sessions.close();
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    for (NIOEventLoop loop : loops) {
+      loop.stop();
+    }
+  }
+}
@@ -1,29 +1,58 @@
 package net.kanstren.tcptunnel.forwarder;
 
 import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+import net.kanstren.tcptunnel.jfr.TunnelEvents;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
 import net.kanstren.tcptunnel.observers.TCPObserver;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 
 /**
  * Forwards TCP traffic between two sockets.
  * Sends everything from socket 1 input stream to socket 2 outputstream.
+ * If there are no observers and both sockets have channels, data is moved directly between the channels through a direct buffer,
+ * never copying it to the Java heap.
+ * Otherwise a socket with a channel is still read and written through the channel, not the socket streams.
+ * Up to Java 12 the streams of a channel socket share a lock, so a read blocked waiting for the response would block writing the request from the other forwarder.
  * In case of any error on either socket, the parent tunnel is closed.
  */
-public class TCPForwarder extends Thread {
+public class TCPForwarder implements Runnable {
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
   /** Socket 1 inputstream. */
   private InputStream is;
   /** Socket 2 outputstream. */
   private OutputStream os;
+  /** Socket 1 channel, if it has one. */
+  private SocketChannel from = null;
+  /** Socket 2 channel, if it has one. */
+  private SocketChannel to = null;
   /** The TCP tunnel this forwarder is part of. */
   private TCPTunnel parent;
   /** Configuration parameters. */
   private final Params params;
   /** The observers to pass all data through. Logging the data etc. */
   private final List<TCPObserver> observers;
+  /** Source address of the stream, for logging. */
+  private final String sourceAddr;
+  /** True if forwarding from client to backend. */
+  private final boolean up;
+  /** Metrics for the direction this forwarder handles. */
+  private final DirectionMetrics metrics;
+  /** Number of reads done. Only used by the forwarding thread, for sampling the reads into flight recorder events. */
+  private long reads = 0;
+  /** Number of bytes forwarded. Only written by the forwarding thread. */
+  private volatile long bytesForwarded = 0;
 
   /**
    * @param parent The TCP tunnel containing this forwarder.
@@ -38,26 +67,78 @@ public class TCPForwarder extends Thread {
     this.is = is;
     this.os = os;
     this.params = params;
+    this.sourceAddr = sourceAddr;
+    this.up = up;
+    this.metrics = params.getMetrics().direction(up);
     if (up) this.observers = params.createUpObservers(sourceAddr);
     else this.observers = params.createDownObservers(sourceAddr);
   }
 
+  /**
+   * @param parent The TCP tunnel containing this forwarder.
+   * @param from Socket 1, to read from.
+   * @param to Socket 2, to write to.
+   * @param params Configuration parameters.
+   * @param up If true, we pass all data going through to upstream observers.
+   * @param sourceAddr Source address of the stream (up- or down-stream). For logging purposes...
+   * @throws IOException If the socket streams cannot be accessed.
+   */
+  public TCPForwarder(TCPTunnel parent, Socket from, Socket to, Params params, boolean up, String sourceAddr) throws IOException {
+    this(parent, from.getInputStream(), to.getChannel() != null ? new ChannelOutputStream(to.getChannel()) : to.getOutputStream(), params, up, sourceAddr);
+    this.from = from.getChannel();
+    this.to = to.getChannel();
+  }
+
+  /**
+   * Writes to a blocking socket channel directly, without the lock shared with the input stream of the socket.
+   */
+  private static class ChannelOutputStream extends OutputStream {
+    /** The channel to write to. */
+    private final SocketChannel channel;
+
+    private ChannelOutputStream(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int start, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(data, start, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Starts forwarding in a new thread. A virtual thread if so configured.
+   */
+  public void start() {
+    Utils.startThread(this, "tcptunnel-forwarder", params.isVirtualThreads());
+  }
+
+  /**
+   * @return Number of bytes forwarded so far.
+   */
+  public long getBytesForwarded() {
+    return bytesForwarded;
+  }
+
   /**
    * Continously reads the input stream and writes the data to the output stream.
    * In between passes all the data to any registered observers.
    * In case of error on either socket, notifies the parent TCP tunnel to close.
    */
   public void run() {
-    byte[] buffer = new byte[params.getBufferSize()];
     try {
-      while (true) {
-        int bytesRead = is.read(buffer);
-        if (bytesRead == -1) break; // End of stream is reached --> exit
-        for (TCPObserver observer : observers) {
-          observer.observe(buffer, 0, bytesRead);
-        }
-        os.write(buffer, 0, bytesRead);
-        os.flush();
+      if (observers.isEmpty() && from != null && to != null) {
+        forwardDirect();
+      } else {
+        forwardStreams();
       }
     } catch (IOException e) {
       // Read/write failed --> connection is broken
@@ -67,4 +148,92 @@ public class TCPForwarder extends Thread {
     //Notify the parent tunnel that the connection is broken
     parent.connectionBroken();
   }
-}
\ No newline at end of file
+
+  /**
+   * Forwards the data through a heap buffer, so it can be passed to the observers.
+   * Writes to the output are coalesced as defined by the configured {@link FlushMode}.
+   *
+   * @throws IOException If reading, writing, or observing fails.
+   */
+  private void forwardStreams() throws IOException {
+    int bufferSize = params.getBufferSize();
+    PooledBuffer pooled = params.getBufferPool().acquire(bufferSize, false);
+    byte[] buffer = pooled.array();
+    //reads from a channel go directly into the heap buffer
+    ByteBuffer wrapped = from != null ? ByteBuffer.wrap(buffer) : null;
+    WriteCoalescer coalescer = new WriteCoalescer(os, params);
+    try {
+      while (true) {
+        int bytesRead;
+        if (wrapped != null) {
+          ((Buffer) wrapped).clear().limit(bufferSize);
+          bytesRead = from.read(wrapped);
+        } else {
+          bytesRead = is.read(buffer, 0, bufferSize);
+        }
+        if (bytesRead == -1) break; // End of stream is reached --> exit
+        metrics.recordChunk(bytesRead);
+        bytesForwarded += bytesRead;
+        TunnelEvents.chunk(parent.getId(), up, bytesRead, ++reads, bytesForwarded);
+        if (!observers.isEmpty() && params.isObserversEnabled()) {
+          long start = System.nanoTime();
+          for (TCPObserver observer : observers) {
+            TunnelEvents.observe(observer, buffer, 0, bytesRead, parent.getId(), up);
+          }
+          metrics.recordObserve(System.nanoTime() - start);
+        }
+        coalescer.write(buffer, 0, bytesRead);
+        if (coalescer.shouldFlush(is)) flush(coalescer);
+      }
+      flush(coalescer);
+    } finally {
+      coalescer.close(params.getWriteStats());
+      pooled.release();
+      if (params.getFlushMode() != FlushMode.ALWAYS && params.isPrint()) {
+        String dateStr = sdf.format(new Date());
+        System.out.println(dateStr + ": TCP Forwarding from " + sourceAddr + ": " + coalescer.getReads() + " reads forwarded in " + coalescer.getWrites() + " writes.");
+      }
+    }
+  }
+
+  /**
+   * Flushes the pending data to the output and tells the observers to flush theirs.
+   *
+   * @param coalescer Holds the pending data.
+   * @throws IOException If writing fails.
+   */
+  private void flush(WriteCoalescer coalescer) throws IOException {
+    coalescer.flush();
+    for (TCPObserver observer : observers) {
+      observer.flush();
+    }
+  }
+
+  /**
+   * Forwards the data between the socket channels using a direct buffer.
+   * The data stays in native memory, so it is never copied to or from the Java heap.
+   *
+   * @throws IOException If reading or writing fails.
+   */
+  private void forwardDirect() throws IOException {
+    int bufferSize = params.getBufferSize();
+    PooledBuffer pooled = params.getBufferPool().acquire(bufferSize, true);
+    ByteBuffer buffer = pooled.buffer();
+    try {
+      while (true) {
+        int bytesRead = from.read(buffer);
+        if (bytesRead == -1) break; // End of stream is reached --> exit
+        metrics.recordChunk(bytesRead);
+        bytesForwarded += bytesRead;
+        TunnelEvents.chunk(parent.getId(), up, bytesRead, ++reads, bytesForwarded);
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+          to.write(buffer);
+        }
+        ((Buffer) buffer).clear().limit(bufferSize);
+      }
+    } finally {
+      pooled.release();
+    }
+  }
+}
@@ -3,11 +3,15 @@ package net.kanstren.tcptunnel.forwarder;
 import net.kanstren.tcptunnel.Main;
 import net.kanstren.tcptunnel.Params;
 import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.backend.ConnectionPool;
+import net.kanstren.tcptunnel.jfr.TunnelEvents;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -16,7 +20,7 @@ import java.util.Date;
  * Data is forwarded in both directions using separate sockets.
  * Any error on either socket causes the whole tunnel (both sockets) to be closed.
  */
-public class TCPTunnel extends Thread {
+public class TCPTunnel implements Runnable, TunnelConnection {
   private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
   /** Configuration parameters. */
   private final Params params;
@@ -28,6 +32,18 @@ public class TCPTunnel extends Thread {
   private boolean active = false;
   /** Parent to notify when connection is broken. */
   private final Main parent;
+  /** Identifier of this tunnel. */
+  private final long id = IDS.incrementAndGet();
+  /** Forwards data from client to backend. Null until connected. */
+  private volatile TCPForwarder clientForward = null;
+  /** Forwards data from backend to client. Null until connected. */
+  private volatile TCPForwarder serverForward = null;
+  /** Address of the backend, once connected. */
+  private volatile String serverAddr = null;
+  /** The backend chosen for this tunnel. Null until chosen, and again once its connection count is released. */
+  private Backend backend = null;
+  /** Time when forwarding started, from System.nanoTime(). */
+  private long openedAt = 0;
 
   /**
    * @param params Configuration parameters.
@@ -40,47 +56,91 @@ public class TCPTunnel extends Thread {
     this.parent = parent;
   }
 
+  /**
+   * Starts the tunnel in a new thread. A virtual thread if so configured.
+   */
+  public void start() {
+    Utils.startThread(this, "tcptunnel", params.isVirtualThreads());
+  }
+
   /**
    * Connects to the remote host and starts bidirectional forwarding (the tunnel).
    */
   public void run() {
     String dateStr = sdf.format(new Date());
+    long connectStart = System.nanoTime();
+    boolean usedPool = false;
+    //the field is cleared if the tunnel is closed from another thread while connecting, so this thread keeps its own reference
+    Backend selected = null;
     try {
-      // Connect to the destination server
-      serverSocket = new Socket(params.getRemoteHost(), params.getRemotePort());
+      // Connect to the chosen backend server, unless there is a pre-connected one available
+      selected = params.getLoadBalancer().select(localSocket.getInetAddress().getHostAddress());
+      backend = selected;
+      if (selected == null) {
+        //fail fast instead of waiting for connect timeouts to a known dead backend
+        if (params.isPrint()) System.err.println(dateStr + ": No healthy backend available for " + toStr(localSocket));
+        connectionBroken();
+        return;
+      }
+      selected.connectionOpened();
+      ConnectionPool pool = selected.getConnectionPool();
+      SocketChannel pooled = pool != null ? pool.take() : null;
+      if (pooled != null) {
+        serverSocket = pooled.socket();
+        usedPool = true;
+      } else {
+        long start = System.nanoTime();
+        if (localSocket.getChannel() != null) {
+          //local socket has a channel, so connect over a channel as well to allow direct forwarding between the channels
+          InetSocketAddress remoteAddr = selected.getSocketAddress();
+          if (remoteAddr.isUnresolved()) throw new UnknownHostException(selected.getHost());
+          serverSocket = SocketChannel.open(remoteAddr).socket();
+        } else {
+          serverSocket = new Socket(selected.getHost(), selected.getPort());
+        }
+        long latency = System.nanoTime() - start;
+        selected.recordLatency(latency);
+        selected.connectSucceeded();
+        params.getMetrics().recordBackendLatency(latency);
+      }
 
       // Turn on keep-alive for both the sockets
       serverSocket.setKeepAlive(true);
       localSocket.setKeepAlive(true);
 
-      // Obtain client & server input & output streams
-      InputStream clientIn = localSocket.getInputStream();
-      OutputStream clientOut = localSocket.getOutputStream();
-      InputStream serverIn = serverSocket.getInputStream();
-      OutputStream serverOut = serverSocket.getOutputStream();
-
       // Start forwarding data between server and client
       active = true;
+      openedAt = System.nanoTime();
+      params.getMetrics().connectionOpened();
       String clientAddr = toStr(localSocket);
-      String serverAddr = toStr(serverSocket);
+      serverAddr = toStr(serverSocket);
+      TunnelEvents.connect(id, clientAddr, serverAddr, usedPool, true, openedAt - connectStart);
       String hummanClientAddr = Utils.mapAddrToHumanReadable(clientAddr);
       String hummanServerAddr = Utils.mapAddrToHumanReadable(serverAddr);
       clientAddr = clientAddr+" ("+hummanClientAddr+")";
-      serverAddr = serverAddr+" ("+hummanServerAddr+")";
-      TCPForwarder clientForward = new TCPForwarder(this, clientIn, serverOut, params, true, clientAddr);
+      String humanServerAddr = serverAddr+" ("+hummanServerAddr+")";
+      clientForward = new TCPForwarder(this, localSocket, serverSocket, params, true, clientAddr);
       clientForward.start();
-      TCPForwarder serverForward = new TCPForwarder(this, serverIn, clientOut, params, false, serverAddr);
+      serverForward = new TCPForwarder(this, serverSocket, localSocket, params, false, humanServerAddr);
       serverForward.start();
 
       if (params.isPrint()) {
-        System.out.println(dateStr+": TCP Forwarding " + clientAddr + " <--> " + serverAddr);
+        System.out.println(dateStr+": TCP Forwarding " + clientAddr + " <--> " + humanServerAddr);
       }
     } catch (IOException ioe) {
+      //failing before the server socket is there means the backend could not be connected
+      boolean ejected = false;
+      if (serverSocket == null) {
+        params.getMetrics().connectFailed();
+        ejected = selected.connectFailed(params.getEjectAfter(), params.getEjectTime());
+        TunnelEvents.connect(id, toStr(localSocket), selected.toString(), usedPool, false, System.nanoTime() - connectStart);
+      }
       if (params.isPrint()) {
-        String remoteAddr = params.getRemoteHost() + ":" + params.getRemotePort();
+        String remoteAddr = selected.toString();
         String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
         remoteAddr = remoteAddr + " ("+humanRemoteAddr+")";
         System.err.println(dateStr + ": Failed to connect to remote host (" + remoteAddr + ")");
+        if (ejected) System.err.println(dateStr + ": Ejecting " + remoteAddr + " for " + params.getEjectTime() + " ms after " + params.getEjectAfter() + " consecutive failures");
       }
       connectionBroken();
     }
@@ -96,9 +156,37 @@ public class TCPTunnel extends Thread {
     return host + ":" + port;
   }
 
+  @Override
+  public long getId() {
+    return id;
+  }
+
+  @Override
+  public String getClientAddress() {
+    return toStr(localSocket);
+  }
+
+  @Override
+  public String getServerAddress() {
+    return serverAddr;
+  }
+
+  @Override
+  public long getUpBytes() {
+    TCPForwarder forwarder = clientForward;
+    return forwarder != null ? forwarder.getBytesForwarded() : 0;
+  }
+
+  @Override
+  public long getDownBytes() {
+    TCPForwarder forwarder = serverForward;
+    return forwarder != null ? forwarder.getBytesForwarded() : 0;
+  }
+
   /**
    * Closes the tunnel (the forwarding sockets..).
    */
+  @Override
   public void close() {
     connectionBroken();
   }
@@ -119,6 +207,12 @@ public class TCPTunnel extends Thread {
       String dateStr = sdf.format(new Date());
       if (params.isPrint()) System.out.println(dateStr+": TCP Forwarding " + toStr(localSocket) + " <--> " + toStr(serverSocket) + " stopped.");
       active = false;
+      params.getMetrics().connectionClosed();
+      TunnelEvents.connectionClosed(id, toStr(localSocket), serverAddr, getUpBytes(), getDownBytes(), System.nanoTime() - openedAt);
+    }
+    if (backend != null) {
+      backend.connectionClosed();
+      backend = null;
     }
     parent.closed(this);
   }
@@ -0,0 +1,44 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single forwarded TCP connection (client + backend socket pair), as seen by management tools.
+ * Implemented by both the thread based and the NIO based tunnels.
+ *
+ * @author Teemu Kanstren.
+ */
+public interface TunnelConnection {
+  /** Source of connection identifiers, unique within the JVM. */
+  AtomicLong IDS = new AtomicLong();
+
+  /**
+   * @return Identifier of this connection, unique within the JVM.
+   */
+  long getId();
+
+  /**
+   * @return Address of the client (ip:port), or null if not yet known.
+   */
+  String getClientAddress();
+
+  /**
+   * @return Address of the backend (ip:port), or null if not yet connected.
+   */
+  String getServerAddress();
+
+  /**
+   * @return Number of bytes forwarded from client to backend.
+   */
+  long getUpBytes();
+
+  /**
+   * @return Number of bytes forwarded from backend to client.
+   */
+  long getDownBytes();
+
+  /**
+   * Closes the connection (both sockets).
+   */
+  void close();
+}
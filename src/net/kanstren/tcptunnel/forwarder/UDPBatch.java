@@ -0,0 +1,152 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+
+/**
+ * A batch of datagrams read from a channel in one go, packed one after another in a single buffer.
+ * Reading stops when the batch is full, the channel has no more datagrams, or the buffer has no room for another full size datagram.
+ * The packets are then forwarded one by one, and passed to the observers together, with a single flush for the whole batch.
+ */
+class UDPBatch {
+  /** Room kept free in the buffer for the next datagram, so no datagram gets truncated. */
+  private static final int MAX_DATAGRAM = 65536;
+  /** Buffer space reserved per packet in addition to one full size datagram, sized for typical MTU sized packets. */
+  private static final int TYPICAL_DATAGRAM = 1500;
+  /** Holds the packets of the batch one after another. */
+  private final ByteBuffer buffer;
+  /** View of a single packet in the buffer. */
+  private final ByteBuffer packet;
+  /** Start index of each packet in the buffer. */
+  private final int[] starts;
+  /** Length of each packet. */
+  private final int[] counts;
+  /** Sender of each packet, if received from an unconnected channel. */
+  private final InetSocketAddress[] senders;
+  /** Number of packets in the batch. */
+  private int size = 0;
+  /** Number of the packets, from the start of the batch, that have been kept to be observed. */
+  private int kept = 0;
+
+  /**
+   * @param capacity Maximum number of packets in a batch.
+   */
+  UDPBatch(int capacity) {
+    this.buffer = ByteBuffer.allocate(MAX_DATAGRAM + (capacity - 1) * TYPICAL_DATAGRAM);
+    this.packet = buffer.duplicate();
+    this.starts = new int[capacity];
+    this.counts = new int[capacity];
+    this.senders = new InetSocketAddress[capacity];
+  }
+
+  /**
+   * Receives datagrams from an unconnected channel, replacing the previous batch.
+   *
+   * @param channel The non-blocking channel to receive from.
+   * @return Number of packets received.
+   * @throws IOException If receiving fails.
+   */
+  int receive(DatagramChannel channel) throws IOException {
+    clear();
+    while (size < starts.length && buffer.remaining() >= MAX_DATAGRAM) {
+      int start = buffer.position();
+      InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+      if (from == null) break;
+      add(start, from);
+    }
+    return size;
+  }
+
+  /**
+   * Reads datagrams from a connected channel, replacing the previous batch.
+   *
+   * @param channel The non-blocking, connected channel to read from.
+   * @return Number of packets read.
+   * @throws IOException If reading fails.
+   */
+  int read(DatagramChannel channel) throws IOException {
+    clear();
+    while (size < starts.length && buffer.remaining() >= MAX_DATAGRAM) {
+      int start = buffer.position();
+      if (channel.read(buffer) <= 0) break;
+      add(start, null);
+    }
+    return size;
+  }
+
+  private void clear() {
+    ((Buffer) buffer).clear();
+    size = 0;
+    kept = 0;
+  }
+
+  private void add(int start, InetSocketAddress from) {
+    starts[size] = start;
+    counts[size] = buffer.position() - start;
+    senders[size] = from;
+    size++;
+  }
+
+  /**
+   * @param index Index of the packet in the batch.
+   * @return View of the packet data, valid until the next call.
+   */
+  ByteBuffer packet(int index) {
+    ((Buffer) packet).limit(starts[index] + counts[index]);
+    ((Buffer) packet).position(starts[index]);
+    return packet;
+  }
+
+  /**
+   * @param index Index of the packet in the batch.
+   * @return Length of the packet.
+   */
+  int length(int index) {
+    return counts[index];
+  }
+
+  /**
+   * @param index Index of the packet in the batch.
+   * @return Sender of the packet, or null if read from a connected channel.
+   */
+  InetSocketAddress sender(int index) {
+    return senders[index];
+  }
+
+  /**
+   * Keeps the given packet to be observed. Packets are processed in order, and those not kept (e.g., dropped) are left out.
+   *
+   * @param index Index of the packet in the batch.
+   */
+  void keep(int index) {
+    starts[kept] = starts[index];
+    counts[kept] = counts[index];
+    kept++;
+  }
+
+  /**
+   * Passes the kept packets to the observers as a single batch, and flushes them once.
+   *
+   * @param params Configuration parameters, to check if observers are enabled.
+   * @param observers The observers to pass the packets to.
+   * @param metrics The metrics to record the observer time in.
+   * @throws IOException If an observer fails.
+   */
+  void observe(Params params, List<TCPObserver> observers, DirectionMetrics metrics) throws IOException {
+    if (kept == 0 || observers.isEmpty() || !params.isObserversEnabled()) return;
+    long start = System.nanoTime();
+    for (TCPObserver observer : observers) {
+      observer.observeBatch(buffer.array(), starts, counts, kept);
+      observer.flush();
+    }
+    metrics.recordObserve(System.nanoTime() - start);
+  }
+}
@@ -1,6 +1,9 @@
 package net.kanstren.tcptunnel.forwarder;
 
 import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
 import net.kanstren.tcptunnel.observers.TCPObserver;
 
 import java.net.*;
@@ -12,28 +15,44 @@ import java.util.List;
  * Created by AlexZhuo on 2017/11/12.
  * Fixes, docs, tests, conformance by Teemu Kanstren
  */
-public class UDPForwarder extends Thread {
+public class UDPForwarder extends Thread implements UDPSessionTable.Session {
   /** Address to forward packets to. */
   private InetAddress fwdAddr;
   /** Port to forward the packets to. */
   private int fwdPort;
+  /** The backend the packets from the client are forwarded to in this session. */
+  private final Backend backend;
+  /** Resolved address of the backend. */
+  private final InetAddress backendAddr;
   /** Socket to receive packets to forward. */
   private DatagramSocket receiveSocket;
   /** Socket to send packets to forward. */
   private DatagramSocket fwdSocket;
   private UDPTunnel parent;
+  /** Configuration parameters. */
+  private final Params params;
   /** The observers to pass all data through. Logging the data etc. */
   private final List<TCPObserver> observers;
+  /** Metrics for the tunnel, with this session counted as a connection and the replies as downstream data. */
+  private final TunnelMetrics metrics;
+  /** Time of the latest packet in either direction, from System.nanoTime(). */
+  private volatile long lastActive = System.nanoTime();
 
-  public UDPForwarder(UDPTunnel parent, DatagramSocket fwdSocket, InetAddress fwdAddr, int fwdPort, Params params) throws Exception {
+  public UDPForwarder(UDPTunnel parent, DatagramSocket fwdSocket, InetAddress fwdAddr, int fwdPort, Backend backend, Params params) throws Exception {
     this.parent = parent;
+    this.params = params;
+    this.backend = backend;
+    this.backendAddr = backend.resolve();
     //UDP is one way only, no replies so no downstream..
-    this.observers = params.createUpObservers(params.getRemoteHost());
+    this.observers = params.createUpObservers(backend.getHost());
     this.fwdPort = fwdPort;
     this.fwdSocket = fwdSocket;
     this.fwdAddr = InetAddress.getByAddress(fwdAddr.getAddress());
+    //idle sessions are closed by the session table of the tunnel, so no receive timeout here
     receiveSocket = new DatagramSocket();
-    receiveSocket.setSoTimeout(30000);//30s UDP tunnel TimeOut
+    backend.connectionOpened();
+    metrics = params.getMetrics();
+    metrics.connectionOpened();
   }
 
   public DatagramSocket getReceiveSocket() {
@@ -48,32 +67,72 @@ public class UDPForwarder extends Thread {
     return fwdPort;
   }
 
+  /**
+   * @return The backend the packets from the client are forwarded to in this session.
+   */
+  public Backend getBackend() {
+    return backend;
+  }
+
+  /**
+   * @return Resolved address of the backend.
+   */
+  public InetAddress getBackendAddr() {
+    return backendAddr;
+  }
+
+  /**
+   * Marks the session active, so it is not closed as idle.
+   */
+  public void touch() {
+    lastActive = System.nanoTime();
+  }
+
+  @Override
+  public long getLastActive() {
+    return lastActive;
+  }
+
   @Override
   public void run() {
     //receiving the data to be forwarded
-    DatagramPacket packet = new DatagramPacket(new byte[65535], 65535);
+    PooledBuffer pooled = params.getBufferPool().acquire(65535, false);
+    DatagramPacket packet = new DatagramPacket(pooled.array(), 65535);
     try {
       while (true) {
         if (receiveSocket.isClosed()) return;
         receiveSocket.receive(packet);
+        lastActive = System.nanoTime();
 
         //send the copied packet from remote server to client
         packet.setAddress(fwdAddr);
         packet.setPort(fwdPort);
         fwdSocket.send(packet);
-        for (TCPObserver observer : observers) {
-          observer.observe(packet.getData(), 0, packet.getLength());
+        metrics.getDown().recordChunk(packet.getLength());
+        if (!observers.isEmpty() && params.isObserversEnabled()) {
+          long start = System.nanoTime();
+          for (TCPObserver observer : observers) {
+            observer.observe(packet.getData(), 0, packet.getLength());
+            observer.flush();
+          }
+          metrics.getDown().recordObserve(System.nanoTime() - start);
         }
       }
     } catch (Exception e) {
       parent.close(this);
       close();
+    } finally {
+      pooled.release();
+      backend.connectionClosed();
+      metrics.connectionClosed();
     }
   }
 
+  /**
+   * Closes the session. The socket towards the client is shared by all sessions, so it is left for the tunnel to close.
+   */
   public void close() {
     if (receiveSocket.isClosed()) return;
     receiveSocket.close();
-    fwdSocket.close();
   }
 }
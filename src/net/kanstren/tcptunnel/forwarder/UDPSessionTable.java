@@ -0,0 +1,363 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent table of UDP sessions by client address, with idle sessions expired on a hashed timing wheel.
+ * The lookup key is a long built from the address and port, so finding the session of a packet builds no strings or other objects.
+ * For IPv4 the key is the exact address and port, for IPv6 it is a hash and the address is compared on lookup.
+ * The table is split into segments with their own locks, so lookups from different threads rarely wait for each other.
+ * <p>
+ * Sessions are not moved in the wheel on every packet, they only record their own last activity time.
+ * When the wheel reaches a session, it is either expired or scheduled again based on that time.
+ * This keeps the per-packet cost to writing a timestamp, and the expiry cost to a few sessions per tick.
+ *
+ * @param <S> Type of the sessions.
+ * @author Teemu Kanstren.
+ */
+public class UDPSessionTable<S extends UDPSessionTable.Session> {
+  /** Default time after which sessions with no traffic in either direction are closed. */
+  public static final long IDLE_TIMEOUT_MILLIS = 30_000;
+  /** Number of segments (locks) in the table. Power of two. */
+  private static final int SEGMENTS = 16;
+  /** Number of slots in the timing wheel. Power of two. */
+  private static final int SLOTS = 64;
+  /** The idle timeout is split into this many ticks, so the wheel covers two timeouts and sessions expire at most a tick late. */
+  private static final int TICKS_PER_TIMEOUT = SLOTS / 2;
+
+  /**
+   * A session in the table, tracking when it last had traffic.
+   */
+  public interface Session {
+    /**
+     * @return Time of the latest traffic in the session, from System.nanoTime().
+     */
+    long getLastActive();
+  }
+
+  /**
+   * A session in the table, linked both in the table segment and in the timing wheel.
+   *
+   * @param <S> Type of the session.
+   */
+  private static final class Entry<S> {
+    /** The lookup key. */
+    private final long key;
+    /** Client address, to tell IPv6 addresses with the same key apart. */
+    private final InetAddress address;
+    /** Client port. */
+    private final int port;
+    /** The session. */
+    private final S session;
+    /** Next entry in the same table bucket. Guarded by the segment. */
+    private Entry<S> next;
+    /** Next entry in the same wheel slot. Guarded by the wheel. */
+    private Entry<S> nextInSlot;
+    /** True once removed from the table, so the wheel can drop it. */
+    private volatile boolean removed = false;
+
+    private Entry(long key, InetAddress address, int port, S session) {
+      this.key = key;
+      this.address = address;
+      this.port = port;
+      this.session = session;
+    }
+  }
+
+  /**
+   * One part of the table, a chained hash table under its own lock.
+   *
+   * @param <S> Type of the sessions.
+   */
+  private static final class Segment<S> {
+    /** The buckets. Size is a power of two. */
+    private Entry<S>[] buckets = newBuckets(16);
+    /** Number of entries in this segment. */
+    private int size = 0;
+  }
+
+  /** The table segments. */
+  private final Segment<S>[] segments;
+  /** Slots of the timing wheel, each a list of entries due in that tick. Guarded by the wheel lock. */
+  private final Entry<S>[] slots = newBuckets(SLOTS);
+  /** Lock for the timing wheel. */
+  private final Object wheel = new Object();
+  /** Sessions with no traffic for this long are expired, in nanoseconds. */
+  private final long idleNanos;
+  /** Length of one wheel tick, in nanoseconds. */
+  private final long tickNanos;
+  /** Time the ticks are counted from. */
+  private final long origin = System.nanoTime();
+  /** The next tick to process. Guarded by the wheel lock. */
+  private long nextTick = 1;
+  /** Called for each expired session, after it is removed from the table. */
+  private final Consumer<S> onExpire;
+  /** As long as this is true, the wheel keeps turning. */
+  private volatile boolean running = true;
+  /** Thread turning the wheel. */
+  private Thread thread = null;
+
+  /**
+   * @param idleNanos Sessions with no traffic for this long are expired, in nanoseconds.
+   * @param onExpire Called for each expired session, after it is removed from the table. Should close the session.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public UDPSessionTable(long idleNanos, Consumer<S> onExpire) {
+    this.idleNanos = idleNanos;
+    this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), idleNanos / TICKS_PER_TIMEOUT);
+    this.onExpire = onExpire;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0 ; i < SEGMENTS ; i++) {
+      segments[i] = new Segment<>();
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <S> Entry<S>[] newBuckets(int size) {
+    return new Entry[size];
+  }
+
+  /**
+   * Starts the thread expiring idle sessions.
+   *
+   * @param name Name for the thread.
+   */
+  public void start(String name) {
+    thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops expiring sessions. The sessions are left in the table.
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * @param address Client address.
+   * @param port Client port.
+   * @return The lookup key for the address.
+   */
+  static long key(InetAddress address, int port) {
+    //the hash code of an IPv4 address is the address itself, and for IPv6 it mixes in all of the address
+    long addr = address.hashCode() & 0xFFFF_FFFFL;
+    if (!(address instanceof Inet4Address)) addr |= 1L << 32;
+    return addr << 16 | port;
+  }
+
+  /**
+   * @param key The lookup key.
+   * @return The key with its bits spread for choosing segments and buckets.
+   */
+  private static int spread(long key) {
+    long h = key * 0x9E37_79B9_7F4A_7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @param address Client address.
+   * @param port Client port.
+   * @return The session of the client, or null if there is none.
+   */
+  public S get(InetAddress address, int port) {
+    long key = key(address, port);
+    int hash = spread(key);
+    Segment<S> segment = segments[hash & (SEGMENTS - 1)];
+    synchronized (segment) {
+      Entry<S>[] buckets = segment.buckets;
+      for (Entry<S> e = buckets[(hash >>> 4) & (buckets.length - 1)] ; e != null ; e = e.next) {
+        if (e.key == key && e.port == port && e.address.equals(address)) return e.session;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds a session for a client, replacing any previous one.
+   * The replaced session is not closed, as it is expected to be closed already.
+   *
+   * @param address Client address.
+   * @param port Client port.
+   * @param session The session to add.
+   */
+  public void put(InetAddress address, int port, S session) {
+    long key = key(address, port);
+    int hash = spread(key);
+    Entry<S> entry = new Entry<>(key, address, port, session);
+    Segment<S> segment = segments[hash & (SEGMENTS - 1)];
+    synchronized (segment) {
+      Entry<S>[] buckets = segment.buckets;
+      int index = (hash >>> 4) & (buckets.length - 1);
+      Entry<S> prev = null;
+      for (Entry<S> e = buckets[index] ; e != null ; prev = e, e = e.next) {
+        if (e.key == key && e.port == port && e.address.equals(address)) {
+          e.removed = true;
+          if (prev == null) buckets[index] = e.next;
+          else prev.next = e.next;
+          segment.size--;
+          break;
+        }
+      }
+      entry.next = buckets[index];
+      buckets[index] = entry;
+      if (++segment.size > buckets.length * 3 / 4) resize(segment);
+    }
+    synchronized (wheel) {
+      schedule(entry, session.getLastActive() + idleNanos);
+    }
+  }
+
+  /**
+   * Doubles the bucket count of a segment.
+   *
+   * @param segment The segment to resize, with its lock held.
+   */
+  private void resize(Segment<S> segment) {
+    Entry<S>[] old = segment.buckets;
+    Entry<S>[] buckets = newBuckets(old.length * 2);
+    for (Entry<S> e : old) {
+      while (e != null) {
+        Entry<S> next = e.next;
+        int index = (spread(e.key) >>> 4) & (buckets.length - 1);
+        e.next = buckets[index];
+        buckets[index] = e;
+        e = next;
+      }
+    }
+    segment.buckets = buckets;
+  }
+
+  /**
+   * Removes the session of a client, if it is the given one.
+   *
+   * @param address Client address.
+   * @param port Client port.
+   * @param session The session to remove.
+   * @return True if the session was removed, false if the client had no session or a different one.
+   */
+  public boolean remove(InetAddress address, int port, S session) {
+    long key = key(address, port);
+    int hash = spread(key);
+    Segment<S> segment = segments[hash & (SEGMENTS - 1)];
+    synchronized (segment) {
+      Entry<S>[] buckets = segment.buckets;
+      int index = (hash >>> 4) & (buckets.length - 1);
+      Entry<S> prev = null;
+      for (Entry<S> e = buckets[index] ; e != null ; prev = e, e = e.next) {
+        if (e.session == session && e.key == key) {
+          e.removed = true;
+          if (prev == null) buckets[index] = e.next;
+          else prev.next = e.next;
+          segment.size--;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Number of sessions in the table.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<S> segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return A copy of all the sessions in the table.
+   */
+  public List<S> sessions() {
+    List<S> sessions = new ArrayList<>();
+    for (Segment<S> segment : segments) {
+      synchronized (segment) {
+        for (Entry<S> e : segment.buckets) {
+          for ( ; e != null ; e = e.next) {
+            sessions.add(e.session);
+          }
+        }
+      }
+    }
+    return sessions;
+  }
+
+  /**
+   * Puts an entry in the wheel slot of the first tick at or after the given time.
+   *
+   * @param entry The entry to schedule, with the wheel lock held.
+   * @param deadline The time the entry expires if it has no traffic before it, from System.nanoTime().
+   */
+  private void schedule(Entry<S> entry, long deadline) {
+    long tick = Math.max(nextTick, (deadline - origin + tickNanos - 1) / tickNanos);
+    int slot = (int) (tick & (SLOTS - 1));
+    entry.nextInSlot = slots[slot];
+    slots[slot] = entry;
+  }
+
+  /**
+   * Processes the wheel ticks that are due, expiring the idle sessions in them and scheduling the others again.
+   *
+   * @param now Current time from System.nanoTime().
+   */
+  void advance(long now) {
+    List<Entry<S>> expired = null;
+    synchronized (wheel) {
+      long currentTick = (now - origin) / tickNanos;
+      //after a long pause a single round over all slots covers everything due
+      if (currentTick - nextTick >= SLOTS) nextTick = currentTick - SLOTS + 1;
+      for ( ; nextTick <= currentTick ; nextTick++) {
+        int slot = (int) (nextTick & (SLOTS - 1));
+        Entry<S> e = slots[slot];
+        slots[slot] = null;
+        while (e != null) {
+          Entry<S> next = e.nextInSlot;
+          e.nextInSlot = null;
+          if (!e.removed) {
+            long deadline = e.session.getLastActive() + idleNanos;
+            if (deadline - now <= 0) {
+              if (expired == null) expired = new ArrayList<>();
+              expired.add(e);
+            } else {
+              schedule(e, deadline);
+            }
+          }
+          e = next;
+        }
+      }
+    }
+    if (expired == null) return;
+    for (Entry<S> e : expired) {
+      //a session replaced or closed meanwhile is no longer ours to expire
+      if (remove(e.address, e.port, e.session)) onExpire.accept(e.session);
+    }
+  }
+
+  /**
+   * Turns the wheel once per tick until closed.
+   */
+  private void run() {
+    while (running) {
+      LockSupport.parkNanos(this, tickNanos);
+      try {
+        advance(System.nanoTime());
+      } catch (RuntimeException e) {
+        //closing a session failed, keep expiring the others
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -2,15 +2,18 @@ package net.kanstren.tcptunnel.forwarder;
 
 import net.kanstren.tcptunnel.Params;
 import net.kanstren.tcptunnel.Utils;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.metrics.DirectionMetrics;
 import net.kanstren.tcptunnel.observers.TCPObserver;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by AlexZhuo on 2017/11/12.
@@ -29,24 +32,32 @@ public class UDPTunnel extends Thread {
   /** For forwarding data to tunnel target. */
   private DatagramSocket fwdSocket = null;
   private List<TCPObserver> upObservers;
-  private HashMap<String, UDPForwarder> forwarders = new HashMap<>();
+  /** Active sessions, by client address. Idle ones are closed after the idle timeout. */
+  private final UDPSessionTable<UDPForwarder> forwarders = new UDPSessionTable<>(TimeUnit.MILLISECONDS.toNanos(UDPSessionTable.IDLE_TIMEOUT_MILLIS), UDPForwarder::close);
+  /** Metrics for upstream packets. */
+  private final DirectionMetrics upMetrics;
 
   public UDPTunnel(Params params, DatagramSocket receiverSocket) {
     this.params = params;
     this.receiverSocket = receiverSocket;
     this.upObservers = params.createUpObservers("Unknown");
+    this.upMetrics = params.getMetrics().getUp();
   }
 
   public void run() {
-    InetAddress address = null;
     String dateStr = sdf.format(new Date());
+    Backend backend = null;
     try {
       fwdSocket = new DatagramSocket();
-      address = InetAddress.getByName(params.getRemoteHost());
+      //check all backends resolve before starting, as the sessions are spread over them
+      for (Backend b : params.getLoadBalancer().getBackends()) {
+        backend = b;
+        b.resolve();
+      }
     } catch (Throwable e) {
       fwdSocket.close();
       if (params.isPrint()) {
-        String remoteAddr = params.getRemoteHost() + ":" + params.getRemotePort();
+        String remoteAddr = String.valueOf(backend);
         String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
         remoteAddr = remoteAddr + " (" + humanRemoteAddr + ")";
         System.err.println(dateStr + ": Failed to connect to remote host (" + remoteAddr + ")");
@@ -57,6 +68,7 @@ public class UDPTunnel extends Thread {
     byte[] buffer = new byte[65536];
     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
     active = true;
+    forwarders.start("tcptunnel-udp-expiry");
     while (active) {
       try {
         packet.setData(buffer);
@@ -64,28 +76,49 @@ public class UDPTunnel extends Thread {
         receiverSocket.receive(packet);
         InetAddress sourceAddress = packet.getAddress();
         int srcPort = packet.getPort();
-        String strAddr = toStr(packet);
+        //for multiple clients, each session sticks to the backend chosen when it was created
+        UDPForwarder f = forwarders.get(sourceAddress, srcPort);
+        if (f == null || f.getReceiveSocket().isClosed() || !f.isAlive()) {
+          if (params.isPrint()) System.out.println(dateStr+"new UDP session::" + toStr(packet));
+          backend = params.getLoadBalancer().select(sourceAddress.getHostAddress());
+          if (backend == null) {
+            if (params.isPrint()) System.err.println(dateStr + ": No healthy backend available, dropping packet from " + toStr(packet));
+            continue;
+          }
+          f = new UDPForwarder(this, fwdSocket, sourceAddress, srcPort, backend, params);
+          forwarders.put(sourceAddress, srcPort, f);
+          f.start();
+        }
+        f.touch();
+        backend = f.getBackend();
         if (params.isPrint()) {
-          System.out.println(dateStr + ": UDP Forwarding " +packet.getLength()+ " bytes " + strAddr + " --> " + address.getHostAddress() + ":" + params.getRemotePort());
+          System.out.println(dateStr + ": UDP Forwarding " +packet.getLength()+ " bytes " + toStr(packet) + " --> " + f.getBackendAddr().getHostAddress() + ":" + backend.getPort());
         }
         //send client request to server
-        packet.setPort(params.getRemotePort());
-        packet.setAddress(address);
-        //for multiple clients
-        UDPForwarder f = forwarders.get(strAddr);
-        if (f == null || f.getReceiveSocket().isClosed() || !f.isAlive()) {
-          if (params.isPrint()) System.out.println(dateStr+"new UDP session::" + strAddr);
-          f = new UDPForwarder(this, fwdSocket, sourceAddress, srcPort, params);
-          forwarders.put(strAddr, f);
-          f.start();
+        packet.setPort(backend.getPort());
+        packet.setAddress(f.getBackendAddr());
+        try {
+          f.getReceiveSocket().send(packet);
+        } catch (IOException e) {
+          //the session may have just expired, which only drops the packet and the session, not the tunnel
+          params.getMetrics().recordError();
+          if (params.isPrint()) System.err.println(dateStr + ": Failed to forward UDP packet from " + toStr(f) + " to " + backend + ": " + e);
+          close(f);
+          continue;
         }
-        f.getReceiveSocket().send(packet);
-        for (TCPObserver observer : upObservers) {
-          observer.observe(packet.getData(), 0, packet.getLength());
+        upMetrics.recordChunk(packet.getLength());
+        if (!upObservers.isEmpty() && params.isObserversEnabled()) {
+          long start = System.nanoTime();
+          for (TCPObserver observer : upObservers) {
+            observer.observe(packet.getData(), 0, packet.getLength());
+            observer.flush();
+          }
+          upMetrics.recordObserve(System.nanoTime() - start);
         }
       } catch (Throwable e) {
+        params.getMetrics().recordError();
         if (params.isPrint()) {
-          String remoteAddr = params.getRemoteHost() + ":" + params.getRemotePort();
+          String remoteAddr = String.valueOf(backend);
           String humanRemoteAddr = Utils.mapAddrToHumanReadable(remoteAddr);
           remoteAddr = remoteAddr + " (" + humanRemoteAddr + ")";
           System.err.println(dateStr + ": Failed to connect to remote host (" + remoteAddr + ")");
@@ -94,6 +127,11 @@ public class UDPTunnel extends Thread {
         connectionBroken();
       }
     }
+    //stop the sessions as well, as they would otherwise keep waiting for backend responses
+    forwarders.close();
+    for (UDPForwarder f : forwarders.sessions()) {
+      f.close();
+    }
   }
 
   private String toStr(DatagramPacket packet) {
@@ -120,11 +158,12 @@ public class UDPTunnel extends Thread {
 
   public void close(UDPForwarder f) {
     String clientAddress = toStr(f);
-    forwarders.remove(clientAddress);
+    forwarders.remove(f.getFwdAddr(), f.getFwdPort(), f);
     if (!f.getReceiveSocket().isClosed()) f.getReceiveSocket().close();
+    if (!params.isPrint()) return;
     System.out.println(clientAddress
             + "-->"
-            + params.getRemoteHost() + ":" + params.getRemotePort()
+            + f.getBackend()
             + " is Closed");
     System.out.println(forwarders.size() + " tunnels still alive");
   }
@@ -0,0 +1,155 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.buffers.BufferPool;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes the data read by a forwarder to the target stream, coalescing several reads into one write as defined by the {@link FlushMode}.
+ * With FlushMode.ALWAYS, every read is written directly as before.
+ * Otherwise the data is collected into a pooled buffer until the flush condition is met, the buffer is full, or the stream ends.
+ * Not thread safe, each forwarder has its own.
+ *
+ * @author Teemu Kanstren.
+ */
+public class WriteCoalescer {
+  /** The stream to write to. */
+  private final OutputStream out;
+  /** When to flush. */
+  private final FlushMode mode;
+  /** Pending bytes to flush at in FlushMode.SIZE. */
+  private final int threshold;
+  /** Maximum age of pending data in FlushMode.DEADLINE. */
+  private final long deadlineNanos;
+  /** Pooled buffer for collecting the pending data. Null with FlushMode.ALWAYS. */
+  private final PooledBuffer pooled;
+  /** Backing array of the pooled buffer. */
+  private final byte[] pending;
+  /** Number of bytes pending in the buffer. */
+  private int count = 0;
+  /** Time (nanos) when the oldest pending data was added. */
+  private long pendingSince = 0;
+  /** Number of reads passed in. */
+  private long reads = 0;
+  /** Number of writes to the target stream. */
+  private long writes = 0;
+  /** Number of flushes. */
+  private long flushes = 0;
+
+  /**
+   * @param out The stream to write to.
+   * @param params Configuration parameters, defining the flush mode and its parameters.
+   */
+  public WriteCoalescer(OutputStream out, Params params) {
+    this.out = out;
+    this.mode = params.getFlushMode();
+    this.threshold = params.getFlushBytes();
+    this.deadlineNanos = params.getFlushMicros() * 1000L;
+    if (mode == FlushMode.ALWAYS) {
+      pooled = null;
+      pending = null;
+    } else {
+      int capacity = mode == FlushMode.SIZE ? threshold : BufferPool.MAX_SIZE;
+      pooled = params.getBufferPool().acquire(capacity, false);
+      pending = pooled.array();
+    }
+  }
+
+  /**
+   * Adds the given data to be written. Written immediately if not coalescing or if the data is too big to collect.
+   *
+   * @param data The data to write.
+   * @param start Starting index of the data in the array.
+   * @param length Number of bytes to write.
+   * @throws IOException If writing fails.
+   */
+  public void write(byte[] data, int start, int length) throws IOException {
+    reads++;
+    if (pending == null) {
+      out.write(data, start, length);
+      writes++;
+      return;
+    }
+    int capacity = pooled.buffer().limit();
+    if (count + length > capacity) writePending();
+    if (length >= capacity) {
+      out.write(data, start, length);
+      writes++;
+      return;
+    }
+    if (count == 0) pendingSince = System.nanoTime();
+    System.arraycopy(data, start, pending, count, length);
+    count += length;
+  }
+
+  /**
+   * @param in The input stream the data is read from, to check if more is available.
+   * Before Java 13 always none for a socket with a channel, which makes every mode flush after each read.
+   * @return True if the pending data should be flushed now.
+   * @throws IOException If checking the input fails.
+   */
+  public boolean shouldFlush(InputStream in) throws IOException {
+    switch (mode) {
+      case ALWAYS:
+        return true;
+      case SIZE:
+        if (count >= threshold) return true;
+        break;
+      case DEADLINE:
+        if (count > 0 && System.nanoTime() - pendingSince >= deadlineNanos) return true;
+        break;
+    }
+    return in.available() == 0;
+  }
+
+  /**
+   * Writes all pending data and flushes the target stream.
+   *
+   * @throws IOException If writing fails.
+   */
+  public void flush() throws IOException {
+    writePending();
+    out.flush();
+    flushes++;
+  }
+
+  /**
+   * Writes the pending data, if any.
+   *
+   * @throws IOException If writing fails.
+   */
+  private void writePending() throws IOException {
+    if (count == 0) return;
+    out.write(pending, 0, count);
+    writes++;
+    count = 0;
+  }
+
+  /**
+   * Releases the buffer and adds the counts to the given statistics. Any pending data is discarded.
+   *
+   * @param stats Where to add the counts.
+   */
+  public void close(WriteStats stats) {
+    if (pooled != null) pooled.release();
+    stats.add(reads, writes, flushes);
+  }
+
+  /**
+   * @return Number of reads passed in.
+   */
+  public long getReads() {
+    return reads;
+  }
+
+  /**
+   * @return Number of writes to the target stream.
+   */
+  public long getWrites() {
+    return writes;
+  }
+}
@@ -0,0 +1,57 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the reads forwarded and the writes they took, over all TCP forwarders of a tunnel.
+ * Without coalescing every read is one write, so the difference is the number of socket writes saved by coalescing.
+ *
+ * @author Teemu Kanstren.
+ */
+public class WriteStats {
+  /** Number of reads forwarded. */
+  private final LongAdder reads = new LongAdder();
+  /** Number of writes to target sockets. */
+  private final LongAdder writes = new LongAdder();
+  /** Number of flushes, including the ones that found nothing to write. */
+  private final LongAdder flushes = new LongAdder();
+
+  /**
+   * @param reads Number of reads to add.
+   * @param writes Number of writes to add.
+   * @param flushes Number of flushes to add.
+   */
+  public void add(long reads, long writes, long flushes) {
+    this.reads.add(reads);
+    this.writes.add(writes);
+    this.flushes.add(flushes);
+  }
+
+  /**
+   * @return Number of reads forwarded.
+   */
+  public long getReads() {
+    return reads.sum();
+  }
+
+  /**
+   * @return Number of writes to target sockets.
+   */
+  public long getWrites() {
+    return writes.sum();
+  }
+
+  /**
+   * @return Number of flushes.
+   */
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  /**
+   * @return Number of socket writes saved compared to writing every read separately.
+   */
+  public long getWritesSaved() {
+    return Math.max(0, getReads() - getWrites());
+  }
+}
@@ -0,0 +1,36 @@
+package net.kanstren.tcptunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a sampled read of a TCP forwarder.
+ * Only every {@link TunnelEvents#CHUNK_SAMPLE_INTERVAL}th read is recorded, with the totals so far to show the rate between samples.
+ *
+ * @author Teemu Kanstren.
+ */
+@Name("net.kanstren.tcptunnel.Chunk")
+@Label("Tunnel Chunk")
+@Category({"TCP Tunnel"})
+@Description("Sampled chunk of data read by a forwarder")
+class ChunkEvent extends Event {
+  @Label("Connection Id")
+  long connectionId;
+  @Label("Upstream")
+  @Description("True for client to backend, false for backend to client")
+  boolean up;
+  @Label("Size")
+  @DataAmount
+  int size;
+  @Label("Reads")
+  @Description("Number of reads by the forwarder so far")
+  long reads;
+  @Label("Bytes")
+  @Description("Number of bytes forwarded so far")
+  @DataAmount
+  long bytes;
+}
@@ -0,0 +1,34 @@
+package net.kanstren.tcptunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a TCP tunnel connecting to its backend, successfully or not.
+ *
+ * @author Teemu Kanstren.
+ */
+@Name("net.kanstren.tcptunnel.Connect")
+@Label("Tunnel Connect")
+@Category({"TCP Tunnel"})
+@Description("A client connection was accepted and the tunnel connected to a backend")
+class ConnectEvent extends Event {
+  @Label("Connection Id")
+  long connectionId;
+  @Label("Client")
+  String client;
+  @Label("Backend")
+  String backend;
+  @Label("Pooled")
+  @Description("True if a pre-connected backend connection was used")
+  boolean pooled;
+  @Label("Success")
+  boolean success;
+  @Label("Connect Time")
+  @Timespan
+  long connectTime;
+}
@@ -0,0 +1,36 @@
+package net.kanstren.tcptunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a TCP tunnel closing, with the totals for its lifetime.
+ *
+ * @author Teemu Kanstren.
+ */
+@Name("net.kanstren.tcptunnel.ConnectionClosed")
+@Label("Tunnel Connection Closed")
+@Category({"TCP Tunnel"})
+@Description("A tunnel connection was closed after an error or end of stream on either side")
+class ConnectionClosedEvent extends Event {
+  @Label("Connection Id")
+  long connectionId;
+  @Label("Client")
+  String client;
+  @Label("Backend")
+  String backend;
+  @Label("Bytes Up")
+  @DataAmount
+  long upBytes;
+  @Label("Bytes Down")
+  @DataAmount
+  long downBytes;
+  @Label("Lifetime")
+  @Timespan
+  long lifetime;
+}
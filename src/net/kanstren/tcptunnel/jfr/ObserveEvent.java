@@ -0,0 +1,33 @@
+package net.kanstren.tcptunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for an observer call blocking the forwarding thread.
+ * Only calls taking longer than the threshold are recorded, 1 ms by default.
+ *
+ * @author Teemu Kanstren.
+ */
+@Name("net.kanstren.tcptunnel.Observe")
+@Label("Tunnel Observe")
+@Category({"TCP Tunnel"})
+@Description("Observer (logger) call that stalled forwarding")
+@Threshold("1 ms")
+class ObserveEvent extends Event {
+  @Label("Connection Id")
+  long connectionId;
+  @Label("Upstream")
+  @Description("True for client to backend, false for backend to client")
+  boolean up;
+  @Label("Observer")
+  String observer;
+  @Label("Size")
+  @DataAmount
+  int size;
+}
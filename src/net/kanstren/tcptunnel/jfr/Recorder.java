@@ -0,0 +1,67 @@
+package net.kanstren.tcptunnel.jfr;
+
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+
+/**
+ * Creates and commits the flight recorder events.
+ * Only loaded through {@link TunnelEvents} once flight recorder is known to be available, as it links to the jdk.jfr classes.
+ * Each event checks if it is enabled before filling in the fields, so disabled events cost about nothing.
+ *
+ * @author Teemu Kanstren.
+ */
+class Recorder {
+  /** See {@link TunnelEvents#connect}. */
+  static void connect(long connectionId, String client, String backend, boolean pooled, boolean success, long connectNanos) {
+    ConnectEvent event = new ConnectEvent();
+    if (!event.shouldCommit()) return;
+    event.connectionId = connectionId;
+    event.client = client;
+    event.backend = backend;
+    event.pooled = pooled;
+    event.success = success;
+    event.connectTime = connectNanos;
+    event.commit();
+  }
+
+  /** See {@link TunnelEvents#connectionClosed}. */
+  static void connectionClosed(long connectionId, String client, String backend, long upBytes, long downBytes, long lifetimeNanos) {
+    ConnectionClosedEvent event = new ConnectionClosedEvent();
+    if (!event.shouldCommit()) return;
+    event.connectionId = connectionId;
+    event.client = client;
+    event.backend = backend;
+    event.upBytes = upBytes;
+    event.downBytes = downBytes;
+    event.lifetime = lifetimeNanos;
+    event.commit();
+  }
+
+  /** See {@link TunnelEvents#chunk}. */
+  static void chunk(long connectionId, boolean up, int size, long reads, long bytes) {
+    ChunkEvent event = new ChunkEvent();
+    if (!event.shouldCommit()) return;
+    event.connectionId = connectionId;
+    event.up = up;
+    event.size = size;
+    event.reads = reads;
+    event.bytes = bytes;
+    event.commit();
+  }
+
+  /** See {@link TunnelEvents#observe}. */
+  static void observe(TCPObserver observer, byte[] buffer, int start, int count, long connectionId, boolean up) throws IOException {
+    ObserveEvent event = new ObserveEvent();
+    event.begin();
+    observer.observe(buffer, start, count);
+    event.end();
+    //checks the threshold, so only stalls get the fields filled in
+    if (!event.shouldCommit()) return;
+    event.connectionId = connectionId;
+    event.up = up;
+    event.observer = observer.getClass().getSimpleName();
+    event.size = count;
+    event.commit();
+  }
+}
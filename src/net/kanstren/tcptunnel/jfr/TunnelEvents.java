@@ -0,0 +1,99 @@
+package net.kanstren.tcptunnel.jfr;
+
+import net.kanstren.tcptunnel.observers.TCPObserver;
+
+import java.io.IOException;
+
+/**
+ * Emits Java Flight Recorder events for TCP tunnel connections, forwarded chunks, and observer stalls.
+ * The events are recorded when a flight recording is running with them enabled, e.g., started with -XX:StartFlightRecording.
+ * Flight recorder is not available on all Java 8 runtimes, so the event classes are only touched if it is found.
+ * Without it, the calls here do nothing (except the observer call itself).
+ *
+ * @author Teemu Kanstren.
+ */
+public class TunnelEvents {
+  /** Forwarders record a chunk event for every this many reads. Has to be a power of two. */
+  public static final int CHUNK_SAMPLE_INTERVAL = 64;
+  /** For checking if a read number is sampled. */
+  private static final long CHUNK_SAMPLE_MASK = CHUNK_SAMPLE_INTERVAL - 1;
+  /** True if the runtime has flight recorder. */
+  private static final boolean AVAILABLE = isFlightRecorderPresent();
+
+  /**
+   * @return True if the runtime has the flight recorder event API.
+   */
+  private static boolean isFlightRecorderPresent() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return True if the runtime has flight recorder, so events can be recorded.
+   */
+  public static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  /**
+   * Records an attempt to connect a tunnel to its backend.
+   *
+   * @param connectionId Identifier of the tunnel connection.
+   * @param client Client address.
+   * @param backend Backend address.
+   * @param pooled True if a pre-connected connection was used.
+   * @param success True if connected.
+   * @param connectNanos Time taken to connect, or fail to, in nanoseconds.
+   */
+  public static void connect(long connectionId, String client, String backend, boolean pooled, boolean success, long connectNanos) {
+    if (AVAILABLE) Recorder.connect(connectionId, client, backend, pooled, success, connectNanos);
+  }
+
+  /**
+   * Records a tunnel connection closing.
+   *
+   * @param connectionId Identifier of the tunnel connection.
+   * @param client Client address.
+   * @param backend Backend address.
+   * @param upBytes Bytes forwarded from client to backend.
+   * @param downBytes Bytes forwarded from backend to client.
+   * @param lifetimeNanos Time the connection was open, in nanoseconds.
+   */
+  public static void connectionClosed(long connectionId, String client, String backend, long upBytes, long downBytes, long lifetimeNanos) {
+    if (AVAILABLE) Recorder.connectionClosed(connectionId, client, backend, upBytes, downBytes, lifetimeNanos);
+  }
+
+  /**
+   * Records a chunk read by a forwarder, if the read is one of the sampled ones.
+   * The first read is always sampled, and after that every {@link #CHUNK_SAMPLE_INTERVAL}th.
+   *
+   * @param connectionId Identifier of the tunnel connection.
+   * @param up True for client to backend, false for backend to client.
+   * @param size Number of bytes read.
+   * @param reads Number of reads so far, including this one.
+   * @param bytes Number of bytes forwarded so far, including this read.
+   */
+  public static void chunk(long connectionId, boolean up, int size, long reads, long bytes) {
+    if (AVAILABLE && ((reads - 1) & CHUNK_SAMPLE_MASK) == 0) Recorder.chunk(connectionId, up, size, reads, bytes);
+  }
+
+  /**
+   * Passes the data to the observer, recording an event if it takes longer than the event threshold.
+   *
+   * @param observer The observer to call.
+   * @param buffer The data buffer.
+   * @param start Start index of the data in the buffer.
+   * @param count Number of bytes of data.
+   * @param connectionId Identifier of the tunnel connection.
+   * @param up True for client to backend, false for backend to client.
+   * @throws IOException If the observer fails.
+   */
+  public static void observe(TCPObserver observer, byte[] buffer, int start, int count, long connectionId, boolean up) throws IOException {
+    if (AVAILABLE) Recorder.observe(observer, buffer, start, count, connectionId, up);
+    else observer.observe(buffer, start, count);
+  }
+}
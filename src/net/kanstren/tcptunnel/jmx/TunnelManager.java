@@ -0,0 +1,166 @@
+package net.kanstren.tcptunnel.jmx;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.forwarder.TunnelConnection;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Exposes a running tunnel over JMX, for inspecting it and controlling it without restarting.
+ * Attributes are read from the live tunnel state on each request, so nothing is collected when no one is looking.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TunnelManager implements TunnelManagerMBean {
+  /** The tunnel to manage. */
+  private final Main main;
+  /** Configuration parameters of the tunnel. */
+  private final Params params;
+  /** Name this is registered with, null if not registered. */
+  private ObjectName objectName = null;
+
+  /**
+   * @param main The tunnel to manage.
+   * @param params Configuration parameters of the tunnel.
+   */
+  public TunnelManager(Main main, Params params) {
+    this.main = main;
+    this.params = params;
+  }
+
+  /**
+   * Registers this in the platform MBean server, named by the source port of the tunnel.
+   *
+   * @throws JMException If registration fails, for example due to another tunnel already registered for the same port.
+   */
+  public void register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("net.kanstren.tcptunnel:type=Tunnel,port=" + params.getSourcePort());
+    server.registerMBean(this, name);
+    objectName = name;
+  }
+
+  /**
+   * Removes this from the platform MBean server, if registered.
+   */
+  public void unregister() {
+    if (objectName == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      //already gone
+    }
+    objectName = null;
+  }
+
+  /**
+   * @return Name this is registered with, null if not registered.
+   */
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public String getName() {
+    return params.getMetrics().getName();
+  }
+
+  @Override
+  public int getActiveConnections() {
+    return params.getMetrics().getActiveConnections();
+  }
+
+  @Override
+  public long getOpenedConnections() {
+    return params.getMetrics().getOpenedConnections();
+  }
+
+  @Override
+  public long getUpBytes() {
+    return params.getMetrics().getUp().getBytes();
+  }
+
+  @Override
+  public long getDownBytes() {
+    return params.getMetrics().getDown().getBytes();
+  }
+
+  @Override
+  public String[] getConnections() {
+    List<TunnelConnection> connections = main.getConnections();
+    String[] result = new String[connections.size()];
+    for (int i = 0 ; i < result.length ; i++) {
+      TunnelConnection c = connections.get(i);
+      result[i] = c.getId() + ": " + c.getClientAddress() + " <--> " + c.getServerAddress() + " up=" + c.getUpBytes() + " down=" + c.getDownBytes();
+    }
+    return result;
+  }
+
+  @Override
+  public String[] getBackends() {
+    List<Backend> backends = params.getLoadBalancer().getBackends();
+    String[] result = new String[backends.size()];
+    for (int i = 0 ; i < result.length ; i++) {
+      Backend b = backends.get(i);
+      String state = b.isHealthy() ? "healthy" : b.isEjected() ? "ejected" : "down";
+      result[i] = b + " " + state + " active=" + b.getActiveConnections() + " latency=" + (b.getLatencyNanos() / 1000) + "us";
+    }
+    return result;
+  }
+
+  @Override
+  public int getObserverQueueDepth() {
+    if (!params.isAsyncObservers()) return 0;
+    return params.getObserverPipeline().getQueueDepth();
+  }
+
+  @Override
+  public int getObserverQueueCapacity() {
+    if (!params.isAsyncObservers()) return 0;
+    return params.getObserverPipeline().getQueueCapacity();
+  }
+
+  @Override
+  public long getObserverDropped() {
+    if (!params.isAsyncObservers()) return 0;
+    return params.getObserverPipeline().getDropped();
+  }
+
+  @Override
+  public boolean isObserversEnabled() {
+    return params.isObserversEnabled();
+  }
+
+  @Override
+  public void setObserversEnabled(boolean enabled) {
+    params.setObserversEnabled(enabled);
+  }
+
+  @Override
+  public int getBufferSize() {
+    return params.getBufferSize();
+  }
+
+  @Override
+  public void setBufferSize(int bufferSize) {
+    if (bufferSize <= 0) throw new IllegalArgumentException("Buffer size has to be > 0, was: " + bufferSize + ".");
+    params.setBufferSize(bufferSize);
+  }
+
+  @Override
+  public boolean closeConnection(long id) {
+    return main.closeConnection(id);
+  }
+
+  @Override
+  public void stop() {
+    main.stop();
+  }
+}
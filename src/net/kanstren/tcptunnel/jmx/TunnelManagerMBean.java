@@ -0,0 +1,91 @@
+package net.kanstren.tcptunnel.jmx;
+
+/**
+ * Management interface for a running tunnel. Registered in the platform MBean server when JMX is enabled.
+ *
+ * @author Teemu Kanstren.
+ */
+public interface TunnelManagerMBean {
+  /**
+   * @return Name of the tunnel (source port -> remote host:port).
+   */
+  String getName();
+
+  /**
+   * @return Number of connections currently open.
+   */
+  int getActiveConnections();
+
+  /**
+   * @return Number of connections opened since start.
+   */
+  long getOpenedConnections();
+
+  /**
+   * @return Bytes forwarded from clients to backends since start.
+   */
+  long getUpBytes();
+
+  /**
+   * @return Bytes forwarded from backends to clients since start.
+   */
+  long getDownBytes();
+
+  /**
+   * @return Description of each open TCP connection: id, addresses, and bytes forwarded each way.
+   */
+  String[] getConnections();
+
+  /**
+   * @return Description of each backend: address, health, active connections, and latency.
+   */
+  String[] getBackends();
+
+  /**
+   * @return Number of chunks waiting in the async observer queues. 0 if async observers are not enabled.
+   */
+  int getObserverQueueDepth();
+
+  /**
+   * @return Total capacity of the async observer queues. 0 if async observers are not enabled.
+   */
+  int getObserverQueueCapacity();
+
+  /**
+   * @return Number of chunks dropped due to full async observer queues.
+   */
+  long getObserverDropped();
+
+  /**
+   * @return True if data is passed to the observers.
+   */
+  boolean isObserversEnabled();
+
+  /**
+   * @param enabled False to forward data without passing it to the observers, true to start passing it again.
+   */
+  void setObserversEnabled(boolean enabled);
+
+  /**
+   * @return Buffer size for new connections.
+   */
+  int getBufferSize();
+
+  /**
+   * @param bufferSize Buffer size for new connections. Existing connections keep their buffers.
+   */
+  void setBufferSize(int bufferSize);
+
+  /**
+   * Closes the given connection.
+   *
+   * @param id Identifier of the connection, as shown in the connection list.
+   * @return True if the connection was found and closed.
+   */
+  boolean closeConnection(long id);
+
+  /**
+   * Stops the tunnel, closing all connections and no longer accepting new ones.
+   */
+  void stop();
+}
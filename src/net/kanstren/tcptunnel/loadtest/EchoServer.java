@@ -0,0 +1,168 @@
+package net.kanstren.tcptunnel.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local backend for load testing. Echoes back everything it receives, over TCP or UDP.
+ * In DNS mode, answers every query with a single A record for 127.0.0.1, so the response is a valid DNS message.
+ *
+ * @author Teemu Kanstren.
+ */
+public class EchoServer implements Runnable {
+  /** Flags for a standard response with recursion desired and available, no error. */
+  private static final int RESPONSE_FLAGS = 0x8180;
+  /** The protocol to serve. */
+  private final LoadTest.Mode mode;
+  /** For TCP mode. */
+  private ServerSocket serverSocket;
+  /** For UDP and DNS mode. */
+  private DatagramSocket datagramSocket;
+  /** As long as this is true, we keep serving. */
+  private volatile boolean running = true;
+
+  /**
+   * @param mode The protocol to serve.
+   */
+  public EchoServer(LoadTest.Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Binds a free loopback port and starts serving in a new thread.
+   *
+   * @return The bound port.
+   * @throws IOException If binding fails.
+   */
+  public int start() throws IOException {
+    int port;
+    if (mode == LoadTest.Mode.TCP) {
+      serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+      port = serverSocket.getLocalPort();
+    } else {
+      datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+      port = datagramSocket.getLocalPort();
+    }
+    Thread thread = new Thread(this, "tcptunnel-echo");
+    thread.setDaemon(true);
+    thread.start();
+    return port;
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (mode == LoadTest.Mode.TCP) acceptTCP();
+      else serveDatagrams();
+    } catch (IOException e) {
+      if (running) e.printStackTrace();
+    }
+  }
+
+  /**
+   * Accepts TCP connections, echoing each in its own thread.
+   *
+   * @throws IOException If accepting fails.
+   */
+  private void acceptTCP() throws IOException {
+    while (running) {
+      Socket socket = serverSocket.accept();
+      socket.setTcpNoDelay(true);
+      Thread thread = new Thread(() -> echo(socket), "tcptunnel-echo-connection");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Writes back everything read from the socket, until it closes.
+   *
+   * @param socket The connection to echo.
+   */
+  private void echo(Socket socket) {
+    try (Socket s = socket) {
+      InputStream in = s.getInputStream();
+      OutputStream out = s.getOutputStream();
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      //client closed, nothing to do
+    }
+  }
+
+  /**
+   * Echoes datagrams back to their sender, or answers them as DNS queries in DNS mode.
+   *
+   * @throws IOException If receiving or sending fails.
+   */
+  private void serveDatagrams() throws IOException {
+    byte[] buffer = new byte[65536];
+    byte[] answer = new byte[65536];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (running) {
+      packet.setData(buffer);
+      datagramSocket.receive(packet);
+      if (mode == LoadTest.Mode.DNS) {
+        int length = answer(buffer, packet.getLength(), answer);
+        if (length < 0) continue;
+        packet.setData(answer, 0, length);
+      }
+      datagramSocket.send(packet);
+    }
+  }
+
+  /**
+   * Builds a response to a query with a single question, answering it with a single A record.
+   *
+   * @param query The query.
+   * @param length Length of the query.
+   * @param answer Buffer to write the response into.
+   * @return Length of the response, or -1 if the query was not understood.
+   */
+  static int answer(byte[] query, int length, byte[] answer) {
+    //header is 12 bytes, followed by the question name, type, and class
+    int end = 12;
+    while (end < length && query[end] != 0) end += (query[end] & 0xff) + 1;
+    end += 5;
+    if (end > length) return -1;
+    System.arraycopy(query, 0, answer, 0, end);
+    answer[2] = (byte) (RESPONSE_FLAGS >> 8);
+    answer[3] = (byte) RESPONSE_FLAGS;
+    //one question, one answer, nothing else
+    answer[4] = 0;
+    answer[5] = 1;
+    answer[6] = 0;
+    answer[7] = 1;
+    for (int i = 8 ; i < 12 ; i++) answer[i] = 0;
+    byte[] record = {
+            (byte) 0xc0, 12, //name is a pointer to the question name
+            0, 1, //type A
+            0, 1, //class IN
+            0, 0, 0, 60, //TTL
+            0, 4, //data length
+            127, 0, 0, 1};
+    System.arraycopy(record, 0, answer, end, record.length);
+    return end + record.length;
+  }
+
+  /**
+   * Stops serving and closes the port.
+   */
+  public void stop() {
+    running = false;
+    try {
+      if (serverSocket != null) serverSocket.close();
+    } catch (IOException e) {
+    }
+    if (datagramSocket != null) datagramSocket.close();
+  }
+}
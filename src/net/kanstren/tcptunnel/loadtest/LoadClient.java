@@ -0,0 +1,254 @@
+package net.kanstren.tcptunnel.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single load test client. Sends messages to the target port and waits for each response before sending the next.
+ * With a rate set, sends are scheduled at fixed intervals and latency is measured from the scheduled send time,
+ * so a stalled response also counts against the messages that should have been sent meanwhile.
+ * Latencies are only recorded while the test is measuring, not during warmup.
+ *
+ * @author Teemu Kanstren.
+ */
+public class LoadClient implements Runnable {
+  /** How long to wait for a UDP or DNS response before counting it as lost, in milliseconds. */
+  private static final int DATAGRAM_TIMEOUT = 1000;
+  /** The protocol to use. */
+  private final LoadTest.Mode mode;
+  /** Port to send to. */
+  private final int port;
+  /** Size of the messages for TCP and UDP. */
+  private final int size;
+  /** Time between sends, in nanoseconds. 0 to send as fast as responses arrive. */
+  private final long intervalNanos;
+  /** Identifies this client, to give each DNS client its own query name. */
+  private final int index;
+  /** As long as this is true, we keep sending. */
+  private volatile boolean running = true;
+  /** True while latencies should be recorded. */
+  private volatile boolean measuring = false;
+  /** Recorded latencies, in nanoseconds. */
+  private long[] latencies = new long[1024];
+  /** Number of recorded latencies. */
+  private int count = 0;
+  /** Number of failed messages while measuring, lost, mismatched, or failed to send. */
+  private long errors = 0;
+  /** The thread running this client. */
+  private Thread thread;
+
+  /**
+   * @param mode The protocol to use.
+   * @param port Port to send to.
+   * @param size Size of the messages for TCP and UDP. Ignored for DNS.
+   * @param rate Messages per second to send. 0 to send as fast as responses arrive.
+   * @param index Identifies this client.
+   */
+  public LoadClient(LoadTest.Mode mode, int port, int size, int rate, int index) {
+    this.mode = mode;
+    this.port = port;
+    this.size = size;
+    this.intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+    this.index = index;
+  }
+
+  /**
+   * Starts sending in a new thread.
+   */
+  public void start() {
+    thread = new Thread(this, "tcptunnel-load-client-" + index);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param measuring True to record latencies from now on, false to stop recording.
+   */
+  public void setMeasuring(boolean measuring) {
+    this.measuring = measuring;
+  }
+
+  /**
+   * Stops sending and waits for the client thread to finish.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    thread.join(DATAGRAM_TIMEOUT * 2);
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (mode == LoadTest.Mode.TCP) runTCP();
+      else runDatagram();
+    } catch (IOException e) {
+      if (running) {
+        System.err.println("Load client " + index + " failed: " + e);
+        errors++;
+      }
+    }
+  }
+
+  /**
+   * Sends the messages over a single TCP connection, reading back the echo of each.
+   *
+   * @throws IOException If the connection fails.
+   */
+  private void runTCP() throws IOException {
+    byte[] message = new byte[size];
+    Arrays.fill(message, (byte) 'x');
+    byte[] response = new byte[size];
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      socket.setTcpNoDelay(true);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      long next = System.nanoTime();
+      while (running) {
+        long start = pace(next);
+        out.write(message);
+        out.flush();
+        int read = 0;
+        while (read < size) {
+          int n = in.read(response, read, size - read);
+          if (n < 0) throw new IOException("Connection closed by server");
+          read += n;
+        }
+        record(start);
+        next = start + intervalNanos;
+      }
+    }
+  }
+
+  /**
+   * Sends the messages as datagrams, waiting for each response.
+   * In DNS mode, the messages are DNS queries with the sequence number as transaction id.
+   *
+   * @throws IOException If the socket fails.
+   */
+  private void runDatagram() throws IOException {
+    boolean dns = mode == LoadTest.Mode.DNS;
+    byte[] message = dns ? query(index) : new byte[size];
+    byte[] response = new byte[65536];
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    DatagramPacket request = new DatagramPacket(message, message.length, loopback, port);
+    DatagramPacket reply = new DatagramPacket(response, response.length);
+    int txid = 0;
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(DATAGRAM_TIMEOUT);
+      long next = System.nanoTime();
+      while (running) {
+        long start = pace(next);
+        txid = (txid + 1) & 0xffff;
+        message[0] = (byte) (txid >> 8);
+        message[1] = (byte) txid;
+        socket.send(request);
+        if (receive(socket, reply, message, txid, dns)) record(start);
+        else if (measuring) errors++;
+        next = start + intervalNanos;
+      }
+    }
+  }
+
+  /**
+   * Receives the response to the latest request, skipping late responses to earlier requests that timed out.
+   *
+   * @param socket The socket to receive from.
+   * @param reply Packet to receive into.
+   * @param message The request, identified by its first two bytes.
+   * @param txid Identifier of the request, the first two bytes.
+   * @param dns True if the response should be a DNS response.
+   * @return True if the response was received, false if timed out or not valid.
+   * @throws IOException If receiving fails.
+   */
+  private boolean receive(DatagramSocket socket, DatagramPacket reply, byte[] message, int txid, boolean dns) throws IOException {
+    byte[] data = reply.getData();
+    while (true) {
+      reply.setLength(data.length);
+      try {
+        socket.receive(reply);
+      } catch (SocketTimeoutException e) {
+        return false;
+      }
+      if (reply.getLength() < 2) return false;
+      int id = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+      if (id != txid) continue;
+      if (dns) return reply.getLength() > 12 && (data[2] & 0x80) != 0;
+      return reply.getLength() == message.length;
+    }
+  }
+
+  /**
+   * @param index Identifies the client, to give it its own query name.
+   * @return A DNS query for the A record of "c[index].load.test".
+   */
+  static byte[] query(int index) {
+    String label = "c" + index;
+    byte[] query = new byte[12 + 1 + label.length() + 11 + 4];
+    query[2] = 1; //recursion desired
+    query[5] = 1; //one question
+    int i = 12;
+    query[i++] = (byte) label.length();
+    for (char c : label.toCharArray()) query[i++] = (byte) c;
+    query[i++] = 4;
+    for (char c : "load".toCharArray()) query[i++] = (byte) c;
+    query[i++] = 4;
+    for (char c : "test".toCharArray()) query[i++] = (byte) c;
+    query[i++] = 0;
+    query[i++] = 0;
+    query[i++] = 1; //type A
+    query[i++] = 0;
+    query[i] = 1; //class IN
+    return query;
+  }
+
+  /**
+   * Waits until the scheduled send time, if sending at a fixed rate.
+   *
+   * @param next The scheduled send time.
+   * @return The time to measure the latency from. The scheduled time for a fixed rate, the current time otherwise.
+   */
+  private long pace(long next) {
+    if (intervalNanos == 0) return System.nanoTime();
+    long now;
+    while ((now = System.nanoTime()) < next) {
+      LockSupport.parkNanos(next - now);
+    }
+    return next;
+  }
+
+  /**
+   * Records the latency of a completed message, if measuring.
+   *
+   * @param start Time to measure from.
+   */
+  private void record(long start) {
+    long latency = System.nanoTime() - start;
+    if (!measuring) return;
+    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+    latencies[count++] = latency;
+  }
+
+  /**
+   * @return The recorded latencies, in nanoseconds. Only valid after the client is stopped.
+   */
+  public long[] getLatencies() {
+    return Arrays.copyOf(latencies, count);
+  }
+
+  /**
+   * @return Number of failed messages while measuring. Only valid after the client is stopped.
+   */
+  public long getErrors() {
+    return errors;
+  }
+}
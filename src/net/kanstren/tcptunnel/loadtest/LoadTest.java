@@ -0,0 +1,287 @@
+package net.kanstren.tcptunnel.loadtest;
+
+import net.kanstren.tcptunnel.ArgumentParser;
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Load tests the tunnel over loopback, to size tunnel instances before deploying them.
+ * Starts a local echo backend and a tunnel in front of it, then drives a number of concurrent clients
+ * first directly against the backend and then through the tunnel.
+ * Reports the throughput and latency percentiles of both, and the latency added by the tunnel.
+ * Options after "--" are passed to the tunnel, to test different tunnel configurations.
+ *
+ * @author Teemu Kanstren.
+ */
+public class LoadTest {
+  public static final String USAGE = "Usage: java -cp tcptunnel.jar net.kanstren.tcptunnel.loadtest.LoadTest [options] [-- tunnel options]" + ArgumentParser.ln +
+          "  --mode <tcp|udp|dns>: Protocol to test. Default tcp." + ArgumentParser.ln +
+          "  --clients <count>: Number of concurrent clients. Default 10." + ArgumentParser.ln +
+          "  --size <bytes>: Message size for tcp and udp. Default 1024." + ArgumentParser.ln +
+          "  --rate <messages/s>: Messages per second per client. Default 0, sending the next message as soon as the previous response arrives." + ArgumentParser.ln +
+          "  --warmup <seconds>: Time to run before measuring, for each run. Default 3." + ArgumentParser.ln +
+          "  --duration <seconds>: Time to measure, for each run. Default 10." + ArgumentParser.ln +
+          "  --help: Prints this help." + ArgumentParser.ln +
+          "Tunnel options are given as for the tunnel itself, without the ports and host. E.g. -- --nio --buffer 65536" + ArgumentParser.ln +
+          "Unlike the tunnel itself, no logger is used unless given with --logger.";
+
+  /** Protocols to test. */
+  public enum Mode {
+    TCP, UDP, DNS
+  }
+
+  /** Protocol to test. */
+  private Mode mode = Mode.TCP;
+  /** Number of concurrent clients. */
+  private int clients = 10;
+  /** Message size for TCP and UDP. */
+  private int size = 1024;
+  /** Messages per second per client. 0 for as fast as possible. */
+  private int rate = 0;
+  /** Time to run before measuring, in seconds. */
+  private int warmup = 3;
+  /** Time to measure, in seconds. */
+  private int duration = 10;
+  /** Options passed to the tunnel. */
+  private List<String> tunnelOptions = new ArrayList<>();
+  /** Port the tunnel listens on. */
+  private int tunnelPort;
+
+  public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    String errors = test.parse(args);
+    if (errors == null) {
+      System.out.println(USAGE);
+      return;
+    }
+    if (errors.length() > 0) {
+      System.err.println(errors);
+      System.err.println(USAGE);
+      return;
+    }
+    test.run();
+  }
+
+  /**
+   * @param args Command line arguments.
+   * @return Description of errors found, empty if none. Null if help was requested.
+   */
+  String parse(String[] args) {
+    String ln = ArgumentParser.ln;
+    String errors = "";
+    for (int i = 0 ; i < args.length ; i++) {
+      String arg = args[i];
+      if (arg.equals("--")) {
+        tunnelOptions.addAll(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      }
+      if (arg.equals("--help")) return null;
+      if (i + 1 >= args.length) {
+        errors += "No value given for option " + arg + "." + ln;
+        break;
+      }
+      String value = args[++i];
+      try {
+        switch (arg) {
+          case "--mode":
+            mode = Mode.valueOf(value.toUpperCase());
+            break;
+          case "--clients":
+            clients = Integer.parseInt(value);
+            if (clients <= 0) errors += "Number of clients has to be > 0, was: " + clients + "." + ln;
+            break;
+          case "--size":
+            size = Integer.parseInt(value);
+            //datagrams carry the sequence number in the first two bytes
+            if (size < 2 || size > 65507) errors += "Message size has to be in range 2-65507, was: " + size + "." + ln;
+            break;
+          case "--rate":
+            rate = Integer.parseInt(value);
+            if (rate < 0) errors += "Rate has to be >= 0, was: " + rate + "." + ln;
+            break;
+          case "--warmup":
+            warmup = Integer.parseInt(value);
+            if (warmup < 0) errors += "Warmup time has to be >= 0, was: " + warmup + "." + ln;
+            break;
+          case "--duration":
+            duration = Integer.parseInt(value);
+            if (duration <= 0) errors += "Duration has to be > 0, was: " + duration + "." + ln;
+            break;
+          default:
+            errors += "Unknown option: " + arg + "." + ln;
+        }
+      } catch (NumberFormatException e) {
+        errors += "Invalid number for '" + arg.substring(2) + "':" + value + "." + ln;
+      } catch (IllegalArgumentException e) {
+        errors += "Unknown mode: '" + value + "'." + ln;
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Runs the test directly against the backend and through the tunnel, and prints the results.
+   *
+   * @throws Exception If the backend or tunnel fails to start.
+   */
+  void run() throws Exception {
+    EchoServer echo = new EchoServer(mode);
+    int echoPort = echo.start();
+    Main tunnel = startTunnel(echoPort);
+    if (tunnel == null) {
+      echo.stop();
+      return;
+    }
+    String rateStr = rate > 0 ? rate + " msg/s per client" : "max rate";
+    String sizeStr = mode == Mode.DNS ? "DNS queries" : size + " byte messages";
+    System.out.println("Load test: " + mode.name().toLowerCase() + ", " + clients + " clients, " + sizeStr + ", " + rateStr +
+            ", " + warmup + " s warmup, " + duration + " s measured per run.");
+    System.out.println("Running directly against backend...");
+    Result direct = run(echoPort);
+    System.out.println("Running through tunnel...");
+    Result tunneled = run(tunnelPort);
+    tunnel.stop();
+    echo.stop();
+
+    System.out.println(String.format("%-8s %12s %10s %10s %10s %10s %10s %8s", "", "msg/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us", "errors"));
+    direct.print("direct");
+    tunneled.print("tunnel");
+    System.out.println(String.format("%-8s %12s %10s %10.1f %10.1f %10.1f %10s %8s", "added", "", "",
+            micros(tunneled.percentile(0.5) - direct.percentile(0.5)),
+            micros(tunneled.percentile(0.99) - direct.percentile(0.99)),
+            micros(tunneled.percentile(0.999) - direct.percentile(0.999)), "", ""));
+  }
+
+  /**
+   * Starts the tunnel in front of the backend, with the given tunnel options.
+   *
+   * @param echoPort Port of the backend.
+   * @return The started tunnel, or null if the tunnel options are not valid.
+   * @throws Exception If no port is available or interrupted.
+   */
+  private Main startTunnel(int echoPort) throws Exception {
+    List<String> args = new ArrayList<>(tunnelOptions);
+    if (mode == Mode.UDP) args.add("--udp-tun");
+    if (mode == Mode.DNS) args.add("--udp-dns");
+    tunnelPort = freePort();
+    args.add(String.valueOf(tunnelPort));
+    args.add("localhost");
+    args.add(String.valueOf(echoPort));
+    Params params = ArgumentParser.parseArgs(args.toArray(new String[0]));
+    if (params.getErrors().length() > 0 || !params.shouldRun()) {
+      System.err.println(params.getErrors());
+      return null;
+    }
+    //the tunnel defaults to logging everything to console, which would only measure the console
+    if (!tunnelOptions.contains("--logger")) params.clearObservers();
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    //give the tunnel time to open its port
+    Thread.sleep(200);
+    return main;
+  }
+
+  /**
+   * @return A port that was free when checked.
+   * @throws IOException If no port could be opened.
+   */
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Runs the clients against the given port, first warming up and then measuring.
+   *
+   * @param port Port to run against.
+   * @return The measured results.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  private Result run(int port) throws InterruptedException {
+    List<LoadClient> loadClients = new ArrayList<>();
+    for (int i = 0 ; i < clients ; i++) {
+      LoadClient client = new LoadClient(mode, port, size, rate, i);
+      client.start();
+      loadClients.add(client);
+    }
+    Thread.sleep(warmup * 1000L);
+    long start = System.nanoTime();
+    for (LoadClient client : loadClients) client.setMeasuring(true);
+    Thread.sleep(duration * 1000L);
+    for (LoadClient client : loadClients) client.setMeasuring(false);
+    long elapsed = System.nanoTime() - start;
+    long[] all = new long[0];
+    long errors = 0;
+    for (LoadClient client : loadClients) {
+      client.stop();
+      long[] latencies = client.getLatencies();
+      int offset = all.length;
+      all = Arrays.copyOf(all, offset + latencies.length);
+      System.arraycopy(latencies, 0, all, offset, latencies.length);
+      errors += client.getErrors();
+    }
+    Arrays.sort(all);
+    return new Result(all, errors, elapsed, mode == Mode.DNS ? 0 : size);
+  }
+
+  /**
+   * @param nanos Time in nanoseconds.
+   * @return The time in microseconds.
+   */
+  private static double micros(long nanos) {
+    return nanos / 1000d;
+  }
+
+  /**
+   * Results of a single run.
+   */
+  private static class Result {
+    /** Sorted latencies of all messages, in nanoseconds. */
+    private final long[] latencies;
+    /** Number of failed messages. */
+    private final long errors;
+    /** Measured time, in nanoseconds. */
+    private final long elapsed;
+    /** Size of each message, 0 if not fixed. */
+    private final int size;
+
+    Result(long[] latencies, long errors, long elapsed, int size) {
+      this.latencies = latencies;
+      this.errors = errors;
+      this.elapsed = elapsed;
+      this.size = size;
+    }
+
+    /**
+     * @param p The percentile as a fraction, e.g. 0.99.
+     * @return Latency at the percentile, in nanoseconds. 0 if nothing was measured.
+     */
+    long percentile(double p) {
+      if (latencies.length == 0) return 0;
+      int index = (int) Math.ceil(p * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+    }
+
+    /**
+     * Prints a row of the results table.
+     *
+     * @param name Name of the run.
+     */
+    void print(String name) {
+      double seconds = elapsed / 1_000_000_000d;
+      double rate = latencies.length / seconds;
+      double mbs = rate * size / (1024 * 1024);
+      long max = latencies.length > 0 ? latencies[latencies.length - 1] : 0;
+      System.out.println(String.format("%-8s %12.0f %10.2f %10.1f %10.1f %10.1f %10.1f %8d", name, rate, mbs,
+              micros(percentile(0.5)), micros(percentile(0.99)), micros(percentile(0.999)), micros(max), errors));
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package net.kanstren.tcptunnel.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics for data forwarded in one direction (upstream or downstream) over all connections of a tunnel.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DirectionMetrics {
+  /** Number of bytes forwarded. */
+  private final LongAdder bytes = new LongAdder();
+  /** Sizes of the chunks forwarded, as read from the source in one go. Count is the number of chunks. */
+  private final Histogram chunkSizes = new Histogram();
+  /** Time spent passing each chunk to the observers, in nanoseconds. */
+  private final Histogram observerTime = new Histogram();
+
+  /**
+   * @param size Size of a chunk of data forwarded.
+   */
+  public void recordChunk(int size) {
+    bytes.add(size);
+    chunkSizes.record(size);
+  }
+
+  /**
+   * @param nanos Time spent passing a chunk to the observers.
+   */
+  public void recordObserve(long nanos) {
+    observerTime.record(nanos);
+  }
+
+  /**
+   * @return Number of bytes forwarded.
+   */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * @return Number of chunks forwarded.
+   */
+  public long getChunks() {
+    return chunkSizes.getCount();
+  }
+
+  /**
+   * @return Sizes of the chunks forwarded.
+   */
+  public Histogram getChunkSizes() {
+    return chunkSizes;
+  }
+
+  /**
+   * @return Time spent passing each chunk to the observers, in nanoseconds.
+   */
+  public Histogram getObserverTime() {
+    return observerTime;
+  }
+}
@@ -0,0 +1,125 @@
+package net.kanstren.tcptunnel.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values in power-of-two buckets.
+ * Recording is a few uncontended adds, so it can be done for every chunk of data forwarded.
+ * Percentiles are estimated as the upper bound of the bucket containing them, so they are accurate within a factor of two.
+ *
+ * @author Teemu Kanstren.
+ */
+public class Histogram {
+  /** Number of buckets. Bucket 0 is for value 0, bucket i for values from 2^(i-1) to 2^i - 1. */
+  public static final int BUCKETS = 64;
+  /** Count of values in each bucket. */
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  /** Number of values recorded. */
+  private final LongAdder count = new LongAdder();
+  /** Sum of values recorded. */
+  private final LongAdder sum = new LongAdder();
+  /** Largest value recorded. */
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public Histogram() {
+    for (int i = 0 ; i < BUCKETS ; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param value The value to record. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) value = 0;
+    buckets[bucket(value)].increment();
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * @param value The value to find the bucket for.
+   * @return Index of the bucket for the value.
+   */
+  static int bucket(long value) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+  }
+
+  /**
+   * @param bucket Index of the bucket.
+   * @return The largest value going into the bucket.
+   */
+  public static long upperBound(int bucket) {
+    if (bucket >= BUCKETS - 1) return Long.MAX_VALUE;
+    return (1L << bucket) - 1;
+  }
+
+  /**
+   * @return Number of values recorded.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return Sum of values recorded.
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @return Largest value recorded.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return Mean of values recorded, 0 if none.
+   */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param quantile The quantile to estimate, from 0 to 1. For example 0.99 for 99th percentile.
+   * @return Upper bound for the value at the given quantile, at most the max value. 0 if nothing recorded.
+   */
+  public long getPercentile(double quantile) {
+    long[] counts = getBuckets();
+    long total = 0;
+    for (long c : counts) total += c;
+    if (total == 0) return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0 ; i < BUCKETS ; i++) {
+      seen += counts[i];
+      if (seen >= rank && counts[i] > 0) return Math.min(upperBound(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * @return Count of values in each bucket. Bucket 0 is for value 0, bucket i for values from 2^(i-1) to 2^i - 1.
+   */
+  public long[] getBuckets() {
+    return getBuckets(new long[BUCKETS]);
+  }
+
+  /**
+   * Reads the bucket counts into the given array, to avoid allocating a new one on each read.
+   *
+   * @param counts Array of at least {@link #BUCKETS} elements to store the counts in.
+   * @return The given array, with count of values in each bucket.
+   */
+  public long[] getBuckets(long[] counts) {
+    for (int i = 0 ; i < BUCKETS ; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,65 @@
+package net.kanstren.tcptunnel.metrics;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodically prints the tunnel metrics, with rates calculated over the reporting interval.
+ *
+ * @author Teemu Kanstren.
+ */
+public class MetricsReporter implements Runnable {
+  private SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MMM.dd HH:mm:ss");
+  /** The metrics to report. */
+  private final TunnelMetrics metrics;
+  /** Time between reports, in milliseconds. */
+  private final long intervalMillis;
+  /** Where to print the reports. */
+  private final PrintStream out;
+  /** As long as this is true, we keep reporting. */
+  private volatile boolean running = true;
+  /** The thread doing the reporting. */
+  private Thread thread = null;
+
+  /**
+   * @param metrics The metrics to report.
+   * @param intervalMillis Time between reports, in milliseconds.
+   * @param out Where to print the reports.
+   */
+  public MetricsReporter(TunnelMetrics metrics, long intervalMillis, PrintStream out) {
+    this.metrics = metrics;
+    this.intervalMillis = intervalMillis;
+    this.out = out;
+  }
+
+  /**
+   * Starts the reporting thread.
+   */
+  public void start() {
+    thread = new Thread(this, "tcptunnel-metrics");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    MetricsSnapshot previous = metrics.snapshot();
+    while (running) {
+      LockSupport.parkNanos(this, intervalMillis * 1_000_000L);
+      if (!running) break;
+      MetricsSnapshot current = metrics.snapshot();
+      out.println(sdf.format(new Date()) + ": Metrics for " + current.report(previous));
+      previous = current;
+    }
+  }
+
+  /**
+   * Stops the reporting.
+   */
+  public void stop() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+}
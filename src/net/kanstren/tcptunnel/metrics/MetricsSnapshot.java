@@ -0,0 +1,137 @@
+package net.kanstren.tcptunnel.metrics;
+
+import java.util.Locale;
+
+/**
+ * Counter values of {@link TunnelMetrics} at a point in time.
+ * Rates (per second) are calculated between two snapshots, and the report shows them along with the distributions.
+ *
+ * @author Teemu Kanstren.
+ */
+public class MetricsSnapshot {
+  /** The metrics this is a snapshot of. */
+  private final TunnelMetrics metrics;
+  /** When the snapshot was taken (System.nanoTime()). */
+  private final long timeNanos;
+  /** Upstream bytes at snapshot time. */
+  private final long upBytes;
+  /** Upstream chunks at snapshot time. */
+  private final long upChunks;
+  /** Downstream bytes at snapshot time. */
+  private final long downBytes;
+  /** Downstream chunks at snapshot time. */
+  private final long downChunks;
+  /** Connections opened at snapshot time. */
+  private final long opened;
+
+  /**
+   * @param metrics The metrics to take the snapshot of.
+   */
+  MetricsSnapshot(TunnelMetrics metrics) {
+    this.metrics = metrics;
+    this.timeNanos = System.nanoTime();
+    this.upBytes = metrics.getUp().getBytes();
+    this.upChunks = metrics.getUp().getChunks();
+    this.downBytes = metrics.getDown().getBytes();
+    this.downChunks = metrics.getDown().getChunks();
+    this.opened = metrics.getOpenedConnections();
+  }
+
+  /**
+   * @param previous An earlier snapshot.
+   * @param up True for upstream, false for downstream.
+   * @return Bytes per second forwarded in the given direction between the snapshots.
+   */
+  public double bytesPerSecond(MetricsSnapshot previous, boolean up) {
+    return rate(up ? upBytes - previous.upBytes : downBytes - previous.downBytes, previous);
+  }
+
+  /**
+   * @param previous An earlier snapshot.
+   * @param up True for upstream, false for downstream.
+   * @return Chunks per second forwarded in the given direction between the snapshots.
+   */
+  public double chunksPerSecond(MetricsSnapshot previous, boolean up) {
+    return rate(up ? upChunks - previous.upChunks : downChunks - previous.downChunks, previous);
+  }
+
+  /**
+   * @param previous An earlier snapshot.
+   * @return Connections per second opened between the snapshots.
+   */
+  public double connectionsPerSecond(MetricsSnapshot previous) {
+    return rate(opened - previous.opened, previous);
+  }
+
+  /**
+   * @param delta Change in a counter.
+   * @param previous The snapshot the change is from.
+   * @return The change per second.
+   */
+  private double rate(long delta, MetricsSnapshot previous) {
+    long nanos = timeNanos - previous.timeNanos;
+    if (nanos <= 0) return 0;
+    return delta * 1_000_000_000d / nanos;
+  }
+
+  /**
+   * @param previous An earlier snapshot, for calculating rates.
+   * @return Human readable report of the metrics, with rates since the previous snapshot.
+   */
+  public String report(MetricsSnapshot previous) {
+    Histogram latency = metrics.getBackendLatency();
+    StringBuilder sb = new StringBuilder();
+    sb.append(metrics.getName()).append(": connections active=").append(metrics.getActiveConnections());
+    sb.append(" opened=").append(opened).append(" (").append(format(connectionsPerSecond(previous))).append("/s)");
+    sb.append(" failed=").append(metrics.getConnectFailures());
+    sb.append(", errors=").append(metrics.getErrors());
+    sb.append(", backend latency avg=").append(micros(latency.getMean()));
+    sb.append(" p50=").append(micros(latency.getPercentile(0.5)));
+    sb.append(" p99=").append(micros(latency.getPercentile(0.99)));
+    sb.append(" max=").append(micros(latency.getMax()));
+    direction(sb, "up", metrics.getUp(), previous, true);
+    direction(sb, "down", metrics.getDown(), previous, false);
+    return sb.toString();
+  }
+
+  /**
+   * Adds the report for one direction.
+   *
+   * @param sb For adding the report to.
+   * @param title Name of the direction.
+   * @param direction Metrics for the direction.
+   * @param previous An earlier snapshot, for calculating rates.
+   * @param up True for upstream, false for downstream.
+   */
+  private void direction(StringBuilder sb, String title, DirectionMetrics direction, MetricsSnapshot previous, boolean up) {
+    Histogram sizes = direction.getChunkSizes();
+    Histogram observers = direction.getObserverTime();
+    sb.append("\n  ").append(title).append(": ");
+    sb.append(format(bytesPerSecond(previous, up))).append(" bytes/s, ");
+    sb.append(format(chunksPerSecond(previous, up))).append(" chunks/s");
+    sb.append(", chunk size avg=").append(format(sizes.getMean()));
+    sb.append(" p50=").append(sizes.getPercentile(0.5));
+    sb.append(" p99=").append(sizes.getPercentile(0.99));
+    sb.append(" max=").append(sizes.getMax());
+    sb.append(", observers avg=").append(micros(observers.getMean()));
+    sb.append(" p99=").append(micros(observers.getPercentile(0.99)));
+    sb.append(" max=").append(micros(observers.getMax()));
+    sb.append(", total ").append(up ? upBytes : downBytes).append(" bytes in ").append(up ? upChunks : downChunks).append(" chunks");
+  }
+
+  /**
+   * @param value Value to format.
+   * @return The value with one decimal.
+   */
+  private static String format(double value) {
+    return String.format(Locale.US, "%.1f", value);
+  }
+
+  /**
+   * @param nanos Time in nanoseconds.
+   * @return The time in microseconds, with unit.
+   */
+  private static String micros(double nanos) {
+    return format(nanos / 1000) + "us";
+  }
+}
@@ -0,0 +1,328 @@
+package net.kanstren.tcptunnel.metrics;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.async.ObserverPipeline;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.dns.DNSCache;
+import net.kanstren.tcptunnel.dns.DNSCoalescer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Serves the tunnel metrics over HTTP in the Prometheus text format.
+ * A single thread handles one scrape at a time, reusing the same text and byte buffers for each, so scraping creates little garbage.
+ * The forwarding threads are never involved, the counters are only read.
+ * Only GET requests are supported, and any path serves the metrics.
+ *
+ * @author Teemu Kanstren.
+ */
+public class PrometheusExporter implements Runnable {
+  /** Content type of the Prometheus text format. */
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  /** Labels of histogram bucket upper bounds for byte sizes. */
+  private static final String[] SIZE_BOUNDS = new String[Histogram.BUCKETS];
+  /** Labels of histogram bucket upper bounds for nanosecond values, in seconds. */
+  private static final String[] SECONDS_BOUNDS = new String[Histogram.BUCKETS];
+  /** Configuration parameters, for the metrics, backends, and observer pipeline. */
+  private final Params params;
+  /** Port to listen on. */
+  private final int port;
+  /** Holds the metrics text while it is being built. Reused for all scrapes. */
+  private final StringBuilder text = new StringBuilder(8192);
+  /** Holds the response bytes. Reused for all scrapes, grown as needed. */
+  private byte[] bytes = new byte[8192];
+  /** For reading the request. Reused for all scrapes. */
+  private final byte[] request = new byte[4096];
+  /** For reading histogram buckets. Reused for all histograms. */
+  private final long[] counts = new long[Histogram.BUCKETS];
+  /** Socket for accepting scrape requests. */
+  private ServerSocket serverSocket;
+  /** As long as this is true, we keep serving. */
+  private volatile boolean running = true;
+
+  static {
+    for (int i = 0 ; i < Histogram.BUCKETS - 1 ; i++) {
+      long bound = Histogram.upperBound(i);
+      SIZE_BOUNDS[i] = Long.toString(bound);
+      SECONDS_BOUNDS[i] = Double.toString(bound / 1_000_000_000d);
+    }
+    SIZE_BOUNDS[Histogram.BUCKETS - 1] = "+Inf";
+    SECONDS_BOUNDS[Histogram.BUCKETS - 1] = "+Inf";
+  }
+
+  /**
+   * @param params Configuration parameters, for the metrics, backends, and observer pipeline.
+   * @param port Port to listen on.
+   */
+  public PrometheusExporter(Params params, int port) {
+    this.params = params;
+    this.port = port;
+  }
+
+  /**
+   * Binds the port and starts serving in a new thread.
+   *
+   * @throws IOException If binding the port fails.
+   */
+  public void start() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(port));
+    Thread thread = new Thread(this, "tcptunnel-prometheus");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try (Socket socket = serverSocket.accept()) {
+        socket.setSoTimeout(5000);
+        serve(socket);
+      } catch (IOException e) {
+        //a failed scrape is the scraper's problem, keep serving the next one
+      }
+    }
+  }
+
+  /**
+   * Reads the request headers and writes the metrics as response.
+   *
+   * @param socket Connection to the scraper.
+   * @throws IOException If reading or writing fails.
+   */
+  private void serve(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    int length = 0;
+    //read until end of headers, ignoring anything beyond the buffer
+    while (!endOfHeaders(length)) {
+      int read = in.read(request, length, request.length - length);
+      if (read < 0) return;
+      length += read;
+      if (length == request.length) break;
+    }
+    OutputStream out = socket.getOutputStream();
+    if (length < 4 || request[0] != 'G' || request[1] != 'E' || request[2] != 'T' || request[3] != ' ') {
+      text.setLength(0);
+      text.append("HTTP/1.1 405 Method Not Allowed\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+      write(out, 0);
+      return;
+    }
+    text.setLength(0);
+    format();
+    int bodyLength = text.length();
+    text.append("HTTP/1.1 200 OK\r\nContent-Type: ").append(CONTENT_TYPE);
+    text.append("\r\nContent-Length: ").append(bodyLength).append("\r\nConnection: close\r\n\r\n");
+    write(out, bodyLength);
+  }
+
+  /**
+   * @param length Number of request bytes read.
+   * @return True if the request bytes end with an empty line.
+   */
+  private boolean endOfHeaders(int length) {
+    return length >= 4 && request[length - 4] == '\r' && request[length - 3] == '\n' && request[length - 2] == '\r' && request[length - 1] == '\n';
+  }
+
+  /**
+   * Writes the response from the text buffer, where the body comes first and the headers after it.
+   * All content is ASCII, so the chars are written as bytes without an encoder.
+   *
+   * @param out Where to write.
+   * @param bodyLength Length of the body at the start of the text, headers following.
+   * @throws IOException If writing fails.
+   */
+  private void write(OutputStream out, int bodyLength) throws IOException {
+    int total = text.length();
+    if (bytes.length < total) bytes = new byte[Math.max(total, bytes.length * 2)];
+    int index = 0;
+    for (int i = bodyLength ; i < total ; i++) {
+      bytes[index++] = (byte) text.charAt(i);
+    }
+    for (int i = 0 ; i < bodyLength ; i++) {
+      bytes[index++] = (byte) text.charAt(i);
+    }
+    out.write(bytes, 0, total);
+    out.flush();
+  }
+
+  /**
+   * Writes all metrics to the text buffer in Prometheus text format.
+   */
+  void format() {
+    TunnelMetrics metrics = params.getMetrics();
+    gauge("tcptunnel_connections_active", "Connections (TCP tunnels, UDP sessions, DNS queries) currently open.", metrics.getActiveConnections());
+    counter("tcptunnel_connections_opened_total", "Connections opened.", metrics.getOpenedConnections());
+    counter("tcptunnel_connect_failures_total", "Failed attempts to connect to a backend.", metrics.getConnectFailures());
+    counter("tcptunnel_errors_total", "Forwarding errors, such as failed packet sends or DNS queries without response.", metrics.getErrors());
+
+    header("tcptunnel_bytes_total", "Bytes forwarded.", "counter");
+    sample("tcptunnel_bytes_total", "direction", "up", metrics.getUp().getBytes());
+    sample("tcptunnel_bytes_total", "direction", "down", metrics.getDown().getBytes());
+    header("tcptunnel_chunks_total", "Chunks of data forwarded, as read from the source in one go.", "counter");
+    sample("tcptunnel_chunks_total", "direction", "up", metrics.getUp().getChunks());
+    sample("tcptunnel_chunks_total", "direction", "down", metrics.getDown().getChunks());
+
+    header("tcptunnel_chunk_size_bytes", "Sizes of the chunks forwarded.", "histogram");
+    histogram("tcptunnel_chunk_size_bytes", "up", metrics.getUp().getChunkSizes(), SIZE_BOUNDS, false);
+    histogram("tcptunnel_chunk_size_bytes", "down", metrics.getDown().getChunkSizes(), SIZE_BOUNDS, false);
+    header("tcptunnel_observer_seconds", "Time spent passing each chunk to the observers.", "histogram");
+    histogram("tcptunnel_observer_seconds", "up", metrics.getUp().getObserverTime(), SECONDS_BOUNDS, true);
+    histogram("tcptunnel_observer_seconds", "down", metrics.getDown().getObserverTime(), SECONDS_BOUNDS, true);
+    header("tcptunnel_backend_latency_seconds", "Time to connect to (TCP) or get a response from (DNS) the backend.", "histogram");
+    histogram("tcptunnel_backend_latency_seconds", null, metrics.getBackendLatency(), SECONDS_BOUNDS, true);
+
+    List<Backend> backends = params.getLoadBalancer().getBackends();
+    header("tcptunnel_backend_healthy", "1 if the backend is routed to, 0 if it is down or ejected.", "gauge");
+    for (Backend backend : backends) {
+      sample("tcptunnel_backend_healthy", "backend", backend.toString(), backend.isHealthy() ? 1 : 0);
+    }
+    header("tcptunnel_backend_connections_active", "Connections currently open to the backend.", "gauge");
+    for (Backend backend : backends) {
+      sample("tcptunnel_backend_connections_active", "backend", backend.toString(), backend.getActiveConnections());
+    }
+
+    if (params.isAsyncObservers()) {
+      ObserverPipeline pipeline = params.getObserverPipeline();
+      gauge("tcptunnel_observer_queue_depth", "Chunks waiting in the async observer queues.", pipeline.getQueueDepth());
+      counter("tcptunnel_observer_dropped_total", "Chunks dropped due to full async observer queues.", pipeline.getDropped());
+      counter("tcptunnel_observer_errors_total", "Errors thrown by async observers.", pipeline.getErrors());
+    }
+
+    DNSCache cache = params.getDNSCache();
+    if (cache != null) {
+      counter("tcptunnel_dns_cache_hits_total", "DNS queries answered from the cache.", cache.getHits());
+      counter("tcptunnel_dns_cache_misses_total", "DNS queries not found in the cache.", cache.getMisses());
+      gauge("tcptunnel_dns_cache_entries", "DNS responses in the cache.", cache.size());
+      counter("tcptunnel_dns_cache_prefetches_total", "Popular DNS responses refreshed from the backend before they expired.", cache.getPrefetches());
+    }
+    DNSCoalescer coalescer = params.getDNSCoalescer();
+    if (coalescer != null) {
+      counter("tcptunnel_dns_coalesced_total", "DNS queries answered with the response to an identical query in flight.", coalescer.getCoalesced());
+      gauge("tcptunnel_dns_in_flight", "DNS questions forwarded and waiting for their response.", coalescer.size());
+    }
+  }
+
+  /**
+   * @param name Metric name.
+   * @param help Description of the metric.
+   * @param type Metric type.
+   */
+  private void header(String name, String help, String type) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * @param name Metric name.
+   * @param help Description of the metric.
+   * @param value Value of the counter.
+   */
+  private void counter(String name, String help, long value) {
+    header(name, help, "counter");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * @param name Metric name.
+   * @param help Description of the metric.
+   * @param value Value of the gauge.
+   */
+  private void gauge(String name, String help, long value) {
+    header(name, help, "gauge");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * @param name Metric name.
+   * @param label Label name.
+   * @param labelValue Label value.
+   * @param value Sample value.
+   */
+  private void sample(String name, String label, String labelValue, long value) {
+    text.append(name).append('{').append(label).append("=\"");
+    escape(labelValue);
+    text.append("\"} ").append(value).append('\n');
+  }
+
+  /**
+   * Writes a histogram with cumulative buckets for all the bounds, followed by +Inf, sum, and count.
+   * The same buckets are written on every scrape, even empty ones, so the set of series does not change between scrapes.
+   *
+   * @param name Metric name.
+   * @param direction Value of the direction label, or null for no label.
+   * @param histogram The histogram to write.
+   * @param bounds Labels for the bucket upper bounds.
+   * @param nanos True if the values are nanoseconds, to be shown as seconds.
+   */
+  private void histogram(String name, String direction, Histogram histogram, String[] bounds, boolean nanos) {
+    histogram.getBuckets(counts);
+    long cumulative = 0;
+    for (int i = 0 ; i < Histogram.BUCKETS - 1 ; i++) {
+      cumulative += counts[i];
+      bucket(name, direction, bounds[i], cumulative);
+    }
+    long total = cumulative + counts[Histogram.BUCKETS - 1];
+    bucket(name, direction, "+Inf", total);
+    text.append(name).append("_sum");
+    if (direction != null) text.append("{direction=\"").append(direction).append("\"}");
+    text.append(' ');
+    if (nanos) text.append(histogram.getSum() / 1_000_000_000d);
+    else text.append(histogram.getSum());
+    text.append('\n');
+    text.append(name).append("_count");
+    if (direction != null) text.append("{direction=\"").append(direction).append("\"}");
+    text.append(' ').append(total).append('\n');
+  }
+
+  /**
+   * @param name Metric name.
+   * @param direction Value of the direction label, or null for no label.
+   * @param bound Label for the bucket upper bound.
+   * @param cumulative Number of values up to the bound.
+   */
+  private void bucket(String name, String direction, String bound, long cumulative) {
+    text.append(name).append("_bucket{");
+    if (direction != null) text.append("direction=\"").append(direction).append("\",");
+    text.append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+  }
+
+  /**
+   * Writes a label value, escaped as required by the text format. Non-ASCII characters are replaced, as the response is written as ASCII.
+   *
+   * @param value The value to write.
+   */
+  private void escape(String value) {
+    for (int i = 0 ; i < value.length() ; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') text.append('\\').append(c);
+      else if (c == '\n') text.append("\\n");
+      else if (c > 127) text.append('?');
+      else text.append(c);
+    }
+  }
+
+  /**
+   * @return Text of the last scrape response, headers excluded. For testing.
+   */
+  String getText() {
+    return text.toString();
+  }
+
+  /**
+   * Stops serving and closes the port.
+   */
+  public void stop() {
+    running = false;
+    try {
+      if (serverSocket != null) serverSocket.close();
+    } catch (IOException e) {
+    }
+  }
+}
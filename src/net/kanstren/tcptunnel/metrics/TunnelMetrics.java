@@ -0,0 +1,145 @@
+package net.kanstren.tcptunnel.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics for a tunnel, over all its connections.
+ * A connection is a TCP tunnel, a UDP session, or a DNS query, depending on the tunnel type.
+ * Backend latency is the time to connect (TCP) or to get a response (DNS).
+ * Rates are calculated from two snapshots, see {@link #snapshot()}.
+ *
+ * @author Teemu Kanstren.
+ */
+public class TunnelMetrics {
+  /** Name of the tunnel, for reporting. */
+  private final String name;
+  /** Upstream data, from client to backend. */
+  private final DirectionMetrics up = new DirectionMetrics();
+  /** Downstream data, from backend to client. */
+  private final DirectionMetrics down = new DirectionMetrics();
+  /** Number of connections currently open. */
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  /** Number of connections opened. */
+  private final LongAdder openedConnections = new LongAdder();
+  /** Number of failed attempts to connect to a backend. */
+  private final LongAdder connectFailures = new LongAdder();
+  /** Number of forwarding errors, such as failed packet sends or DNS queries without response. */
+  private final LongAdder errors = new LongAdder();
+  /** Latency of connecting to (or getting a response from) the backend, in nanoseconds. */
+  private final Histogram backendLatency = new Histogram();
+
+  /**
+   * @param name Name of the tunnel, for reporting.
+   */
+  public TunnelMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Called when a connection is established.
+   */
+  public void connectionOpened() {
+    activeConnections.incrementAndGet();
+    openedConnections.increment();
+  }
+
+  /**
+   * Called when an established connection is closed.
+   */
+  public void connectionClosed() {
+    activeConnections.decrementAndGet();
+  }
+
+  /**
+   * Called when connecting to a backend fails.
+   */
+  public void connectFailed() {
+    connectFailures.increment();
+  }
+
+  /**
+   * Called when forwarding fails for other reasons than connecting.
+   */
+  public void recordError() {
+    errors.increment();
+  }
+
+  /**
+   * @param nanos Time to connect to, or get a response from, the backend.
+   */
+  public void recordBackendLatency(long nanos) {
+    backendLatency.record(nanos);
+  }
+
+  /**
+   * @param up True for upstream (client to backend), false for downstream (backend to client).
+   * @return Metrics for the given direction.
+   */
+  public DirectionMetrics direction(boolean up) {
+    return up ? this.up : this.down;
+  }
+
+  /**
+   * @return Name of the tunnel.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return Upstream data metrics, from client to backend.
+   */
+  public DirectionMetrics getUp() {
+    return up;
+  }
+
+  /**
+   * @return Downstream data metrics, from backend to client.
+   */
+  public DirectionMetrics getDown() {
+    return down;
+  }
+
+  /**
+   * @return Number of connections currently open.
+   */
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  /**
+   * @return Number of connections opened.
+   */
+  public long getOpenedConnections() {
+    return openedConnections.sum();
+  }
+
+  /**
+   * @return Number of failed attempts to connect to a backend.
+   */
+  public long getConnectFailures() {
+    return connectFailures.sum();
+  }
+
+  /**
+   * @return Number of forwarding errors, such as failed packet sends or DNS queries without response.
+   */
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * @return Latency of connecting to (or getting a response from) the backend, in nanoseconds.
+   */
+  public Histogram getBackendLatency() {
+    return backendLatency;
+  }
+
+  /**
+   * @return The current counter values, for calculating rates against a later snapshot.
+   */
+  public MetricsSnapshot snapshot() {
+    return new MetricsSnapshot(this);
+  }
+}
@@ -27,6 +27,10 @@ public class ByteFileLogger implements TCPObserver {
   @Override
   public void observe(byte[] buffer, int start, int count) throws IOException {
     out.write(buffer, start, count);
+  }
+
+  @Override
+  public void flush() throws IOException {
     out.flush();
   }
 }
@@ -1,6 +1,7 @@
 package net.kanstren.tcptunnel.observers;
 
 import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.buffers.PooledBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -124,14 +125,17 @@ public class SocketForwardingObserver implements TCPObserver {
     }
 
     public void run() {
+      PooledBuffer pooled = parent.params.getBufferPool().acquire(8192, false);
+      byte[] receiveBuffer = pooled.array();
       try {
         while (!stopped) {
-          byte[] receiveBuffer = new byte[8192];
-          int bytesRead = is.read(receiveBuffer);
+          int bytesRead = is.read(receiveBuffer, 0, 8192);
           if (bytesRead == -1) break; // End of stream is reached --> exit
         }
       } catch (IOException e) {
 //        System.out.println("Stopped mirror stream due to exception in input. Error msg:"+e.getMessage());
+      } finally {
+        pooled.release();
       }
 //      System.out.println("Mirror stream has stopped due to socket close/error. Recreating when new data is observed.");
       parent.reset();
@@ -28,6 +28,10 @@ public class StringFileLogger implements TCPObserver {
   public void observe(byte[] buffer, int start, int count) throws IOException {
     String add = new String(buffer, start, count);
     writer.write(add);
+  }
+
+  @Override
+  public void flush() throws IOException {
     writer.flush();
   }
 }
@@ -19,4 +19,29 @@ public interface TCPObserver {
    * @throws IOException the IOException
    */
   void observe(byte[] buffer, int start, int count) throws IOException;
+
+  /**
+   * Called on observers when a batch of packets has been captured, as with batched UDP forwarding.
+   * By default passes each packet to observe() in order. Observers with a per-call overhead can override this to handle the batch at once.
+   *
+   * @param buffer The byte array containing the packets.
+   * @param starts Starting index of each packet in the byte array.
+   * @param counts Number of bytes in each packet.
+   * @param packets Number of packets in the batch. The arrays may be longer.
+   * @throws IOException the IOException
+   */
+  default void observeBatch(byte[] buffer, int[] starts, int[] counts, int packets) throws IOException {
+    for (int i = 0 ; i < packets ; i++) {
+      observe(buffer, starts[i], counts[i]);
+    }
+  }
+
+  /**
+   * Called when the forwarder has flushed the observed data to its target.
+   * Observers buffering their output (e.g., to files) should flush it here rather than on every observe().
+   *
+   * @throws IOException the IOException
+   */
+  default void flush() throws IOException {
+  }
 }
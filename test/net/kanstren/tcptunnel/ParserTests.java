@@ -1,5 +1,8 @@
 package net.kanstren.tcptunnel;
 
+import net.kanstren.tcptunnel.async.OverflowPolicy;
+import net.kanstren.tcptunnel.backend.BalanceStrategy;
+import net.kanstren.tcptunnel.forwarder.FlushMode;
 import net.kanstren.tcptunnel.observers.*;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -38,6 +41,49 @@ public class ParserTests {
             {new String[] {"--encoding", "TEEMU", "2222", "localhost", "1911"}, "Unsupported encoding: 'TEEMU'.", "Error for unknown encoding."},
             {new String[] {"--logger", "invalid", "2222", "localhost", "1911"}, "Unknown logger type: 'invalid'.", "Error for invalid logger value."},
             {new String[] {"0", "localhost", "0"}, "Port numbers have to be in range 1-65535, source port was: 0.\nPort numbers have to be in range 1-65535, remote port was: 0.", "Error for out of bounds port numbers."},
+            {new String[] {"--nio", "--nio-loops", "0", "2222", "localhost", "1911"}, "Number of NIO loops has to be > 0, was: 0.", "Error for zero NIO loops."},
+            {new String[] {"--nio-loops", "many", "2222", "localhost", "1911"}, "Invalid number for 'nio-loops':many.", "Error for non-numeric NIO loops."},
+            {new String[] {"--udp-tun", "--udp-batch", "0", "2222", "localhost", "1911"}, "UDP batch size has to be in range 1-1024, was: 0.", "Error for zero UDP batch size."},
+            {new String[] {"--udp-tun", "--udp-batch", "x", "2222", "localhost", "1911"}, "Invalid number for 'udp-batch':x.", "Error for non-numeric UDP batch size."},
+            {new String[] {"--udp-tun", "--udp-shards", "0", "2222", "localhost", "1911"}, "Number of UDP shards has to be > 0, was: 0.", "Error for zero UDP shards."},
+            {new String[] {"--udp-tun", "--udp-shards", "x", "2222", "localhost", "1911"}, "Invalid number for 'udp-shards':x.", "Error for non-numeric UDP shards."},
+            {new String[] {"--udp-dns", "--dns-sockets", "-1", "2222", "localhost", "1911"}, "Number of DNS sockets has to be >= 0, was: -1.", "Error for negative DNS sockets."},
+            {new String[] {"--udp-dns", "--dns-sockets", "x", "2222", "localhost", "1911"}, "Invalid number for 'dns-sockets':x.", "Error for non-numeric DNS sockets."},
+            {new String[] {"--udp-dns", "--dns-cache", "-1", "2222", "localhost", "1911"}, "DNS cache size has to be >= 0, was: -1.", "Error for negative DNS cache size."},
+            {new String[] {"--udp-dns", "--dns-cache", "x", "2222", "localhost", "1911"}, "Invalid number for 'dns-cache':x.", "Error for non-numeric DNS cache size."},
+            {new String[] {"--udp-dns", "--dns-prefetch", "-1", "2222", "localhost", "1911"}, "DNS prefetch hits has to be >= 0, was: -1.", "Error for negative DNS prefetch hits."},
+            {new String[] {"--udp-dns", "--dns-prefetch", "x", "2222", "localhost", "1911"}, "Invalid number for 'dns-prefetch':x.", "Error for non-numeric DNS prefetch hits."},
+            {new String[] {"--acceptors", "0", "2222", "localhost", "1911"}, "Number of acceptors has to be > 0, was: 0.", "Error for zero acceptors."},
+            {new String[] {"--acceptors", "x", "2222", "localhost", "1911"}, "Invalid number for 'acceptors':x.", "Error for non-numeric acceptors."},
+            {new String[] {"--backlog", "0", "2222", "localhost", "1911"}, "Backlog has to be > 0, was: 0.", "Error for zero backlog."},
+            {new String[] {"--backlog", "x", "2222", "localhost", "1911"}, "Invalid number for 'backlog':x.", "Error for non-numeric backlog."},
+            {new String[] {"--flush", "sometimes", "2222", "localhost", "1911"}, "Unknown flush mode: 'sometimes'.", "Error for unknown flush mode."},
+            {new String[] {"--flush-bytes", "0", "2222", "localhost", "1911"}, "Flush threshold has to be > 0, was: 0.", "Error for zero flush threshold."},
+            {new String[] {"--flush-bytes", "lots", "2222", "localhost", "1911"}, "Invalid number for 'flush-bytes':lots.", "Error for non-numeric flush threshold."},
+            {new String[] {"--flush-micros", "-1", "2222", "localhost", "1911"}, "Flush deadline has to be > 0, was: -1.", "Error for negative flush deadline."},
+            {new String[] {"--flush-micros", "soon", "2222", "localhost", "1911"}, "Invalid number for 'flush-micros':soon.", "Error for non-numeric flush deadline."},
+            {new String[] {"--async-queue", "0", "2222", "localhost", "1911"}, "Async queue size has to be > 0, was: 0.", "Error for zero async queue size."},
+            {new String[] {"--async-queue", "big", "2222", "localhost", "1911"}, "Invalid number for 'async-queue':big.", "Error for non-numeric async queue size."},
+            {new String[] {"--async-threads", "0", "2222", "localhost", "1911"}, "Number of async threads has to be > 0, was: 0.", "Error for zero async threads."},
+            {new String[] {"--async-threads", "x", "2222", "localhost", "1911"}, "Invalid number for 'async-threads':x.", "Error for non-numeric async threads."},
+            {new String[] {"--async-overflow", "explode", "2222", "localhost", "1911"}, "Unknown overflow policy: 'explode'.", "Error for unknown overflow policy."},
+            {new String[] {"--prewarm", "0", "2222", "localhost", "1911"}, "Number of pre-connected backend connections has to be > 0, was: 0.", "Error for zero prewarm size."},
+            {new String[] {"--prewarm", "some", "2222", "localhost", "1911"}, "Invalid number for 'prewarm':some.", "Error for non-numeric prewarm size."},
+            {new String[] {"--prewarm-max-idle", "0", "2222", "localhost", "1911"}, "Pre-connected backend connection max idle time has to be > 0, was: 0.", "Error for zero prewarm max idle."},
+            {new String[] {"--prewarm-max-idle", "long", "2222", "localhost", "1911"}, "Invalid number for 'prewarm-max-idle':long.", "Error for non-numeric prewarm max idle."},
+            {new String[] {"--backend", "localhost", "2222", "localhost", "1911"}, "Invalid backend 'localhost', should be host:port.", "Error for backend without port."},
+            {new String[] {"--backend", "localhost:http", "2222", "localhost", "1911"}, "Invalid backend 'localhost:http', should be host:port.", "Error for backend with non-numeric port."},
+            {new String[] {"--backend", "localhost:70000", "2222", "localhost", "1911"}, "Invalid backend port value. Should be between 1-65535, was: 70000.", "Error for backend port out of range."},
+            {new String[] {"--balance", "random", "2222", "localhost", "1911"}, "Unknown balancing strategy: 'random'.", "Error for unknown balancing strategy."},
+            {new String[] {"--health-interval", "0", "2222", "localhost", "1911"}, "Health check interval has to be > 0, was: 0.", "Error for zero health check interval."},
+            {new String[] {"--health-interval", "often", "2222", "localhost", "1911"}, "Invalid number for 'health-interval':often.", "Error for non-numeric health check interval."},
+            {new String[] {"--health-timeout", "-1", "2222", "localhost", "1911"}, "Health check timeout has to be > 0, was: -1.", "Error for negative health check timeout."},
+            {new String[] {"--eject-after", "-1", "2222", "localhost", "1911"}, "Number of failures to eject backend after has to be >= 0, was: -1.", "Error for negative eject limit."},
+            {new String[] {"--eject-time", "0", "2222", "localhost", "1911"}, "Backend eject time has to be > 0, was: 0.", "Error for zero eject time."},
+            {new String[] {"--metrics-interval", "0", "2222", "localhost", "1911"}, "Metrics interval has to be > 0, was: 0.", "Error for zero metrics interval."},
+            {new String[] {"--metrics-interval", "x", "2222", "localhost", "1911"}, "Invalid number for 'metrics-interval':x.", "Error for non-numeric metrics interval."},
+            {new String[] {"--prometheus", "0", "2222", "localhost", "1911"}, "Prometheus port has to be in range 1-65535, was: 0.", "Error for zero Prometheus port."},
+            {new String[] {"--prometheus", "x", "2222", "localhost", "1911"}, "Invalid number for 'prometheus':x.", "Error for non-numeric Prometheus port."},
     };
   }
 
@@ -134,6 +180,203 @@ public class ParserTests {
     assertTrue(found2, "Could not find expected observer type: "+expected2+" in "+observers);
   }
 
+  @Test
+  public void nioOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertFalse(params.isNIO(), "NIO should be disabled by default.");
+    assertEquals(params.getNIOLoops(), Params.DEFAULT_NIO_LOOPS, "Default number of NIO loops.");
+    params = ArgumentParser.parseArgs(new String[] {"--nio", "--nio-loops", "3", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isNIO(), "Parsed NIO flag.");
+    assertEquals(params.getNIOLoops(), 3, "Parsed number of NIO loops.");
+  }
+
+  @Test
+  public void udpBatchOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-tun", "2222", "localhost", "1911"});
+    assertEquals(params.getUDPBatch(), 1, "UDP batching should be disabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-tun", "--udp-batch", "32", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getUDPBatch(), 32, "Parsed UDP batch size.");
+  }
+
+  @Test
+  public void udpShardsOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-tun", "2222", "localhost", "1911"});
+    assertEquals(params.getUDPShards(), 1, "Single UDP socket by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-tun", "--udp-shards", "4", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getUDPShards(), 4, "Parsed number of UDP shards.");
+  }
+
+  @Test
+  public void dnsSocketsOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "2222", "localhost", "1911"});
+    assertEquals(params.getDNSSockets(), 0, "Socket per DNS query by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "--dns-sockets", "4", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getDNSSockets(), 4, "Parsed number of DNS sockets.");
+  }
+
+  @Test
+  public void dnsCacheOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "2222", "localhost", "1911"});
+    assertEquals(params.getDNSCacheSize(), 0, "No DNS cache by default.");
+    assertNull(params.getDNSCache(), "No DNS cache by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "--dns-cache", "1000", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getDNSCacheSize(), 1000, "Parsed DNS cache size.");
+    assertNotNull(params.getDNSCache(), "DNS cache created when enabled.");
+  }
+
+  @Test
+  public void dnsPrefetchOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "2222", "localhost", "1911"});
+    assertEquals(params.getDNSPrefetch(), 0, "No DNS prefetching by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "--dns-cache", "1000", "--dns-prefetch", "5", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getDNSPrefetch(), 5, "Parsed DNS prefetch hits.");
+  }
+
+  @Test
+  public void dnsCoalesceOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "2222", "localhost", "1911"});
+    assertFalse(params.isDNSCoalesce(), "DNS coalescing should be disabled by default.");
+    assertNull(params.getDNSCoalescer(), "No DNS coalescer by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "--dns-coalesce", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isDNSCoalesce(), "Parsed DNS coalescing flag.");
+    assertNotNull(params.getDNSCoalescer(), "DNS coalescer created when enabled.");
+  }
+
+  @Test
+  public void dnsTCPOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "2222", "localhost", "1911"});
+    assertFalse(params.isDNSTCP(), "DNS over TCP should be disabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--udp-dns", "--dns-tcp", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isDNSTCP(), "Parsed DNS over TCP flag.");
+  }
+
+  @Test
+  public void acceptorOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getAcceptors(), 1, "Single acceptor by default.");
+    assertFalse(params.isReusePort(), "SO_REUSEPORT should be disabled by default.");
+    assertEquals(params.getBacklog(), Params.DEFAULT_BACKLOG, "Default backlog.");
+    params = ArgumentParser.parseArgs(new String[] {"--acceptors", "4", "--reuse-port", "--backlog", "1024", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getAcceptors(), 4, "Parsed number of acceptors.");
+    assertTrue(params.isReusePort(), "Parsed SO_REUSEPORT flag.");
+    assertEquals(params.getBacklog(), 1024, "Parsed backlog.");
+  }
+
+  @Test
+  public void virtualThreadsOption() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertFalse(params.isVirtualThreads(), "Virtual threads should be disabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--virtual-threads", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isVirtualThreads(), "Parsed virtual threads flag.");
+  }
+
+  @Test
+  public void flushOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getFlushMode(), FlushMode.ALWAYS, "Default flush mode.");
+    assertEquals(params.getFlushBytes(), Params.DEFAULT_FLUSH_BYTES, "Default flush threshold.");
+    assertEquals(params.getFlushMicros(), Params.DEFAULT_FLUSH_MICROS, "Default flush deadline.");
+    params = ArgumentParser.parseArgs(new String[] {"--flush", "deadline", "--flush-bytes", "100", "--flush-micros", "50", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getFlushMode(), FlushMode.DEADLINE, "Parsed flush mode.");
+    assertEquals(params.getFlushBytes(), 100, "Parsed flush threshold.");
+    assertEquals(params.getFlushMicros(), 50, "Parsed flush deadline.");
+  }
+
+  @Test
+  public void asyncObserverOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertFalse(params.isAsyncObservers(), "Async observers should be disabled by default.");
+    assertEquals(params.getAsyncQueueSize(), Params.DEFAULT_ASYNC_QUEUE_SIZE, "Default async queue size.");
+    assertEquals(params.getAsyncThreads(), Params.DEFAULT_ASYNC_THREADS, "Default async threads.");
+    assertEquals(params.getOverflowPolicy(), OverflowPolicy.BLOCK, "Default overflow policy.");
+    params = ArgumentParser.parseArgs(new String[] {"--async-observers", "--async-queue", "128", "--async-threads", "2", "--async-overflow", "spill", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isAsyncObservers(), "Parsed async observers flag.");
+    assertEquals(params.getAsyncQueueSize(), 128, "Parsed async queue size.");
+    assertEquals(params.getAsyncThreads(), 2, "Parsed async threads.");
+    assertEquals(params.getOverflowPolicy(), OverflowPolicy.SPILL, "Parsed overflow policy.");
+  }
+
+  @Test
+  public void prewarmOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getPrewarmSize(), 0, "Prewarm should be disabled by default.");
+    assertEquals(params.getPrewarmMaxIdle(), Params.DEFAULT_PREWARM_MAX_IDLE, "Default prewarm max idle.");
+    params = ArgumentParser.parseArgs(new String[] {"--prewarm", "5", "--prewarm-max-idle", "2000", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getPrewarmSize(), 5, "Parsed prewarm size.");
+    assertEquals(params.getPrewarmMaxIdle(), 2000, "Parsed prewarm max idle.");
+  }
+
+  @Test
+  public void backendOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getBalanceStrategy(), BalanceStrategy.ROUND_ROBIN, "Default balancing strategy.");
+    assertEquals(params.getLoadBalancer().getBackends().size(), 1, "Remote host should be the only backend by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--backend", "127.0.0.2:1912", "--backend", "::1:1913", "--balance", "least-connections", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getBalanceStrategy(), BalanceStrategy.LEAST_CONNECTIONS, "Parsed balancing strategy.");
+    assertEquals(params.getLoadBalancer().getBackends().toString(), "[localhost:1911, 127.0.0.2:1912, ::1:1913]", "Parsed backends.");
+  }
+
+  @Test
+  public void healthOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getHealthInterval(), 0, "Health checks should be disabled by default.");
+    assertEquals(params.getHealthTimeout(), Params.DEFAULT_HEALTH_TIMEOUT, "Default health check timeout.");
+    assertNull(params.getHealthPayload(), "No health check payload by default.");
+    assertEquals(params.getEjectAfter(), Params.DEFAULT_EJECT_AFTER, "Default eject limit.");
+    assertEquals(params.getEjectTime(), Params.DEFAULT_EJECT_TIME, "Default eject time.");
+    params = ArgumentParser.parseArgs(new String[] {"--health-interval", "500", "--health-timeout", "200", "--health-payload", "PING",
+            "--eject-after", "0", "--eject-time", "3000", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getHealthInterval(), 500, "Parsed health check interval.");
+    assertEquals(params.getHealthTimeout(), 200, "Parsed health check timeout.");
+    assertEquals(params.getHealthPayload(), "PING", "Parsed health check payload.");
+    assertEquals(params.getEjectAfter(), 0, "Parsed eject limit.");
+    assertEquals(params.getEjectTime(), 3000, "Parsed eject time.");
+  }
+
+  @Test
+  public void metricsOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getMetricsInterval(), 0, "Metrics printing should be disabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--metrics-interval", "5000", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getMetricsInterval(), 5000, "Parsed metrics interval.");
+    assertEquals(params.getMetrics().getName(), "2222 -> localhost:1911", "Metrics should be named by tunnel endpoints.");
+  }
+
+  @Test
+  public void jmxOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertFalse(params.isJMX(), "JMX should be disabled by default.");
+    assertTrue(params.isObserversEnabled(), "Observers should be enabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--jmx", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertTrue(params.isJMX(), "Parsed JMX flag.");
+  }
+
+  @Test
+  public void prometheusOptions() {
+    Params params = ArgumentParser.parseArgs(new String[] {"2222", "localhost", "1911"});
+    assertEquals(params.getPrometheusPort(), 0, "Prometheus endpoint should be disabled by default.");
+    params = ArgumentParser.parseArgs(new String[] {"--prometheus", "9100", "2222", "localhost", "1911"});
+    assertEquals(params.getErrors(), "", "Valid input should provide no errors.");
+    assertEquals(params.getPrometheusPort(), 9100, "Parsed Prometheus port.");
+  }
+
   @Test
   public void humanReadableTest() {
     String human = Utils.mapAddrToHumanReadable("8.8.8.8:2222");
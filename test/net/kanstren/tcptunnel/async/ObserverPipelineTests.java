@@ -0,0 +1,158 @@
+package net.kanstren.tcptunnel.async;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.observers.InMemoryLogger;
+import net.kanstren.tcptunnel.observers.TCPObserver;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class ObserverPipelineTests {
+  /** Observer that waits until released, to fill up the queue. */
+  private static class BlockedObserver implements TCPObserver {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final InMemoryLogger logger = new InMemoryLogger(1024);
+    private int flushes = 0;
+
+    @Override
+    public void observe(byte[] buffer, int start, int count) {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      logger.observe(buffer, start, count);
+    }
+
+    @Override
+    public void flush() {
+      flushes++;
+    }
+  }
+
+  private Params params(OverflowPolicy policy, int queueSize) {
+    Params params = new Params();
+    params.setPrint(false);
+    params.setOverflowPolicy(policy);
+    params.setAsyncQueueSize(queueSize);
+    return params;
+  }
+
+  private List<TCPObserver> list(TCPObserver observer) {
+    List<TCPObserver> observers = new ArrayList<>();
+    observers.add(observer);
+    return observers;
+  }
+
+  private void publish(AsyncObserver async, int count) {
+    for (int i = 0 ; i < count ; i++) {
+      byte[] data = ("" + (i % 10)).getBytes();
+      async.observe(data, 0, data.length);
+    }
+  }
+
+  private void waitFor(ObserverPipeline pipeline, long delivered) throws Exception {
+    for (int i = 0 ; i < 200 && pipeline.getDelivered() < delivered ; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void idleConsumerWokenByPublish() throws Exception {
+    Params params = params(OverflowPolicy.BLOCK, 4);
+    ObserverPipeline pipeline = new ObserverPipeline(params);
+    BlockedObserver observer = new BlockedObserver();
+    observer.latch.countDown();
+    AsyncObserver async = pipeline.wrap(list(observer));
+    //let the consumer run out of spins and park
+    Thread.sleep(100);
+    long start = System.nanoTime();
+    publish(async, 1);
+    for (int i = 0 ; i < 2000 && pipeline.getDelivered() < 1 ; i++) {
+      Thread.sleep(1);
+    }
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    assertEquals(pipeline.getDelivered(), 1);
+    assertTrue(millis < 40, "Parked consumer should be woken up by publish, took " + millis + "ms.");
+    pipeline.stop();
+    pipeline.join(1000);
+  }
+
+  @Test
+  public void deliversInOrderAndFlushes() throws Exception {
+    Params params = params(OverflowPolicy.BLOCK, 4);
+    ObserverPipeline pipeline = new ObserverPipeline(params);
+    BlockedObserver observer = new BlockedObserver();
+    observer.latch.countDown();
+    AsyncObserver async = pipeline.wrap(list(observer));
+    publish(async, 100);
+    waitFor(pipeline, 100);
+    pipeline.stop();
+    pipeline.join(1000);
+    assertEquals(pipeline.getDelivered(), 100);
+    assertEquals(pipeline.getDropped(), 0);
+    assertEquals(observer.logger.getString("UTF8").length(), 100);
+    assertTrue(observer.logger.getString("UTF8").startsWith("0123456789012"));
+    assertTrue(observer.flushes > 0, "Observer should be flushed when queue is drained");
+    assertEquals(params.getBufferPool().getOutstanding(), 0, "All buffers should be released");
+  }
+
+  @Test
+  public void dropWhenFull() throws Exception {
+    Params params = params(OverflowPolicy.DROP, 4);
+    ObserverPipeline pipeline = new ObserverPipeline(params);
+    BlockedObserver observer = new BlockedObserver();
+    AsyncObserver async = pipeline.wrap(list(observer));
+    publish(async, 20);
+    //consumer takes one and blocks in observer, ring holds 4 more
+    assertTrue(pipeline.getDropped() >= 20 - 5, "Overflowing chunks should be dropped, was " + pipeline.getDropped());
+    observer.latch.countDown();
+    waitFor(pipeline, 20 - pipeline.getDropped());
+    assertEquals(pipeline.getDelivered() + pipeline.getDropped(), 20);
+    pipeline.stop();
+    pipeline.join(1000);
+    assertEquals(params.getBufferPool().getOutstanding(), 0, "All buffers should be released");
+  }
+
+  @Test
+  public void spillKeepsOrder() throws Exception {
+    Params params = params(OverflowPolicy.SPILL, 4);
+    ObserverPipeline pipeline = new ObserverPipeline(params);
+    BlockedObserver observer = new BlockedObserver();
+    AsyncObserver async = pipeline.wrap(list(observer));
+    publish(async, 100);
+    assertTrue(pipeline.getSpilled() > 0, "Overflowing chunks should be spilled");
+    assertEquals(pipeline.getDropped(), 0);
+    observer.latch.countDown();
+    waitFor(pipeline, 100);
+    pipeline.stop();
+    pipeline.join(1000);
+    assertEquals(pipeline.getDelivered(), 100);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0 ; i < 100 ; i++) {
+      expected.append(i % 10);
+    }
+    assertEquals(observer.logger.getString("UTF8"), expected.toString(), "Spilled data should be observed in order");
+    assertEquals(params.getBufferPool().getOutstanding(), 0, "All buffers should be released");
+  }
+
+  @Test
+  public void observerErrorsAreCounted() throws Exception {
+    Params params = params(OverflowPolicy.BLOCK, 4);
+    ObserverPipeline pipeline = new ObserverPipeline(params);
+    AsyncObserver async = pipeline.wrap(list((buffer, start, count) -> {
+      throw new RuntimeException("test failure");
+    }));
+    publish(async, 3);
+    waitFor(pipeline, 3);
+    assertEquals(pipeline.getErrors(), 3);
+    pipeline.stop();
+  }
+}
@@ -0,0 +1,74 @@
+package net.kanstren.tcptunnel.async;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class RingBufferTests {
+  @Test
+  public void capacityIsPowerOfTwo() {
+    assertEquals(new RingBuffer<String>(1).capacity(), 1);
+    assertEquals(new RingBuffer<String>(5).capacity(), 8);
+    assertEquals(new RingBuffer<String>(1024).capacity(), 1024);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void zeroCapacity() {
+    new RingBuffer<String>(0);
+  }
+
+  @Test
+  public void fifoAndFull() {
+    RingBuffer<Integer> ring = new RingBuffer<>(4);
+    assertNull(ring.poll(), "Empty buffer should give nothing");
+    for (int i = 0 ; i < 4 ; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4), "Full buffer should refuse more");
+    assertEquals(ring.size(), 4);
+    assertEquals(ring.poll(), Integer.valueOf(0));
+    assertTrue(ring.offer(4), "Polling should make room");
+    for (int i = 1 ; i <= 4 ; i++) {
+      assertEquals(ring.poll(), Integer.valueOf(i));
+    }
+    assertNull(ring.poll());
+    assertEquals(ring.size(), 0);
+  }
+
+  @Test
+  public void concurrentProducersKeepOrder() throws Exception {
+    RingBuffer<long[]> ring = new RingBuffer<>(64);
+    int producers = 4;
+    int perProducer = 20000;
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0 ; p < producers ; p++) {
+      final int id = p;
+      Thread t = new Thread(() -> {
+        for (int i = 0 ; i < perProducer ; i++) {
+          long[] item = {id, i};
+          while (!ring.offer(item)) Thread.yield();
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    long[] next = new long[producers];
+    int received = 0;
+    long end = System.currentTimeMillis() + 10000;
+    while (received < producers * perProducer && System.currentTimeMillis() < end) {
+      long[] item = ring.poll();
+      if (item == null) continue;
+      assertEquals(item[1], next[(int) item[0]], "Items of a single producer should come in order");
+      next[(int) item[0]]++;
+      received++;
+    }
+    for (Thread t : threads) t.join();
+    assertEquals(received, producers * perProducer, "All items should be received");
+  }
+}
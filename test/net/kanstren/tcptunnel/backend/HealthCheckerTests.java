@@ -0,0 +1,92 @@
+package net.kanstren.tcptunnel.backend;
+
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class HealthCheckerTests {
+  private Params params() {
+    Params params = new Params(PortManager.port(), "localhost", PortManager.port());
+    params.setHealthTimeout(500);
+    params.setPrint(false);
+    return params;
+  }
+
+  @Test
+  public void connectProbe() throws Exception {
+    int port = PortManager.port();
+    Backend backend = new Backend("localhost", port);
+    HealthChecker checker = new HealthChecker(params(), Collections.singletonList(backend));
+    checker.checkAll();
+    assertFalse(backend.isUp(), "Backend should be down with nothing listening");
+    assertFalse(backend.isHealthy(), "Down backend should not be healthy");
+    try (ServerSocket server = new ServerSocket(port)) {
+      checker.checkAll();
+      assertTrue(backend.isUp(), "Backend should be up when listening");
+      assertTrue(backend.isHealthy(), "Up backend should be healthy");
+      assertTrue(backend.getLatencyNanos() > 0, "Probe should measure connect latency");
+    }
+  }
+
+  @Test
+  public void payloadProbe() throws Exception {
+    int port = PortManager.port();
+    Backend backend = new Backend("localhost", port);
+    Params params = params();
+    params.setHealthPayload("ping");
+    HealthChecker checker = new HealthChecker(params, Collections.singletonList(backend));
+    try (ServerSocket server = new ServerSocket(port)) {
+      Thread responder = new Thread(() -> {
+        try {
+          //first probe is closed without response, second gets a response
+          try (Socket socket = server.accept()) {
+            socket.getInputStream().read();
+          }
+          try (Socket socket = server.accept()) {
+            InputStream in = socket.getInputStream();
+            byte[] ping = new byte[4];
+            int read = 0;
+            while (read < 4) read += in.read(ping, read, 4 - read);
+            socket.getOutputStream().write("pong".getBytes());
+            socket.getOutputStream().flush();
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      });
+      responder.start();
+      checker.checkAll();
+      assertFalse(backend.isUp(), "Backend not responding to payload should be down");
+      checker.checkAll();
+      assertTrue(backend.isUp(), "Backend responding to payload should be up");
+      responder.join(1000);
+    }
+  }
+
+  @Test
+  public void ejection() throws Exception {
+    Backend backend = new Backend("localhost", 1);
+    assertFalse(backend.connectFailed(3, 100), "First failure should not eject");
+    assertFalse(backend.connectFailed(3, 100), "Second failure should not eject");
+    backend.connectSucceeded();
+    assertFalse(backend.connectFailed(3, 100), "Success should reset the failure count");
+    assertFalse(backend.connectFailed(3, 100), "Second failure after success should not eject");
+    assertTrue(backend.connectFailed(3, 100), "Third consecutive failure should eject");
+    assertTrue(backend.isEjected(), "Backend should be ejected");
+    assertFalse(backend.isHealthy(), "Ejected backend should not be healthy");
+    assertEquals(backend.getEjections(), 1, "Number of ejections");
+    Thread.sleep(150);
+    assertTrue(backend.isHealthy(), "Backend should return after eject time");
+    assertFalse(backend.connectFailed(0, 100), "Ejection should be disabled with 0 limit");
+  }
+}
@@ -0,0 +1,126 @@
+package net.kanstren.tcptunnel.backend;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class LoadBalancerTests {
+  private List<Backend> backends(int count) {
+    List<Backend> backends = new ArrayList<>();
+    for (int i = 0 ; i < count ; i++) {
+      backends.add(new Backend("10.0.0." + (i + 1), 53));
+    }
+    return backends;
+  }
+
+  @Test
+  public void roundRobin() {
+    List<Backend> backends = backends(3);
+    LoadBalancer balancer = BalanceStrategy.ROUND_ROBIN.create(backends);
+    for (int i = 0 ; i < 7 ; i++) {
+      assertSame(balancer.select("client"), backends.get(i % 3), "Backend for connection " + i);
+    }
+  }
+
+  @Test
+  public void leastConnections() {
+    List<Backend> backends = backends(3);
+    LoadBalancer balancer = BalanceStrategy.LEAST_CONNECTIONS.create(backends);
+    backends.get(0).connectionOpened();
+    backends.get(0).connectionOpened();
+    backends.get(2).connectionOpened();
+    assertSame(balancer.select("client"), backends.get(1), "Backend with no connections should be chosen");
+    backends.get(1).connectionOpened();
+    backends.get(1).connectionOpened();
+    assertSame(balancer.select("client"), backends.get(2), "Backend with least connections should be chosen");
+    backends.get(0).connectionClosed();
+    backends.get(0).connectionClosed();
+    assertSame(balancer.select("client"), backends.get(0), "Closed connections should be released");
+  }
+
+  @Test
+  public void hashSticksToBackend() {
+    List<Backend> backends = backends(4);
+    LoadBalancer balancer = BalanceStrategy.HASH.create(backends);
+    Map<Backend, Integer> counts = new HashMap<>();
+    for (int i = 0 ; i < 1000 ; i++) {
+      String client = "192.168." + (i / 256) + "." + (i % 256);
+      Backend backend = balancer.select(client);
+      assertSame(balancer.select(client), backend, "Same client should get the same backend");
+      counts.merge(backend, 1, Integer::sum);
+    }
+    assertEquals(counts.size(), 4, "All backends should get clients");
+    for (int count : counts.values()) {
+      assertTrue(count > 125, "Clients should be spread evenly, got " + counts);
+    }
+  }
+
+  @Test
+  public void hashMovesFewClientsOnChange() {
+    List<Backend> backends = backends(4);
+    LoadBalancer four = BalanceStrategy.HASH.create(backends);
+    LoadBalancer three = BalanceStrategy.HASH.create(backends.subList(0, 3));
+    int moved = 0;
+    for (int i = 0 ; i < 1000 ; i++) {
+      String client = "192.168." + (i / 256) + "." + (i % 256);
+      Backend before = four.select(client);
+      if (before != backends.get(3) && three.select(client) != before) moved++;
+    }
+    assertEquals(moved, 0, "Only clients of the removed backend should move");
+  }
+
+  @Test
+  public void latencyPrefersFastBackend() {
+    List<Backend> backends = backends(2);
+    LoadBalancer balancer = BalanceStrategy.LATENCY.create(backends);
+    //unmeasured backends are tried first
+    assertSame(balancer.select("client"), backends.get(0));
+    assertSame(balancer.select("client"), backends.get(1));
+    backends.get(0).recordLatency(1_000_000);
+    backends.get(1).recordLatency(9_000_000);
+    int fast = 0;
+    for (int i = 0 ; i < 1000 ; i++) {
+      if (balancer.select("client") == backends.get(0)) fast++;
+    }
+    assertTrue(fast > 800 && fast < 980, "Fast backend should get about 90% of connections, got " + fast);
+  }
+
+  @Test
+  public void latencyAverage() {
+    Backend backend = new Backend("localhost", 53);
+    assertEquals(backend.getLatencyNanos(), 0, "Latency should not be measured initially");
+    backend.recordLatency(1000);
+    assertEquals(backend.getLatencyNanos(), 1000, "First sample should be taken as is");
+    backend.recordLatency(2000);
+    assertEquals(backend.getLatencyNanos(), 1200, "Later samples should be averaged");
+  }
+
+  @Test
+  public void unhealthySkipped() {
+    for (BalanceStrategy strategy : BalanceStrategy.values()) {
+      List<Backend> backends = backends(3);
+      LoadBalancer balancer = strategy.create(backends);
+      backends.get(0).setUp(false);
+      backends.get(2).setUp(false);
+      for (int i = 0 ; i < 10 ; i++) {
+        assertSame(balancer.select("10.1.1." + i), backends.get(1), "Only healthy backend should be chosen by " + strategy);
+      }
+      backends.get(1).setUp(false);
+      assertFalse(balancer.hasHealthy(), "No backend should be healthy");
+      assertNull(balancer.select("client"), "No backend should be chosen by " + strategy + " when none is healthy");
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void noBackends() {
+    BalanceStrategy.ROUND_ROBIN.create(new ArrayList<>());
+  }
+}
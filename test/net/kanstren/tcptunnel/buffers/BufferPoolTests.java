@@ -0,0 +1,98 @@
+package net.kanstren.tcptunnel.buffers;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class BufferPoolTests {
+  @Test
+  public void sizeClasses() {
+    assertEquals(BufferPool.sizeClass(1), 0);
+    assertEquals(BufferPool.sizeClass(512), 0);
+    assertEquals(BufferPool.sizeClass(513), 1);
+    assertEquals(BufferPool.sizeClass(1024), 1);
+    assertEquals(BufferPool.sizeClass(8192), 4);
+    assertEquals(BufferPool.sizeClass(65535), 7);
+    assertEquals(BufferPool.sizeClass(65536), 7);
+    assertEquals(BufferPool.sizeClass(65537), -1);
+  }
+
+  @Test
+  public void reuse() {
+    BufferPool pool = new BufferPool(false);
+    PooledBuffer buffer1 = pool.acquire(1000, false);
+    assertEquals(buffer1.buffer().capacity(), 1024, "Capacity should be that of the size class");
+    assertEquals(buffer1.buffer().limit(), 1000, "Limit should be the requested size");
+    buffer1.buffer().position(10);
+    buffer1.release();
+    PooledBuffer buffer2 = pool.acquire(600, false);
+    assertSame(buffer2.array(), buffer1.array(), "Released buffer should be reused from the same size class");
+    assertEquals(buffer2.buffer().position(), 0, "Reused buffer should be reset");
+    assertEquals(buffer2.buffer().limit(), 600, "Limit should be the requested size");
+    assertEquals(pool.getAllocated(), 1);
+    assertEquals(pool.getReused(), 1);
+    assertEquals(pool.getOutstanding(), 1);
+    buffer2.release();
+    assertEquals(pool.getOutstanding(), 0);
+  }
+
+  @Test
+  public void directAndHeapSeparate() {
+    BufferPool pool = new BufferPool(false);
+    PooledBuffer heap = pool.acquire(4096, false);
+    assertFalse(heap.isDirect());
+    heap.release();
+    PooledBuffer direct = pool.acquire(4096, true);
+    assertTrue(direct.isDirect());
+    assertEquals(pool.getAllocated(), 2, "Heap buffer should not be reused for direct request");
+    direct.release();
+  }
+
+  @Test
+  public void tooBigIsNotPooled() {
+    BufferPool pool = new BufferPool(false);
+    PooledBuffer buffer1 = pool.acquire(100000, false);
+    assertEquals(buffer1.buffer().capacity(), 100000);
+    buffer1.release();
+    PooledBuffer buffer2 = pool.acquire(100000, false);
+    assertNotSame(buffer2.array(), buffer1.array());
+    assertEquals(pool.getAllocated(), 2);
+    buffer2.release();
+  }
+
+  @Test
+  public void retentionIsBounded() {
+    BufferPool pool = new BufferPool(1024, false);
+    PooledBuffer buffer1 = pool.acquire(1024, false);
+    PooledBuffer buffer2 = pool.acquire(1024, false);
+    buffer1.release();
+    buffer2.release();
+    pool.acquire(1024, false);
+    pool.acquire(1024, false);
+    assertEquals(pool.getAllocated(), 3, "Only one buffer should have been retained");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "Buffer already released.")
+  public void doubleRelease() {
+    BufferPool pool = new BufferPool(false);
+    PooledBuffer buffer = pool.acquire(100, true);
+    buffer.release();
+    buffer.release();
+  }
+
+  @Test
+  public void leakDetection() throws Exception {
+    BufferPool pool = new BufferPool(true);
+    pool.acquire(100, false).release();
+    pool.acquire(100, false);
+    for (int i = 0 ; i < 50 && pool.getLeaks() == 0 ; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertEquals(pool.getLeaks(), 1, "Unreleased buffer should be detected as leaked");
+    assertEquals(pool.getOutstanding(), 0);
+  }
+}
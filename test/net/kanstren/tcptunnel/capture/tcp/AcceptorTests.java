@@ -0,0 +1,71 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.Utils;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class AcceptorTests {
+  @DataProvider
+  public Object[][] configs() {
+    //nio, reuse port, observed
+    return new Object[][] {{false, false, false}, {false, true, false}, {true, false, false}, {true, true, false}, {false, true, true}};
+  }
+
+  @Test(dataProvider = "configs")
+  public void concurrentConnections(boolean nio, boolean reusePort, boolean observed) throws Exception {
+    if (reusePort) {
+      try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+        Utils.setReusePort(probe);
+      } catch (IOException e) {
+        throw new SkipException(e.getMessage());
+      }
+    }
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "accepted");
+    server.start();
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(nio);
+    params.setNIOLoops(2);
+    params.setAcceptors(4);
+    params.setReusePort(reusePort);
+    params.setBacklog(128);
+    params.setPrint(false);
+    //with reuse port the client sockets have channels, and observers keep the forwarders from moving data directly between them
+    if (observed) params.enableInMemoryLogging(1024);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    int count = 20;
+    ExecutorService executor = Executors.newFixedThreadPool(count);
+    List<Future<String>> responses = new ArrayList<>();
+    for (int i = 0 ; i < count ; i++) {
+      String msg = "hi " + i;
+      responses.add(executor.submit(() -> TCPMsgSender.send2("localhost", proxyPort, msg)));
+    }
+    for (int i = 0 ; i < count ; i++) {
+      assertEquals(responses.get(i).get(), "accepted", "Response content for connection " + i);
+    }
+    executor.shutdown();
+    assertEquals(main.getMetrics().getOpenedConnections(), count, "Connections opened");
+    main.stop();
+  }
+}
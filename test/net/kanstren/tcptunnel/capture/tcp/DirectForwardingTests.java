@@ -0,0 +1,73 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for forwarding without any observers, where data is passed directly between socket channels.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DirectForwardingTests {
+  @Test
+  public void threadsNoObservers() throws Exception {
+    Params params = new Params();
+    assertTrue(params.hasUnobservedStream(), "No observers configured");
+    assertForwarding(params);
+  }
+
+  @Test
+  public void nioNoObservers() throws Exception {
+    Params params = new Params();
+    params.setNIO(true);
+    params.setNIOLoops(1);
+    assertForwarding(params);
+  }
+
+  @Test
+  public void threadsUpObserverOnly() throws Exception {
+    //upstream goes through the observer, downstream directly
+    int mirrorPort = PortManager.port();
+    TCPTestServer2 mirror = new TCPTestServer2(mirrorPort, "mirror");
+    mirror.start();
+    Params params = new Params();
+    params.enableMirrorUpStreamLogger("localhost", mirrorPort);
+    assertTrue(params.hasUnobservedStream(), "Downstream has no observers");
+    assertForwarding(params);
+    assertEquals(mirror.getReceiveString(), "hi there", "Received stream for mirrored stream");
+  }
+
+  private void assertForwarding(Params params) throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    //bigger than the buffer size to need several reads
+    byte[] response = new byte[3000];
+    new Random(1).nextBytes(response);
+    TCPTestServer2 server = new TCPTestServer2(serverPort, response);
+    server.start();
+    params.setSourcePort(proxyPort);
+    params.setRemoteHost("localhost");
+    params.setRemotePort(serverPort);
+    params.setBufferSize(1000);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    byte[] received = TCPMsgSender.send2("localhost", proxyPort, "hi there".getBytes());
+    //single read in the sender may not get it all, so check what we got is correct
+    assertTrue(received.length > 0, "Should receive a response");
+    for (int i = 0 ; i < received.length ; i++) {
+      assertEquals(received[i], response[i], "Response byte " + i);
+    }
+    Thread.sleep(50);
+    assertEquals(server.getReceiveString(), "hi there", "Received stream for forward stream");
+    main.stop();
+  }
+}
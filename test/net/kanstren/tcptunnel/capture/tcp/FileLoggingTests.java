@@ -3,6 +3,7 @@ package net.kanstren.tcptunnel.capture.tcp;
 import net.kanstren.tcptunnel.Main;
 import net.kanstren.tcptunnel.Params;
 import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.forwarder.FlushMode;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -14,6 +15,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author Teemu Kanstren.
@@ -63,6 +65,31 @@ public class FileLoggingTests {
     assertEquals(up, "hi there");
   }
 
+  @Test
+  public void captureTextBytesCoalesced() throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer2 server = new TCPTestServer2(serverPort, "console test1");
+    server.start();
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.enableByteFileLogger(DOWNLOADLOGFILE, UPLOADLOGFILE);
+    //coalesce writes, flushing when there is no more input
+    params.setFlushMode(FlushMode.IDLE);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    String response = TCPMsgSender.send2("localhost", proxyPort, "hi there");
+    assertEquals(response, "console test1", "Response content");
+
+    Thread.sleep(100);
+    String down = TestUtils.readFile(DOWNLOADLOGFILE + ".bytes", "UTF8");
+    String up = TestUtils.readFile(UPLOADLOGFILE + ".bytes", "UTF8");
+    assertEquals(down, "console test1");
+    assertEquals(up, "hi there");
+    assertTrue(params.getWriteStats().getWrites() > 0, "Writes should be counted");
+    assertEquals(params.getWriteStats().getWrites(), params.getWriteStats().getReads() - params.getWriteStats().getWritesSaved());
+  }
+
   @Test
   public void captureBinaryBytes() throws Exception {
     //create a test server to give us a page to request
@@ -50,6 +50,31 @@ public class InMemoryCaptureTests {
     assertTcpStream(downLogger, "expected_down1.txt");
   }
 
+  @Test
+  public void sendRequestMITMAsync() throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer2 server = new TCPTestServer2(serverPort, "test1");
+    server.start();
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.enableInMemoryLogging(8092);
+    //loggers are run in a separate thread, forwarding does not wait for them
+    params.setAsyncObservers(true);
+    InMemoryLogger upLogger = params.getUpMemoryLogger();
+    InMemoryLogger downLogger = params.getDownMemoryLogger();
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    String response = TCPMsgSender.send2("localhost", proxyPort, "hi there");
+    assertEquals(response, "test1", "Response content");
+    //give the logger thread time to catch up
+    Thread.sleep(100);
+    assertTcpStream(upLogger, "expected_up1.txt");
+    assertTcpStream(downLogger, "expected_down1.txt");
+    assertEquals(params.getObserverPipeline().getDropped(), 0, "Nothing should be dropped");
+    main.stop();
+  }
+
   private void assertTcpStream(InMemoryLogger logger, String filename) throws Exception {
     //here we get the actual data that was passed through the tunnel in one direction (depending if we get passed the upstream memorylogger or downstream)
     String actual = logger.getString("UTF8");
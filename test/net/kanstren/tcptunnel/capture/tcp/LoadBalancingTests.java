@@ -0,0 +1,121 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.backend.Backend;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class LoadBalancingTests {
+  @Test
+  public void threads() throws Exception {
+    sendRoundRobin(false);
+  }
+
+  @Test
+  public void nio() throws Exception {
+    sendRoundRobin(true);
+  }
+
+  private void sendRoundRobin(boolean nio) throws Exception {
+    int serverPort1 = PortManager.port();
+    int serverPort2 = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server1 = new TCPTestServer3(serverPort1, "server1");
+    server1.start();
+    TCPTestServer3 server2 = new TCPTestServer3(serverPort2, "server2");
+    server2.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", serverPort1);
+    params.addBackend("localhost", serverPort2);
+    params.setNIO(nio);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    for (int i = 0 ; i < 4 ; i++) {
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hi " + i);
+      assertEquals(response, i % 2 == 0 ? "server1" : "server2", "Response content for connection " + i);
+    }
+    assertEquals(server1.getReceiveString(), "hi 2", "Last received content for first backend");
+    assertEquals(server2.getReceiveString(), "hi 3", "Last received content for second backend");
+    for (Backend backend : params.getLoadBalancer().getBackends()) {
+      //tunnels close asynchronously after the response is received
+      for (int i = 0 ; i < 100 && backend.getActiveConnections() > 0 ; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(backend.getActiveConnections(), 0, "Closed tunnels should be released from " + backend);
+    }
+    main.stop();
+  }
+
+  @Test
+  public void ejectDeadBackend() throws Exception {
+    int serverPort = PortManager.port();
+    int deadPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "alive");
+    server.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", deadPort);
+    params.addBackend("localhost", serverPort);
+    params.setEjectAfter(1);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    //first connection goes to the dead backend and fails, ejecting it
+    assertEquals(readFirst(proxyPort), -1, "Connection to dead backend should be closed");
+    for (int i = 0 ; i < 4 ; i++) {
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hi " + i);
+      assertEquals(response, "alive", "Response content for connection " + i);
+    }
+    Backend dead = params.getLoadBalancer().getBackends().get(0);
+    assertEquals(dead.getEjections(), 1, "Dead backend should be ejected once");
+    main.stop();
+  }
+
+  @Test
+  public void failFastWithNoHealthyBackend() throws Exception {
+    int deadPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", deadPort);
+    params.setNIO(true);
+    params.setHealthInterval(10000);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Backend dead = params.getLoadBalancer().getBackends().get(0);
+    for (int i = 0 ; i < 100 && dead.isUp() ; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(!dead.isUp(), "Health check should mark the dead backend down");
+    assertEquals(readFirst(proxyPort), -1, "Client should be closed when no backend is healthy");
+    assertEquals(dead.getConsecutiveFailures(), 0, "No connection should be attempted to a backend marked down");
+    main.stop();
+  }
+
+  /**
+   * Connects to given port and reads the first byte.
+   *
+   * @param port The port to connect to.
+   * @return The first byte, or -1 if closed without data.
+   * @throws Exception If connecting or reading fails.
+   */
+  private int readFirst(int port) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(2000);
+      InputStream in = socket.getInputStream();
+      return in.read();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.metrics.TunnelMetrics;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class MetricsTests {
+  @Test
+  public void threads() throws Exception {
+    sendAndCount(false);
+  }
+
+  @Test
+  public void nio() throws Exception {
+    sendAndCount(true);
+  }
+
+  private void sendAndCount(boolean nio) throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "metrics response");
+    server.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(nio);
+    params.enableInMemoryLogging(8092);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    for (int i = 0 ; i < 3 ; i++) {
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hello");
+      assertEquals(response, "metrics response", "Response content for connection " + i);
+    }
+    TunnelMetrics metrics = main.getMetrics();
+    //tunnels close asynchronously after the response is received
+    for (int i = 0 ; i < 100 && metrics.getActiveConnections() > 0 ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(metrics.getOpenedConnections(), 3, "Opened connections");
+    assertEquals(metrics.getActiveConnections(), 0, "Active connections");
+    assertEquals(metrics.getUp().getBytes(), 15, "Upstream bytes");
+    assertEquals(metrics.getDown().getBytes(), 48, "Downstream bytes");
+    assertEquals(metrics.getBackendLatency().getCount(), 3, "Connect latency samples");
+    assertTrue(metrics.getUp().getObserverTime().getCount() >= 3, "Observer time should be measured per chunk");
+    main.stop();
+  }
+}
@@ -0,0 +1,70 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.observers.InMemoryLogger;
+import org.testng.annotations.Test;
+import osmo.common.TestUtils;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class NIOCaptureTests {
+  @Test
+  public void sendRequestMITM() throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer2 server = new TCPTestServer2(serverPort, "test1");
+    server.start();
+    //same as the threaded in-memory test but forwarding through the selector loops
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(true);
+    params.setNIOLoops(2);
+    params.enableInMemoryLogging(8092);
+    InMemoryLogger upLogger = params.getUpMemoryLogger();
+    InMemoryLogger downLogger = params.getDownMemoryLogger();
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    String response = TCPMsgSender.send2("localhost", proxyPort, "hi there");
+    assertEquals(response, "test1", "Response content");
+    //the response may be received by the client before the tunnel has gotten to observing the close
+    Thread.sleep(50);
+    assertTcpStream(upLogger, "expected_up1.txt");
+    assertTcpStream(downLogger, "expected_down1.txt");
+    main.stop();
+  }
+
+  @Test
+  public void multipleConnections() throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "nio multi");
+    server.start();
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(true);
+    params.setNIOLoops(2);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    //consecutive connections go to different event loops
+    for (int i = 0 ; i < 5 ; i++) {
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hi " + i);
+      assertEquals(response, "nio multi", "Response content for connection " + i);
+      assertEquals(server.getReceiveString(), "hi " + i, "Received content for connection " + i);
+    }
+    main.stop();
+  }
+
+  private void assertTcpStream(InMemoryLogger logger, String filename) throws Exception {
+    String actual = logger.getString("UTF8");
+    actual = TestUtils.unifyLineSeparators(actual, "\n");
+    String expected = TestUtils.getResource(NIOCaptureTests.class, filename);
+    expected = TestUtils.unifyLineSeparators(expected, "\n");
+    assertEquals(actual, expected, "Request content");
+  }
+}
@@ -0,0 +1,78 @@
+package net.kanstren.tcptunnel.capture.tcp;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.backend.Backend;
+import net.kanstren.tcptunnel.backend.ConnectionPool;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class PrewarmTests {
+  @Test
+  public void threads() throws Exception {
+    sendWithPrewarm(false, false);
+  }
+
+  @Test
+  public void nio() throws Exception {
+    sendWithPrewarm(true, false);
+  }
+
+  @Test
+  public void threadsObserved() throws Exception {
+    //observers in both directions, so neither forwarder can move the data directly between the channels
+    sendWithPrewarm(false, true);
+  }
+
+  @Test
+  public void nioObserved() throws Exception {
+    sendWithPrewarm(true, true);
+  }
+
+  private void sendWithPrewarm(boolean nio, boolean observed) throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    //the test server handles one connection at a time, so only keep one ready
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "prewarmed");
+    server.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(nio);
+    params.setPrewarmSize(1);
+    params.setPrint(false);
+    if (observed) params.enableInMemoryLogging(1024);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    Backend backend = params.getLoadBalancer().getBackends().get(0);
+    for (int i = 0 ; i < 100 && backend.getConnectionPool() == null ; i++) {
+      Thread.sleep(10);
+    }
+    ConnectionPool pool = backend.getConnectionPool();
+    for (int i = 0 ; i < 3 ; i++) {
+      waitForIdle(pool);
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hi " + i);
+      assertEquals(response, "prewarmed", "Response content for connection " + i);
+      assertEquals(server.getReceiveString(), "hi " + i, "Received content for connection " + i);
+    }
+    assertEquals(pool.getHits(), 3, "All connections should come from the pool");
+    if (observed) {
+      assertEquals(params.getUpMemoryLogger().getString("UTF8"), "hi 0hi 1hi 2", "Observed upstream");
+      assertEquals(params.getDownMemoryLogger().getString("UTF8"), "prewarmedprewarmedprewarmed", "Observed downstream");
+    }
+    assertTrue(pool.getCreated() >= 3, "Pool should be refilled");
+    main.stop();
+  }
+
+  private void waitForIdle(ConnectionPool pool) throws Exception {
+    for (int i = 0 ; i < 100 && pool.getIdle() == 0 ; i++) {
+      Thread.sleep(10);
+    }
+  }
+}
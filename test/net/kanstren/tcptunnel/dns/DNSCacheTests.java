@@ -0,0 +1,274 @@
+package net.kanstren.tcptunnel.dns;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static net.kanstren.tcptunnel.dns.DNSTestMessages.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class DNSCacheTests {
+  private static final byte[] ADDRESS = {10, 1, 2, 3};
+
+  @Test
+  public void hitPatchedForClient() throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] first = query(0x1111, "www.example.com", TYPE_A);
+    byte[] response = answer(first, 300, ADDRESS);
+    assertTrue(cache.put(asked(first), response, response.length, 0), "Response should be cached");
+
+    //different transaction id and case of the name, 10 seconds later
+    byte[] second = query(0x2222, "WWW.Example.com", TYPE_A);
+    byte[] cached = cache.get(second, second.length, TimeUnit.SECONDS.toNanos(10));
+    assertNotNull(cached, "Cached response");
+    assertEquals(DNSMessage.readId(cached), 0x2222, "Client transaction ID");
+    assertEquals(Arrays.copyOfRange(cached, DNSMessage.HEADER_SIZE, second.length), Arrays.copyOfRange(second, DNSMessage.HEADER_SIZE, second.length), "Question as the client sent it");
+    assertEquals(answerTtl(cached), 290, "TTL counted down by the age");
+    assertEquals(Arrays.copyOfRange(cached, cached.length - 4, cached.length), ADDRESS, "Answer");
+    assertEquals(cache.getHits(), 1, "Cache hits");
+    assertEquals(answerTtl(response), 300, "Cached response itself is not changed");
+  }
+
+  @Test
+  public void keyedOnQuestion() throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] response = answer(query, 300, ADDRESS);
+    cache.put(asked(query), response, response.length, 0);
+    byte[] otherName = query(1, "ftp.example.com", TYPE_A);
+    byte[] otherType = query(1, "www.example.com", 28);
+    assertNull(cache.get(otherName, otherName.length, 0), "Different name");
+    assertNull(cache.get(otherType, otherType.length, 0), "Different type");
+    assertEquals(cache.getMisses(), 2, "Cache misses");
+  }
+
+  @Test
+  public void expiresWithTtl() throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] response = answer(query, 5, ADDRESS);
+    cache.put(asked(query), response, response.length, 0);
+    assertNotNull(cache.get(query, query.length, TimeUnit.SECONDS.toNanos(4)), "Cached before TTL");
+    assertNull(cache.get(query, query.length, TimeUnit.SECONDS.toNanos(5)), "Expired at TTL");
+    assertEquals(cache.size(), 0, "Expired response removed");
+  }
+
+  @DataProvider
+  public Object[][] negatives() {
+    //rcode, soa ttl, soa minimum, expected ttl
+    return new Object[][] {
+            {DNSMessage.RCODE_NXDOMAIN, 3600, 60, 60},
+            {DNSMessage.RCODE_NOERROR, 30, 60, 30},
+            {DNSMessage.RCODE_NXDOMAIN, 86400, 86400, DNSCache.MAX_NEGATIVE_TTL},
+    };
+  }
+
+  @Test(dataProvider = "negatives")
+  public void negativeCaching(int rcode, long soaTtl, long minimum, long ttl) throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] query = query(1, "missing.example.com", TYPE_A);
+    byte[] response = negative(query, rcode, soaTtl, minimum);
+    assertTrue(cache.put(asked(query), response, response.length, 0), "Negative response should be cached");
+    assertNotNull(cache.get(query, query.length, TimeUnit.SECONDS.toNanos(ttl) - 1), "Cached before negative TTL");
+    assertNull(cache.get(query, query.length, TimeUnit.SECONDS.toNanos(ttl)), "Expired at negative TTL");
+  }
+
+  @Test
+  public void uncacheable() throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] zeroTtl = answer(query, 0, ADDRESS);
+    assertFalse(cache.put(asked(query), zeroTtl, zeroTtl.length, 0), "Zero TTL");
+    byte[] truncated = answer(query, 300, ADDRESS);
+    truncated[2] |= DNSMessage.FLAG_TC >>> 8;
+    assertFalse(cache.put(asked(query), truncated, truncated.length, 0), "Truncated");
+    byte[] failure = answer(query, 300, ADDRESS);
+    failure[3] |= 2;
+    assertFalse(cache.put(asked(query), failure, failure.length, 0), "Server failure");
+    assertFalse(cache.put(asked(query), query, query.length, 0), "Query");
+    assertEquals(cache.size(), 0, "Nothing cached");
+  }
+
+  @Test
+  public void leastRecentlyUsedDropped() throws Exception {
+    DNSCache cache = new DNSCache(2);
+    byte[] a = query(1, "a.example.com", TYPE_A);
+    byte[] b = query(1, "b.example.com", TYPE_A);
+    byte[] c = query(1, "c.example.com", TYPE_A);
+    for (byte[] query : new byte[][] {a, b}) {
+      byte[] response = answer(query, 300, ADDRESS);
+      cache.put(asked(query), response, response.length, 0);
+    }
+    //makes b the least recently used
+    assertNotNull(cache.get(a, a.length, 0), "a cached");
+    byte[] response = answer(c, 300, ADDRESS);
+    cache.put(asked(c), response, response.length, 0);
+    assertEquals(cache.size(), 2, "Cache size bounded");
+    assertNotNull(cache.get(a, a.length, 0), "a kept");
+    assertNull(cache.get(b, b.length, 0), "b dropped");
+    assertNotNull(cache.get(c, c.length, 0), "c cached");
+  }
+
+  @Test
+  public void popularPrefetchedNearExpiry() throws Exception {
+    DNSCache cache = new DNSCache(10, 3);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] response = answer(query, 100, ADDRESS);
+    cache.put(asked(query), response, response.length, 0);
+    DNSQuestion question = DNSQuestion.parse(query, query.length);
+    for (int i = 0 ; i < 3 ; i++) {
+      cache.get(query, query.length, TimeUnit.SECONDS.toNanos(10));
+    }
+    assertFalse(cache.prefetch(question, TimeUnit.SECONDS.toNanos(10)), "Not prefetched with most of the TTL left");
+    assertTrue(cache.prefetch(question, TimeUnit.SECONDS.toNanos(91)), "Prefetched in the last tenth of the TTL");
+    assertFalse(cache.prefetch(question, TimeUnit.SECONDS.toNanos(92)), "Prefetched only once");
+    assertEquals(cache.getPrefetches(), 1, "Prefetches");
+
+    //the refreshed response starts counting its hits again
+    cache.put(asked(query), response, response.length, TimeUnit.SECONDS.toNanos(92));
+    cache.get(query, query.length, TimeUnit.SECONDS.toNanos(185));
+    assertFalse(cache.prefetch(question, TimeUnit.SECONDS.toNanos(185)), "Refreshed response not yet popular");
+  }
+
+  @Test
+  public void unpopularNotPrefetched() throws Exception {
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] response = answer(query, 100, ADDRESS);
+    DNSQuestion question = DNSQuestion.parse(query, query.length);
+    DNSCache cache = new DNSCache(10, 3);
+    DNSCache disabled = new DNSCache(10);
+    for (DNSCache c : new DNSCache[] {cache, disabled}) {
+      c.put(asked(query), response, response.length, 0);
+      for (int i = 0 ; i < 2 ; i++) {
+        c.get(query, query.length, TimeUnit.SECONDS.toNanos(95));
+      }
+    }
+    disabled.get(query, query.length, TimeUnit.SECONDS.toNanos(95));
+    assertFalse(cache.prefetch(question, TimeUnit.SECONDS.toNanos(95)), "Too few hits to prefetch");
+    assertFalse(disabled.prefetch(question, TimeUnit.SECONDS.toNanos(95)), "Prefetching disabled");
+    byte[] other = query(1, "ftp.example.com", TYPE_A);
+    assertFalse(cache.prefetch(DNSQuestion.parse(other, other.length), TimeUnit.SECONDS.toNanos(95)), "Not cached");
+  }
+
+  @Test
+  public void otherQuestionNotCached() throws Exception {
+    DNSCache cache = new DNSCache(10);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    byte[] spoofed = answer(query(1, "ftp.example.com", TYPE_A), 300, ADDRESS);
+    assertFalse(cache.put(asked(query), spoofed, spoofed.length, 0), "Response to another name");
+    byte[] otherType = answer(query(1, "www.example.com", 28), 300, ADDRESS);
+    assertFalse(cache.put(asked(query), otherType, otherType.length, 0), "Response to another type");
+    assertEquals(cache.size(), 0, "Nothing cached");
+    byte[] other = query(2, "ftp.example.com", TYPE_A);
+    assertNull(cache.get(other, other.length, 0), "Spoofed response not served");
+  }
+
+  @DataProvider
+  public Object[][] sockets() {
+    //socket per query, multiplexed
+    return new Object[][] {{0}, {2}};
+  }
+
+  @Test(dataProvider = "sockets")
+  public void tunnelPrefetchesPopular(int sockets) throws Exception {
+    DNSTestServer server = new DNSTestServer(2, 0);
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", server.getPort());
+    params.setDNS(true);
+    params.setDNSSockets(sockets);
+    params.setDNSCacheSize(100);
+    params.setDNSPrefetch(2);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    DatagramSocket client = new DatagramSocket();
+    client.setSoTimeout(2000);
+    long start = System.nanoTime();
+    for (int id = 1 ; id <= 3 ; id++) {
+      ask(client, proxyPort, id);
+      for (int i = 0 ; i < 100 && params.getDNSCache().size() == 0 ; i++) {
+        Thread.sleep(10);
+      }
+    }
+    //in the last tenth of the 2 second ttl
+    Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(start + TimeUnit.MILLISECONDS.toNanos(1900) - System.nanoTime())));
+    ask(client, proxyPort, 4);
+    for (int i = 0 ; i < 100 && server.getQueries() < 2 ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(params.getDNSCache().getPrefetches(), 1, "Prefetches");
+    assertEquals(server.getQueries(), 2, "Refreshed from the server");
+
+    //past the ttl of the first response
+    Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(start + TimeUnit.MILLISECONDS.toNanos(2200) - System.nanoTime())));
+    ask(client, proxyPort, 5);
+    assertEquals(server.getQueries(), 2, "Answered from the refreshed response");
+    assertEquals(params.getDNSCache().getHits(), 4, "Cache hits");
+
+    client.close();
+    main.stop();
+    server.close();
+  }
+
+  /**
+   * @param query The query.
+   * @return The question of the query, to cache the response under.
+   */
+  private DNSQuestion asked(byte[] query) {
+    return DNSQuestion.parse(query, query.length);
+  }
+
+  private void ask(DatagramSocket client, int proxyPort, int id) throws Exception {
+    byte[] query = query(id, "www.example.com", TYPE_A);
+    client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), proxyPort));
+    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+    client.receive(packet);
+    assertEquals(DNSMessage.readId(packet.getData()), id, "Transaction ID of response " + id);
+  }
+
+  @Test
+  public void tunnelAnswersFromCache() throws Exception {
+    DNSTestServer server = new DNSTestServer(300, 0);
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", server.getPort());
+    params.setDNS(true);
+    params.setDNSCacheSize(100);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    DatagramSocket client = new DatagramSocket();
+    client.setSoTimeout(2000);
+    for (int id = 1 ; id <= 3 ; id++) {
+      byte[] query = query(id, "www.example.com", TYPE_A);
+      client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), proxyPort));
+      DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+      client.receive(packet);
+      assertEquals(DNSMessage.readId(packet.getData()), id, "Transaction ID of response " + id);
+      //the response is cached after sending it to the client
+      for (int i = 0 ; i < 100 && params.getDNSCache().size() == 0 ; i++) {
+        Thread.sleep(10);
+      }
+    }
+    assertEquals(server.getQueries(), 1, "Only the first query should go to the server");
+    assertEquals(params.getDNSCache().getHits(), 2, "Cache hits");
+
+    client.close();
+    main.stop();
+    server.close();
+  }
+}
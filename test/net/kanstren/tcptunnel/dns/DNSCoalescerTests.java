@@ -0,0 +1,103 @@
+package net.kanstren.tcptunnel.dns;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.kanstren.tcptunnel.dns.DNSTestMessages.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class DNSCoalescerTests {
+  private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+  @Test
+  public void identicalQueriesWait() throws Exception {
+    DNSCoalescer coalescer = new DNSCoalescer(1000);
+    byte[] first = query(1, "www.example.com", TYPE_A);
+    byte[] second = query(2, "WWW.example.com", TYPE_A);
+    byte[] other = query(3, "ftp.example.com", TYPE_A);
+    assertTrue(coalescer.join(DNSQuestion.parse(first, first.length), first, CLIENT, 1001, 0), "First query forwarded");
+    assertFalse(coalescer.join(DNSQuestion.parse(second, second.length), second, CLIENT, 1002, 0), "Same question waits");
+    assertFalse(coalescer.join(DNSQuestion.parse(second, second.length), second, CLIENT, 1002, 0), "Retransmit dropped");
+    assertTrue(coalescer.join(DNSQuestion.parse(other, other.length), other, CLIENT, 1003, 0), "Different question forwarded");
+    assertEquals(coalescer.size(), 2, "Questions in flight");
+    assertEquals(coalescer.getCoalesced(), 1, "Queries coalesced");
+
+    byte[] response = answer(first, 300, DNSTestServer.ADDRESS);
+    List<DNSCoalescer.Client> waiting = coalescer.complete(DNSQuestion.parse(first, first.length));
+    assertEquals(waiting.size(), 1, "Clients waiting for the response");
+    assertEquals(waiting.get(0).getPort(), 1002, "Port of the waiting client");
+    byte[] copy = waiting.get(0).respond(response, response.length);
+    assertEquals(DNSMessage.readId(copy), 2, "Transaction ID of the waiting client");
+    assertEquals(Arrays.copyOfRange(copy, DNSMessage.HEADER_SIZE, second.length), Arrays.copyOfRange(second, DNSMessage.HEADER_SIZE, second.length), "Question as the waiting client sent it");
+    assertEquals(coalescer.size(), 1, "Questions in flight after completion");
+  }
+
+  @Test
+  public void timedOutQuestionForwardedAgain() throws Exception {
+    DNSCoalescer coalescer = new DNSCoalescer(1000);
+    byte[] query = query(1, "www.example.com", TYPE_A);
+    DNSQuestion question = DNSQuestion.parse(query, query.length);
+    assertTrue(coalescer.join(question, query, CLIENT, 1001, 0), "First query forwarded");
+    assertFalse(coalescer.join(question, query, CLIENT, 1002, 999), "Waits within timeout");
+    assertTrue(coalescer.join(question, query, CLIENT, 1003, 1000), "Forwarded again after timeout");
+    assertEquals(coalescer.complete(question).size(), 0, "Clients waiting for the new query");
+  }
+
+  @DataProvider
+  public Object[][] sockets() {
+    //socket per query, multiplexed
+    return new Object[][] {{0}, {2}};
+  }
+
+  @Test(dataProvider = "sockets")
+  public void responseSentToAllClients(int sockets) throws Exception {
+    //slow enough for all the queries to arrive while the first is in flight
+    DNSTestServer server = new DNSTestServer(300, 300);
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", server.getPort());
+    params.setDNS(true);
+    params.setDNSSockets(sockets);
+    params.setDNSCoalesce(true);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    int count = 5;
+    DatagramSocket[] clients = new DatagramSocket[count];
+    for (int i = 0 ; i < count ; i++) {
+      clients[i] = new DatagramSocket();
+      clients[i].setSoTimeout(2000);
+      byte[] query = query(100 + i, "www.example.com", TYPE_A);
+      clients[i].send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), proxyPort));
+    }
+    for (int i = 0 ; i < count ; i++) {
+      DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+      clients[i].receive(packet);
+      assertEquals(DNSMessage.readId(packet.getData()), 100 + i, "Transaction ID of client " + i);
+      byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+      assertEquals(Arrays.copyOfRange(response, response.length - 4, response.length), DNSTestServer.ADDRESS, "Answer for client " + i);
+    }
+    assertEquals(server.getQueries(), 1, "Only one query should go to the server");
+    assertEquals(params.getDNSCoalescer().getCoalesced(), count - 1, "Queries coalesced");
+    assertEquals(params.getDNSCoalescer().size(), 0, "Questions in flight");
+
+    for (DatagramSocket client : clients) {
+      client.close();
+    }
+    main.stop();
+    server.close();
+  }
+}
@@ -0,0 +1,129 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DNS server for the tests, serving both UDP and TCP on the same port.
+ * Over UDP, all responses are truncated, so the full response has to be asked over TCP.
+ * Over TCP, queries are answered in parallel, with the ones with odd transaction IDs delayed, to check the responses are matched to the queries by their ID.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSTCPTestServer {
+  private final DatagramSocket udpSocket;
+  private final ServerSocket serverSocket;
+  /** Number of answer records in the full responses. */
+  private final int records;
+  /** Number of TCP connections accepted. */
+  private final AtomicInteger connections = new AtomicInteger();
+  /** Number of queries received over TCP. */
+  private final AtomicInteger tcpQueries = new AtomicInteger();
+
+  /**
+   * @param records Number of answer records in the full responses, to make them the desired size.
+   */
+  public DNSTCPTestServer(int records) throws Exception {
+    this.records = records;
+    this.udpSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), udpSocket.getLocalPort()));
+    start(this::serveUDP);
+    start(this::accept);
+  }
+
+  private static void start(Runnable task) {
+    Thread thread = new Thread(task);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void serveUDP() {
+    byte[] buffer = new byte[512];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    try {
+      while (true) {
+        packet.setLength(buffer.length);
+        udpSocket.receive(packet);
+        byte[] response = DNSTestMessages.truncated(Arrays.copyOf(buffer, packet.getLength()));
+        udpSocket.send(new DatagramPacket(response, response.length, packet.getAddress(), packet.getPort()));
+      }
+    } catch (Exception e) {
+      //closed
+    }
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        start(() -> serveTCP(socket));
+      }
+    } catch (Exception e) {
+      //closed
+    }
+  }
+
+  private void serveTCP(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      DataOutputStream out = new DataOutputStream(s.getOutputStream());
+      while (true) {
+        byte[] query = new byte[in.readUnsignedShort()];
+        in.readFully(query);
+        tcpQueries.incrementAndGet();
+        //queries with odd ids are answered later, so pipelined queries get their responses out of order
+        long delay = DNSMessage.readId(query) % 2 == 1 ? 100 : 0;
+        start(() -> write(out, query, delay));
+      }
+    } catch (Exception e) {
+      //closed
+    }
+  }
+
+  private void write(DataOutputStream out, byte[] query, long delay) {
+    try {
+      Thread.sleep(delay);
+      byte[] response = DNSTestMessages.answer(query, 300, DNSTestServer.ADDRESS, records);
+      synchronized (out) {
+        out.writeShort(response.length);
+        out.write(response);
+        out.flush();
+      }
+    } catch (Exception e) {
+      //closed
+    }
+  }
+
+  public int getPort() {
+    return udpSocket.getLocalPort();
+  }
+
+  /**
+   * @return Number of TCP connections accepted.
+   */
+  public int getConnections() {
+    return connections.get();
+  }
+
+  /**
+   * @return Number of queries received over TCP.
+   */
+  public int getTCPQueries() {
+    return tcpQueries.get();
+  }
+
+  public void close() throws Exception {
+    udpSocket.close();
+    serverSocket.close();
+  }
+}
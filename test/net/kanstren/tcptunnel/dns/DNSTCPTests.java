@@ -0,0 +1,167 @@
+package net.kanstren.tcptunnel.dns;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static net.kanstren.tcptunnel.dns.DNSTestMessages.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class DNSTCPTests {
+  @Test
+  public void pipelinedOverPersistentConnection() throws Exception {
+    DNSTCPTestServer server = new DNSTCPTestServer(1);
+    int proxyPort = PortManager.port();
+    Main main = start(proxyPort, server.getPort(), 0);
+
+    int count = 6;
+    //two clients, to check they share the connection to the backend
+    for (int c = 0 ; c < 2 ; c++) {
+      try (Socket client = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+        client.setSoTimeout(2000);
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        //all sent before reading any responses
+        for (int id = 1 ; id <= count ; id++) {
+          byte[] query = query(id, "host" + id + ".example.com", TYPE_A);
+          out.writeShort(query.length);
+          out.write(query);
+        }
+        out.flush();
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0 ; i < count ; i++) {
+          byte[] response = new byte[in.readUnsignedShort()];
+          in.readFully(response);
+          int id = DNSMessage.readId(response);
+          ids.add(id);
+          byte[] expected = query(id, "host" + id + ".example.com", TYPE_A);
+          assertEquals(Arrays.copyOfRange(response, DNSMessage.HEADER_SIZE, expected.length), Arrays.copyOfRange(expected, DNSMessage.HEADER_SIZE, expected.length), "Question of response " + id);
+        }
+        assertEquals(ids.size(), count, "Responses for all queries");
+      }
+    }
+    assertEquals(server.getTCPQueries(), count * 2, "Queries forwarded over TCP");
+    assertEquals(server.getConnections(), 1, "Connection to the backend reused");
+
+    main.stop();
+    server.close();
+  }
+
+  @Test
+  public void clientNotReadingDoesNotBlockOthers() throws Exception {
+    //responses of about 16 kB, so the ones not read fill the socket buffers
+    DNSTCPTestServer server = new DNSTCPTestServer(1000);
+    int proxyPort = PortManager.port();
+    Main main = start(proxyPort, server.getPort(), 0);
+
+    int count = 500;
+    try (Socket stalled = new Socket()) {
+      stalled.setReceiveBufferSize(4096);
+      stalled.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort));
+      DataOutputStream stalledOut = new DataOutputStream(stalled.getOutputStream());
+      for (int id = 1 ; id <= count ; id++) {
+        byte[] query = query(id, "stalled" + id + ".example.com", TYPE_A);
+        stalledOut.writeShort(query.length);
+        stalledOut.write(query);
+      }
+      stalledOut.flush();
+      for (int i = 0 ; i < 200 && server.getTCPQueries() < count ; i++) {
+        Thread.sleep(10);
+      }
+      //the responses for the stalled client come over the same backend connection
+      try (Socket client = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+        client.setSoTimeout(2000);
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        byte[] query = query(2, "other.example.com", TYPE_A);
+        out.writeShort(query.length);
+        out.write(query);
+        out.flush();
+        byte[] response = new byte[in.readUnsignedShort()];
+        in.readFully(response);
+        assertEquals(DNSMessage.readId(response), 2, "Transaction ID of the response");
+      }
+    }
+    assertEquals(server.getConnections(), 1, "Connection to the backend reused");
+
+    main.stop();
+    server.close();
+  }
+
+  @DataProvider
+  public Object[][] sockets() {
+    //socket per query, multiplexed
+    return new Object[][] {{0}, {2}};
+  }
+
+  @Test(dataProvider = "sockets")
+  public void truncatedRetriedOverTCP(int sockets) throws Exception {
+    DNSTCPTestServer server = new DNSTCPTestServer(3);
+    int proxyPort = PortManager.port();
+    Main main = start(proxyPort, server.getPort(), sockets);
+
+    byte[] response = udpQuery(proxyPort, 0x4242);
+    assertEquals(DNSMessage.readId(response), 0x4242, "Transaction ID from client");
+    assertEquals(DNSMessage.flags(response) & DNSMessage.FLAG_TC, 0, "Full response should not be truncated");
+    assertEquals(DNSMessage.answers(response), 3, "Answers in the full response");
+    assertEquals(server.getTCPQueries(), 1, "Query retried over TCP");
+
+    main.stop();
+    server.close();
+  }
+
+  @Test(dataProvider = "sockets")
+  public void tooLargeForClientStaysTruncated(int sockets) throws Exception {
+    //over the 512 bytes a client with no EDNS takes over UDP
+    DNSTCPTestServer server = new DNSTCPTestServer(40);
+    int proxyPort = PortManager.port();
+    Main main = start(proxyPort, server.getPort(), sockets);
+
+    byte[] response = udpQuery(proxyPort, 0x4343);
+    assertEquals(DNSMessage.readId(response), 0x4343, "Transaction ID from client");
+    assertTrue((DNSMessage.flags(response) & DNSMessage.FLAG_TC) != 0, "Client should be told to retry over TCP");
+    assertEquals(DNSMessage.answers(response), 0, "Answers in the truncated response");
+
+    main.stop();
+    server.close();
+  }
+
+  private Main start(int proxyPort, int serverPort, int sockets) throws Exception {
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setDNS(true);
+    params.setDNSTCP(true);
+    params.setDNSSockets(sockets);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    return main;
+  }
+
+  private byte[] udpQuery(int proxyPort, int id) throws Exception {
+    try (DatagramSocket client = new DatagramSocket()) {
+      client.setSoTimeout(2000);
+      byte[] query = query(id, "big.example.com", TYPE_A);
+      client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), proxyPort));
+      DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+      client.receive(packet);
+      return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+  }
+}
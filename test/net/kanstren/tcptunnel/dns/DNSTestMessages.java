@@ -0,0 +1,143 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Builds DNS messages in wire format for the tests.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSTestMessages {
+  /** Record type for IPv4 addresses. */
+  public static final int TYPE_A = 1;
+
+  /**
+   * @param id Transaction ID.
+   * @param name The name to query, in dotted form.
+   * @param type The record type to query.
+   * @return A standard query with recursion desired.
+   */
+  public static byte[] query(int id, String name, int type) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(id);
+    out.writeShort(DNSMessage.FLAG_RD);
+    out.writeShort(1);
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0);
+    writeName(out, name);
+    out.writeShort(type);
+    out.writeShort(1);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param query The query to respond to.
+   * @param ttl TTL of the answer record.
+   * @param address The IPv4 address to answer with.
+   * @return A response with the question of the query and a single A record.
+   */
+  public static byte[] answer(byte[] query, long ttl, byte[] address) throws IOException {
+    return answer(query, ttl, address, 1);
+  }
+
+  /**
+   * @param query The query to respond to.
+   * @param ttl TTL of the answer records.
+   * @param address The IPv4 address to answer with.
+   * @param count Number of answer records, to make a response of the desired size.
+   * @return A response with the question of the query and the given number of A records, all with the same address.
+   */
+  public static byte[] answer(byte[] query, long ttl, byte[] address, int count) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeHeader(out, query, DNSMessage.RCODE_NOERROR, count, 0);
+    for (int i = 0 ; i < count ; i++) {
+      //pointer to the name in the question
+      out.writeShort(0xC000 | DNSMessage.HEADER_SIZE);
+      out.writeShort(TYPE_A);
+      out.writeShort(1);
+      out.writeInt((int) ttl);
+      out.writeShort(address.length);
+      out.write(address);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param query The query to respond to.
+   * @return An empty response with the truncated flag set, telling the client to retry over TCP.
+   */
+  public static byte[] truncated(byte[] query) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeHeader(out, query, DNSMessage.RCODE_NOERROR, 0, 0);
+    byte[] response = bytes.toByteArray();
+    response[2] |= DNSMessage.FLAG_TC >>> 8;
+    return response;
+  }
+
+  /**
+   * @param query The query to respond to.
+   * @param rcode Response code, NXDOMAIN for a name that does not exist or NOERROR for no records of the type.
+   * @param soaTtl TTL of the SOA record.
+   * @param minimum The SOA minimum field.
+   * @return A negative response with the SOA record of the zone in the authority section.
+   */
+  public static byte[] negative(byte[] query, int rcode, long soaTtl, long minimum) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeHeader(out, query, rcode, 0, 1);
+    writeName(out, "example.com");
+    out.writeShort(DNSMessage.TYPE_SOA);
+    out.writeShort(1);
+    out.writeInt((int) soaTtl);
+    ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+    DataOutputStream soa = new DataOutputStream(rdata);
+    writeName(soa, "ns.example.com");
+    writeName(soa, "admin.example.com");
+    soa.writeInt(1);
+    soa.writeInt(3600);
+    soa.writeInt(600);
+    soa.writeInt(86400);
+    soa.writeInt((int) minimum);
+    out.writeShort(rdata.size());
+    out.write(rdata.toByteArray());
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes the response header and the question copied from the query.
+   */
+  private static void writeHeader(DataOutputStream out, byte[] query, int rcode, int answers, int authorities) throws IOException {
+    out.writeShort(DNSMessage.readId(query));
+    out.writeShort(DNSMessage.FLAG_QR | DNSMessage.FLAG_RD | 0x0080 | rcode);
+    out.writeShort(1);
+    out.writeShort(answers);
+    out.writeShort(authorities);
+    out.writeShort(0);
+    int end = DNSMessage.skipPlainName(query, DNSMessage.HEADER_SIZE, query.length) + 4;
+    out.write(Arrays.copyOfRange(query, DNSMessage.HEADER_SIZE, end));
+  }
+
+  private static void writeName(DataOutputStream out, String name) throws IOException {
+    for (String label : name.split("\\.")) {
+      out.writeByte(label.length());
+      out.writeBytes(label);
+    }
+    out.writeByte(0);
+  }
+
+  /**
+   * @param response A response built with {@link #answer(byte[], long, byte[])}.
+   * @return TTL of the answer record.
+   */
+  public static long answerTtl(byte[] response) {
+    int offset = DNSMessage.skipPlainName(response, DNSMessage.HEADER_SIZE, response.length) + 4;
+    return DNSMessage.readInt(response, offset + 6);
+  }
+}
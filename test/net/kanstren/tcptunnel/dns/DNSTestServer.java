@@ -0,0 +1,69 @@
+package net.kanstren.tcptunnel.dns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DNS server for the tests, answering all queries with the same address and TTL, and counting the queries.
+ *
+ * @author Teemu Kanstren.
+ */
+public class DNSTestServer {
+  /** The address given in all answers. */
+  public static final byte[] ADDRESS = {10, 0, 0, 1};
+  private final DatagramSocket socket;
+  /** TTL of the answers. */
+  private final long ttl;
+  /** Time to wait before answering, in milliseconds. */
+  private final long delay;
+  /** Number of queries received. */
+  private final AtomicInteger queries = new AtomicInteger();
+
+  /**
+   * @param ttl TTL of the answers.
+   * @param delay Time to wait before answering, in milliseconds.
+   */
+  public DNSTestServer(long ttl, long delay) throws Exception {
+    this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.ttl = ttl;
+    this.delay = delay;
+    Thread thread = new Thread(this::serve);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void serve() {
+    byte[] buffer = new byte[512];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    try {
+      while (true) {
+        packet.setLength(buffer.length);
+        socket.receive(packet);
+        queries.incrementAndGet();
+        if (delay > 0) Thread.sleep(delay);
+        byte[] response = DNSTestMessages.answer(Arrays.copyOf(buffer, packet.getLength()), ttl, ADDRESS);
+        socket.send(new DatagramPacket(response, response.length, packet.getAddress(), packet.getPort()));
+      }
+    } catch (Exception e) {
+      //closed
+    }
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * @return Number of queries received.
+   */
+  public int getQueries() {
+    return queries.get();
+  }
+
+  public void close() {
+    socket.close();
+  }
+}
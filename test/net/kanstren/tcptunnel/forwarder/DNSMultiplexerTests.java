@@ -0,0 +1,181 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.dns.DNSMessage;
+import net.kanstren.tcptunnel.dns.DNSTestMessages;
+import org.testng.annotations.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class DNSMultiplexerTests {
+  @Test
+  public void responsesRoutedByTransactionId() throws Exception {
+    //answers the queries in reverse order, after getting two of them
+    DatagramSocket backend = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    List<Integer> backendIds = new ArrayList<>();
+    Thread thread = new Thread(() -> {
+      try {
+        List<DatagramPacket> queries = new ArrayList<>();
+        while (queries.size() < 2) {
+          DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+          backend.receive(packet);
+          queries.add(packet);
+          synchronized (backendIds) {
+            backendIds.add(DNSMessage.readId(packet.getData()));
+          }
+        }
+        for (int i = queries.size() - 1 ; i >= 0 ; i--) {
+          backend.send(queries.get(i));
+        }
+      } catch (Exception e) {
+        //closed
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", backend.getLocalPort());
+    params.setDNS(true);
+    params.setDNSSockets(2);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    //both clients use the same transaction ID, so the tunnel has to map them to tell the responses apart
+    DatagramSocket client1 = new DatagramSocket();
+    DatagramSocket client2 = new DatagramSocket();
+    send(client1, proxyPort, 0x1234, "first");
+    send(client2, proxyPort, 0x1234, "second");
+    assertEquals(receive(client1), "first", "Response for client 1");
+    assertEquals(receive(client2), "second", "Response for client 2");
+    assertEquals(main.getMetrics().getOpenedConnections(), 2, "Queries forwarded");
+    //the query is counted done after sending the response
+    for (int i = 0 ; i < 100 && main.getMetrics().getActiveConnections() > 0 ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(main.getMetrics().getActiveConnections(), 0, "Queries pending");
+    synchronized (backendIds) {
+      assertEquals(backendIds.size(), 2, "Queries received by backend");
+    }
+
+    client1.close();
+    client2.close();
+    main.stop();
+    backend.close();
+  }
+
+  @Test
+  public void unansweredQueriesExpire() throws Exception {
+    DatagramSocket backend = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    Params params = new Params(0, "localhost", backend.getLocalPort());
+    params.setDNSSockets(1);
+    params.setPrint(false);
+    DatagramSocket source = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    DNSMultiplexer multiplexer = new DNSMultiplexer(params, source, TimeUnit.MILLISECONDS.toNanos(100));
+    multiplexer.start();
+
+    byte[] query = query(0x4321, "lost");
+    DatagramPacket packet = new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), 5353);
+    multiplexer.forward(packet, params.getLoadBalancer().getBackends().get(0));
+    assertEquals(multiplexer.getPendingCount(), 1, "Pending queries");
+    DatagramPacket received = new DatagramPacket(new byte[512], 512);
+    backend.setSoTimeout(2000);
+    backend.receive(received);
+    assertEquals(new String(received.getData(), DNSMessage.HEADER_SIZE, received.getLength() - DNSMessage.HEADER_SIZE), "lost", "Query at backend");
+
+    //the query is released first, and counted after that
+    for (int i = 0 ; i < 100 && (multiplexer.getPendingCount() > 0 || params.getMetrics().getErrors() == 0) ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(multiplexer.getPendingCount(), 0, "Query should have expired");
+    assertEquals(params.getMetrics().getActiveConnections(), 0, "Active queries");
+    assertEquals(params.getMetrics().getErrors(), 1, "Expired queries are errors");
+
+    multiplexer.close();
+    source.close();
+    backend.close();
+  }
+
+  @Test
+  public void responsesToOtherQuestionsDropped() throws Exception {
+    DatagramSocket backend = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    Params params = new Params(0, "localhost", backend.getLocalPort());
+    params.setDNSSockets(1);
+    params.setPrint(false);
+    DatagramSocket source = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    DNSMultiplexer multiplexer = new DNSMultiplexer(params, source, TimeUnit.SECONDS.toNanos(2));
+    multiplexer.start();
+    DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+    byte[] query = DNSTestMessages.query(0x1234, "asked.example", DNSTestMessages.TYPE_A);
+    DatagramPacket packet = new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), client.getLocalPort());
+    multiplexer.forward(packet, params.getLoadBalancer().getBackends().get(0));
+    DatagramPacket received = new DatagramPacket(new byte[512], 512);
+    backend.setSoTimeout(2000);
+    backend.receive(received);
+    int id = DNSMessage.readId(received.getData());
+
+    //a spoofed response with the right ID but another question, then the real one with the name in another case
+    byte[] spoofed = DNSTestMessages.answer(DNSTestMessages.query(id, "other.example", DNSTestMessages.TYPE_A), 60, new byte[] {6, 6, 6, 6});
+    backend.send(new DatagramPacket(spoofed, spoofed.length, received.getSocketAddress()));
+    byte[] real = DNSTestMessages.answer(DNSTestMessages.query(id, "ASKED.example", DNSTestMessages.TYPE_A), 60, new byte[] {1, 2, 3, 4});
+    backend.send(new DatagramPacket(real, real.length, received.getSocketAddress()));
+
+    client.setSoTimeout(2000);
+    DatagramPacket response = new DatagramPacket(new byte[512], 512);
+    client.receive(response);
+    assertEquals(DNSMessage.readId(response.getData()), 0x1234, "Transaction ID from client");
+    assertEquals(response.getLength(), real.length, "Response length");
+    assertEquals(response.getData()[real.length - 1], 4, "Address of the real response");
+    assertEquals(params.getMetrics().getErrors(), 1, "Spoofed responses are errors");
+
+    client.close();
+    multiplexer.close();
+    source.close();
+    backend.close();
+  }
+
+  /**
+   * @param id Transaction ID.
+   * @param text Text to put after the header, to tell the queries apart.
+   * @return A message with a DNS header and the given text.
+   */
+  private byte[] query(int id, String text) {
+    byte[] bytes = text.getBytes();
+    byte[] query = new byte[DNSMessage.HEADER_SIZE + bytes.length];
+    DNSMessage.writeId(query, id);
+    System.arraycopy(bytes, 0, query, DNSMessage.HEADER_SIZE, bytes.length);
+    return query;
+  }
+
+  private void send(DatagramSocket client, int port, int id, String text) throws Exception {
+    byte[] query = query(id, text);
+    client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), port));
+  }
+
+  /**
+   * @param client The client to receive on.
+   * @return The text after the header of the response, which must have the client's transaction ID.
+   */
+  private String receive(DatagramSocket client) throws Exception {
+    client.setSoTimeout(2000);
+    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+    client.receive(packet);
+    assertEquals(DNSMessage.readId(packet.getData()), 0x1234, "Transaction ID from client");
+    return new String(packet.getData(), DNSMessage.HEADER_SIZE, packet.getLength() - DNSMessage.HEADER_SIZE);
+  }
+}
@@ -0,0 +1,65 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class NIOEventLoopTests {
+  @Test
+  public void failingHandlerOnlyClosesItself() throws Exception {
+    Params params = new Params(0, "localhost", 0);
+    params.setPrint(false);
+    NIOEventLoop loop = new NIOEventLoop(params, "tcptunnel-test-loop");
+    loop.start();
+    Pipe pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+    CountDownLatch closed = new CountDownLatch(1);
+    NIOHandler failing = new NIOHandler() {
+      @Override
+      public void handle(SelectionKey key) {
+        throw new IllegalStateException("Failing handler");
+      }
+
+      @Override
+      public void close() {
+        try {
+          pipe.source().close();
+        } catch (IOException e) {
+          //closing anyway
+        }
+        closed.countDown();
+      }
+    };
+    loop.execute(() -> {
+      throw new IllegalStateException("Failing task");
+    });
+    loop.execute(() -> {
+      try {
+        pipe.source().register(loop.getSelector(), SelectionKey.OP_READ, failing);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    pipe.sink().write(ByteBuffer.wrap(new byte[] {1}));
+    assertTrue(closed.await(2, TimeUnit.SECONDS), "Failing handler should be closed");
+
+    CountDownLatch ran = new CountDownLatch(1);
+    loop.execute(ran::countDown);
+    assertTrue(ran.await(2, TimeUnit.SECONDS), "Loop should keep running tasks");
+    assertEquals(params.getMetrics().getErrors(), 2, "Failures counted as errors");
+
+    loop.stop();
+    pipe.sink().close();
+  }
+}
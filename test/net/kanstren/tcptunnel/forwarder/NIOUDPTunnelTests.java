@@ -0,0 +1,173 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class NIOUDPTunnelTests {
+  @Test
+  public void repliesGoToTheirClients() throws Exception {
+    DatagramSocket echo = startEcho();
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", echo.getLocalPort());
+    params.setUDP(true);
+    params.setNIO(true);
+    params.setNIOLoops(2);
+    params.enableInMemoryLogging(8092);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    DatagramSocket client1 = new DatagramSocket();
+    DatagramSocket client2 = new DatagramSocket();
+    assertEquals(sendAndReceive(client1, proxyPort, "hello1"), "hello1", "Reply for client 1");
+    assertEquals(sendAndReceive(client2, proxyPort, "hello2"), "hello2", "Reply for client 2");
+    assertEquals(sendAndReceive(client1, proxyPort, "again1"), "again1", "Second reply for client 1");
+    //replies are counted and logged after sending them
+    for (int i = 0 ; i < 100 && main.getMetrics().getDown().getBytes() < 18 ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(main.getMetrics().getOpenedConnections(), 2, "One session per client");
+    assertEquals(main.getMetrics().getUp().getBytes(), 18, "Bytes from clients");
+    assertEquals(main.getMetrics().getDown().getBytes(), 18, "Bytes from backend");
+    //as with the thread based UDP tunnel, both directions are logged upstream, replies after they are sent
+    String logged = params.getUpMemoryLogger().getString("UTF8");
+    for (int i = 0 ; i < 100 && logged.length() < 36 ; i++) {
+      Thread.sleep(10);
+      logged = params.getUpMemoryLogger().getString("UTF8");
+    }
+    assertEquals(logged.length(), 36, "Logged data:" + logged);
+    assertEquals(logged.split("hello2", -1).length, 3, "Logged data:" + logged);
+
+    client1.close();
+    client2.close();
+    main.stop();
+    echo.close();
+  }
+
+  @Test
+  public void idleSessionsExpire() throws Exception {
+    DatagramSocket echo = startEcho();
+    Params params = new Params(0, "localhost", echo.getLocalPort());
+    params.setNIOLoops(1);
+    params.setPrint(false);
+    DatagramChannel channel = DatagramChannel.open();
+    channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    int proxyPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    NIOUDPTunnel tunnel = new NIOUDPTunnel(params, channel, TimeUnit.MILLISECONDS.toNanos(100));
+    tunnel.start();
+
+    DatagramSocket client = new DatagramSocket();
+    assertEquals(sendAndReceive(client, proxyPort, "hello"), "hello", "Reply");
+    assertEquals(tunnel.getSessionCount(), 1, "Active sessions");
+    //the session is removed from the table first, and then closed in its event loop
+    for (int i = 0 ; i < 100 && (tunnel.getSessionCount() > 0 || params.getMetrics().getActiveConnections() > 0) ; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(tunnel.getSessionCount(), 0, "Idle session should be closed");
+    assertEquals(params.getMetrics().getActiveConnections(), 0, "Active connections");
+    //a new packet starts a new session
+    assertEquals(sendAndReceive(client, proxyPort, "again"), "again", "Reply after expiry");
+    assertEquals(params.getMetrics().getOpenedConnections(), 2, "Sessions opened");
+
+    client.close();
+    tunnel.close();
+    echo.close();
+  }
+
+  @Test
+  public void batchedPackets() throws Exception {
+    DatagramSocket echo = startEcho();
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", echo.getLocalPort());
+    params.setUDP(true);
+    //batching uses the selector based tunnel even without --nio
+    params.setUDPBatch(16);
+    params.setNIOLoops(1);
+    params.enableInMemoryLogging(8092);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    DatagramSocket client = new DatagramSocket();
+    client.setSoTimeout(2000);
+    int count = 50;
+    for (int i = 0 ; i < count ; i++) {
+      byte[] bytes = String.format("msg%03d", i).getBytes();
+      client.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), proxyPort));
+    }
+    byte[] buffer = new byte[1024];
+    DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+    int received = 0;
+    for (int i = 0 ; i < count ; i++) {
+      client.receive(reply);
+      assertEquals(reply.getPort(), proxyPort, "Reply should come from the tunnel port");
+      received += reply.getLength();
+    }
+    assertEquals(received, count * 6, "Bytes received");
+    String logged = params.getUpMemoryLogger().getString("UTF8");
+    for (int i = 0 ; i < 100 && logged.length() < count * 12 ; i++) {
+      Thread.sleep(10);
+      logged = params.getUpMemoryLogger().getString("UTF8");
+    }
+    assertEquals(logged.length(), count * 12, "Logged data:" + logged);
+    assertTrue(logged.contains("msg049"), "Logged data:" + logged);
+    assertEquals(main.getMetrics().getOpenedConnections(), 1, "One session for the client");
+
+    client.close();
+    main.stop();
+    echo.close();
+  }
+
+  /**
+   * @param client Socket to send from.
+   * @param port Port to send to.
+   * @param msg Message to send.
+   * @return The reply, which has to come from the given port.
+   */
+  private String sendAndReceive(DatagramSocket client, int port, String msg) throws Exception {
+    client.setSoTimeout(2000);
+    byte[] bytes = msg.getBytes();
+    client.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port));
+    byte[] buffer = new byte[1024];
+    DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+    client.receive(reply);
+    assertEquals(reply.getPort(), port, "Reply should come from the tunnel port");
+    return new String(buffer, 0, reply.getLength());
+  }
+
+  private DatagramSocket startEcho() throws Exception {
+    DatagramSocket echo = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    Thread thread = new Thread(() -> {
+      byte[] buffer = new byte[1024];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        while (true) {
+          packet.setLength(buffer.length);
+          echo.receive(packet);
+          echo.send(packet);
+        }
+      } catch (Exception e) {
+        //closed
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return echo;
+  }
+}
@@ -0,0 +1,141 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class UDPSessionTableTests {
+  private static final long IDLE = TimeUnit.SECONDS.toNanos(1);
+
+  /** Session with a settable activity time. */
+  private static class TestSession implements UDPSessionTable.Session {
+    private volatile long lastActive;
+
+    private TestSession(long lastActive) {
+      this.lastActive = lastActive;
+    }
+
+    @Override
+    public long getLastActive() {
+      return lastActive;
+    }
+  }
+
+  @Test
+  public void lookupByAddressAndPort() throws Exception {
+    UDPSessionTable<TestSession> table = new UDPSessionTable<>(IDLE, s -> {});
+    InetAddress v4 = InetAddress.getByName("127.0.0.1");
+    InetAddress v4b = InetAddress.getByName("127.0.0.2");
+    InetAddress v6 = InetAddress.getByName("::1");
+    TestSession s1 = new TestSession(System.nanoTime());
+    TestSession s2 = new TestSession(System.nanoTime());
+    TestSession s3 = new TestSession(System.nanoTime());
+    table.put(v4, 5000, s1);
+    table.put(v4b, 5000, s2);
+    table.put(v6, 5000, s3);
+    assertEquals(table.size(), 3);
+    assertSame(table.get(InetAddress.getByName("127.0.0.1"), 5000), s1);
+    assertSame(table.get(v4b, 5000), s2);
+    assertSame(table.get(v6, 5000), s3);
+    assertNull(table.get(v4, 5001), "Different port should not match");
+
+    //replacing keeps one session per client
+    TestSession s4 = new TestSession(System.nanoTime());
+    table.put(v4, 5000, s4);
+    assertSame(table.get(v4, 5000), s4);
+    assertEquals(table.size(), 3);
+
+    //removing the replaced session must not remove the new one
+    assertFalse(table.remove(v4, 5000, s1));
+    assertTrue(table.remove(v4, 5000, s4));
+    assertNull(table.get(v4, 5000));
+    assertEquals(table.size(), 2);
+  }
+
+  @Test
+  public void manySessions() throws Exception {
+    UDPSessionTable<TestSession> table = new UDPSessionTable<>(IDLE, s -> {});
+    InetAddress addr = InetAddress.getByName("10.0.0.1");
+    List<TestSession> sessions = new ArrayList<>();
+    for (int port = 1 ; port <= 5000 ; port++) {
+      TestSession session = new TestSession(System.nanoTime());
+      sessions.add(session);
+      table.put(addr, port, session);
+    }
+    assertEquals(table.size(), 5000);
+    assertEquals(table.sessions().size(), 5000);
+    for (int port = 1 ; port <= 5000 ; port++) {
+      assertSame(table.get(addr, port), sessions.get(port - 1), "Session for port " + port);
+    }
+  }
+
+  @Test
+  public void idleSessionsExpire() throws Exception {
+    List<TestSession> expired = new ArrayList<>();
+    UDPSessionTable<TestSession> table = new UDPSessionTable<>(IDLE, expired::add);
+    InetAddress addr = InetAddress.getByName("127.0.0.1");
+    long now = System.nanoTime();
+    TestSession idle = new TestSession(now);
+    TestSession active = new TestSession(now);
+    table.put(addr, 1, idle);
+    table.put(addr, 2, active);
+
+    table.advance(now + IDLE / 2);
+    assertTrue(expired.isEmpty(), "Nothing should expire before the timeout");
+
+    //traffic in the active session moves its deadline forward
+    active.lastActive = now + IDLE / 2;
+    table.advance(now + IDLE + IDLE / 10);
+    assertEquals(expired.size(), 1);
+    assertSame(expired.get(0), idle);
+    assertNull(table.get(addr, 1));
+    assertSame(table.get(addr, 2), active);
+
+    table.advance(now + IDLE * 2);
+    assertEquals(expired.size(), 2);
+    assertSame(expired.get(1), active);
+    assertEquals(table.size(), 0);
+  }
+
+  @Test
+  public void removedSessionsDoNotExpire() throws Exception {
+    List<TestSession> expired = new ArrayList<>();
+    UDPSessionTable<TestSession> table = new UDPSessionTable<>(IDLE, expired::add);
+    InetAddress addr = InetAddress.getByName("127.0.0.1");
+    long now = System.nanoTime();
+    TestSession session = new TestSession(now);
+    table.put(addr, 1, session);
+    table.remove(addr, 1, session);
+    table.advance(now + IDLE * 3);
+    assertTrue(expired.isEmpty());
+  }
+
+  @Test
+  public void expiryThread() throws Exception {
+    List<TestSession> expired = new ArrayList<>();
+    UDPSessionTable<TestSession> table = new UDPSessionTable<>(TimeUnit.MILLISECONDS.toNanos(100), s -> {
+      synchronized (expired) {
+        expired.add(s);
+      }
+    });
+    table.start("test-expiry");
+    table.put(InetAddress.getByName("127.0.0.1"), 1, new TestSession(System.nanoTime()));
+    long end = System.currentTimeMillis() + 2000;
+    while (table.size() > 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    table.close();
+    assertEquals(table.size(), 0);
+    synchronized (expired) {
+      assertEquals(expired.size(), 1);
+    }
+  }
+}
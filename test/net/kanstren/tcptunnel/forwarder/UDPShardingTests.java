@@ -0,0 +1,85 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.Utils;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class UDPShardingTests {
+  @DataProvider
+  public Object[][] engines() {
+    return new Object[][] {{false}, {true}};
+  }
+
+  @Test(dataProvider = "engines")
+  public void clientsSpreadOverShards(boolean nio) throws Exception {
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      Utils.setReusePort(probe);
+    } catch (IOException e) {
+      throw new SkipException(e.getMessage());
+    }
+    DatagramSocket echo = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    Thread echoThread = new Thread(() -> {
+      byte[] buffer = new byte[1024];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        while (true) {
+          packet.setLength(buffer.length);
+          echo.receive(packet);
+          echo.send(packet);
+        }
+      } catch (Exception e) {
+        //closed
+      }
+    });
+    echoThread.setDaemon(true);
+    echoThread.start();
+
+    int proxyPort = PortManager.port();
+    Params params = new Params(proxyPort, "localhost", echo.getLocalPort());
+    params.setUDP(true);
+    params.setNIO(nio);
+    params.setNIOLoops(2);
+    params.setUDPShards(4);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    int count = 16;
+    DatagramSocket[] clients = new DatagramSocket[count];
+    for (int i = 0 ; i < count ; i++) {
+      clients[i] = new DatagramSocket();
+      clients[i].setSoTimeout(2000);
+      byte[] bytes = ("hello" + i).getBytes();
+      clients[i].send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), proxyPort));
+    }
+    for (int i = 0 ; i < count ; i++) {
+      byte[] buffer = new byte[1024];
+      DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+      clients[i].receive(reply);
+      assertEquals(new String(buffer, 0, reply.getLength()), "hello" + i, "Reply for client " + i);
+    }
+    assertEquals(main.getMetrics().getOpenedConnections(), count, "One session per client");
+
+    for (DatagramSocket client : clients) {
+      client.close();
+    }
+    main.stop();
+    echo.close();
+  }
+}
@@ -0,0 +1,126 @@
+package net.kanstren.tcptunnel.forwarder;
+
+import net.kanstren.tcptunnel.Params;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class WriteCoalescerTests {
+  /** Input with data available, so the idle check never triggers. */
+  private final InputStream busy = new ByteArrayInputStream(new byte[100]);
+  /** Input with no data available. */
+  private final InputStream idle = new ByteArrayInputStream(new byte[0]);
+  private final byte[] data = "hello".getBytes();
+
+  private static class CountingStream extends ByteArrayOutputStream {
+    private int writes = 0;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      writes++;
+      super.write(b, off, len);
+    }
+  }
+
+  private Params params(FlushMode mode) {
+    Params params = new Params();
+    params.setFlushMode(mode);
+    return params;
+  }
+
+  @Test
+  public void always() throws IOException {
+    CountingStream out = new CountingStream();
+    WriteCoalescer coalescer = new WriteCoalescer(out, params(FlushMode.ALWAYS));
+    coalescer.write(data, 0, data.length);
+    assertTrue(coalescer.shouldFlush(busy));
+    coalescer.write(data, 0, data.length);
+    assertEquals(out.writes, 2, "Every read should be written directly");
+    assertEquals(out.toString(), "hellohello");
+  }
+
+  @Test
+  public void idle() throws IOException {
+    CountingStream out = new CountingStream();
+    WriteCoalescer coalescer = new WriteCoalescer(out, params(FlushMode.IDLE));
+    for (int i = 0 ; i < 3 ; i++) {
+      coalescer.write(data, 0, data.length);
+      assertFalse(coalescer.shouldFlush(busy), "Should not flush while input is available");
+    }
+    assertEquals(out.writes, 0);
+    assertTrue(coalescer.shouldFlush(idle), "Should flush when input is idle");
+    coalescer.flush();
+    assertEquals(out.writes, 1, "All reads should be written together");
+    assertEquals(out.toString(), "hellohellohello");
+    WriteStats stats = new WriteStats();
+    coalescer.close(stats);
+    assertEquals(stats.getReads(), 3);
+    assertEquals(stats.getWrites(), 1);
+    assertEquals(stats.getWritesSaved(), 2);
+  }
+
+  @Test
+  public void size() throws IOException {
+    CountingStream out = new CountingStream();
+    Params params = params(FlushMode.SIZE);
+    params.setFlushBytes(10);
+    WriteCoalescer coalescer = new WriteCoalescer(out, params);
+    coalescer.write(data, 0, data.length);
+    assertFalse(coalescer.shouldFlush(busy));
+    coalescer.write(data, 0, data.length);
+    assertTrue(coalescer.shouldFlush(busy), "Should flush at threshold");
+    coalescer.flush();
+    assertEquals(out.writes, 1);
+    assertEquals(out.toString(), "hellohello");
+    coalescer.close(new WriteStats());
+  }
+
+  @Test
+  public void fullBufferIsWritten() throws IOException {
+    CountingStream out = new CountingStream();
+    Params params = params(FlushMode.SIZE);
+    params.setFlushBytes(12);
+    WriteCoalescer coalescer = new WriteCoalescer(out, params);
+    coalescer.write(data, 0, data.length);
+    coalescer.write(data, 0, data.length);
+    assertEquals(out.writes, 0);
+    coalescer.write(data, 0, data.length);
+    assertEquals(out.writes, 1, "Pending data should be written to make room");
+    assertEquals(out.toString(), "hellohello");
+    coalescer.flush();
+    assertEquals(out.toString(), "hellohellohello");
+    coalescer.close(new WriteStats());
+  }
+
+  @Test
+  public void deadline() throws Exception {
+    CountingStream out = new CountingStream();
+    Params params = params(FlushMode.DEADLINE);
+    params.setFlushMicros(20000);
+    WriteCoalescer coalescer = new WriteCoalescer(out, params);
+    coalescer.write(data, 0, data.length);
+    assertFalse(coalescer.shouldFlush(busy));
+    Thread.sleep(30);
+    assertTrue(coalescer.shouldFlush(busy), "Should flush after deadline");
+    coalescer.close(new WriteStats());
+  }
+
+  @Test
+  public void bigWritesGoDirectly() throws IOException {
+    CountingStream out = new CountingStream();
+    Params params = params(FlushMode.SIZE);
+    params.setFlushBytes(4);
+    WriteCoalescer coalescer = new WriteCoalescer(out, params);
+    coalescer.write(data, 0, data.length);
+    assertEquals(out.writes, 1, "Data bigger than the buffer should be written directly");
+    coalescer.close(new WriteStats());
+  }
+}
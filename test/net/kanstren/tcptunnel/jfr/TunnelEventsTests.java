@@ -0,0 +1,79 @@
+package net.kanstren.tcptunnel.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.capture.tcp.TCPMsgSender;
+import net.kanstren.tcptunnel.capture.tcp.TCPTestServer3;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class TunnelEventsTests {
+  @Test
+  public void tunnelEvents() throws Exception {
+    assertTrue(TunnelEvents.isAvailable(), "Flight recorder should be available");
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "jfr response");
+    server.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.enableInMemoryLogging(8092);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+
+    Path file = Files.createTempFile("tcptunnel", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("net.kanstren.tcptunnel.Connect");
+      recording.enable("net.kanstren.tcptunnel.ConnectionClosed");
+      recording.enable("net.kanstren.tcptunnel.Chunk");
+      //observers here are fast, so drop the threshold to see them
+      recording.enable("net.kanstren.tcptunnel.Observe").withThreshold(Duration.ZERO);
+      recording.start();
+      String response = TCPMsgSender.send2("localhost", proxyPort, "hello");
+      assertEquals(response, "jfr response", "Response content");
+      for (int i = 0 ; i < 100 && main.getMetrics().getActiveConnections() > 0 ; i++) {
+        Thread.sleep(10);
+      }
+      recording.stop();
+      recording.dump(file);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    Files.delete(file);
+    main.stop();
+
+    RecordedEvent connect = find(events, "net.kanstren.tcptunnel.Connect");
+    assertTrue(connect.getBoolean("success"), "Connect success");
+    assertEquals(connect.getString("backend"), "127.0.0.1:" + serverPort, "Connected backend");
+    RecordedEvent closed = find(events, "net.kanstren.tcptunnel.ConnectionClosed");
+    assertEquals(closed.getLong("connectionId"), connect.getLong("connectionId"), "Closed connection id");
+    assertEquals(closed.getLong("upBytes"), 5, "Bytes up");
+    assertEquals(closed.getLong("downBytes"), 12, "Bytes down");
+    RecordedEvent chunk = find(events, "net.kanstren.tcptunnel.Chunk");
+    assertEquals(chunk.getLong("reads"), 1, "First read should be sampled");
+    RecordedEvent observe = find(events, "net.kanstren.tcptunnel.Observe");
+    assertEquals(observe.getString("observer"), "InMemoryLogger", "Observer name");
+  }
+
+  private RecordedEvent find(List<RecordedEvent> events, String name) {
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) return event;
+    }
+    fail("No event " + name + " recorded");
+    return null;
+  }
+}
@@ -0,0 +1,97 @@
+package net.kanstren.tcptunnel.jmx;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class TunnelManagerTests {
+  @Test
+  public void threads() throws Exception {
+    manage(false);
+  }
+
+  @Test
+  public void nio() throws Exception {
+    manage(true);
+  }
+
+  private void manage(boolean nio) throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    //echo server keeping the connection open, so it shows up in the connection list
+    ServerSocket server = new ServerSocket(serverPort);
+    Thread echo = new Thread(() -> {
+      try (Socket socket = server.accept()) {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+          out.flush();
+        }
+      } catch (Exception e) {
+      }
+    });
+    echo.start();
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setNIO(nio);
+    params.setJMX(true);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("net.kanstren.tcptunnel:type=Tunnel,port=" + proxyPort);
+    for (int i = 0 ; i < 100 && !mbs.isRegistered(name) ; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(mbs.isRegistered(name), "Tunnel MBean should be registered");
+    //registration happens before the server socket is opened
+    Thread.sleep(50);
+
+    Socket client = new Socket("localhost", proxyPort);
+    client.getOutputStream().write("hello".getBytes());
+    byte[] response = new byte[5];
+    int read = 0;
+    while (read < 5) read += client.getInputStream().read(response, read, 5 - read);
+    assertEquals(new String(response), "hello", "Echoed content");
+
+    String[] connections = (String[]) mbs.getAttribute(name, "Connections");
+    assertEquals(connections.length, 1, "Open connections");
+    assertTrue(connections[0].endsWith("up=5 down=5"), "Connection byte counts: " + connections[0]);
+    assertEquals(mbs.getAttribute(name, "ActiveConnections"), 1, "Active connections");
+    String[] backends = (String[]) mbs.getAttribute(name, "Backends");
+    assertTrue(backends[0].startsWith("localhost:" + serverPort + " healthy active=1"), "Backend state: " + backends[0]);
+
+    mbs.setAttribute(name, new Attribute("ObserversEnabled", false));
+    assertFalse(params.isObserversEnabled(), "Observers should be disabled over JMX");
+    mbs.setAttribute(name, new Attribute("BufferSize", 4096));
+    assertEquals(params.getBufferSize(), 4096, "Buffer size should be changed over JMX");
+
+    long id = Long.parseLong(connections[0].substring(0, connections[0].indexOf(':')));
+    Object closed = mbs.invoke(name, "closeConnection", new Object[] {id}, new String[] {"long"});
+    assertEquals(closed, true, "Connection should be found for closing");
+    client.setSoTimeout(2000);
+    assertEquals(client.getInputStream().read(), -1, "Client connection should be closed");
+    client.close();
+
+    main.stop();
+    assertFalse(mbs.isRegistered(name), "Tunnel MBean should be removed on stop");
+    server.close();
+  }
+}
@@ -0,0 +1,66 @@
+package net.kanstren.tcptunnel.loadtest;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class LoadTestTests {
+  @Test
+  public void options() {
+    LoadTest test = new LoadTest();
+    assertEquals(test.parse(new String[] {"--mode", "udp", "--clients", "3", "--rate", "100", "--", "--nio"}), "", "Valid options should give no errors");
+    assertNull(new LoadTest().parse(new String[] {"--help"}), "Help should be requested");
+    String errors = new LoadTest().parse(new String[] {"--mode", "http", "--clients", "0", "--size", "x"});
+    assertTrue(errors.contains("Unknown mode: 'http'."), errors);
+    assertTrue(errors.contains("Number of clients has to be > 0, was: 0."), errors);
+    assertTrue(errors.contains("Invalid number for 'size':x."), errors);
+  }
+
+  @Test
+  public void tcpDirect() throws Exception {
+    drive(LoadTest.Mode.TCP, false);
+  }
+
+  @Test
+  public void udpTunnel() throws Exception {
+    drive(LoadTest.Mode.UDP, true);
+  }
+
+  @Test
+  public void dnsTunnel() throws Exception {
+    drive(LoadTest.Mode.DNS, true);
+  }
+
+  private void drive(LoadTest.Mode mode, boolean tunneled) throws Exception {
+    EchoServer echo = new EchoServer(mode);
+    int port = echo.start();
+    Main main = null;
+    if (tunneled) {
+      int proxyPort = PortManager.port();
+      Params params = new Params(proxyPort, "localhost", port);
+      params.setUDP(mode == LoadTest.Mode.UDP);
+      params.setDNS(mode == LoadTest.Mode.DNS);
+      params.setPrint(false);
+      main = new Main(params);
+      main.start();
+      Thread.sleep(50);
+      port = proxyPort;
+    }
+    LoadClient client = new LoadClient(mode, port, 100, 0, 1);
+    client.setMeasuring(true);
+    client.start();
+    Thread.sleep(300);
+    client.setMeasuring(false);
+    client.stop();
+    if (main != null) main.stop();
+    echo.stop();
+    assertTrue(client.getLatencies().length > 10, "Messages should get responses, got " + client.getLatencies().length);
+    assertEquals(client.getErrors(), 0, "Errors");
+  }
+}
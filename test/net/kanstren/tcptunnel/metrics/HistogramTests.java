@@ -0,0 +1,66 @@
+package net.kanstren.tcptunnel.metrics;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class HistogramTests {
+  @Test
+  public void buckets() {
+    assertEquals(Histogram.bucket(0), 0);
+    assertEquals(Histogram.bucket(1), 1);
+    assertEquals(Histogram.bucket(2), 2);
+    assertEquals(Histogram.bucket(3), 2);
+    assertEquals(Histogram.bucket(4), 3);
+    assertEquals(Histogram.bucket(16384), 15);
+    assertEquals(Histogram.bucket(Long.MAX_VALUE), Histogram.BUCKETS - 1);
+    assertEquals(Histogram.upperBound(2), 3);
+    assertEquals(Histogram.upperBound(15), 32767);
+  }
+
+  @Test
+  public void empty() {
+    Histogram histogram = new Histogram();
+    assertEquals(histogram.getCount(), 0);
+    assertEquals(histogram.getMean(), 0d);
+    assertEquals(histogram.getPercentile(0.99), 0);
+  }
+
+  @Test
+  public void distribution() {
+    Histogram histogram = new Histogram();
+    for (int i = 0 ; i < 99 ; i++) {
+      histogram.record(100);
+    }
+    histogram.record(10000);
+    assertEquals(histogram.getCount(), 100, "Count");
+    assertEquals(histogram.getSum(), 99 * 100 + 10000, "Sum");
+    assertEquals(histogram.getMax(), 10000, "Max");
+    assertEquals(histogram.getMean(), 199d, "Mean");
+    assertEquals(histogram.getPercentile(0.5), 127, "Median should be upper bound of the bucket for 100");
+    assertEquals(histogram.getPercentile(0.99), 127, "99th percentile should be upper bound of the bucket for 100");
+    assertEquals(histogram.getPercentile(0.999), 10000, "Top percentile should be capped at max");
+    assertEquals(histogram.getBuckets()[Histogram.bucket(100)], 99, "Bucket count");
+  }
+
+  @Test
+  public void rates() throws Exception {
+    TunnelMetrics metrics = new TunnelMetrics("test");
+    MetricsSnapshot before = metrics.snapshot();
+    Thread.sleep(100);
+    metrics.getUp().recordChunk(1000);
+    metrics.getUp().recordChunk(1000);
+    metrics.getDown().recordChunk(500);
+    MetricsSnapshot after = metrics.snapshot();
+    double upRate = after.bytesPerSecond(before, true);
+    assertTrue(upRate > 10000 && upRate <= 20000, "Upstream rate should be about 2000 bytes in 0.1s, was " + upRate);
+    assertTrue(after.chunksPerSecond(before, false) <= 10, "Downstream chunk rate should be about 1 chunk in 0.1s");
+    String report = after.report(before);
+    assertTrue(report.startsWith("test: connections active=0"), "Report should start with tunnel name and connections: " + report);
+    assertTrue(report.contains("total 2000 bytes in 2 chunks"), "Report should show upstream totals: " + report);
+    assertTrue(report.contains("total 500 bytes in 1 chunks"), "Report should show downstream totals: " + report);
+  }
+}
@@ -0,0 +1,100 @@
+package net.kanstren.tcptunnel.metrics;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.PortManager;
+import net.kanstren.tcptunnel.capture.tcp.TCPMsgSender;
+import net.kanstren.tcptunnel.capture.tcp.TCPTestServer3;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author Teemu Kanstren.
+ */
+public class PrometheusExporterTests {
+  @Test
+  public void format() {
+    Params params = new Params(5555, "localhost", 5556);
+    TunnelMetrics metrics = params.getMetrics();
+    metrics.connectionOpened();
+    metrics.direction(true).recordChunk(3);
+    metrics.direction(true).recordChunk(100);
+    metrics.recordBackendLatency(1_500_000);
+    metrics.recordError();
+    PrometheusExporter exporter = new PrometheusExporter(params, 0);
+    exporter.format();
+    String text = exporter.getText();
+    assertTrue(text.contains("# TYPE tcptunnel_connections_active gauge\ntcptunnel_connections_active 1\n"), text);
+    assertTrue(text.contains("tcptunnel_connections_opened_total 1\n"), text);
+    assertTrue(text.contains("tcptunnel_errors_total 1\n"), text);
+    assertTrue(text.contains("tcptunnel_bytes_total{direction=\"up\"} 103\n"), text);
+    assertTrue(text.contains("tcptunnel_bytes_total{direction=\"down\"} 0\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_bucket{direction=\"up\",le=\"3\"} 1\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_bucket{direction=\"up\",le=\"127\"} 2\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_bucket{direction=\"up\",le=\"+Inf\"} 2\n"), text);
+    //empty buckets are written as well, so the series stay the same between scrapes
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_bucket{direction=\"up\",le=\"1023\"} 2\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_bucket{direction=\"down\",le=\"127\"} 0\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_sum{direction=\"up\"} 103\n"), text);
+    assertTrue(text.contains("tcptunnel_chunk_size_bytes_count{direction=\"up\"} 2\n"), text);
+    assertTrue(text.contains("tcptunnel_backend_latency_seconds_count 1\n"), text);
+    assertTrue(text.contains("tcptunnel_backend_latency_seconds_sum 0.0015\n"), text);
+    assertTrue(text.contains("tcptunnel_backend_healthy{backend=\"localhost:5556\"} 1\n"), text);
+    assertFalse(text.contains("tcptunnel_observer_dropped_total"), "Async observer metrics only shown when enabled");
+    assertFalse(text.contains("tcptunnel_dns_cache_hits_total"), "DNS cache metrics only shown when enabled");
+  }
+
+  @Test
+  public void scrape() throws Exception {
+    int serverPort = PortManager.port();
+    int proxyPort = PortManager.port();
+    int metricsPort = PortManager.port();
+    TCPTestServer3 server = new TCPTestServer3(serverPort, "metrics response");
+    server.start();
+    Thread.sleep(50);
+    Params params = new Params(proxyPort, "localhost", serverPort);
+    params.setPrometheusPort(metricsPort);
+    params.setPrint(false);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(50);
+    TCPMsgSender.send2("localhost", proxyPort, "hello");
+
+    String response = get(metricsPort, "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+    assertTrue(response.contains("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"), response);
+    assertTrue(response.contains("tcptunnel_connections_opened_total 1\n"), response);
+    assertTrue(response.contains("tcptunnel_bytes_total{direction=\"up\"} 5\n"), response);
+    //second scrape reuses the buffers, and should give a complete response again
+    String second = get(metricsPort, "GET / HTTP/1.0\r\n\r\n");
+    int bodyStart = second.indexOf("\r\n\r\n") + 4;
+    String length = "Content-Length: " + (second.length() - bodyStart) + "\r\n";
+    assertTrue(second.contains(length), "Content length should match body:" + second);
+    String post = get(metricsPort, "POST /metrics HTTP/1.1\r\n\r\n");
+    assertTrue(post.startsWith("HTTP/1.1 405"), post);
+
+    main.stop();
+  }
+
+  private String get(int port, String request) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(2000);
+      OutputStream out = socket.getOutputStream();
+      out.write(request.getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) bout.write(buffer, 0, read);
+      return new String(bout.toByteArray(), StandardCharsets.US_ASCII);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package net.kanstren.tcptunnel.perf;
+
+import net.kanstren.tcptunnel.Main;
+import net.kanstren.tcptunnel.Params;
+import net.kanstren.tcptunnel.Utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the platform thread and virtual thread models of the thread based TCP tunnel.
+ * For each model and connection count, opens the given number of connections through the tunnel to a selector based echo server,
+ * and measures setup time, thread count and memory with idle connections, followed by round trip throughput with all connections active.
+ * The clients and the echo server use selectors so that only the tunnel itself varies between the runs.
+ *
+ * Run with for example "ThreadModelBenchmark 1000 10000 50000". Virtual threads need Java 21+, otherwise only platform threads are measured.
+ * Large connection counts need a high enough open file limit (ulimit -n) and a wide enough local port range (net.ipv4.ip_local_port_range),
+ * as every tunneled connection uses three sockets and the tunnel connects to the echo server from ephemeral ports.
+ *
+ * @author Teemu Kanstren.
+ */
+public class ThreadModelBenchmark {
+  /** Size of the message each active connection sends and waits to be echoed back. */
+  private static final int MSG_SIZE = 64;
+  /** How long to run the active connections for, in milliseconds. */
+  private static final long ACTIVE_MILLIS = 10_000;
+  private static int port = 15000;
+
+  public static void main(String[] args) throws Exception {
+    int[] counts = {1000, 10000, 50000};
+    if (args.length > 0) {
+      counts = new int[args.length];
+      for (int i = 0 ; i < args.length ; i++) {
+        counts[i] = Integer.parseInt(args[i]);
+      }
+    }
+    List<String> results = new ArrayList<>();
+    results.add(String.format("%-9s %7s %10s %9s %12s %10s %12s", "model", "conns", "setup ms", "threads", "heap MB", "rss MB", "rtt/s"));
+    boolean[] models = Utils.isVirtualThreadSupported() ? new boolean[] {false, true} : new boolean[] {false};
+    for (int count : counts) {
+      for (boolean virtual : models) {
+        results.add(run(count, virtual));
+      }
+    }
+    System.out.println();
+    for (String result : results) {
+      System.out.println(result);
+    }
+    System.exit(0);
+  }
+
+  private static String run(int count, boolean virtual) throws Exception {
+    String model = virtual ? "virtual" : "platform";
+    System.out.println("Running " + count + " connections with " + model + " threads");
+    int echoPort = port++;
+    int proxyPort = port++;
+    EchoServer echo = new EchoServer(echoPort);
+    echo.start();
+    Params params = new Params(proxyPort, "localhost", echoPort);
+    params.setPrint(false);
+    params.setVirtualThreads(virtual);
+    Main main = new Main(params);
+    main.start();
+    Thread.sleep(200);
+
+    long start = System.currentTimeMillis();
+    Selector selector = Selector.open();
+    List<SocketChannel> clients = new ArrayList<>();
+    for (int i = 0 ; i < count ; i++) {
+      SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", proxyPort));
+      client.configureBlocking(false);
+      client.register(selector, 0, new Client());
+      clients.add(client);
+    }
+    //the tunnel connects to echo server asynchronously, so wait for all of those to be there as well
+    while (echo.accepted.get() < count) {
+      Thread.sleep(10);
+      if (System.currentTimeMillis() - start > 120_000) throw new IllegalStateException("Timed out waiting for connections, got " + echo.accepted.get());
+    }
+    long setup = System.currentTimeMillis() - start;
+    Thread.sleep(1000);
+    System.gc();
+    Thread.sleep(500);
+    int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+    long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    long rss = rss();
+
+    long roundTrips = active(selector);
+
+    for (SocketChannel client : clients) {
+      client.close();
+    }
+    selector.close();
+    main.stop();
+    echo.stop();
+    Thread.sleep(1000);
+    return String.format("%-9s %7d %10d %9d %12.1f %10.1f %12d", model, count, setup, threads, heap / 1e6, rss / 1e6, roundTrips * 1000 / ACTIVE_MILLIS);
+  }
+
+  /**
+   * Make all connections send a message, wait for it to be echoed back, and repeat.
+   *
+   * @param selector Selector with all client connections registered.
+   * @return Number of round trips completed.
+   * @throws IOException On connection errors.
+   */
+  private static long active(Selector selector) throws IOException {
+    for (SelectionKey key : selector.keys()) {
+      ((Client) key.attachment()).send(key);
+    }
+    long roundTrips = 0;
+    long end = System.currentTimeMillis() + ACTIVE_MILLIS;
+    while (System.currentTimeMillis() < end) {
+      selector.select(100);
+      Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+      while (i.hasNext()) {
+        SelectionKey key = i.next();
+        i.remove();
+        Client client = (Client) key.attachment();
+        if (key.isWritable()) client.send(key);
+        if (key.isReadable() && client.receive(key)) {
+          roundTrips++;
+          client.send(key);
+        }
+      }
+    }
+    return roundTrips;
+  }
+
+  /**
+   * @return Resident set size of this process in bytes, or -1 if not available (non-Linux).
+   */
+  private static long rss() {
+    Path status = Paths.get("/proc/self/status");
+    try {
+      for (String line : Files.readAllLines(status)) {
+        if (line.startsWith("VmRSS:")) {
+          String kb = line.substring(6).trim().split("\\s+")[0];
+          return Long.parseLong(kb) * 1024;
+        }
+      }
+    } catch (IOException e) {
+    }
+    return -1;
+  }
+
+  /**
+   * State of a single client connection.
+   */
+  private static class Client {
+    private final ByteBuffer out = ByteBuffer.allocate(MSG_SIZE);
+    private final ByteBuffer in = ByteBuffer.allocate(MSG_SIZE);
+
+    private void send(SelectionKey key) throws IOException {
+      if (!out.hasRemaining()) out.clear();
+      ((SocketChannel) key.channel()).write(out);
+      key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private boolean receive(SelectionKey key) throws IOException {
+      ((SocketChannel) key.channel()).read(in);
+      if (in.hasRemaining()) return false;
+      in.clear();
+      return true;
+    }
+  }
+
+  /**
+   * Single threaded selector based echo server, so the backend is not what we measure.
+   */
+  private static class EchoServer implements Runnable {
+    private final int port;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile boolean shouldRun = true;
+    private Selector selector;
+
+    private EchoServer(int port) {
+      this.port = port;
+    }
+
+    private void start() throws IOException {
+      selector = Selector.open();
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port), 50000);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      Thread thread = new Thread(this, "echo-server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void stop() {
+      shouldRun = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+      try {
+        while (shouldRun) {
+          selector.select();
+          Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+          while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            try {
+              if (key.isAcceptable()) {
+                SocketChannel client;
+                while ((client = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                  client.configureBlocking(false);
+                  client.register(selector, SelectionKey.OP_READ);
+                  accepted.incrementAndGet();
+                }
+              } else if (key.isReadable()) {
+                SocketChannel client = (SocketChannel) key.channel();
+                buffer.clear();
+                if (client.read(buffer) < 0) {
+                  key.cancel();
+                  client.close();
+                  continue;
+                }
+                buffer.flip();
+                //small messages on loopback, so this practically always writes it all at once
+                while (buffer.hasRemaining()) client.write(buffer);
+              }
+            } catch (IOException e) {
+              key.cancel();
+              key.channel().close();
+            }
+          }
+        }
+        for (SelectionKey key : selector.keys()) {
+          key.channel().close();
+        }
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}